@@ -0,0 +1,5 @@
+cd %~dp0..
+set CONF=%1
+if "%CONF%"=="" set CONF=conf/load-test.conf
+java %JAVA_OPTS% -classpath ../libs/*;*;../* fi.laverca.examples.LoadTest %CONF%
+pause
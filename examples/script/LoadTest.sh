@@ -0,0 +1,3 @@
+#!/bin/sh
+cd `dirname $0`/..
+java $JAVA_OPTS -classpath '../libs/*:*:../*' fi.laverca.examples.LoadTest ${1:-conf/load-test.conf}
@@ -0,0 +1,3 @@
+cd %~dp0..
+java -classpath ../libs/*;*;../* fi.laverca.examples.mssp.MsspSimulator conf/mssp-simulator.conf
+pause
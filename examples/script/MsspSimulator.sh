@@ -0,0 +1,3 @@
+#!/bin/sh
+cd `dirname $0`/..
+java -classpath '../libs/*:*:../*' fi.laverca.examples.mssp.MsspSimulator conf/mssp-simulator.conf
@@ -0,0 +1,96 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.laverca.ficom.FiComCharsetLimiter;
+
+/**
+ * FiComCharsetLimiter conversions of texts to be displayed.
+ * <p>
+ * "ascii" is plain English, "scandic" Finnish text that fits in GSM 03.38
+ * and "mixed" contains characters outside of it, which limit replaces.
+ * toGSM0338 is only measured for texts that pass areGSMcharactersOnly,
+ * as FiComClient does.
+ * <pre>
+ * $ ant bench -Dbench.args="CharsetLimiterBenchmark"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CharsetLimiterBenchmark {
+
+    @Param({"ascii", "scandic", "mixed"})
+    public String text;
+
+    private String input;
+    private String gsm;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if ("ascii".equals(this.text)) {
+            this.input = "Do you want to log in to Example Bank? Reference 1234-5678.";
+        } else if ("scandic".equals(this.text)) {
+            this.input = "Haluatko kirjautua Esimerkkipankkiin? Viite 1234-5678. \u00c4l\u00e4 hyv\u00e4ksy, jos et aloittanut t\u00e4t\u00e4 kirjautumista.";
+        } else {
+            this.input = "Maksu 12,50 \u20ac \u2013 \u201cEsimerkki Oy\u201d \u00e5\u00e4\u00f6 \u0161\u017e \u2713";
+        }
+        this.gsm = FiComCharsetLimiter.limit(this.input);
+    }
+
+    @Benchmark
+    public boolean areGSMcharactersOnly() {
+        return FiComCharsetLimiter.areGSMcharactersOnly(this.input);
+    }
+
+    @Benchmark
+    public String limit() {
+        return FiComCharsetLimiter.limit(this.input);
+    }
+
+    @Benchmark
+    public byte[] toGSM0338() {
+        return FiComCharsetLimiter.toGSM0338(this.gsm);
+    }
+
+    @Benchmark
+    public byte[] toUCS2() {
+        return FiComCharsetLimiter.toUCS2(this.input);
+    }
+
+}
@@ -0,0 +1,208 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.etsi.uri.TS102204.v1_1_2.AP_Info;
+import org.etsi.uri.TS102204.v1_1_2.DataToBeDisplayed;
+import org.etsi.uri.TS102204.v1_1_2.DataToBeSigned;
+import org.etsi.uri.TS102204.v1_1_2.MSSP_ID;
+import org.etsi.uri.TS102204.v1_1_2.MSSP_Info;
+import org.etsi.uri.TS102204.v1_1_2.MSS_Format;
+import org.etsi.uri.TS102204.v1_1_2.MSS_Signature;
+import org.etsi.uri.TS102204.v1_1_2.MSS_SignatureReq;
+import org.etsi.uri.TS102204.v1_1_2.MSS_StatusResp;
+import org.etsi.uri.TS102204.v1_1_2.MobileUser;
+import org.etsi.uri.TS102204.v1_1_2.SignatureProfile;
+import org.etsi.uri.TS102204.v1_1_2.Status;
+import org.etsi.uri.TS102204.v1_1_2.StatusCode;
+import org.etsi.uri.TS102204.v1_1_2.types.MessagingModeType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.laverca.etsi.EtsiSoapCodec;
+import fi.laverca.etsi.StaxEtsiCodec;
+
+/**
+ * Encoding and decoding cost of the Castor and StAX envelope codecs.
+ * <p>
+ * The setup checks that both codecs read each other's output back to
+ * the same objects, so a run also works as a golden round trip check.
+ * <pre>
+ * $ ant bench -Dbench.args="CodecBenchmark"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+
+    @Param({"castor", "stax"})
+    public String codec;
+
+    private EtsiSoapCodec    c;
+    private MSS_SignatureReq sigReq;
+    private byte[]           statusResp;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        EtsiSoapCodec castor = new EtsiSoapCodec();
+        StaxEtsiCodec stax   = new StaxEtsiCodec();
+        this.c = "stax".equals(this.codec) ? stax : castor;
+
+        this.sigReq = createSignatureReq();
+        MSS_StatusResp resp = createStatusResp();
+        this.statusResp = encode(castor, "MSS_StatusQueryResponse", resp);
+
+        checkRoundTrip(castor, stax, "MSS_Signature", this.sigReq, MSS_SignatureReq.class);
+        checkRoundTrip(castor, stax, "MSS_StatusQueryResponse", resp, MSS_StatusResp.class);
+    }
+
+    @Benchmark
+    public byte[] encodeSignatureReq() throws IOException {
+        return encode(this.c, "MSS_Signature", this.sigReq);
+    }
+
+    @Benchmark
+    public MSS_StatusResp decodeStatusResp() throws IOException {
+        return this.c.readMessage(new ByteArrayInputStream(this.statusResp), MSS_StatusResp.class);
+    }
+
+    /**
+     * Decode the output of each codec with the other one and compare
+     * the results by their Castor encoding.
+     */
+    private static <T> void checkRoundTrip(final EtsiSoapCodec castor,
+                                           final EtsiSoapCodec stax,
+                                           final String operation,
+                                           final T message,
+                                           final Class<T> type)
+        throws IOException
+    {
+        byte[] gold = encode(castor, operation, message);
+        byte[] out  = encode(stax, operation, message);
+        T a = castor.readMessage(new ByteArrayInputStream(out), type);
+        T b = stax.readMessage(new ByteArrayInputStream(gold), type);
+        if (!Arrays.equals(gold, encode(castor, operation, a)) || !Arrays.equals(gold, encode(castor, operation, b))) {
+            throw new IllegalStateException(type.getSimpleName() + " round trip differs:\n"
+                                            + new String(gold, "UTF-8") + "\n" + new String(out, "UTF-8"));
+        }
+    }
+
+    private static byte[] encode(final EtsiSoapCodec codec, final String operation, final Object message)
+        throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(2048);
+        codec.writeMessage(baos, operation, message);
+        return baos.toByteArray();
+    }
+
+    private static AP_Info createApInfo() {
+        AP_Info ai = new AP_Info();
+        ai.setAP_ID("http://ap.example.com");
+        ai.setAP_PWD("bench");
+        ai.setAP_TransID("A1");
+        ai.setInstant(new Date());
+        return ai;
+    }
+
+    private static MSSP_Info createMsspInfo() {
+        MSSP_ID id = new MSSP_ID();
+        id.setURI("http://mssp.example.com");
+        MSSP_Info mi = new MSSP_Info();
+        mi.setMSSP_ID(id);
+        mi.setInstant(new Date());
+        return mi;
+    }
+
+    private static MSS_SignatureReq createSignatureReq() {
+        MSS_SignatureReq req = new MSS_SignatureReq();
+        req.setMajorVersion(1);
+        req.setMinorVersion(1);
+        req.setTimeOut(60);
+        req.setMessagingMode(MessagingModeType.ASYNCHCLIENTSERVER);
+        req.setAP_Info(createApInfo());
+        req.setMSSP_Info(createMsspInfo());
+        MobileUser mu = new MobileUser();
+        mu.setMSISDN("+358400000000");
+        req.setMobileUser(mu);
+        DataToBeSigned dtbs = new DataToBeSigned();
+        dtbs.setMimeType("text/plain");
+        dtbs.setEncoding("UTF-8");
+        dtbs.setContent("Authentication request <1234>");
+        req.setDataToBeSigned(dtbs);
+        DataToBeDisplayed dtbd = new DataToBeDisplayed();
+        dtbd.setContent("Authentication request");
+        req.setDataToBeDisplayed(dtbd);
+        SignatureProfile sp = new SignatureProfile();
+        sp.setMssURI("http://alauda.mobi/nonRepudiation");
+        req.setSignatureProfile(sp);
+        MSS_Format f = new MSS_Format();
+        f.setMssURI("http://uri.etsi.org/TS102204/v1.1.2#PKCS7");
+        req.setMSS_Format(f);
+        return req;
+    }
+
+    private static MSS_StatusResp createStatusResp() {
+        MSS_StatusResp resp = new MSS_StatusResp();
+        resp.setMajorVersion(1);
+        resp.setMinorVersion(1);
+        resp.setMSSP_TransID("bench1");
+        resp.setAP_Info(createApInfo());
+        resp.setMSSP_Info(createMsspInfo());
+        MobileUser mu = new MobileUser();
+        mu.setMSISDN("+358400000000");
+        resp.setMobileUser(mu);
+        MSS_Signature sig = new MSS_Signature();
+        byte[] pkcs7 = new byte[2048];
+        for (int i = 0; i < pkcs7.length; i++) {
+            pkcs7[i] = (byte)i;
+        }
+        sig.setBase64Signature(pkcs7);
+        resp.setMSS_Signature(sig);
+        StatusCode sc = new StatusCode();
+        sc.setValue(502);
+        Status st = new Status();
+        st.setStatusCode(sc);
+        st.setStatusMessage("VALID_SIGNATURE");
+        resp.setStatus(st);
+        return resp;
+    }
+
+}
@@ -0,0 +1,102 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.axis.encoding.Base64;
+import org.etsi.uri.TS102204.v1_1_2.DataToBeSigned;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.laverca.DTBS;
+
+/**
+ * DTBS conversions: base64 encoding of binary data to be signed,
+ * decoding it back and the text to bytes path.
+ * <p>
+ * 32 bytes is a SHA-256 digest of the digestive signature profile,
+ * the larger sizes are documents signed as such.
+ * <pre>
+ * $ ant bench -Dbench.args="DtbsBenchmark"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DtbsBenchmark {
+
+    @Param({"32", "1024", "16384"})
+    public int size;
+
+    private DTBS   binary;
+    private DTBS   text;
+    private String base64;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        byte[] data = new byte[this.size];
+        new Random(42).nextBytes(data);
+        this.binary = new DTBS(data, DTBS.ENCODING_BASE64, DTBS.MIME_SHA256);
+
+        StringBuilder sb = new StringBuilder(this.size);
+        while (sb.length() < this.size) {
+            sb.append("Maksu 12,50 \u20ac tilille FI21 1234 5600 0007 85. ");
+        }
+        sb.setLength(this.size);
+        this.text = new DTBS(sb.toString(), DTBS.ENCODING_UTF8, DTBS.MIME_TEXTPLAIN);
+        this.base64 = this.binary.toDataToBeSigned().getContent();
+    }
+
+    @Benchmark
+    public DataToBeSigned binaryToDataToBeSigned() {
+        return this.binary.toDataToBeSigned();
+    }
+
+    @Benchmark
+    public byte[] decodeBase64() {
+        return Base64.decode(this.base64);
+    }
+
+    @Benchmark
+    public DataToBeSigned textToDataToBeSigned() {
+        return this.text.toDataToBeSigned();
+    }
+
+    @Benchmark
+    public byte[] textToBytes() {
+        return this.text.toBytes();
+    }
+
+}
@@ -0,0 +1,560 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.Certificate;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.ExtensionsGenerator;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x509.TBSCertificate;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.asn1.x509.V3TBSCertificateGenerator;
+
+/**
+ * Local TLS server standing in for an MSSP that speaks HTTP/2.
+ * <p>
+ * Answers every request with the same prepared response after a fixed
+ * latency. HTTP/2 (h2) or HTTP/1.1 is chosen with ALPN, so both the
+ * pooled HTTP/1.1 transport and the HTTP/2 transport can be measured
+ * against the same server. Only as much HTTP/2 is implemented as the
+ * JDK client needs: the request headers are not decoded, and the
+ * response headers are sent as HPACK literals.
+ * The server certificate is self-signed for 127.0.0.1 and localhost;
+ * {@link #getClientContext()} trusts it.
+ */
+public class H2StandInServer {
+
+    private static final Log log = LogFactory.getLog(H2StandInServer.class);
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int DATA          = 0x0;
+    private static final int HEADERS       = 0x1;
+    private static final int SETTINGS      = 0x4;
+    private static final int PING          = 0x6;
+    private static final int GOAWAY        = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+
+    private static final int END_STREAM  = 0x1;
+    private static final int ACK         = 0x1;
+    private static final int END_HEADERS = 0x4;
+
+    private static final int MAX_FRAME_SIZE = 16384;
+
+    private final byte[] response;
+    private final String contentType;
+    private final long   latency;
+
+    private final SSLContext      serverContext;
+    private final SSLContext      clientContext;
+    private final SSLServerSocket server;
+
+    private final ExecutorService          connectionThreads;
+    private final ScheduledExecutorService timer;
+
+    private final AtomicInteger connections   = new AtomicInteger();
+    private final AtomicInteger h2Connections = new AtomicInteger();
+    private final LongAdder     requests      = new LongAdder();
+
+    private volatile boolean stopped;
+
+    /**
+     * @param response    Body of every response
+     * @param contentType Content-Type of the responses
+     * @param latency     Milliseconds to wait before answering
+     * @param h2          Whether to offer HTTP/2; false for an HTTP/1.1 only server
+     */
+    public H2StandInServer(final byte[] response,
+                           final String contentType,
+                           final long   latency,
+                           final boolean h2)
+        throws IOException, GeneralSecurityException
+    {
+        this.response    = response;
+        this.contentType = contentType;
+        this.latency     = latency;
+
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        KeyPair key = kpg.generateKeyPair();
+        X509Certificate cert = selfSign(key);
+
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        ks.load(null, null);
+        ks.setKeyEntry("server", key.getPrivate(), new char[0], new X509Certificate[] { cert });
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, new char[0]);
+        this.serverContext = SSLContext.getInstance("TLS");
+        this.serverContext.init(kmf.getKeyManagers(), null, null);
+
+        KeyStore ts = KeyStore.getInstance("PKCS12");
+        ts.load(null, null);
+        ts.setCertificateEntry("server", cert);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(ts);
+        this.clientContext = SSLContext.getInstance("TLS");
+        this.clientContext.init(null, tmf.getTrustManagers(), null);
+
+        this.server = (SSLServerSocket)this.serverContext.getServerSocketFactory().createServerSocket();
+        SSLParameters params = this.server.getSSLParameters();
+        params.setApplicationProtocols(h2 ? new String[] { "h2", "http/1.1" } : new String[] { "http/1.1" });
+        this.server.setSSLParameters(params);
+        this.server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1000);
+
+        this.connectionThreads = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "h2-standin-conn");
+            t.setDaemon(true);
+            return t;
+        });
+        this.timer = Executors.newScheduledThreadPool(2, r -> {
+            Thread t = new Thread(r, "h2-standin-timer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void start() {
+        this.connectionThreads.execute(() -> {
+            while (!this.stopped) {
+                try {
+                    final SSLSocket s = (SSLSocket)this.server.accept();
+                    s.setTcpNoDelay(true);
+                    this.connectionThreads.execute(() -> this.serve(s));
+                } catch (IOException e) {
+                    if (!this.stopped) {
+                        log.warn("Accept failed", e);
+                    }
+                }
+            }
+        });
+    }
+
+    public void stop() {
+        this.stopped = true;
+        try {
+            this.server.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        this.connectionThreads.shutdownNow();
+        this.timer.shutdownNow();
+    }
+
+    /**
+     * @return base URL of the server, e.g. https://127.0.0.1:12345
+     */
+    public String getUrl() {
+        return "https://127.0.0.1:" + this.server.getLocalPort();
+    }
+
+    /**
+     * @return client SSL settings trusting the server certificate
+     */
+    public SSLContext getClientContext() {
+        return this.clientContext;
+    }
+
+    /**
+     * @return Number of connections accepted
+     */
+    public int getConnections() {
+        return this.connections.get();
+    }
+
+    /**
+     * @return Number of connections that negotiated HTTP/2
+     */
+    public int getH2Connections() {
+        return this.h2Connections.get();
+    }
+
+    public long getRequests() {
+        return this.requests.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "H2StandInServer [connections " + this.getConnections() + " (h2 " + this.getH2Connections()
+               + "), requests " + this.getRequests() + "]";
+    }
+
+    private void serve(final SSLSocket s) {
+        this.connections.incrementAndGet();
+        try {
+            s.startHandshake();
+            InputStream  in  = new BufferedInputStream(s.getInputStream(), 16384);
+            OutputStream out = new BufferedOutputStream(s.getOutputStream(), 16384);
+            if ("h2".equals(s.getApplicationProtocol())) {
+                this.h2Connections.incrementAndGet();
+                new H2Connection(in, out).serve();
+            } else {
+                this.serveHttp1(in, out);
+            }
+        } catch (IOException e) {
+            // Closed by the client
+        } finally {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void serveHttp1(final InputStream in, final OutputStream out) throws IOException {
+        byte[] head = ("HTTP/1.1 200 OK\r\nContent-Type: " + this.contentType
+                       + "\r\nContent-Length: " + this.response.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        String line;
+        while ((line = readLine(in)) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            long length = 0;
+            boolean chunked = false;
+            while (!(line = readLine(in)).isEmpty()) {
+                int colon = line.indexOf(':');
+                String name  = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if ("Content-Length".equalsIgnoreCase(name)) {
+                    length = Long.parseLong(value);
+                } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                    chunked = value.equalsIgnoreCase("chunked");
+                }
+            }
+            if (chunked) {
+                long n;
+                while ((n = Long.parseLong(readLine(in).split(";")[0].trim(), 16)) > 0) {
+                    skip(in, n);
+                    readLine(in);
+                }
+                while (!readLine(in).isEmpty()) {
+                    // trailers
+                }
+            } else {
+                skip(in, length);
+            }
+            this.requests.increment();
+            this.sleep();
+            out.write(head);
+            out.write(this.response);
+            out.flush();
+        }
+    }
+
+    private void sleep() {
+        if (this.latency > 0) {
+            try {
+                Thread.sleep(this.latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                if (sb.length() == 0) {
+                    return null;
+                }
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                sb.append((char)c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void skip(final InputStream in, final long n) throws IOException {
+        long left = n;
+        while (left > 0) {
+            long k = in.skip(left);
+            if (k <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                k = 1;
+            }
+            left -= k;
+        }
+    }
+
+    /**
+     * One HTTP/2 connection. Frames are read by the connection thread;
+     * the responses are written by the timer after the latency.
+     */
+    private final class H2Connection {
+
+        private final InputStream   in;
+        private final OutputStream  out;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final byte[]        responseHeaders;
+
+        H2Connection(final InputStream in, final OutputStream out) {
+            this.in  = in;
+            this.out = out;
+            ByteArrayOutputStream hb = new ByteArrayOutputStream();
+            hb.write(0x88); // :status 200, static table index 8
+            literal(hb, 31, H2StandInServer.this.contentType);                          // content-type
+            literal(hb, 28, Integer.toString(H2StandInServer.this.response.length)); // content-length
+            this.responseHeaders = hb.toByteArray();
+        }
+
+        void serve() throws IOException {
+            byte[] preface = new byte[PREFACE.length];
+            readFully(preface, preface.length);
+            if (!Arrays.equals(preface, PREFACE)) {
+                throw new IOException("Not an HTTP/2 client preface");
+            }
+            // SETTINGS_MAX_CONCURRENT_STREAMS 1000
+            this.write(SETTINGS, 0, 0, new byte[] { 0, 0x3, 0, 0, 0x03, (byte)0xe8 });
+
+            byte[] header  = new byte[9];
+            byte[] payload = new byte[MAX_FRAME_SIZE];
+            while (true) {
+                readFully(header, 9);
+                int length   = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+                int type     = header[3] & 0xff;
+                int flags    = header[4] & 0xff;
+                int streamId = ((header[5] & 0x7f) << 24) | ((header[6] & 0xff) << 16) | ((header[7] & 0xff) << 8) | (header[8] & 0xff);
+                if (length > payload.length) {
+                    throw new IOException("Frame too large: " + length);
+                }
+                readFully(payload, length);
+
+                switch (type) {
+                case SETTINGS:
+                    if ((flags & ACK) == 0) {
+                        this.write(SETTINGS, ACK, 0, new byte[0]);
+                    }
+                    break;
+                case PING:
+                    if ((flags & ACK) == 0) {
+                        this.write(PING, ACK, 0, Arrays.copyOf(payload, length));
+                    }
+                    break;
+                case GOAWAY:
+                    return;
+                case DATA:
+                    if (length > 0) {
+                        // Give back the connection window; the small requests fit in the stream windows
+                        this.write(WINDOW_UPDATE, 0, 0, int32(length));
+                    }
+                    if ((flags & END_STREAM) != 0) {
+                        this.respond(streamId);
+                    }
+                    break;
+                case HEADERS:
+                    if ((flags & END_STREAM) != 0) {
+                        this.respond(streamId);
+                    }
+                    break;
+                default:
+                    // PRIORITY, RST_STREAM, WINDOW_UPDATE, CONTINUATION
+                    break;
+                }
+            }
+        }
+
+        private void respond(final int streamId) {
+            H2StandInServer.this.requests.increment();
+            Runnable r = () -> {
+                try {
+                    this.writeResponse(streamId);
+                } catch (IOException e) {
+                    // Closed by the client
+                }
+            };
+            if (H2StandInServer.this.latency > 0) {
+                H2StandInServer.this.timer.schedule(r, H2StandInServer.this.latency, TimeUnit.MILLISECONDS);
+            } else {
+                r.run();
+            }
+        }
+
+        private void writeResponse(final int streamId) throws IOException {
+            byte[] body = H2StandInServer.this.response;
+            this.writeLock.lock();
+            try {
+                this.frame(HEADERS, END_HEADERS, streamId, this.responseHeaders, 0, this.responseHeaders.length);
+                int off = 0;
+                do {
+                    int n = Math.min(MAX_FRAME_SIZE, body.length - off);
+                    this.frame(DATA, off + n == body.length ? END_STREAM : 0, streamId, body, off, n);
+                    off += n;
+                } while (off < body.length);
+                this.out.flush();
+            } finally {
+                this.writeLock.unlock();
+            }
+        }
+
+        private void write(final int type, final int flags, final int streamId, final byte[] payload) throws IOException {
+            this.writeLock.lock();
+            try {
+                this.frame(type, flags, streamId, payload, 0, payload.length);
+                this.out.flush();
+            } finally {
+                this.writeLock.unlock();
+            }
+        }
+
+        private void frame(final int type, final int flags, final int streamId,
+                           final byte[] payload, final int off, final int len)
+            throws IOException
+        {
+            this.out.write(len >>> 16);
+            this.out.write(len >>> 8);
+            this.out.write(len);
+            this.out.write(type);
+            this.out.write(flags);
+            this.out.write(int32(streamId));
+            this.out.write(payload, off, len);
+        }
+
+        private void readFully(final byte[] b, final int len) throws IOException {
+            int off = 0;
+            while (off < len) {
+                int n = this.in.read(b, off, len - off);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                off += n;
+            }
+        }
+    }
+
+    /**
+     * HPACK literal header field without indexing, with an indexed name.
+     */
+    private static void literal(final ByteArrayOutputStream out, final int nameIndex, final String value) {
+        hpackInt(out, 0x00, 4, nameIndex);
+        byte[] v = value.getBytes(StandardCharsets.US_ASCII);
+        hpackInt(out, 0x00, 7, v.length);
+        out.write(v, 0, v.length);
+    }
+
+    private static void hpackInt(final ByteArrayOutputStream out, final int mask, final int prefixBits, final int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(mask | value);
+            return;
+        }
+        out.write(mask | max);
+        int rest = value - max;
+        while (rest >= 0x80) {
+            out.write((rest & 0x7f) | 0x80);
+            rest >>>= 7;
+        }
+        out.write(rest);
+    }
+
+    private static byte[] int32(final int i) {
+        return new byte[] { (byte)(i >>> 24), (byte)(i >>> 16), (byte)(i >>> 8), (byte)i };
+    }
+
+    /**
+     * A self-signed certificate for 127.0.0.1 and localhost.
+     */
+    private static X509Certificate selfSign(final KeyPair key) throws IOException, GeneralSecurityException {
+        AlgorithmIdentifier sha256Rsa = new AlgorithmIdentifier(PKCSObjectIdentifiers.sha256WithRSAEncryption, DERNull.INSTANCE);
+        X500Name name = new X500Name("CN=127.0.0.1");
+        long now = System.currentTimeMillis();
+
+        ExtensionsGenerator ext = new ExtensionsGenerator();
+        ext.addExtension(Extension.subjectAlternativeName, false,
+                         new GeneralNames(new GeneralName[] {
+                             new GeneralName(GeneralName.iPAddress, "127.0.0.1"),
+                             new GeneralName(GeneralName.dNSName,   "localhost")
+                         }));
+
+        V3TBSCertificateGenerator g = new V3TBSCertificateGenerator();
+        g.setSerialNumber(new ASN1Integer(BigInteger.valueOf(now)));
+        g.setSignature(sha256Rsa);
+        g.setIssuer(name);
+        g.setSubject(name);
+        g.setStartDate(new Time(new Date(now - 3600 * 1000)));
+        g.setEndDate(new Time(new Date(now + 24 * 3600 * 1000)));
+        g.setSubjectPublicKeyInfo(SubjectPublicKeyInfo.getInstance(key.getPublic().getEncoded()));
+        g.setExtensions(ext.generate());
+        TBSCertificate tbs = g.generateTBSCertificate();
+
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(key.getPrivate());
+        sig.update(tbs.getEncoded(ASN1Encoding.DER));
+        Certificate c = Certificate.getInstance(new DERSequence(new ASN1Encodable[] { tbs, sha256Rsa, new DERBitString(sig.sign()) }));
+
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        return (X509Certificate)cf.generateCertificate(new ByteArrayInputStream(c.getEncoded()));
+    }
+
+}
@@ -0,0 +1,173 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.etsi.uri.TS102204.v1_1_2.AP_Info;
+import org.etsi.uri.TS102204.v1_1_2.MSSP_ID;
+import org.etsi.uri.TS102204.v1_1_2.MSSP_Info;
+import org.etsi.uri.TS102204.v1_1_2.MSS_SignatureResp;
+import org.etsi.uri.TS102204.v1_1_2.MSS_StatusReq;
+import org.etsi.uri.TS102204.v1_1_2.MSS_StatusResp;
+import org.etsi.uri.TS102204.v1_1_2.MobileUser;
+import org.etsi.uri.TS102204.v1_1_2.Status;
+import org.etsi.uri.TS102204.v1_1_2.StatusCode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.laverca.Http2Transport;
+import fi.laverca.HttpTransport;
+import fi.laverca.etsi.EtsiClient;
+import fi.laverca.etsi.EtsiSoapCodec;
+
+/**
+ * Status queries over the pooled HTTP/1.1 transport and the HTTP/2 one.
+ * <p>
+ * The MSSP is a local TLS server answering after a few milliseconds,
+ * negotiating h2 with the HTTP/2 transport. 32 threads poll at once:
+ * over HTTP/1.1 each needs a connection of its own, over HTTP/2 they
+ * share two. The connections opened are printed after each trial.
+ * {@code h2-fallback} talks to the same server with h2 turned off, for
+ * the cost of the HTTP/2 transport falling back to HTTP/1.1.
+ * <pre>
+ * $ ant bench -Dbench.args="Http2Benchmark"
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Http2Benchmark {
+
+    @Param({"http1", "h2", "h2-fallback"})
+    public String transport;
+
+    @Param({"5"})
+    public long latency;
+
+    private H2StandInServer mssp;
+    private HttpTransport   http1;
+    private Http2Transport  h2;
+    private EtsiClient      client;
+    private MSS_StatusReq   statusReq;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GeneralSecurityException {
+        EtsiSoapCodec codec = new EtsiSoapCodec();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        codec.writeMessage(baos, "MSS_StatusQueryResponse", createStatusResp());
+
+        this.mssp = new H2StandInServer(baos.toByteArray(), EtsiSoapCodec.CONTENT_TYPE, this.latency,
+                                        !"h2-fallback".equals(this.transport));
+        this.mssp.start();
+
+        String base = this.mssp.getUrl();
+        if ("http1".equals(this.transport)) {
+            this.http1 = new HttpTransport(new SSLConnectionSocketFactory(this.mssp.getClientContext()));
+            this.http1.setMaxPerRoute(64);
+            this.client = new EtsiClient("bench", "bench", base + "/sig", base + "/status", base + "/rc");
+            this.client.setTransport(this.http1);
+        } else {
+            this.h2 = new Http2Transport(Http2Transport.DEFAULT_CONNECTIONS, this.mssp.getClientContext());
+            this.client = new EtsiClient("bench", "bench", base + "/sig", base + "/status", base + "/rc",
+                                         null, null, null, this.h2.createEngineConfiguration());
+        }
+
+        MSS_SignatureResp sigResp = new MSS_SignatureResp();
+        sigResp.setMSSP_Info(createMsspInfo());
+        sigResp.setMSSP_TransID("bench1");
+        this.statusReq = this.client.createStatusRequest(sigResp, "A1");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println();
+        System.out.println(this.mssp);
+        if (this.http1 != null) {
+            this.http1.shutdown();
+        }
+        if (this.h2 != null) {
+            System.out.println(this.h2);
+            this.h2.shutdown();
+        }
+        this.mssp.stop();
+    }
+
+    /**
+     * Synchronous status queries from 32 threads.
+     */
+    @Benchmark
+    @Threads(32)
+    public MSS_StatusResp statusQuery() throws IOException {
+        return this.client.send(this.statusReq);
+    }
+
+    private static MSSP_Info createMsspInfo() {
+        MSSP_ID id = new MSSP_ID();
+        id.setURI("http://mssp.example.com");
+        MSSP_Info mi = new MSSP_Info();
+        mi.setMSSP_ID(id);
+        mi.setInstant(new Date());
+        return mi;
+    }
+
+    private static MSS_StatusResp createStatusResp() {
+        MSS_StatusResp resp = new MSS_StatusResp();
+        resp.setMajorVersion(1);
+        resp.setMinorVersion(1);
+        AP_Info ai = new AP_Info();
+        ai.setAP_ID("bench");
+        ai.setAP_PWD("bench");
+        ai.setAP_TransID("A1");
+        ai.setInstant(new Date());
+        resp.setAP_Info(ai);
+        resp.setMSSP_Info(createMsspInfo());
+        MobileUser mu = new MobileUser();
+        mu.setMSISDN("+358400000000");
+        resp.setMobileUser(mu);
+        StatusCode sc = new StatusCode();
+        sc.setValue(504);
+        Status st = new Status();
+        st.setStatusCode(sc);
+        resp.setStatus(st);
+        return resp;
+    }
+
+}
@@ -0,0 +1,91 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.laverca.examples.mssp.SimulatorSigner;
+import fi.laverca.ficom.FiComException;
+import fi.laverca.ficom.FiComPkcs7;
+
+/**
+ * FiComPkcs7 parsing and signer certificate matching.
+ * <p>
+ * The signature is made by the MSSP simulator and carries the user and
+ * the CA certificate, so the signer has to be matched by issuer and
+ * serial number like with a real MSSP.
+ * <pre>
+ * $ ant bench -Dbench.args="Pkcs7Benchmark"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Pkcs7Benchmark {
+
+    private byte[]     signature;
+    private FiComPkcs7 parsed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SimulatorSigner signer = new SimulatorSigner();
+        this.signature = signer.sign("+358400000000", "Authentication request <1234>".getBytes(StandardCharsets.UTF_8));
+        this.parsed    = new FiComPkcs7(this.signature);
+        if (!"+358400000000".equals(this.parsed.getSignerCn())) {
+            throw new IllegalStateException("Signer not found");
+        }
+    }
+
+    @Benchmark
+    public FiComPkcs7 parse() {
+        return new FiComPkcs7(this.signature);
+    }
+
+    @Benchmark
+    public X509Certificate getSignerCert() throws FiComException {
+        return this.parsed.getSignerCert();
+    }
+
+    /**
+     * What an AP does with every authentication response.
+     */
+    @Benchmark
+    public String parseAndGetSignerCn() {
+        return new FiComPkcs7(this.signature).getSignerCn();
+    }
+
+}
@@ -0,0 +1,231 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.bench;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Local HTTP/1.1 server standing in for a TLS terminating sidecar.
+ * <p>
+ * Answers every POST with the same prepared response, on a loopback TCP
+ * port and on a Unix domain socket at the same time, with the same code
+ * for both. The difference of the transports measured against it is
+ * then the socket family alone.
+ */
+public class SidecarStandInServer {
+
+    private static final Log log = LogFactory.getLog(SidecarStandInServer.class);
+
+    private final byte[] head;
+    private final byte[] response;
+
+    private final Path                socketPath;
+    private final ServerSocketChannel tcp;
+    private final ServerSocketChannel unix;
+    private final ExecutorService     threads;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder     requests    = new LongAdder();
+
+    private volatile boolean stopped;
+
+    /**
+     * @param response    Body of every response
+     * @param contentType Content-Type of the responses
+     */
+    public SidecarStandInServer(final byte[] response, final String contentType) throws IOException {
+        this.response = response;
+        this.head = ("HTTP/1.1 200 OK\r\nContent-Type: " + contentType
+                     + "\r\nContent-Length: " + response.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        this.socketPath = Files.createTempDirectory("laverca-sidecar").resolve("sidecar.sock");
+        this.unix = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        this.unix.bind(UnixDomainSocketAddress.of(this.socketPath), 1000);
+        this.tcp = ServerSocketChannel.open();
+        this.tcp.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1000);
+
+        this.threads = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "sidecar-standin");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void start() {
+        this.accept(this.tcp);
+        this.accept(this.unix);
+    }
+
+    public void stop() {
+        this.stopped = true;
+        try {
+            this.tcp.close();
+            this.unix.close();
+            Files.deleteIfExists(this.socketPath);
+            Files.deleteIfExists(this.socketPath.getParent());
+        } catch (IOException e) {
+            // ignore
+        }
+        this.threads.shutdownNow();
+    }
+
+    /**
+     * @return the path of the Unix domain socket
+     */
+    public Path getSocketPath() {
+        return this.socketPath;
+    }
+
+    /**
+     * @return the loopback TCP port
+     */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress)this.tcp.getLocalAddress()).getPort();
+    }
+
+    @Override
+    public String toString() {
+        return "SidecarStandInServer [connections " + this.connections.get() + ", requests " + this.requests.sum() + "]";
+    }
+
+    private void accept(final ServerSocketChannel server) {
+        this.threads.execute(() -> {
+            while (!this.stopped) {
+                try {
+                    final SocketChannel ch = server.accept();
+                    SocketAddress local = ch.getLocalAddress();
+                    if (local instanceof InetSocketAddress) {
+                        ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    }
+                    this.threads.execute(() -> this.serve(ch));
+                } catch (IOException e) {
+                    if (!this.stopped) {
+                        log.warn("Accept failed", e);
+                    }
+                }
+            }
+        });
+    }
+
+    private void serve(final SocketChannel ch) {
+        this.connections.incrementAndGet();
+        try {
+            InputStream in = new BufferedInputStream(Channels.newInputStream(ch), 16384);
+            String line;
+            while ((line = readLine(in)) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                long length = 0;
+                boolean chunked = false;
+                while (!(line = readLine(in)).isEmpty()) {
+                    int colon = line.indexOf(':');
+                    String name  = line.substring(0, colon).trim();
+                    String value = line.substring(colon + 1).trim();
+                    if ("Content-Length".equalsIgnoreCase(name)) {
+                        length = Long.parseLong(value);
+                    } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                        chunked = value.equalsIgnoreCase("chunked");
+                    }
+                }
+                if (chunked) {
+                    long n;
+                    while ((n = Long.parseLong(readLine(in).split(";")[0].trim(), 16)) > 0) {
+                        skip(in, n);
+                        readLine(in);
+                    }
+                    while (!readLine(in).isEmpty()) {
+                        // trailers
+                    }
+                } else {
+                    skip(in, length);
+                }
+                this.requests.increment();
+                ByteBuffer[] out = { ByteBuffer.wrap(this.head), ByteBuffer.wrap(this.response) };
+                while (out[1].hasRemaining()) {
+                    ch.write(out);
+                }
+            }
+        } catch (IOException e) {
+            // Closed by the client
+        } finally {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                if (sb.length() == 0) {
+                    return null;
+                }
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                sb.append((char)c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void skip(final InputStream in, final long n) throws IOException {
+        long left = n;
+        while (left > 0) {
+            long k = in.skip(left);
+            if (k <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                k = 1;
+            }
+            left -= k;
+        }
+    }
+
+}
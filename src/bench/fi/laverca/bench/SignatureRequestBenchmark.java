@@ -0,0 +1,111 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.etsi.uri.TS102204.v1_1_2.MSS_SignatureReq;
+import org.etsi.uri.TS102204.v1_1_2.types.MessagingModeType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.laverca.DTBS;
+import fi.laverca.etsi.EtsiClient;
+import fi.laverca.etsi.EtsiSoapCodec;
+import fi.laverca.ficom.FiComAdditionalServices;
+import fi.laverca.ficom.FiComSignatureProfiles;
+
+/**
+ * Building an MSS_SignatureReq with the FiCom additional services and
+ * marshalling it into a SOAP envelope with Castor.
+ * <pre>
+ * $ ant bench -Dbench.args="SignatureRequestBenchmark"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SignatureRequestBenchmark {
+
+    private static final String MSS_FORMAT = "http://uri.etsi.org/TS102204/v1.1.2#PKCS7";
+
+    private EtsiClient       client;
+    private EtsiSoapCodec    castor;
+    private DTBS             dtbs;
+    private MSS_SignatureReq sigReq;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.client = new EtsiClient("http://ap.example.com", "bench",
+                                     "http://127.0.0.1/sig", "http://127.0.0.1/status", "http://127.0.0.1/receipt");
+        this.castor = new EtsiSoapCodec();
+        this.dtbs   = new DTBS("Authentication request <1234>", DTBS.ENCODING_UTF8, DTBS.MIME_TEXTPLAIN);
+        this.sigReq = this.createRequest();
+    }
+
+    @Benchmark
+    public MSS_SignatureReq createSignatureRequest() {
+        return this.createRequest();
+    }
+
+    @Benchmark
+    public byte[] marshalSignatureReq() throws IOException {
+        return this.marshal(this.sigReq);
+    }
+
+    @Benchmark
+    public byte[] createAndMarshal() throws IOException {
+        return this.marshal(this.createRequest());
+    }
+
+    private MSS_SignatureReq createRequest() {
+        MSS_SignatureReq req = this.client.createSignatureRequest("A1",
+                                                                  "+358400000000",
+                                                                  this.dtbs,
+                                                                  null,
+                                                                  FiComSignatureProfiles.AUTHENTICATION,
+                                                                  MSS_FORMAT,
+                                                                  MessagingModeType.ASYNCHCLIENTSERVER);
+        req.getAdditionalServices().addService(FiComAdditionalServices.createNoSpamService("A12", false));
+        req.getAdditionalServices().addService(FiComAdditionalServices.createEventIdService("B42"));
+        return req;
+    }
+
+    private byte[] marshal(final MSS_SignatureReq req) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(2048);
+        this.castor.writeMessage(baos, "MSS_Signature", req);
+        return baos.toByteArray();
+    }
+
+}
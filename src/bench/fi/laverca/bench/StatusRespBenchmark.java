@@ -0,0 +1,181 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import oasis.names.tc.SAML.v2_0.assertion.Attribute;
+
+import org.etsi.uri.TS102204.v1_1_2.MSS_StatusResp;
+import org.etsi.uri.TS102204.v1_1_2.StatusDetail;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fi.ficom.mss.TS102204.v1_0_0.ServiceResponse;
+import fi.laverca.Saml2Util;
+import fi.laverca.etsi.EtsiSoapCodec;
+import fi.laverca.etsi.StaxEtsiCodec;
+import fi.laverca.ficom.FiComAdditionalServices;
+
+/**
+ * Unmarshalling of final MSS_StatusResp messages as MSSPs send them.
+ * <p>
+ * The payloads are "plain" (signature only), "validation" (with the AE
+ * validation ServiceResponse), "personid" (with a PersonID SAML2
+ * assertion) and "full" (both). Reading the PersonID attributes and the
+ * AE validation status out of the decoded message is measured separately.
+ * <pre>
+ * $ ant bench -Dbench.args="StatusRespBenchmark"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StatusRespBenchmark {
+
+    @Param({"plain", "validation", "personid", "full"})
+    public String payload;
+
+    @Param({"castor", "stax"})
+    public String codec;
+
+    private EtsiSoapCodec  c;
+    private byte[]         message;
+    private MSS_StatusResp decoded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.c = "stax".equals(this.codec) ? new StaxEtsiCodec() : new EtsiSoapCodec();
+        boolean validation = "validation".equals(this.payload) || "full".equals(this.payload);
+        boolean personId   = "personid".equals(this.payload)   || "full".equals(this.payload);
+        this.message = createMessage(validation, personId).getBytes("UTF-8");
+        this.decoded = this.decode();
+        if (personId && this.readPersonId().size() != 5) {
+            throw new IllegalStateException("PersonID attributes not decoded");
+        }
+    }
+
+    @Benchmark
+    public MSS_StatusResp decode() throws IOException {
+        return this.c.readMessage(new ByteArrayInputStream(this.message), MSS_StatusResp.class);
+    }
+
+    /**
+     * The lookups of FiComResponse.getAeValidationStatus and getPersonIdAttributes.
+     */
+    @Benchmark
+    public void readServiceResponses(final Blackhole bh) {
+        StatusDetail sd = this.decoded.getStatus().getStatusDetail();
+        if (sd == null) {
+            return;
+        }
+        ServiceResponse v = FiComAdditionalServices.readServiceResponse(sd, FiComAdditionalServices.VALIDATE_URI);
+        if (v != null) {
+            bh.consume(v.getStatus().getStatusCode().getValue());
+        }
+        if (FiComAdditionalServices.readServiceResponse(sd, FiComAdditionalServices.PERSON_ID_URI) != null) {
+            for (Attribute a : this.readPersonId()) {
+                bh.consume(new FiComAdditionalServices.PersonIdAttribute(a).getStringValue());
+            }
+        }
+    }
+
+    private List<Attribute> readPersonId() {
+        StatusDetail sd = this.decoded.getStatus().getStatusDetail();
+        ServiceResponse sr = FiComAdditionalServices.readServiceResponse(sd, FiComAdditionalServices.PERSON_ID_URI);
+        return Saml2Util.parseFromAttributeStatement(Saml2Util.parseFromAssertion(Saml2Util.parseFromResponse(sr.getResponse())));
+    }
+
+    private static String createMessage(final boolean validation, final boolean personId) {
+        StringBuilder sb = new StringBuilder(8192);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+          .append("<soapenv:Envelope xmlns:soapenv=\"http://www.w3.org/2003/05/soap-envelope\"><soapenv:Body>")
+          .append("<MSS_StatusQueryResponse>")
+          .append("<mss:MSS_StatusResp xmlns:mss=\"http://uri.etsi.org/TS102204/v1.1.2#\"")
+          .append(" xmlns:fi=\"http://mss.ficom.fi/TS102204/v1.0.0#\"")
+          .append(" xmlns:saml2=\"urn:oasis:names:tc:SAML:2.0:assertion\"")
+          .append(" xmlns:saml2p=\"urn:oasis:names:tc:SAML:2.0:protocol\"")
+          .append(" xmlns:xs=\"http://www.w3.org/2001/XMLSchema\"")
+          .append(" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"")
+          .append(" MajorVersion=\"1\" MinorVersion=\"1\" MSSP_TransID=\"bench1\">")
+          .append("<mss:AP_Info AP_ID=\"http://ap.example.com\" AP_PWD=\"bench\" AP_TransID=\"A1\" Instant=\"2015-01-01T12:00:00.000Z\"/>")
+          .append("<mss:MSSP_Info Instant=\"2015-01-01T12:00:01.000Z\"><mss:MSSP_ID><mss:URI>http://mssp.example.com</mss:URI></mss:MSSP_ID></mss:MSSP_Info>")
+          .append("<mss:MobileUser><mss:MSISDN>+358400000000</mss:MSISDN></mss:MobileUser>")
+          .append("<mss:MSS_Signature><mss:Base64Signature>");
+        // About the size of a PKCS7 signature with two certificates
+        for (int i = 0; i < 800; i++) {
+            sb.append("MIIE");
+        }
+        sb.append("</mss:Base64Signature></mss:MSS_Signature>")
+          .append("<mss:Status><mss:StatusCode Value=\"502\"/><mss:StatusMessage>VALID_SIGNATURE</mss:StatusMessage>");
+        if (validation || personId) {
+            sb.append("<mss:StatusDetail><fi:ServiceResponses>");
+            if (personId) {
+                sb.append("<fi:ServiceResponse>")
+                  .append("<fi:Description><mss:mssURI>").append(FiComAdditionalServices.PERSON_ID_URI).append("</mss:mssURI></fi:Description>")
+                  .append("<saml2p:Response ID=\"r1\" Version=\"2.0\" IssueInstant=\"2015-01-01T12:00:01.000Z\">")
+                  .append("<saml2p:Status><saml2p:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/></saml2p:Status>")
+                  .append("<saml2:Assertion ID=\"a1\" Version=\"2.0\" IssueInstant=\"2015-01-01T12:00:01.000Z\">")
+                  .append("<saml2:Issuer>http://mssp.example.com</saml2:Issuer>")
+                  .append("<saml2:AttributeStatement>");
+                appendAttribute(sb, FiComAdditionalServices.PERSON_ID_HETU,      "010101-123N");
+                appendAttribute(sb, FiComAdditionalServices.PERSON_ID_GIVENNAME, "Matti");
+                appendAttribute(sb, FiComAdditionalServices.PERSON_ID_SURNAME,   "Meik\u00e4l\u00e4inen");
+                appendAttribute(sb, FiComAdditionalServices.PERSON_ID_AGE,       "42");
+                appendAttribute(sb, FiComAdditionalServices.PERSON_ID_EMAIL,     "matti@example.com");
+                sb.append("</saml2:AttributeStatement></saml2:Assertion></saml2p:Response>")
+                  .append("</fi:ServiceResponse>");
+            }
+            if (validation) {
+                sb.append("<fi:ServiceResponse>")
+                  .append("<fi:Description><mss:mssURI>").append(FiComAdditionalServices.VALIDATE_URI).append("</mss:mssURI></fi:Description>")
+                  .append("<fi:Status><mss:StatusCode Value=\"502\"/><mss:StatusMessage>VALID_SIGNATURE</mss:StatusMessage></fi:Status>")
+                  .append("</fi:ServiceResponse>");
+            }
+            sb.append("</fi:ServiceResponses></mss:StatusDetail>");
+        }
+        sb.append("</mss:Status></mss:MSS_StatusResp></MSS_StatusQueryResponse></soapenv:Body></soapenv:Envelope>");
+        return sb.toString();
+    }
+
+    private static void appendAttribute(final StringBuilder sb, final String name, final String value) {
+        sb.append("<saml2:Attribute Name=\"").append(name).append("\">")
+          .append("<saml2:AttributeValue xsi:type=\"xs:string\">").append(value).append("</saml2:AttributeValue>")
+          .append("</saml2:Attribute>");
+    }
+
+}
@@ -0,0 +1,193 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.axis.client.Stub;
+import org.etsi.uri.TS102204.v1_1_2.AP_Info;
+import org.etsi.uri.TS102204.v1_1_2.MSSP_ID;
+import org.etsi.uri.TS102204.v1_1_2.MSSP_Info;
+import org.etsi.uri.TS102204.v1_1_2.MSS_SignatureResp;
+import org.etsi.uri.TS102204.v1_1_2.MSS_StatusReq;
+import org.etsi.uri.TS102204.v1_1_2.MSS_StatusResp;
+import org.etsi.uri.TS102204.v1_1_2.MobileUser;
+import org.etsi.uri.TS102204.v1_1_2.Status;
+import org.etsi.uri.TS102204.v1_1_2.StatusCode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import fi.laverca.etsi.EtsiClient;
+import fi.laverca.etsi.EtsiSoapCodec;
+import fi.laverca.etsi.StubPool;
+import fi.laverca.ws.MSS_StatusQueryBindingStub;
+
+/**
+ * Per-call overhead of EtsiClient.send with and without stub pooling.
+ * <p>
+ * poolSize 0 is the old behaviour: a new binding stub and Call for every
+ * request. The MSSP is a local HTTP server answering with a prepared
+ * status response, so the network and the server side codec stay out
+ * of the measurement as far as possible.
+ * <pre>
+ * $ ant bench -Dbench.args="StubPoolBenchmark"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+@State(Scope.Benchmark)
+public class StubPoolBenchmark {
+
+    @Param({"0", "32"})
+    public int poolSize;
+
+    private HttpServer      mssp;
+    private ExecutorService msspExecutor;
+    private EtsiClient      client;
+    private StubPool        stubs;
+    private URL             statusUrl;
+    private MSS_StatusReq   statusReq;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        EtsiSoapCodec codec = new EtsiSoapCodec();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        codec.writeMessage(baos, "MSS_StatusQueryResponse", createStatusResp());
+        final byte[] response = baos.toByteArray();
+
+        this.mssp = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 100);
+        this.msspExecutor = Executors.newFixedThreadPool(8);
+        this.mssp.setExecutor(this.msspExecutor);
+        this.mssp.createContext("/status", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                InputStream is = exchange.getRequestBody();
+                while (is.read() >= 0) {
+                    // drain
+                }
+                exchange.getResponseHeaders().set("Content-Type", EtsiSoapCodec.CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(response);
+                os.close();
+            }
+        });
+        this.mssp.start();
+
+        String base = "http://127.0.0.1:" + this.mssp.getAddress().getPort();
+        this.statusUrl = new URL(base + "/status");
+        this.client = new EtsiClient("bench", "bench", base + "/sig", this.statusUrl.toString(), base + "/rc");
+        this.client.setStubPoolSize(this.poolSize);
+        this.stubs = this.client.getStubPool();
+
+        MSS_SignatureResp sigResp = new MSS_SignatureResp();
+        sigResp.setMSSP_Info(createMsspInfo());
+        sigResp.setMSSP_TransID("bench1");
+        this.statusReq = this.client.createStatusRequest(sigResp, "A1");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.mssp.stop(0);
+        this.msspExecutor.shutdown();
+    }
+
+    /**
+     * Stub and Call acquisition only.
+     */
+    @Benchmark
+    public Stub acquireStub() throws Exception {
+        MSS_StatusQueryBindingStub stub = this.stubs.borrow(MSS_StatusQueryBindingStub.class, this.statusUrl);
+        if (stub._getCall() == null) {
+            stub._createCall();
+        }
+        this.stubs.release(this.statusUrl, stub);
+        return stub;
+    }
+
+    /**
+     * Full synchronous status query from four threads.
+     */
+    @Benchmark
+    @Threads(4)
+    public MSS_StatusResp statusQuery() throws IOException {
+        return this.client.send(this.statusReq);
+    }
+
+    private static MSSP_Info createMsspInfo() {
+        MSSP_ID id = new MSSP_ID();
+        id.setURI("http://mssp.example.com");
+        MSSP_Info mi = new MSSP_Info();
+        mi.setMSSP_ID(id);
+        mi.setInstant(new Date());
+        return mi;
+    }
+
+    private static MSS_StatusResp createStatusResp() {
+        MSS_StatusResp resp = new MSS_StatusResp();
+        resp.setMajorVersion(1);
+        resp.setMinorVersion(1);
+        AP_Info ai = new AP_Info();
+        ai.setAP_ID("bench");
+        ai.setAP_PWD("bench");
+        ai.setAP_TransID("A1");
+        ai.setInstant(new Date());
+        resp.setAP_Info(ai);
+        resp.setMSSP_Info(createMsspInfo());
+        MobileUser mu = new MobileUser();
+        mu.setMSISDN("+358400000000");
+        resp.setMobileUser(mu);
+        StatusCode sc = new StatusCode();
+        sc.setValue(504);
+        Status st = new Status();
+        st.setStatusCode(sc);
+        resp.setStatus(st);
+        return resp;
+    }
+
+}
@@ -0,0 +1,161 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.etsi.uri.TS102204.v1_1_2.AP_Info;
+import org.etsi.uri.TS102204.v1_1_2.MSSP_ID;
+import org.etsi.uri.TS102204.v1_1_2.MSSP_Info;
+import org.etsi.uri.TS102204.v1_1_2.MSS_SignatureResp;
+import org.etsi.uri.TS102204.v1_1_2.MSS_StatusReq;
+import org.etsi.uri.TS102204.v1_1_2.MSS_StatusResp;
+import org.etsi.uri.TS102204.v1_1_2.MobileUser;
+import org.etsi.uri.TS102204.v1_1_2.Status;
+import org.etsi.uri.TS102204.v1_1_2.StatusCode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.laverca.HttpTransport;
+import fi.laverca.UnixSocketTransport;
+import fi.laverca.etsi.EtsiClient;
+import fi.laverca.etsi.EtsiSoapCodec;
+
+/**
+ * Status queries to a local sidecar over loopback TCP and over a Unix domain socket.
+ * <p>
+ * The sidecar stand-in serves the same prepared status response on both
+ * sockets with the same code, so the difference is the socket family and
+ * the transport in front of it. The URLs are the same in both cases: over
+ * the Unix socket the host only tells the sidecar where to route.
+ * <pre>
+ * $ ant bench -Dbench.args="UnixSocketBenchmark"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UnixSocketBenchmark {
+
+    @Param({"tcp", "unix"})
+    public String transport;
+
+    private SidecarStandInServer sidecar;
+    private HttpTransport        tcp;
+    private UnixSocketTransport  unix;
+    private EtsiClient           client;
+    private MSS_StatusReq        statusReq;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        EtsiSoapCodec codec = new EtsiSoapCodec();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        codec.writeMessage(baos, "MSS_StatusQueryResponse", createStatusResp());
+
+        this.sidecar = new SidecarStandInServer(baos.toByteArray(), EtsiSoapCodec.CONTENT_TYPE);
+        this.sidecar.start();
+
+        String base = "http://127.0.0.1:" + this.sidecar.getPort();
+        if ("tcp".equals(this.transport)) {
+            this.tcp = new HttpTransport();
+            this.client = new EtsiClient("bench", "bench", base + "/sig", base + "/status", base + "/rc");
+            this.client.setTransport(this.tcp);
+        } else {
+            this.unix = new UnixSocketTransport(this.sidecar.getSocketPath());
+            this.client = new EtsiClient("bench", "bench", base + "/sig", base + "/status", base + "/rc",
+                                         null, null, null, this.unix.createEngineConfiguration());
+        }
+
+        MSS_SignatureResp sigResp = new MSS_SignatureResp();
+        sigResp.setMSSP_Info(createMsspInfo());
+        sigResp.setMSSP_TransID("bench1");
+        this.statusReq = this.client.createStatusRequest(sigResp, "A1");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println();
+        System.out.println(this.sidecar);
+        if (this.tcp != null) {
+            this.tcp.shutdown();
+        }
+        if (this.unix != null) {
+            System.out.println(this.unix);
+            this.unix.shutdown();
+        }
+        this.sidecar.stop();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public MSS_StatusResp statusQuery() throws IOException {
+        return this.client.send(this.statusReq);
+    }
+
+    private static MSSP_Info createMsspInfo() {
+        MSSP_ID id = new MSSP_ID();
+        id.setURI("http://mssp.example.com");
+        MSSP_Info mi = new MSSP_Info();
+        mi.setMSSP_ID(id);
+        mi.setInstant(new Date());
+        return mi;
+    }
+
+    private static MSS_StatusResp createStatusResp() {
+        MSS_StatusResp resp = new MSS_StatusResp();
+        resp.setMajorVersion(1);
+        resp.setMinorVersion(1);
+        AP_Info ai = new AP_Info();
+        ai.setAP_ID("bench");
+        ai.setAP_PWD("bench");
+        ai.setAP_TransID("A1");
+        ai.setInstant(new Date());
+        resp.setAP_Info(ai);
+        resp.setMSSP_Info(createMsspInfo());
+        MobileUser mu = new MobileUser();
+        mu.setMSISDN("+358400000000");
+        resp.setMobileUser(mu);
+        StatusCode sc = new StatusCode();
+        sc.setValue(504);
+        Status st = new Status();
+        st.setStatusCode(sc);
+        resp.setStatus(st);
+        return resp;
+    }
+
+}
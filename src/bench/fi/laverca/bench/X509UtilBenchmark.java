@@ -0,0 +1,81 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.bench;
+
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.laverca.X509Util;
+import fi.laverca.examples.mssp.SimulatorSigner;
+
+/**
+ * X509Util certificate decoding, subject parsing and hashing.
+ * <pre>
+ * $ ant bench -Dbench.args="X509UtilBenchmark"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class X509UtilBenchmark {
+
+    private byte[]          der;
+    private X509Certificate cert;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.der  = new SimulatorSigner().getCaCertificate();
+        this.cert = X509Util.DERtoX509Certificate(this.der);
+        if (X509Util.parseSubjectCn(this.cert) == null) {
+            throw new IllegalStateException("Certificate not decoded");
+        }
+    }
+
+    @Benchmark
+    public X509Certificate decode() {
+        return X509Util.DERtoX509Certificate(this.der);
+    }
+
+    @Benchmark
+    public String parseSubjectCn() {
+        return X509Util.parseSubjectCn(this.cert);
+    }
+
+    @Benchmark
+    public byte[] certHash() {
+        return X509Util.certHash(this.der);
+    }
+
+}
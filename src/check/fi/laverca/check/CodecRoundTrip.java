@@ -0,0 +1,303 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.check;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import oasis.names.tc.SAML.v2_0.assertion.Attribute;
+
+import org.etsi.uri.TS102204.v1_1_2.AP_Info;
+import org.etsi.uri.TS102204.v1_1_2.DataToBeDisplayed;
+import org.etsi.uri.TS102204.v1_1_2.DataToBeSigned;
+import org.etsi.uri.TS102204.v1_1_2.MSSP_ID;
+import org.etsi.uri.TS102204.v1_1_2.MSSP_Info;
+import org.etsi.uri.TS102204.v1_1_2.MSS_Format;
+import org.etsi.uri.TS102204.v1_1_2.MSS_Signature;
+import org.etsi.uri.TS102204.v1_1_2.MSS_SignatureReq;
+import org.etsi.uri.TS102204.v1_1_2.MSS_StatusResp;
+import org.etsi.uri.TS102204.v1_1_2.MobileUser;
+import org.etsi.uri.TS102204.v1_1_2.SignatureProfile;
+import org.etsi.uri.TS102204.v1_1_2.Status;
+import org.etsi.uri.TS102204.v1_1_2.StatusCode;
+import org.etsi.uri.TS102204.v1_1_2.StatusDetail;
+import org.etsi.uri.TS102204.v1_1_2.types.MessagingModeType;
+
+import fi.ficom.mss.TS102204.v1_0_0.ServiceResponse;
+import fi.laverca.Saml2Util;
+import fi.laverca.etsi.EtsiSoapCodec;
+import fi.laverca.etsi.StaxEtsiCodec;
+import fi.laverca.ficom.FiComAdditionalServices;
+
+/**
+ * Round trip check of the StAX codec against the Castor one.
+ * <p>
+ * Each message is encoded by both codecs and decoded by both codecs, and
+ * every decoded object must encode back to the Castor output byte by
+ * byte. Messages as written by other SOAP stacks are checked too, since
+ * those may declare namespaces on the envelope and use xsi:type, which
+ * the output of Castor never does.
+ * <pre>
+ * $ ant check-codec
+ * </pre>
+ */
+public class CodecRoundTrip {
+
+    private final EtsiSoapCodec castor = new EtsiSoapCodec();
+    private final EtsiSoapCodec stax   = new StaxEtsiCodec();
+
+    private int checked;
+    private int failed;
+
+    public static void main(final String[] args) throws IOException {
+        CodecRoundTrip rt = new CodecRoundTrip();
+        rt.check("MSS_Signature", createSignatureReq(), MSS_SignatureReq.class);
+        rt.check("MSS_StatusQueryResponse", createStatusResp(), MSS_StatusResp.class);
+        rt.checkStatusResp("");
+        rt.checkStatusResp(PERSON_ID);
+
+        System.out.println(rt.checked + " round trips, " + rt.failed + " failed");
+        if (rt.failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Check a message encoded by both codecs.
+     */
+    private <T> void check(final String operation, final T message, final Class<T> type) throws IOException {
+        byte[] gold = encode(this.castor, operation, message);
+        this.compare(type.getSimpleName() + " from Castor", gold, operation, this.decode(gold, type));
+        byte[] out  = encode(this.stax, operation, message);
+        this.compare(type.getSimpleName() + " from StAX", gold, operation, this.decode(out, type));
+    }
+
+    /**
+     * Check a status response written by another SOAP stack, with the
+     * namespaces declared on the response element and on the envelope.
+     * Castor can only read the former, and its result is the reference.
+     * <p>
+     * Castor keeps the xsi:type attribute values as they were read, so
+     * the PersonID attributes are compared by their values.
+     */
+    private void checkStatusResp(final String body) throws IOException {
+        byte[] local    = String.format(STATUS_RESP, NAMESPACES, "", body).getBytes("UTF-8");
+        byte[] ancestor = String.format(STATUS_RESP, "", NAMESPACES, body).getBytes("UTF-8");
+        MSS_StatusResp ref = this.castor.readMessage(new ByteArrayInputStream(local), MSS_StatusResp.class);
+        List<String> personId = readPersonId(ref);
+        byte[] gold = encode(this.castor, "MSS_StatusQueryResponse", ref);
+        for (byte[] in : new byte[][] { local, ancestor }) {
+            this.checked++;
+            String name = "MSS_StatusResp with namespaces on the " + (in == local ? "element" : "envelope");
+            MSS_StatusResp resp;
+            try {
+                resp = this.stax.readMessage(new ByteArrayInputStream(in), MSS_StatusResp.class);
+            } catch (IOException e) {
+                this.fail(name + " not decoded: " + e.getMessage(), new String(in, "UTF-8"));
+                continue;
+            }
+            if (!personId.equals(readPersonId(resp))) {
+                this.fail(name + " PersonID differs", personId + "\n" + readPersonId(resp));
+            }
+            ref.getStatus().setStatusDetail(resp.getStatus().getStatusDetail());
+            byte[] out = encode(this.castor, "MSS_StatusQueryResponse", resp);
+            byte[] exp = encode(this.castor, "MSS_StatusQueryResponse", ref);
+            if (!Arrays.equals(exp, out)) {
+                this.fail(name + " differs", new String(exp, "UTF-8") + "\n" + new String(out, "UTF-8"));
+            }
+        }
+    }
+
+    /**
+     * @return the PersonID attributes of a response as name=value
+     */
+    private static List<String> readPersonId(final MSS_StatusResp resp) {
+        List<String> values = new ArrayList<String>();
+        StatusDetail sd = resp.getStatus().getStatusDetail();
+        ServiceResponse sr = sd != null ? FiComAdditionalServices.readServiceResponse(sd, FiComAdditionalServices.PERSON_ID_URI) : null;
+        if (sr != null) {
+            for (Attribute a : Saml2Util.parseFromAttributeStatement(Saml2Util.parseFromAssertion(Saml2Util.parseFromResponse(sr.getResponse())))) {
+                values.add(a.getName() + "=" + new FiComAdditionalServices.PersonIdAttribute(a).getStringValue());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Decode with both codecs and compare the Castor encodings of the
+     * results to the gold one.
+     */
+    private <T> T[] decode(final byte[] in, final Class<T> type) throws IOException {
+        @SuppressWarnings("unchecked")
+        T[] decoded = (T[])Array.newInstance(type, 2);
+        decoded[0] = this.castor.readMessage(new ByteArrayInputStream(in), type);
+        decoded[1] = this.stax.readMessage(new ByteArrayInputStream(in), type);
+        return decoded;
+    }
+
+    private <T> void compare(final String name, final byte[] gold, final String operation, final T[] decoded)
+        throws IOException
+    {
+        for (int i = 0; i < decoded.length; i++) {
+            this.checked++;
+            byte[] out = encode(this.castor, operation, decoded[i]);
+            if (!Arrays.equals(gold, out)) {
+                this.fail(name + " decoded by " + (i == 0 ? "Castor" : "StAX") + " differs",
+                          new String(gold, "UTF-8") + "\n" + new String(out, "UTF-8"));
+            }
+        }
+    }
+
+    private void fail(final String what, final String detail) {
+        this.failed++;
+        System.out.println("FAILED: " + what);
+        System.out.println(detail);
+    }
+
+    private static byte[] encode(final EtsiSoapCodec codec, final String operation, final Object message)
+        throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(2048);
+        codec.writeMessage(baos, operation, message);
+        return baos.toByteArray();
+    }
+
+    private static AP_Info createApInfo() {
+        AP_Info ai = new AP_Info();
+        ai.setAP_ID("http://ap.example.com");
+        ai.setAP_PWD("check");
+        ai.setAP_TransID("A1");
+        ai.setInstant(new Date());
+        return ai;
+    }
+
+    private static MSSP_Info createMsspInfo() {
+        MSSP_ID id = new MSSP_ID();
+        id.setURI("http://mssp.example.com");
+        MSSP_Info mi = new MSSP_Info();
+        mi.setMSSP_ID(id);
+        mi.setInstant(new Date());
+        return mi;
+    }
+
+    private static MSS_SignatureReq createSignatureReq() {
+        MSS_SignatureReq req = new MSS_SignatureReq();
+        req.setMajorVersion(1);
+        req.setMinorVersion(1);
+        req.setTimeOut(60);
+        req.setMessagingMode(MessagingModeType.ASYNCHCLIENTSERVER);
+        req.setAP_Info(createApInfo());
+        req.setMSSP_Info(createMsspInfo());
+        MobileUser mu = new MobileUser();
+        mu.setMSISDN("+358400000000");
+        req.setMobileUser(mu);
+        DataToBeSigned dtbs = new DataToBeSigned();
+        dtbs.setMimeType("text/plain");
+        dtbs.setEncoding("UTF-8");
+        dtbs.setContent("Authentication request <1234> & \u00e4\u00f6");
+        req.setDataToBeSigned(dtbs);
+        DataToBeDisplayed dtbd = new DataToBeDisplayed();
+        dtbd.setContent("Authentication request");
+        req.setDataToBeDisplayed(dtbd);
+        SignatureProfile sp = new SignatureProfile();
+        sp.setMssURI("http://alauda.mobi/nonRepudiation");
+        req.setSignatureProfile(sp);
+        MSS_Format f = new MSS_Format();
+        f.setMssURI("http://uri.etsi.org/TS102204/v1.1.2#PKCS7");
+        req.setMSS_Format(f);
+        return req;
+    }
+
+    private static MSS_StatusResp createStatusResp() {
+        MSS_StatusResp resp = new MSS_StatusResp();
+        resp.setMajorVersion(1);
+        resp.setMinorVersion(1);
+        resp.setMSSP_TransID("check1");
+        resp.setAP_Info(createApInfo());
+        resp.setMSSP_Info(createMsspInfo());
+        MobileUser mu = new MobileUser();
+        mu.setMSISDN("+358400000000");
+        resp.setMobileUser(mu);
+        MSS_Signature sig = new MSS_Signature();
+        byte[] pkcs7 = new byte[1024];
+        for (int i = 0; i < pkcs7.length; i++) {
+            pkcs7[i] = (byte)i;
+        }
+        sig.setBase64Signature(pkcs7);
+        resp.setMSS_Signature(sig);
+        StatusCode sc = new StatusCode();
+        sc.setValue(502);
+        Status st = new Status();
+        st.setStatusCode(sc);
+        st.setStatusMessage("VALID_SIGNATURE");
+        resp.setStatus(st);
+        return resp;
+    }
+
+    private static final String NAMESPACES =
+        " xmlns:mss=\"http://uri.etsi.org/TS102204/v1.1.2#\""
+        + " xmlns:fi=\"http://mss.ficom.fi/TS102204/v1.0.0#\""
+        + " xmlns:saml2=\"urn:oasis:names:tc:SAML:2.0:assertion\""
+        + " xmlns:saml2p=\"urn:oasis:names:tc:SAML:2.0:protocol\""
+        + " xmlns:xs=\"http://www.w3.org/2001/XMLSchema\""
+        + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"";
+
+    /**
+     * MSS_StatusResp with the namespace declarations of the response, of
+     * the envelope and the status detail as the arguments.
+     */
+    private static final String STATUS_RESP =
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<soapenv:Envelope xmlns:soapenv=\"http://www.w3.org/2003/05/soap-envelope\"%2$s>"
+        + "<soapenv:Body><MSS_StatusQueryResponse>"
+        + "<mss:MSS_StatusResp%1$s MajorVersion=\"1\" MinorVersion=\"1\" MSSP_TransID=\"check2\">"
+        + "<mss:AP_Info AP_ID=\"http://ap.example.com\" AP_PWD=\"check\" AP_TransID=\"A1\" Instant=\"2015-01-01T12:00:00.000Z\"/>"
+        + "<mss:MSSP_Info Instant=\"2015-01-01T12:00:01.000Z\"><mss:MSSP_ID><mss:URI>http://mssp.example.com</mss:URI></mss:MSSP_ID></mss:MSSP_Info>"
+        + "<mss:MobileUser><mss:MSISDN>+358400000000</mss:MSISDN></mss:MobileUser>"
+        + "<mss:MSS_Signature><mss:Base64Signature>MIIEMIIE</mss:Base64Signature></mss:MSS_Signature>"
+        + "<mss:Status><mss:StatusCode Value=\"502\"/><mss:StatusMessage>VALID_SIGNATURE</mss:StatusMessage>"
+        + "%3$s"
+        + "</mss:Status></mss:MSS_StatusResp></MSS_StatusQueryResponse></soapenv:Body></soapenv:Envelope>";
+
+    /**
+     * A PersonID service response with xsi:type attribute values.
+     */
+    private static final String PERSON_ID =
+        "<mss:StatusDetail><fi:ServiceResponses><fi:ServiceResponse>"
+        + "<fi:Description><mss:mssURI>http://mss.ficom.fi/TS102204/v1.0.0#personIdentity</mss:mssURI></fi:Description>"
+        + "<saml2p:Response ID=\"r1\" Version=\"2.0\" IssueInstant=\"2015-01-01T12:00:01.000Z\">"
+        + "<saml2p:Status><saml2p:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/></saml2p:Status>"
+        + "<saml2:Assertion ID=\"a1\" Version=\"2.0\" IssueInstant=\"2015-01-01T12:00:01.000Z\">"
+        + "<saml2:Issuer>http://mssp.example.com</saml2:Issuer>"
+        + "<saml2:AttributeStatement>"
+        + "<saml2:Attribute Name=\"http://mss.ficom.fi/TS102204/v1.0.0/PersonID#hetu\">"
+        + "<saml2:AttributeValue xsi:type=\"xs:string\">010101-123N</saml2:AttributeValue></saml2:Attribute>"
+        + "<saml2:Attribute Name=\"http://mss.ficom.fi/TS102204/v1.0.0/PersonID#surName\">"
+        + "<saml2:AttributeValue xsi:type=\"xs:string\">Meik\u00e4l\u00e4inen</saml2:AttributeValue></saml2:Attribute>"
+        + "</saml2:AttributeStatement></saml2:Assertion></saml2p:Response>"
+        + "</fi:ServiceResponse></fi:ServiceResponses></mss:StatusDetail>";
+
+}
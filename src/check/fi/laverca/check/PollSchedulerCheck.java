@@ -0,0 +1,164 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.check;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.laverca.ficom.FiComPollScheduler;
+
+/**
+ * Check of the FiComPollScheduler timer wheel under a full load of polls.
+ * <p>
+ * Schedules 100k timeouts spread over a few turns of the wheel and
+ * cancels every other one. The rest must fire once each, in the order
+ * of their deadlines and not before them, and the cancelled ones never.
+ * The heap kept by the scheduler is reported after scheduling, after
+ * the cancellations and after the last timeout has fired, when it must
+ * be back to where it started.
+ * <pre>
+ * $ ant check-poll
+ * </pre>
+ */
+public class PollSchedulerCheck {
+
+    private static final int  COUNT = 100000;
+    private static final long TICK  = 10;   // ms
+    private static final int  WHEEL = 256;  // 2.56 s a turn
+    private static final long FIRST = 1000; // ms, the first deadline, after the cancellations
+    private static final long SPAN  = 6000; // ms, from the first deadline to the last
+
+    // Heap growth allowed after all timeouts are gone
+    private static final long MAX_RETAINED = 2 * 1024 * 1024;
+
+    private final int[]     due    = new int[COUNT];  // ms since start
+    private final boolean[] cancel = new boolean[COUNT];
+    private final byte[]    runs   = new byte[COUNT];
+    // The single worker runs the tasks one at a time, in the order the timer hands them over
+    private final int[]     order  = new int[COUNT];
+    private final AtomicInteger fired = new AtomicInteger();
+
+    private long start;
+    private long early;
+    private long maxLate;
+    private int  failed;
+
+    public static void main(final String[] args) throws InterruptedException {
+        new PollSchedulerCheck().run();
+    }
+
+    private void run() throws InterruptedException {
+        FiComPollScheduler scheduler = new FiComPollScheduler(1, TICK, WHEEL);
+        long base = usedHeap();
+
+        FiComPollScheduler.Timeout[] timeouts = new FiComPollScheduler.Timeout[COUNT];
+        this.start = System.nanoTime();
+        for (int i = 0; i < COUNT; i++) {
+            final int n = i;
+            this.due[i] = (int)(FIRST + i * SPAN / COUNT);
+            timeouts[i] = scheduler.schedule(() -> this.onFire(n), this.due[i]);
+        }
+        long scheduled = usedHeap() - base;
+
+        int cancelled = 0;
+        for (int i = 1; i < COUNT; i += 2) {
+            // On a slow machine some may have fired already
+            if (timeouts[i].cancel()) {
+                this.cancel[i] = true;
+                cancelled++;
+            }
+        }
+        timeouts = null;
+        // Cancelled entries are unlinked by the timer on its next tick
+        Thread.sleep(3 * TICK);
+        long afterCancel = usedHeap() - base;
+        check(scheduler.getOutstanding() <= COUNT - cancelled,
+              scheduler.getOutstanding() + " outstanding after cancelling " + cancelled);
+
+        int expected = COUNT - cancelled;
+        long limit = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FIRST + SPAN + 10000);
+        while (this.fired.get() < expected && System.nanoTime() < limit) {
+            Thread.sleep(100);
+        }
+        Thread.sleep(3 * TICK);
+        int n = this.fired.get();
+        long retained = usedHeap() - base;
+        scheduler.shutdown();
+
+        check(n == expected, n + " fired, expected " + expected);
+        check(scheduler.getOutstanding() == 0, scheduler.getOutstanding() + " still outstanding");
+        for (int i = 0; i < COUNT; i++) {
+            int r = this.runs[i];
+            check(r == (this.cancel[i] ? 0 : 1), "Timeout " + i + (this.cancel[i] ? " cancelled" : "") + " ran " + r + " times");
+        }
+        for (int i = 1; i < Math.min(n, COUNT); i++) {
+            check(this.order[i] > this.order[i-1], "Timeout " + this.order[i] + " fired after " + this.order[i-1]);
+        }
+        check(this.early == 0, this.early + " timeouts fired more than a tick early");
+        check(retained < MAX_RETAINED, "Scheduler retains " + retained + " bytes after all timeouts are gone");
+
+        System.out.println(COUNT + " timeouts, " + cancelled + " cancelled, " + n + " fired, at most "
+                           + this.maxLate + " ms late");
+        System.out.println("Heap: " + kb(scheduled) + " scheduled (" + scheduled / COUNT + " bytes each), "
+                           + kb(afterCancel) + " after cancelling, " + kb(retained) + " after firing");
+        System.out.println(this.failed + " failed");
+        if (this.failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    private void onFire(final int i) {
+        long late = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.start) - this.due[i];
+        if (late < -TICK) {
+            this.early++;
+        }
+        this.maxLate = Math.max(this.maxLate, late);
+        if (this.runs[i]++ == 0) {
+            int k = this.fired.get();
+            if (k < COUNT) {
+                this.order[k] = i;
+            }
+        }
+        // Publishes the writes above to the main thread
+        this.fired.incrementAndGet();
+    }
+
+    private void check(final boolean ok, final String message) {
+        if (!ok) {
+            if (this.failed++ < 20) {
+                System.out.println("FAILED: " + message);
+            }
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static String kb(final long bytes) {
+        return bytes / 1024 + " kB";
+    }
+
+}
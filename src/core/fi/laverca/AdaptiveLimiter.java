@@ -0,0 +1,284 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Admission limiter that finds its limit by itself from the round trip
+ * times and the failures of the requests it admits.
+ * <p>
+ * Each finished request is reported with {@link #onSample(long, boolean)}.
+ * Two ways of adjusting the limit are available:
+ * <ul>
+ * <li>{@link Algorithm#AIMD}: grows the limit by one per limit's worth of
+ *     successful requests and cuts it by the backoff ratio on a failure
+ *     or a round trip over the latency threshold, like TCP Reno.
+ * <li>{@link Algorithm#GRADIENT}: compares a short term average of the
+ *     round trip time to the lowest recent one, like TCP Vegas. While the
+ *     average stays within twice the lowest the limit probes upward by its
+ *     square root; when the MSSP starts to queue and the average inflates
+ *     further, the limit shrinks in proportion. Failures cut the limit by
+ *     the backoff ratio. The lowest round trip time slowly drifts up, so a
+ *     lasting change of the network path is eventually accepted.
+ * </ul>
+ * The limit only grows while at least half of it is in use, so an idle
+ * endpoint does not collect an unearned limit. It is cut at most once per
+ * round trip time: the requests that were already in flight when the
+ * first one failed are likely to fail too, and that is one congestion
+ * event, not many.
+ */
+public class AdaptiveLimiter extends AdmissionLimiter {
+
+    private static final Log log = LogFactory.getLog(AdaptiveLimiter.class);
+
+    public static final int    DEFAULT_INITIAL_LIMIT = 20;
+    public static final int    DEFAULT_MIN_LIMIT     = 1;
+    public static final int    DEFAULT_MAX_LIMIT     = 1000;
+    public static final double DEFAULT_BACKOFF       = 0.9;
+
+    // Gradient: averaging window in samples, inflation of the round trip time
+    // tolerated, drift of the lowest round trip time per sample, and how fast
+    // the limit follows the estimate
+    private static final double SHORT_WINDOW  = 10;
+    private static final double RTT_TOLERANCE = 2.0;
+    private static final double MIN_RTT_DRIFT = 1.001;
+    private static final double SMOOTHING     = 0.2;
+
+    public enum Algorithm {
+        /** Additive increase, multiplicative decrease */
+        AIMD,
+        /** Short term against long term round trip time */
+        GRADIENT
+    }
+
+    private final Algorithm algorithm;
+    private volatile double backoff = DEFAULT_BACKOFF;
+    private volatile long   rttThreshold;
+
+    // Guarded by stateLock
+    private final ReentrantLock stateLock = new ReentrantLock();
+    private int    minLimit = DEFAULT_MIN_LIMIT;
+    private int    maxLimit = DEFAULT_MAX_LIMIT;
+    private double estimate;
+    private double shortRtt;
+    private double minRtt;
+    private long   samples;
+    private long   drops;
+    private long   lastDrop;
+
+    /**
+     * @param name         Name used in the metrics and in the rejections
+     * @param algorithm    How the limit is adjusted
+     * @param initialLimit Limit to start with
+     * @param maxQueue     Maximum amount of requests waiting
+     */
+    public AdaptiveLimiter(final String name, final Algorithm algorithm, final int initialLimit, final int maxQueue) {
+        super(name, initialLimit, maxQueue);
+        this.algorithm = algorithm;
+        this.estimate  = initialLimit;
+    }
+
+    public Algorithm getAlgorithm() {
+        return this.algorithm;
+    }
+
+    /**
+     * Bound the adjusted limit.
+     * @param min Smallest limit, at least 1
+     * @param max Largest limit
+     */
+    public void setLimitRange(final int min, final int max) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("Invalid limit range " + min + ".." + max);
+        }
+        int limit;
+        this.stateLock.lock();
+        try {
+            this.minLimit = min;
+            this.maxLimit = max;
+            this.estimate = Math.max(min, Math.min(max, this.estimate));
+            limit = (int)this.estimate;
+        } finally {
+            this.stateLock.unlock();
+        }
+        this.setLimit(limit);
+    }
+
+    /**
+     * @param ratio Factor the limit is multiplied with on a failure, between 0.5 and 1
+     */
+    public void setBackoff(final double ratio) {
+        if (ratio < 0.5 || ratio >= 1) {
+            throw new IllegalArgumentException("backoff must be in [0.5, 1)");
+        }
+        this.backoff = ratio;
+    }
+
+    /**
+     * AIMD only: round trips longer than this count as failures.
+     * @param millis Latency threshold, 0 for none
+     */
+    public void setRttThreshold(final long millis) {
+        this.rttThreshold = millis * 1000000L;
+    }
+
+    /**
+     * Report a finished request.
+     * @param rttNanos Round trip time of the request, or a negative value
+     *                 if it does not tell about the load of the server
+     * @param overload true if the request failed in a way that suggests
+     *                 the server is overloaded, e.g. a timeout or a 5xx
+     */
+    public void onSample(final long rttNanos, final boolean overload) {
+        if (rttNanos < 0 && !overload) {
+            return;
+        }
+        int inFlight = this.getInFlight();
+        int oldLimit;
+        int newLimit;
+        this.stateLock.lock();
+        try {
+            oldLimit = (int)this.estimate;
+            if (rttNanos >= 0) {
+                this.samples++;
+                this.updateRtt(rttNanos);
+            }
+            boolean slow = this.algorithm == Algorithm.AIMD && this.rttThreshold > 0 && rttNanos > this.rttThreshold;
+            if (overload || slow) {
+                long now = System.nanoTime();
+                if (this.drops == 0 || now - this.lastDrop >= (long)this.shortRtt) {
+                    this.drops++;
+                    this.lastDrop = now;
+                    this.estimate = this.estimate * this.backoff;
+                }
+            } else if (inFlight * 2 >= oldLimit) {
+                if (this.algorithm == Algorithm.AIMD) {
+                    this.estimate += 1.0 / this.estimate;
+                } else {
+                    this.estimate = this.gradient();
+                }
+            }
+            this.estimate = Math.max(this.minLimit, Math.min(this.maxLimit, this.estimate));
+            newLimit = (int)this.estimate;
+        } finally {
+            this.stateLock.unlock();
+        }
+        // Outside the lock, as raising the limit may run the admitted requests here
+        if (newLimit != oldLimit) {
+            this.setLimit(newLimit);
+        }
+        if (log.isTraceEnabled()) {
+            log.trace(this.getName() + ": limit " + newLimit + ", in flight " + inFlight
+                      + ", rtt " + rttNanos / 1000 + "us" + (overload ? ", overload" : ""));
+        }
+    }
+
+    private void updateRtt(final long rttNanos) {
+        if (this.samples == 1) {
+            this.shortRtt = rttNanos;
+            this.minRtt   = rttNanos;
+            return;
+        }
+        this.shortRtt += (rttNanos - this.shortRtt) / SHORT_WINDOW;
+        this.minRtt    = Math.min(rttNanos, this.minRtt * MIN_RTT_DRIFT);
+    }
+
+    /**
+     * Gradient estimate: shrink in proportion to the latency inflation,
+     * and leave room for a queue of sqrt(limit) requests to probe upward.
+     */
+    private double gradient() {
+        double g = Math.max(0.5, Math.min(1.0, RTT_TOLERANCE * this.minRtt / this.shortRtt));
+        double target = this.estimate * g + Math.sqrt(this.estimate);
+        return this.estimate * (1 - SMOOTHING) + target * SMOOTHING;
+    }
+
+    /**
+     * @return the limit as a fraction, before rounding down
+     */
+    public double getEstimatedLimit() {
+        this.stateLock.lock();
+        try {
+            return this.estimate;
+        } finally {
+            this.stateLock.unlock();
+        }
+    }
+
+    /**
+     * @return short term average round trip time in milliseconds
+     */
+    public double getShortRtt() {
+        this.stateLock.lock();
+        try {
+            return this.shortRtt / 1000000.0;
+        } finally {
+            this.stateLock.unlock();
+        }
+    }
+
+    /**
+     * @return lowest recent round trip time in milliseconds
+     */
+    public double getMinRtt() {
+        this.stateLock.lock();
+        try {
+            return this.minRtt / 1000000.0;
+        } finally {
+            this.stateLock.unlock();
+        }
+    }
+
+    /**
+     * @return Requests reported with a round trip time
+     */
+    public long getSamples() {
+        this.stateLock.lock();
+        try {
+            return this.samples;
+        } finally {
+            this.stateLock.unlock();
+        }
+    }
+
+    /**
+     * @return Times the limit was cut for a failure or a slow round trip
+     */
+    public long getDrops() {
+        this.stateLock.lock();
+        try {
+            return this.drops;
+        } finally {
+            this.stateLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + String.format(" %s [rtt %.1f ms, min %.1f ms, samples %d, drops %d]",
+                                                this.algorithm, this.getShortRtt(), this.getMinRtt(),
+                                                this.getSamples(), this.getDrops());
+    }
+
+}
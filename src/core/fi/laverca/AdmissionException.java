@@ -0,0 +1,66 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca;
+
+import java.io.IOException;
+
+/**
+ * A request was not admitted by an {@link AdmissionLimiter}.
+ * <p>
+ * Nothing was sent, so the caller can shed the load or try again later.
+ * The stack trace is not filled in: these are thrown in bulk exactly
+ * when the JVM is busiest.
+ */
+@SuppressWarnings("serial")
+public class AdmissionException extends IOException {
+
+    public enum Reason {
+        /** The wait queue of the limiter was full */
+        QUEUE_FULL,
+        /** The request waited in the queue for too long */
+        TIMED_OUT
+    }
+
+    private final Reason reason;
+    private final String limiter;
+
+    public AdmissionException(final Reason reason, final String limiter) {
+        super(limiter + ": " + (reason == Reason.QUEUE_FULL ? "admission queue full" : "timed out in admission queue"));
+        this.reason  = reason;
+        this.limiter = limiter;
+    }
+
+    public Reason getReason() {
+        return this.reason;
+    }
+
+    /**
+     * @return name of the limiter that rejected the request
+     */
+    public String getLimiter() {
+        return this.limiter;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+
+}
@@ -0,0 +1,341 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the amount of requests in flight, with a bounded FIFO queue
+ * for the requests over the limit.
+ * <p>
+ * A request either gets in right away with {@link #tryAcquire()}, or
+ * waits in the queue with {@link #acquireAsync(long)} or {@link #acquire(long)}.
+ * When the queue is full the request is rejected at once with an
+ * {@link AdmissionException}, so that the caller can shed load instead
+ * of piling up work for an overloaded MSSP.
+ * <p>
+ * Every admitted request must be given back with {@link #release()}.
+ * The limit can be changed at any time; raising it admits queued requests.
+ */
+public class AdmissionLimiter {
+
+    private final String name;
+
+    // Guarded by lock. Not a monitor, to not pin virtual threads.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<CompletableFuture<Void>>();
+    private int limit;
+    private int maxQueue;
+    private int inFlight;
+    private int peakQueued;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * @param name     Name used in the metrics and in the rejections
+     * @param limit    Maximum amount of requests in flight
+     * @param maxQueue Maximum amount of requests waiting. 0 rejects right away when the limit is reached.
+     */
+    public AdmissionLimiter(final String name, final int limit, final int maxQueue) {
+        this.name = name;
+        this.setLimit(limit);
+        this.setMaxQueue(maxQueue);
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Admit a request if it fits in the limit. Never waits.
+     * @return true if admitted
+     */
+    public boolean tryAcquire() {
+        this.lock.lock();
+        try {
+            if (this.inFlight < this.limit && this.waiters.isEmpty()) {
+                this.inFlight++;
+                this.admitted.incrementAndGet();
+                return true;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        this.rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Admit a request, queueing it if the limit is reached. Never blocks.
+     * <p>Cancelling the returned future withdraws a queued request.
+     * @param timeoutMillis Maximum time to wait in the queue. 0 does not queue.
+     * @return future completed when the request is admitted, or exceptionally
+     *         with an {@link AdmissionException} if the queue is full or the wait timed out
+     */
+    public CompletableFuture<Void> acquireAsync(final long timeoutMillis) {
+        final CompletableFuture<Void> w = new CompletableFuture<Void>();
+        this.lock.lock();
+        try {
+            if (this.inFlight < this.limit && this.waiters.isEmpty()) {
+                this.inFlight++;
+                this.admitted.incrementAndGet();
+                w.complete(null);
+                return w;
+            }
+            if (this.waiters.size() >= this.maxQueue || timeoutMillis <= 0) {
+                this.rejected.incrementAndGet();
+                w.completeExceptionally(new AdmissionException(AdmissionException.Reason.QUEUE_FULL, this.name));
+                return w;
+            }
+            this.waiters.add(w);
+            this.peakQueued = Math.max(this.peakQueued, this.waiters.size());
+        } finally {
+            this.lock.unlock();
+        }
+
+        CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS).execute(new Runnable() {
+            @Override
+            public void run() {
+                if (w.completeExceptionally(new AdmissionException(AdmissionException.Reason.TIMED_OUT, name))) {
+                    timedOut.incrementAndGet();
+                }
+            }
+        });
+        w.whenComplete((v, t) -> {
+            if (t != null) {
+                this.remove(w);
+            }
+        });
+        return w;
+    }
+
+    /**
+     * Admit a request, waiting in the queue if the limit is reached.
+     * @param timeoutMillis Maximum time to wait in the queue. 0 does not queue.
+     * @throws AdmissionException if the queue is full or the wait timed out
+     * @throws InterruptedException if interrupted while waiting. The request is not admitted.
+     */
+    public void acquire(final long timeoutMillis) throws AdmissionException, InterruptedException {
+        CompletableFuture<Void> f = this.acquireAsync(timeoutMillis);
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            if (!f.cancel(false) && !f.isCompletedExceptionally()) {
+                // Admitted while being interrupted
+                this.release();
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            throw (AdmissionException)e.getCause();
+        }
+    }
+
+    /**
+     * Give back an admitted request, admitting the next queued one.
+     */
+    public void release() {
+        List<CompletableFuture<Void>> next;
+        this.lock.lock();
+        try {
+            this.inFlight--;
+            next = this.pollAdmitted();
+        } finally {
+            this.lock.unlock();
+        }
+        this.admit(next);
+    }
+
+    /**
+     * Take the queued requests that now fit in the limit.
+     * Must be called with the lock held.
+     */
+    private List<CompletableFuture<Void>> pollAdmitted() {
+        List<CompletableFuture<Void>> next = null;
+        while (this.inFlight < this.limit) {
+            CompletableFuture<Void> w = this.waiters.poll();
+            if (w == null) {
+                break;
+            }
+            if (w.isDone()) {
+                // Timed out or cancelled
+                continue;
+            }
+            this.inFlight++;
+            if (next == null) {
+                next = new ArrayList<CompletableFuture<Void>>();
+            }
+            next.add(w);
+        }
+        return next;
+    }
+
+    /**
+     * Wake up the admitted requests. Called without the lock,
+     * since the waiters may go on to send their request right here.
+     */
+    private void admit(final List<CompletableFuture<Void>> next) {
+        if (next == null) {
+            return;
+        }
+        for (CompletableFuture<Void> w : next) {
+            if (w.complete(null)) {
+                this.admitted.incrementAndGet();
+            } else {
+                // Timed out just now
+                this.release();
+            }
+        }
+    }
+
+    private void remove(final CompletableFuture<Void> w) {
+        this.lock.lock();
+        try {
+            this.waiters.remove(w);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Change the limit. Requests already in flight are not affected.
+     * @param limit Maximum amount of requests in flight, at least 1
+     */
+    public void setLimit(final int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        List<CompletableFuture<Void>> next;
+        this.lock.lock();
+        try {
+            this.limit = limit;
+            next = this.pollAdmitted();
+        } finally {
+            this.lock.unlock();
+        }
+        this.admit(next);
+    }
+
+    /**
+     * @param maxQueue Maximum amount of requests waiting. Does not drop requests already waiting.
+     */
+    public void setMaxQueue(final int maxQueue) {
+        if (maxQueue < 0) {
+            throw new IllegalArgumentException("maxQueue must not be negative");
+        }
+        this.lock.lock();
+        try {
+            this.maxQueue = maxQueue;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        this.lock.lock();
+        try {
+            return this.limit;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int getMaxQueue() {
+        this.lock.lock();
+        try {
+            return this.maxQueue;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return Amount of admitted requests not yet released
+     */
+    public int getInFlight() {
+        this.lock.lock();
+        try {
+            return this.inFlight;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return Current queue depth
+     */
+    public int getQueued() {
+        this.lock.lock();
+        try {
+            return this.waiters.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return Largest queue depth seen
+     */
+    public int getPeakQueued() {
+        this.lock.lock();
+        try {
+            return this.peakQueued;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public long getAdmitted() {
+        return this.admitted.get();
+    }
+
+    /**
+     * @return Requests rejected because the limit or the queue was full
+     */
+    public long getRejected() {
+        return this.rejected.get();
+    }
+
+    /**
+     * @return Requests that timed out in the queue
+     */
+    public long getTimedOut() {
+        return this.timedOut.get();
+    }
+
+    @Override
+    public String toString() {
+        return this.name + " [in flight " + this.getInFlight() + "/" + this.getLimit()
+             + ", queued " + this.getQueued() + "/" + this.getMaxQueue()
+             + ", peak queued " + this.getPeakQueued()
+             + ", admitted " + this.getAdmitted()
+             + ", rejected " + this.getRejected()
+             + ", timed out " + this.getTimedOut() + "]";
+    }
+
+}
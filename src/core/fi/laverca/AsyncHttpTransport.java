@@ -0,0 +1,378 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Non-blocking HTTP transport for the asynchronous EtsiClient API.
+ * <p>
+ * Uses the JDK HTTP client, which multiplexes all requests over a
+ * selector thread. Completions run on a fixed number of worker threads,
+ * so the thread count does not depend on the number of requests in flight.
+ */
+public class AsyncHttpTransport {
+
+    private static final Log log = LogFactory.getLog(AsyncHttpTransport.class);
+
+    public static final int  DEFAULT_THREADS         = 2;
+    public static final long DEFAULT_CONNECT_TIMEOUT = 30 * 1000;      // Same as HttpTransport
+    public static final long DEFAULT_REQUEST_TIMEOUT = 10 * 60 * 1000; // Same as the Axis Call default
+
+    private static final AtomicInteger poolCount = new AtomicInteger();
+
+    private static AsyncHttpTransport defaultTransport;
+
+    /**
+     * Reads the response body, decompressing a gzip compressed one.
+     */
+    private static final HttpResponse.BodyHandler<byte[]> GZIP_BODY = info -> {
+        boolean gzip = info.headers().firstValue("Content-Encoding")
+                           .map(e -> GzipCompression.GZIP.equalsIgnoreCase(e.trim())).orElse(false);
+        if (!gzip) {
+            return HttpResponse.BodySubscribers.ofByteArray();
+        }
+        return new GunzipSubscriber();
+    };
+
+    private final HttpClient      client;
+    private final ExecutorService executor;
+    private final AtomicInteger   inFlight = new AtomicInteger();
+
+    private volatile long requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+    private volatile GzipCompression compression;
+    private volatile boolean isShutdown;
+
+    /**
+     * Create a transport with {@link #DEFAULT_THREADS} completion threads
+     * using the JVM global SSL settings (see {@link JvmSsl}).
+     */
+    public AsyncHttpTransport() {
+        this(DEFAULT_THREADS, (SSLContext)null);
+    }
+
+    /**
+     * Create a transport with per-client SSL settings.
+     * @param threads   Number of threads completing the responses
+     * @param clientSsl SSL settings for HTTPS
+     */
+    public AsyncHttpTransport(final int threads, final ClientSsl clientSsl) {
+        this(threads, clientSsl.getSSLContext());
+    }
+
+    /**
+     * Create a transport.
+     * @param threads    Number of threads completing the responses
+     * @param sslContext SSL settings for HTTPS, or null for the JVM default
+     */
+    public AsyncHttpTransport(final int threads, final SSLContext sslContext) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        final int pool = poolCount.incrementAndGet();
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "laverca-async-" + pool + "-" + this.count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        SSLContext ssl = sslContext;
+        if (ssl == null) {
+            try {
+                ssl = SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("No default SSLContext", e);
+            }
+        }
+        this.client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofMillis(DEFAULT_CONNECT_TIMEOUT))
+            .sslContext(ssl)
+            .executor(this.executor)
+            .build();
+    }
+
+    /**
+     * Get the transport used by clients that have no transport of their own.
+     * @return shared default transport
+     */
+    public static synchronized AsyncHttpTransport getDefault() {
+        if (defaultTransport == null || defaultTransport.isShutdown()) {
+            defaultTransport = new AsyncHttpTransport();
+        }
+        return defaultTransport;
+    }
+
+    /**
+     * POST a message without blocking.
+     * With a {@link #setCompression(GzipCompression) compression} set, a large
+     * body is sent gzip compressed, and sent again as it is if the server
+     * answers 415.
+     *
+     * @param uri         Target URI
+     * @param contentType Content-Type of the body
+     * @param body        Request body
+     * @param timeout     Response timeout in milliseconds, or 0 for the transport default
+     * @return future completed with the response on a transport thread.
+     *         Cancelling it aborts the exchange.
+     */
+    public CompletableFuture<HttpResponse<byte[]>> post(final URI    uri,
+                                                        final String contentType,
+                                                        final byte[] body,
+                                                        final long   timeout)
+    {
+        if (this.isShutdown) {
+            CompletableFuture<HttpResponse<byte[]>> f = new CompletableFuture<HttpResponse<byte[]>>();
+            f.completeExceptionally(new IllegalStateException("AsyncHttpTransport has been shut down"));
+            return f;
+        }
+        final GzipCompression gz = this.compression;
+        if (gz == null) {
+            // The future of the client itself, so that cancelling it aborts the exchange
+            return this.send(uri, contentType, body, null, timeout, null);
+        }
+        final String host = GzipCompression.key(uri);
+        if (!gz.shouldCompress(host, body.length)) {
+            return this.send(uri, contentType, body, null, timeout, gz);
+        }
+        final byte[] compressed;
+        try {
+            compressed = gz.compress(body);
+        } catch (IOException e) {
+            CompletableFuture<HttpResponse<byte[]>> f = new CompletableFuture<HttpResponse<byte[]>>();
+            f.completeExceptionally(e);
+            return f;
+        }
+        final CompletableFuture<HttpResponse<byte[]>> result = new CompletableFuture<HttpResponse<byte[]>>();
+        final CompletableFuture<HttpResponse<byte[]>> first =
+            this.send(uri, contentType, compressed, GzipCompression.GZIP, timeout, gz);
+        first.whenComplete((resp, t) -> {
+            if (t != null) {
+                result.completeExceptionally(t);
+            } else if (resp.statusCode() == 415) {
+                // The MSSP does not take compressed requests: send it as it is
+                gz.onRejected(host);
+                final CompletableFuture<HttpResponse<byte[]>> second = this.send(uri, contentType, body, null, timeout, gz);
+                second.whenComplete((resp2, t2) -> {
+                    if (t2 != null) {
+                        result.completeExceptionally(t2);
+                    } else {
+                        result.complete(resp2);
+                    }
+                });
+                result.whenComplete((resp2, t2) -> {
+                    if (result.isCancelled()) {
+                        second.cancel(true);
+                    }
+                });
+            } else {
+                result.complete(resp);
+            }
+        });
+        // Cancelling the result aborts the exchange in progress
+        result.whenComplete((resp, t) -> {
+            if (result.isCancelled()) {
+                first.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Send a POST, asking for a compressed response if compressing.
+     * @param encoding Content-Encoding of the body, or null
+     * @param gz       Compression learning from the response, or null
+     */
+    private CompletableFuture<HttpResponse<byte[]>> send(final URI    uri,
+                                                         final String contentType,
+                                                         final byte[] body,
+                                                         final String encoding,
+                                                         final long   timeout,
+                                                         final GzipCompression gz)
+    {
+        HttpRequest.Builder b = HttpRequest.newBuilder(uri)
+            .timeout(Duration.ofMillis(timeout > 0 ? timeout : this.requestTimeout))
+            .header("Content-Type", contentType)
+            .POST(HttpRequest.BodyPublishers.ofByteArray(body));
+        HttpResponse.BodyHandler<byte[]> handler = HttpResponse.BodyHandlers.ofByteArray();
+        if (gz != null) {
+            b.header("Accept-Encoding", GzipCompression.GZIP);
+            handler = GZIP_BODY;
+        }
+        if (encoding != null) {
+            b.header("Content-Encoding", encoding);
+        }
+
+        this.inFlight.incrementAndGet();
+        CompletableFuture<HttpResponse<byte[]>> f = this.client.sendAsync(b.build(), handler);
+        f.whenComplete((resp, t) -> {
+            this.inFlight.decrementAndGet();
+            if (t != null && log.isDebugEnabled()) {
+                log.debug("POST " + uri + " failed", t);
+            }
+            if (resp != null && gz != null) {
+                gz.onResponse(GzipCompression.key(uri), resp.headers().firstValue("Accept-Encoding").orElse(null));
+            }
+        });
+        return f;
+    }
+
+
+    /**
+     * Set the response timeout used when a request does not give its own.
+     * @param millis Timeout in milliseconds
+     */
+    public void setRequestTimeout(final long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        this.requestTimeout = millis;
+    }
+
+    /**
+     * Compress the request bodies over the threshold size of the compression,
+     * and ask for compressed responses.
+     * @param compression Compression, or null to send the bodies as they are
+     */
+    public void setCompression(final GzipCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @return the compression of the request bodies, or null for none
+     */
+    public GzipCompression getCompression() {
+        return this.compression;
+    }
+
+    /**
+     * @return the response timeout of the requests that do not give their own, in milliseconds
+     */
+    public long getRequestTimeout() {
+        return this.requestTimeout;
+    }
+
+    /**
+     * @return the executor completing the responses
+     */
+    public ExecutorService getExecutor() {
+        return this.executor;
+    }
+
+    /**
+     * @return the number of requests waiting for a response
+     */
+    public int getInFlight() {
+        return this.inFlight.get();
+    }
+
+    public boolean isShutdown() {
+        return this.isShutdown;
+    }
+
+    /**
+     * Stop accepting requests and stop the completion threads.
+     * Requests still in flight may fail.
+     */
+    public void shutdown() {
+        this.isShutdown = true;
+        this.executor.shutdown();
+    }
+
+    /**
+     * Inflates a gzip compressed body as its parts arrive.
+     */
+    private static class GunzipSubscriber implements HttpResponse.BodySubscriber<byte[]> {
+
+        private final GzipCompression.Gunzip     gunzip = new GzipCompression.Gunzip();
+        private final CompletableFuture<byte[]> body   = new CompletableFuture<byte[]>();
+        private Flow.Subscription subscription;
+
+        @Override
+        public CompletionStage<byte[]> getBody() {
+            return this.body;
+        }
+
+        @Override
+        public void onSubscribe(final Flow.Subscription s) {
+            this.subscription = s;
+            s.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(final List<ByteBuffer> parts) {
+            if (this.body.isDone()) {
+                return;
+            }
+            try {
+                for (ByteBuffer b : parts) {
+                    this.gunzip.update(b);
+                }
+            } catch (IOException e) {
+                this.subscription.cancel();
+                this.gunzip.end();
+                this.body.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public void onError(final Throwable t) {
+            this.gunzip.end();
+            this.body.completeExceptionally(t);
+        }
+
+        @Override
+        public void onComplete() {
+            if (this.body.isDone()) {
+                return;
+            }
+            try {
+                this.body.complete(this.gunzip.finish());
+            } catch (IOException e) {
+                this.body.completeExceptionally(e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Per-client SSL settings.
+ * <p>
+ * Unlike {@link JvmSsl}, which sets JVM global system properties,
+ * each ClientSsl has its own SSLContext, so several AP identities
+ * with different client certificates can be used in one JVM.
+ * <p>
+ * The client session cache of the context is sized explicitly so that
+ * new connections to the MSSP can resume an earlier TLS session instead
+ * of doing a full handshake. Handshakes done through
+ * {@link #getSocketFactory()} are counted.
+ * <p>
+ * Use with {@link HttpTransport#HttpTransport(ClientSsl)} and
+ * {@link AsyncHttpTransport#AsyncHttpTransport(int, ClientSsl)}, or
+ * with {@link fi.laverca.etsi.EtsiClient#setClientSsl(ClientSsl)}.
+ */
+public class ClientSsl {
+
+    private static final Log log = LogFactory.getLog(ClientSsl.class);
+
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 256;
+    public static final int DEFAULT_SESSION_TIMEOUT    = 12 * 60 * 60; // seconds
+
+    private final SSLContext sslContext;
+    private final SSLConnectionSocketFactory socketFactory;
+
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumed    = new AtomicLong();
+
+    /**
+     * Create SSL settings from key and trust managers.
+     * @param keyManagers   Client certificate key managers, or null for no client certificate
+     * @param trustManagers Trust managers, or null for the JVM default trust store
+     * @throws GeneralSecurityException if TLS is not available
+     */
+    public ClientSsl(final KeyManager[] keyManagers, final TrustManager[] trustManagers)
+        throws GeneralSecurityException
+    {
+        this(createContext(keyManagers, trustManagers));
+    }
+
+    /**
+     * Use an existing SSLContext. The session cache of the context
+     * is set to the defaults of this class.
+     * @param sslContext Initialized SSLContext
+     */
+    public ClientSsl(final SSLContext sslContext) {
+        if (sslContext == null) {
+            throw new IllegalArgumentException("null sslContext not allowed");
+        }
+        this.sslContext = sslContext;
+        this.setSessionCacheSize(DEFAULT_SESSION_CACHE_SIZE);
+        this.setSessionTimeout(DEFAULT_SESSION_TIMEOUT);
+        this.socketFactory = new CountingSocketFactory(sslContext);
+    }
+
+    /**
+     * Load SSL settings from key store files. The parameters are the same
+     * as in {@link JvmSsl#setSSL(String, String, String, String, String)}.
+     *
+     * @param trustStore         Key store file containing trusted SSL server certificates.
+     *                           If null, the JVM default trust store is used.
+     * @param trustStorePassword Password of the trust store
+     * @param keyStore           Key store containing your SSL client certificate
+     * @param keyStorePassword   Password of the client key store
+     * @param keyStoreType       either "JKS" (Java native) or "PKCS12"
+     * @return SSL settings
+     * @throws IllegalArgumentException if the stores can not be opened
+     */
+    public static ClientSsl load(final String trustStore,
+                                 final String trustStorePassword,
+                                 final String keyStore,
+                                 final String keyStorePassword,
+                                 final String keyStoreType)
+        throws IllegalArgumentException
+    {
+        try {
+            KeyManager[] km = null;
+            if (keyStore != null) {
+                KeyStore ks = loadStore(keyStore, keyStorePassword, keyStoreType);
+                KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                kmf.init(ks, keyStorePassword == null ? null : keyStorePassword.toCharArray());
+                km = kmf.getKeyManagers();
+            }
+            TrustManager[] tm = null;
+            if (trustStore != null) {
+                KeyStore ts = loadStore(trustStore, trustStorePassword, KeyStore.getDefaultType());
+                TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                tmf.init(ts);
+                tm = tmf.getTrustManagers();
+            }
+            return new ClientSsl(km, tm);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Invalid SSL settings: " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not open key store: " + e.getMessage(), e);
+        }
+    }
+
+    private static KeyStore loadStore(final String file, final String password, final String type)
+        throws GeneralSecurityException, IOException
+    {
+        KeyStore ks = KeyStore.getInstance(type);
+        InputStream is = new FileInputStream(file);
+        try {
+            ks.load(is, password == null ? null : password.toCharArray());
+        } finally {
+            is.close();
+        }
+        return ks;
+    }
+
+    private static SSLContext createContext(final KeyManager[] km, final TrustManager[] tm)
+        throws GeneralSecurityException
+    {
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(km, tm, null);
+        return ctx;
+    }
+
+    /**
+     * Set the maximum number of cached client sessions.
+     * @param size Cache size, 0 for no limit
+     */
+    public void setSessionCacheSize(final int size) {
+        this.getSessionContext().setSessionCacheSize(size);
+    }
+
+    /**
+     * Set how long a cached session may be resumed.
+     * @param seconds Timeout in seconds, 0 for no limit
+     */
+    public void setSessionTimeout(final int seconds) {
+        this.getSessionContext().setSessionTimeout(seconds);
+    }
+
+    private SSLSessionContext getSessionContext() {
+        return this.sslContext.getClientSessionContext();
+    }
+
+    public SSLContext getSSLContext() {
+        return this.sslContext;
+    }
+
+    /**
+     * @return socket factory for {@link HttpTransport} that counts the handshakes
+     */
+    public SSLConnectionSocketFactory getSocketFactory() {
+        return this.socketFactory;
+    }
+
+    /**
+     * @return the number of TLS handshakes done through {@link #getSocketFactory()}
+     */
+    public long getHandshakes() {
+        return this.handshakes.get();
+    }
+
+    /**
+     * @return the number of handshakes that resumed an earlier session
+     */
+    public long getResumedHandshakes() {
+        return this.resumed.get();
+    }
+
+    /**
+     * @return share of handshakes that resumed an earlier session, 0..1
+     */
+    public double getResumptionRatio() {
+        long all = this.handshakes.get();
+        return all == 0 ? 0 : (double)this.resumed.get() / all;
+    }
+
+    @Override
+    public String toString() {
+        return "ClientSsl [handshakes=" + this.getHandshakes()
+            + ", resumed=" + this.getResumedHandshakes() + "]";
+    }
+
+    /**
+     * Counts the handshakes after they are done by the layered socket creation.
+     * A session created before the handshake started has been resumed.
+     */
+    private class CountingSocketFactory extends SSLConnectionSocketFactory {
+
+        CountingSocketFactory(final SSLContext ctx) {
+            super(ctx, SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
+        }
+
+        @Override
+        public Socket createLayeredSocket(final Socket socket,
+                                          final String target,
+                                          final int port,
+                                          final HttpContext context)
+            throws IOException
+        {
+            long start = System.currentTimeMillis();
+            Socket s = super.createLayeredSocket(socket, target, port, context);
+            if (s instanceof SSLSocket) {
+                SSLSession session = ((SSLSocket)s).getSession();
+                ClientSsl.this.handshakes.incrementAndGet();
+                if (session.getCreationTime() < start) {
+                    ClientSsl.this.resumed.incrementAndGet();
+                    if (log.isTraceEnabled()) {
+                        log.trace("Resumed TLS session to " + target + ":" + port);
+                    }
+                }
+            }
+            return s;
+        }
+    }
+
+}
@@ -48,7 +48,6 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import javax.xml.soap.MimeHeader;
 import javax.xml.soap.MimeHeaders;
@@ -75,20 +74,24 @@ import org.apache.http.auth.Credentials;
 import org.apache.http.auth.NTCredentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.client.utils.HttpClientUtils;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
-import org.apache.http.protocol.BasicHttpContext;
-import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 
 
 /**
  * A replacement of the default Axis Commons HTTP sender that makes it
  * possible to share a connection manager among RoamingClient instances.
+ * <p>
+ * The HTTP client is taken from the {@link HttpTransport} given with the
+ * {@link HttpTransport#PROPERTY} property, then from {@link #initThreadLocals(HttpClient)},
+ * and finally from {@link HttpTransport#getDefault()}.
  */
 public class CommonsHTTPSender extends BasicHandler {
     
@@ -99,9 +102,12 @@ public class CommonsHTTPSender extends BasicHandler {
     private static final ThreadLocal<HttpClient> settings = new ThreadLocal<HttpClient>();
     
     /**
-     * 
+     * Set the HTTP client used by the current thread when the request
+     * has no {@link HttpTransport}.
      * @param hc
+     * @deprecated Use {@link HttpTransport} instead
      */
+    @Deprecated
     public static void initThreadLocals( HttpClient hc )
     {
         log.debug("initThreadLocals()");
@@ -110,6 +116,9 @@ public class CommonsHTTPSender extends BasicHandler {
         settings.set(hc);
     }
     
+    // Deflaters of the calls that ask for gzip without a compression set on the transport
+    private static final GzipCompression defaultCompression = new GzipCompression();
+    
     boolean httpChunkStream = true; //Use HTTP chunking or not.
     
     public CommonsHTTPSender() {
@@ -136,7 +145,21 @@ public class CommonsHTTPSender extends BasicHandler {
         }
         try {
             
-            HttpClient httpClient = settings.get();
+            HttpTransport transport = null;
+            Object o = msgContext.getProperty(HttpTransport.PROPERTY);
+            if (o instanceof HttpTransport) {
+                transport = (HttpTransport)o;
+            }
+            HttpClient httpClient = null;
+            if (transport == null) {
+                httpClient = settings.get();
+                if (httpClient == null) {
+                    transport = HttpTransport.getDefault();
+                }
+            }
+            if (transport != null) {
+                httpClient = transport.getHttpClient();
+            }
             
             URL targetURL =
                     new URL(msgContext.getStrProp(MessageContext.TRANS_URL));
@@ -149,15 +172,32 @@ public class CommonsHTTPSender extends BasicHandler {
             HttpParams params = post.getParams();
             HttpProtocolParams.setUseExpectContinue(params, false);
             
-            addContextInfo(post, httpClient, msgContext, targetURL);
+            HttpClientContext localContext = HttpClientContext.create();
+            addContextInfo(post, localContext, msgContext, targetURL);
+            Deadline deadline = getDeadline(msgContext);
+            if (deadline != null) {
+                deadline.check("POST " + targetURL);
+            }
+            if (transport != null) {
+                post.setConfig(createRequestConfig(transport, msgContext, deadline));
+            }
             
-            MessageRequestEntity requestEntity = null;
-            if (msgContext.isPropertyTrue(HTTPConstants.MC_GZIP_REQUEST)) {
-                requestEntity = new GzipMessageRequestEntity(post, reqMessage, httpChunkStream);
+            // Compress if asked for this call, or if the transport finds the body large enough.
+            // The size is the caller's estimate: the length of the message is only known
+            // once the whole envelope has been serialized into memory.
+            GzipCompression compression = transport != null ? transport.getCompression() : null;
+            String host = GzipCompression.key(targetURL);
+            boolean gzip = msgContext.isPropertyTrue(HTTPConstants.MC_GZIP_REQUEST);
+            if (!gzip && compression != null) {
+                gzip = compression.shouldCompress(host, getSizeEstimate(msgContext));
+            }
+            if (gzip) {
+                post.addHeader(HTTPConstants.HEADER_CONTENT_ENCODING, HTTPConstants.COMPRESSION_GZIP);
+                post.setEntity(new GzipMessageRequestEntity(post, reqMessage, httpChunkStream,
+                                                            compression != null ? compression : defaultCompression));
             } else {
-                requestEntity = new MessageRequestEntity(post, reqMessage, httpChunkStream);
+                post.setEntity(new MessageRequestEntity(post, reqMessage, httpChunkStream));
             }
-            post.setEntity(requestEntity);
             
             String httpVersion =
                     msgContext.getStrProp(MessageContext.HTTP_TRANSPORT_VERSION);
@@ -167,10 +207,23 @@ public class CommonsHTTPSender extends BasicHandler {
                 }
             }
             
-            HttpContext localContext = new BasicHttpContext();
-            
             response = httpClient.execute(post, localContext);
             int returnCode = response.getStatusLine().getStatusCode();
+            if (gzip && returnCode == 415) {
+                // The MSSP does not take compressed requests: send it as it is
+                if (compression != null) {
+                    compression.onRejected(host);
+                }
+                HttpClientUtils.closeQuietly(response);
+                post.removeHeaders(HTTPConstants.HEADER_CONTENT_ENCODING);
+                post.setEntity(new MessageRequestEntity(post, reqMessage, httpChunkStream));
+                response = httpClient.execute(post, localContext);
+                returnCode = response.getStatusLine().getStatusCode();
+            }
+            if (compression != null) {
+                Header acceptEncoding = response.getFirstHeader(HTTPConstants.HEADER_ACCEPT_ENCODING);
+                compression.onResponse(host, acceptEncoding != null ? acceptEncoding.getValue() : null);
+            }
             
             String contentType     = getHeader(post, HTTPConstants.HEADER_CONTENT_TYPE);
             String contentLocation = getHeader(post, HTTPConstants.HEADER_CONTENT_LOCATION);
@@ -291,27 +344,28 @@ public class CommonsHTTPSender extends BasicHandler {
      * Extracts info from message context.
      *
      * @param method Post method
-     * @param httpClient The client used for posting
+     * @param httpContext Context of this request
      * @param msgContext the message context
      * @param tmpURL the url to post to.
      *
      * @throws Exception
      */
     private void addContextInfo(HttpPost method,
-            HttpClient httpClient,
+            HttpClientContext httpContext,
             MessageContext msgContext,
             URL tmpURL)
                     throws Exception {
         
         HttpParams params = method.getParams();
+        Deadline deadline = getDeadline(msgContext);
         
-        if (msgContext.getTimeout() != 0) {
+        if (msgContext.getTimeout() != 0 || deadline != null) {
             // optionally set a timeout for response waits
-            HttpConnectionParams.setSoTimeout(params, msgContext.getTimeout());
+            HttpConnectionParams.setSoTimeout(params, Deadline.cap(deadline, msgContext.getTimeout()));
         }
         
         // Always set the 30 second timeout on establishing the connection
-        HttpConnectionParams.setConnectionTimeout(params, connectionTimeout);
+        HttpConnectionParams.setConnectionTimeout(params, Deadline.cap(deadline, connectionTimeout));
         
         
         Message msg = msgContext.getRequestMessage();
@@ -359,7 +413,10 @@ public class CommonsHTTPSender extends BasicHandler {
                             NetworkUtils.getLocalHostname(), domain);
                 }
             }
-            ((DefaultHttpClient)httpClient).getCredentialsProvider().setCredentials(AuthScope.ANY, proxyCred);
+            // Per request, so that a shared client does not leak credentials between callers
+            BasicCredentialsProvider credsProvider = new BasicCredentialsProvider();
+            credsProvider.setCredentials(AuthScope.ANY, proxyCred);
+            httpContext.setCredentialsProvider(credsProvider);
         }
         
         // add compression headers if needed
@@ -367,11 +424,6 @@ public class CommonsHTTPSender extends BasicHandler {
             method.addHeader(HTTPConstants.HEADER_ACCEPT_ENCODING,
                     HTTPConstants.COMPRESSION_GZIP);
         }
-        if (msgContext.isPropertyTrue(HTTPConstants.MC_GZIP_REQUEST)) {
-            method.addHeader(HTTPConstants.HEADER_CONTENT_ENCODING,
-                    HTTPConstants.COMPRESSION_GZIP);
-        }
-        
         // Transfer MIME headers of SOAPMessage to HTTP headers.
         MimeHeaders mimeHeaders = msg.getMimeHeaders();
         if (mimeHeaders != null) {
@@ -420,6 +472,65 @@ public class CommonsHTTPSender extends BasicHandler {
         }
     }
     
+    /**
+     * Build the request configuration of a pooled transport.
+     * The pooled client ignores the legacy HttpParams, so the timeouts
+     * and the Expect: 100-continue setting are taken from the message context.
+     */
+    private static RequestConfig createRequestConfig(final HttpTransport transport,
+                                                     final MessageContext msgContext,
+                                                     final Deadline deadline)
+    {
+        RequestConfig config = transport.getRequestConfig();
+        RequestConfig.Builder rc = RequestConfig.copy(config);
+        if (msgContext.getTimeout() != 0) {
+            rc.setSocketTimeout(msgContext.getTimeout());
+        }
+        if (deadline != null) {
+            // Each wait of the request gets at most the time remaining
+            rc.setSocketTimeout(deadline.cap(msgContext.getTimeout() != 0 ? msgContext.getTimeout() : config.getSocketTimeout()));
+            rc.setConnectTimeout(deadline.cap(config.getConnectTimeout()));
+            rc.setConnectionRequestTimeout(deadline.cap(config.getConnectionRequestTimeout()));
+        }
+        rc.setExpectContinueEnabled(isExpectContinue(msgContext));
+        return rc.build();
+    }
+
+    /**
+     * @return true if the user defined headers of the call ask for Expect: 100-continue
+     */
+    private static boolean isExpectContinue(final MessageContext msgContext) {
+        Object o = msgContext.getProperty(HTTPConstants.REQUEST_HEADERS);
+        if (!(o instanceof Map)) {
+            return false;
+        }
+        for (Map.Entry<?, ?> me : ((Map<?, ?>)o).entrySet()) {
+            if (me.getKey() != null && me.getValue() != null
+                && me.getKey().toString().trim().equalsIgnoreCase(HTTPConstants.HEADER_EXPECT)
+                && me.getValue().toString().trim().equalsIgnoreCase(HTTPConstants.HEADER_EXPECT_100_Continue))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the deadline given to the call with {@link Deadline#PROPERTY}, or null
+     */
+    private static Deadline getDeadline(final MessageContext msgContext) {
+        Object o = msgContext.getProperty(Deadline.PROPERTY);
+        return o instanceof Deadline ? (Deadline)o : null;
+    }
+
+    /**
+     * @return the body size given to the call with {@link GzipCompression#SIZE_PROPERTY}, or -1
+     */
+    private static long getSizeEstimate(final MessageContext msgContext) {
+        Object o = msgContext.getProperty(GzipCompression.SIZE_PROPERTY);
+        return o instanceof Number ? ((Number)o).longValue() : -1;
+    }
+
     private static String getResponseBodyAsString( final HttpResponse resp )
         throws IOException
     {
@@ -520,7 +631,7 @@ public class CommonsHTTPSender extends BasicHandler {
         
         @Override
         public boolean isChunked() {
-            return true;
+            return !this.isContentLengthNeeded();
         }
         
         @Override
@@ -539,34 +650,31 @@ public class CommonsHTTPSender extends BasicHandler {
         
     }
     
+    /**
+     * Compresses the message while writing it to the connection. When the
+     * server needs a Content-Length, the message is compressed once up front
+     * and only the compressed bytes are kept.
+     */
     private static class GzipMessageRequestEntity extends MessageRequestEntity {
         
-        public GzipMessageRequestEntity(HttpPost method, Message message) {
-            super(method, message);
-        }
+        private final GzipCompression compression;
+        private byte[] compressed;
         
-        public GzipMessageRequestEntity(HttpPost method, Message message, boolean httpChunkStream) {
+        public GzipMessageRequestEntity(HttpPost method, Message message, boolean httpChunkStream, GzipCompression compression) {
             super(method, message, httpChunkStream);
-        }
-        
-        public void writeRequest(OutputStream out) throws IOException {
-            if (cachedStream != null) {
-                cachedStream.writeTo(out);
-            } else {
-                GZIPOutputStream gzStream = new GZIPOutputStream(out);
-                super.writeTo(gzStream);
-                gzStream.finish();
-            }
+            this.compression = compression;
         }
         
         @Override
         public long getContentLength() {
-            if(isContentLengthNeeded()) {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            if (isContentLengthNeeded()) {
                 try {
-                    writeRequest(baos);
-                    cachedStream = baos;
-                    return baos.size();
+                    if (this.compressed == null) {
+                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                        this.writeTo(baos);
+                        this.compressed = baos.toByteArray();
+                    }
+                    return this.compressed.length;
                 } catch (IOException e) {
                     // fall through to doing chunked.
                 }
@@ -574,6 +682,24 @@ public class CommonsHTTPSender extends BasicHandler {
             return -1; // do chunked
         }
         
-        private ByteArrayOutputStream cachedStream;
+        @Override
+        public boolean isChunked() {
+            return this.getContentLength() < 0;
+        }
+        
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            if (this.compressed != null) {
+                out.write(this.compressed);
+                return;
+            }
+            GzipCompression.GzipStream gz = this.compression.open(out);
+            try {
+                super.writeTo(gz);
+                gz.finish();
+            } finally {
+                gz.release();
+            }
+        }
     }
 }
@@ -0,0 +1,183 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca;
+
+import java.util.Date;
+
+/**
+ * Point of time by which a request must be finished, e.g. the end of
+ * the transaction it belongs to.
+ * <p>
+ * A deadline is given to the sends of the current thread with
+ * {@link #enter()}:
+ * <pre>
+ * try (Deadline.Scope s = Deadline.after(30000).enter()) {
+ *     resp = etsiClient.send(req);
+ * }
+ * </pre>
+ * {@link fi.laverca.etsi.EtsiClient} then caps each wait of the request
+ * at the time remaining: the admission queue, the connection pool lease,
+ * the connect and the response read. A request is not started at all
+ * after its deadline. The asynchronous sends take the deadline of the
+ * calling thread when they are called.
+ * <p>
+ * Immutable. The times are wall clock milliseconds, like the deadlines
+ * of the {@link fi.laverca.ficom.FiComTransactionTable}.
+ */
+public final class Deadline {
+
+    /** MessageContext property carrying the deadline of an Axis call to the transport */
+    public static final String PROPERTY = "fi.laverca.Deadline";
+
+    private static final ThreadLocal<Deadline> current = new ThreadLocal<Deadline>();
+
+    private final long time;
+
+    private Deadline(final long time) {
+        this.time = time;
+    }
+
+    /**
+     * @param epochMillis Deadline as milliseconds since the epoch
+     * @return the deadline
+     */
+    public static Deadline at(final long epochMillis) {
+        return new Deadline(epochMillis);
+    }
+
+    /**
+     * @param millis Time from now
+     * @return the deadline
+     */
+    public static Deadline after(final long millis) {
+        return new Deadline(System.currentTimeMillis() + millis);
+    }
+
+    /**
+     * @return the deadline of the current thread, or null if none
+     */
+    public static Deadline current() {
+        return current.get();
+    }
+
+    /**
+     * @return the deadline as milliseconds since the epoch
+     */
+    public long getTime() {
+        return this.time;
+    }
+
+    /**
+     * @return milliseconds left, negative once passed
+     */
+    public long remaining() {
+        return this.time - System.currentTimeMillis();
+    }
+
+    public boolean isExpired() {
+        return this.remaining() <= 0;
+    }
+
+    /**
+     * @param other Another deadline, or null
+     * @return the earlier of the two
+     */
+    public Deadline min(final Deadline other) {
+        if (other == null || this.time <= other.time) {
+            return this;
+        }
+        return other;
+    }
+
+    /**
+     * Cap a timeout at the time remaining.
+     * @param timeoutMillis Timeout in milliseconds, 0 or less for none
+     * @return the smaller of the timeout and the time remaining, at least 1
+     *         so that it is never taken as "no timeout"
+     */
+    public int cap(final long timeoutMillis) {
+        long left = Math.max(1, this.remaining());
+        if (timeoutMillis > 0 && timeoutMillis < left) {
+            left = timeoutMillis;
+        }
+        return (int)Math.min(Integer.MAX_VALUE, left);
+    }
+
+    /**
+     * Cap a timeout at a deadline if there is one.
+     * @param d             Deadline, or null
+     * @param timeoutMillis Timeout in milliseconds, 0 or less for none
+     * @return the capped timeout, or the timeout itself if there is no deadline
+     */
+    public static int cap(final Deadline d, final long timeoutMillis) {
+        if (d == null) {
+            return (int)Math.min(Integer.MAX_VALUE, timeoutMillis);
+        }
+        return d.cap(timeoutMillis);
+    }
+
+    /**
+     * @param what Operation about to start, for the message
+     * @throws DeadlineExceededException if the deadline has passed
+     */
+    public void check(final String what) throws DeadlineExceededException {
+        long left = this.remaining();
+        if (left <= 0) {
+            throw new DeadlineExceededException(what + ": deadline passed " + -left + " ms ago");
+        }
+    }
+
+    /**
+     * Make this the deadline of the current thread until the scope is closed.
+     * @return scope restoring the previous deadline when closed
+     */
+    public Scope enter() {
+        Scope s = new Scope(current.get());
+        current.set(this);
+        return s;
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline " + new Date(this.time) + " (" + this.remaining() + " ms left)";
+    }
+
+    /**
+     * Deadline of the current thread for a block of code.
+     */
+    public static final class Scope implements AutoCloseable {
+
+        private final Deadline previous;
+
+        Scope(final Deadline previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            if (this.previous != null) {
+                current.set(this.previous);
+            } else {
+                current.remove();
+            }
+        }
+    }
+
+}
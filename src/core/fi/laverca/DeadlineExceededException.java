@@ -0,0 +1,53 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca;
+
+import java.io.InterruptedIOException;
+
+/**
+ * A request was not sent, or was cut short, because its {@link Deadline} passed.
+ * <p>
+ * This is the caller's budget running out, not a failure of the MSSP,
+ * so it does not lower the concurrency limits or trigger a failover.
+ * The stack trace is not filled in: when an MSSP stalls, the deadlines
+ * of many requests pass together.
+ */
+@SuppressWarnings("serial")
+public class DeadlineExceededException extends InterruptedIOException {
+
+    public DeadlineExceededException(final String message) {
+        super(message);
+    }
+
+    /**
+     * @param message Description
+     * @param cause   Timeout of the transport that was capped at the deadline
+     */
+    public DeadlineExceededException(final String message, final Throwable cause) {
+        super(message);
+        this.initCause(cause);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+
+}
@@ -0,0 +1,551 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Gzip compression of the request bodies, chosen per request.
+ * <p>
+ * Bodies of at least the threshold size, like signature requests with a
+ * large DTBS or receipts with a long message, are compressed. Small ones
+ * like status queries are sent as they are: compressing them costs more
+ * than it saves. The body is compressed while it is written to the
+ * connection, with a Deflater from a pool rather than one with new native
+ * buffers per request.
+ * <p>
+ * Whether an MSSP takes compressed requests is learned per host (RFC 7694):
+ * the Accept-Encoding header of its responses tells it if present, and a
+ * 415 Unsupported Media Type answer to a compressed request turns
+ * compression off for the host; the request is then sent again as it is.
+ * Hosts not heard from yet get compressed requests.
+ * <p>
+ * Set on a {@link HttpTransport} or an {@link AsyncHttpTransport}. One
+ * instance can be shared by several transports.
+ */
+public class GzipCompression {
+
+    private static final Log log = LogFactory.getLog(GzipCompression.class);
+
+    public static final String GZIP = "gzip";
+
+    /**
+     * Stub property with an estimate of the request body size as a Long.
+     * Without it every request is taken as large enough to compress.
+     */
+    public static final String SIZE_PROPERTY = "fi.laverca.GzipCompression.size";
+
+    public static final int DEFAULT_THRESHOLD = 1024;
+    // XML compresses well already at the fastest level
+    public static final int DEFAULT_LEVEL     = Deflater.BEST_SPEED;
+    public static final int DEFAULT_POOL_SIZE = 32;
+
+    private static final byte[] HEADER = {
+        (byte)0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff
+    };
+    private static final int TRAILER_SIZE = 8;
+
+    private final ConcurrentLinkedQueue<Deflater> pool = new ConcurrentLinkedQueue<Deflater>();
+    private final AtomicInteger idle = new AtomicInteger();
+    private final int poolSize;
+
+    // Hosts known to take compressed requests (true) or not (false)
+    private final ConcurrentMap<String, Boolean> accepted = new ConcurrentHashMap<String, Boolean>();
+
+    private volatile int threshold = DEFAULT_THRESHOLD;
+    private volatile int level     = DEFAULT_LEVEL;
+
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder plain      = new LongAdder();
+    private final LongAdder rejected   = new LongAdder();
+    private final LongAdder bytesIn    = new LongAdder();
+    private final LongAdder bytesOut   = new LongAdder();
+
+    public GzipCompression() {
+        this(DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * @param poolSize Number of idle Deflaters kept for reuse
+     */
+    public GzipCompression(final int poolSize) {
+        if (poolSize < 0) {
+            throw new IllegalArgumentException("poolSize must not be negative");
+        }
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * @param bytes Smallest body that is compressed
+     */
+    public void setThreshold(final int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        }
+        this.threshold = bytes;
+    }
+
+    public int getThreshold() {
+        return this.threshold;
+    }
+
+    /**
+     * @param level Deflate level from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+     */
+    public void setLevel(final int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid level " + level);
+        }
+        this.level = level;
+    }
+
+    /**
+     * @param url Target of a request
+     * @return the host key the acceptance of compressed requests is kept by
+     */
+    public static String key(final URL url) {
+        return url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+    }
+
+    /**
+     * @param uri Target of a request
+     * @return the host key the acceptance of compressed requests is kept by
+     */
+    public static String key(final URI uri) {
+        int port = uri.getPort();
+        if (port == -1) {
+            port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+        }
+        return uri.getScheme() + "://" + uri.getHost() + ":" + port;
+    }
+
+    /**
+     * Decide whether to compress a request.
+     * @param host Host key of the target, see {@link #key(URL)}
+     * @param size Size of the body, or an estimate of it, or -1 if not known
+     * @return true if the body should be compressed
+     */
+    public boolean shouldCompress(final String host, final long size) {
+        if (size >= 0 && size < this.threshold || Boolean.FALSE.equals(this.accepted.get(host))) {
+            this.plain.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Learn from the Accept-Encoding header of a response whether the host takes compressed requests.
+     * @param host           Host key of the target
+     * @param acceptEncoding The header, or null if the response had none
+     */
+    public void onResponse(final String host, final String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return;
+        }
+        boolean gzip = acceptsGzip(acceptEncoding);
+        Boolean old = this.accepted.put(host, gzip);
+        if (old == null || old.booleanValue() != gzip) {
+            log.info(host + (gzip ? " takes" : " does not take") + " gzip compressed requests");
+        }
+    }
+
+    /**
+     * Parse an Accept-Encoding header (RFC 7231 section 5.3.4).
+     * <p>gzip and its alias x-gzip are accepted unless their q value is 0.
+     * Without either of them, a wildcard with a q value above 0 accepts gzip.
+     * @param acceptEncoding The header
+     * @return true if gzip is acceptable
+     */
+    static boolean acceptsGzip(final String acceptEncoding) {
+        Boolean gzip = null;
+        boolean any  = false;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts  = element.split(";");
+            String   coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            double   q      = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String p = parts[i].trim();
+                if (p.length() > 2 && Character.toLowerCase(p.charAt(0)) == 'q' && p.charAt(1) == '=') {
+                    try {
+                        q = Double.parseDouble(p.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (GZIP.equals(coding) || "x-gzip".equals(coding)) {
+                gzip = q > 0 || Boolean.TRUE.equals(gzip);
+            } else if ("*".equals(coding)) {
+                any = q > 0;
+            }
+        }
+        return gzip != null ? gzip.booleanValue() : any;
+    }
+
+    /**
+     * Record that the host answered a compressed request with 415 Unsupported Media Type.
+     * Its requests are no longer compressed.
+     * @param host Host key of the target
+     */
+    public void onRejected(final String host) {
+        this.rejected.increment();
+        if (!Boolean.FALSE.equals(this.accepted.put(host, Boolean.FALSE))) {
+            log.info(host + " rejected a gzip compressed request, no longer compressing");
+        }
+    }
+
+    /**
+     * @param host Host key of the target
+     * @return true or false if the host is known to take compressed requests or not, null if not known
+     */
+    public Boolean isAccepted(final String host) {
+        return this.accepted.get(host);
+    }
+
+    /**
+     * Start compressing a body into a stream.
+     * The stream must be finished with {@link GzipStream#finish()}
+     * and released with {@link GzipStream#release()}.
+     * @param out Stream of the connection
+     * @return the stream to write the uncompressed body to
+     */
+    public GzipStream open(final OutputStream out) throws IOException {
+        Deflater def = this.pool.poll();
+        if (def != null) {
+            this.idle.decrementAndGet();
+            def.setLevel(this.level);
+        } else {
+            def = new Deflater(this.level, true);
+        }
+        return new GzipStream(out, def);
+    }
+
+    /**
+     * Compress a whole body.
+     * @param body Uncompressed body
+     * @return the gzip compressed body
+     */
+    public byte[] compress(final byte[] body) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(body.length / 4 + HEADER.length + TRAILER_SIZE);
+        GzipStream gz = this.open(baos);
+        try {
+            gz.write(body);
+            gz.finish();
+        } finally {
+            gz.release();
+        }
+        return baos.toByteArray();
+    }
+
+    private void release(final Deflater def) {
+        def.reset();
+        if (this.idle.incrementAndGet() <= this.poolSize) {
+            this.pool.offer(def);
+        } else {
+            this.idle.decrementAndGet();
+            def.end();
+        }
+    }
+
+    /**
+     * @return Number of requests compressed
+     */
+    public long getCompressed() {
+        return this.compressed.sum();
+    }
+
+    /**
+     * @return Number of requests sent as they are, being small or to a host not taking compression
+     */
+    public long getPlain() {
+        return this.plain.sum();
+    }
+
+    /**
+     * @return Number of compressed requests answered with 415
+     */
+    public long getRejected() {
+        return this.rejected.sum();
+    }
+
+    /**
+     * @return Bytes of the compressed requests before compression
+     */
+    public long getBytesIn() {
+        return this.bytesIn.sum();
+    }
+
+    /**
+     * @return Bytes of the compressed requests after compression
+     */
+    public long getBytesOut() {
+        return this.bytesOut.sum();
+    }
+
+    /**
+     * @return share of the bytes of the compressed requests saved by compression
+     */
+    public double getSavings() {
+        long in = this.getBytesIn();
+        return in > 0 ? 1.0 - (double)this.getBytesOut() / in : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "GzipCompression [threshold " + this.threshold + ", compressed " + this.getCompressed()
+               + ", plain " + this.getPlain() + ", rejected " + this.getRejected()
+               + ", " + this.getBytesIn() + " -> " + this.getBytesOut() + " bytes"
+               + String.format(" (%.1f%% saved)", this.getSavings() * 100) + "]";
+    }
+
+    /**
+     * Gzip stream over a pooled Deflater.
+     * Closing it finishes the body and closes the underlying stream.
+     */
+    public final class GzipStream extends DeflaterOutputStream {
+
+        private final CRC32 crc = new CRC32();
+        private boolean finished;
+        private boolean released;
+
+        GzipStream(final OutputStream out, final Deflater def) throws IOException {
+            // A Deflater given to the constructor is not ended by close()
+            super(out, def, 4096);
+            out.write(HEADER);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            super.write(b, off, len);
+            this.crc.update(b, off, len);
+        }
+
+        /**
+         * Write the rest of the compressed body and the gzip trailer.
+         */
+        @Override
+        public void finish() throws IOException {
+            if (this.finished) {
+                return;
+            }
+            super.finish();
+            long n = this.def.getBytesRead();
+            writeInt(this.out, (int)this.crc.getValue());
+            writeInt(this.out, (int)n);
+            this.finished = true;
+            GzipCompression.this.compressed.increment();
+            GzipCompression.this.bytesIn.add(n);
+            GzipCompression.this.bytesOut.add(this.def.getBytesWritten() + HEADER.length + TRAILER_SIZE);
+        }
+
+        /**
+         * Return the Deflater to the pool. The stream can not be written after this.
+         */
+        public void release() {
+            if (!this.released) {
+                this.released = true;
+                GzipCompression.this.release(this.def);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                this.finish();
+            } finally {
+                this.release();
+                this.out.close();
+            }
+        }
+
+        private void writeInt(final OutputStream os, final int i) throws IOException {
+            os.write(i & 0xff);
+            os.write((i >> 8) & 0xff);
+            os.write((i >> 16) & 0xff);
+            os.write((i >> 24) & 0xff);
+        }
+    }
+
+    /**
+     * Decompresses a gzip body part by part as it arrives, so the
+     * compressed body is never held whole.
+     */
+    public static final class Gunzip {
+
+        private static final int FHCRC    = 2;
+        private static final int FEXTRA   = 4;
+        private static final int FNAME    = 8;
+        private static final int FCOMMENT = 16;
+
+        private static final int HEAD = 0, BODY = 1, TRAIL = 2;
+
+        private final Inflater inf = new Inflater(true);
+        private final CRC32 crc = new CRC32();
+        private final byte[] buf = new byte[4096];
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        // The header or the trailer, kept until complete
+        private final ByteArrayOutputStream frame = new ByteArrayOutputStream(32);
+        private int state = HEAD;
+
+        /**
+         * @param part Next part of the compressed body
+         * @throws ZipException if the body is not valid gzip
+         */
+        public void update(ByteBuffer part) throws IOException {
+            if (this.state == HEAD) {
+                copy(part, this.frame);
+                byte[] h = this.frame.toByteArray();
+                int n = headerLength(h);
+                if (n < 0) {
+                    return;
+                }
+                this.frame.reset();
+                this.state = BODY;
+                part = ByteBuffer.wrap(h, n, h.length - n);
+            }
+            if (this.state == BODY) {
+                this.inf.setInput(part);
+                while (!this.inf.finished() && !this.inf.needsInput()) {
+                    int n;
+                    try {
+                        n = this.inf.inflate(this.buf);
+                    } catch (DataFormatException e) {
+                        throw new ZipException("Invalid gzip body: " + e.getMessage());
+                    }
+                    if (n == 0 && !this.inf.finished() && !this.inf.needsInput()) {
+                        throw new ZipException("Invalid gzip body");
+                    }
+                    this.crc.update(this.buf, 0, n);
+                    this.out.write(this.buf, 0, n);
+                }
+                if (!this.inf.finished()) {
+                    return;
+                }
+                this.state = TRAIL;
+            }
+            copy(part, this.frame);
+        }
+
+        /**
+         * Check the trailer of the complete body and release the Inflater.
+         * @return the uncompressed body
+         * @throws EOFException if the body was cut short
+         * @throws ZipException if the body does not match its trailer
+         */
+        public byte[] finish() throws IOException {
+            try {
+                byte[] t = this.frame.toByteArray();
+                if (this.state != TRAIL || t.length < TRAILER_SIZE) {
+                    throw new EOFException("Truncated gzip body");
+                }
+                if (readInt(t, 0) != (int)this.crc.getValue() || readInt(t, 4) != (int)this.inf.getBytesWritten()) {
+                    throw new ZipException("Corrupt gzip body");
+                }
+                return this.out.toByteArray();
+            } finally {
+                this.end();
+            }
+        }
+
+        /**
+         * Release the Inflater of an abandoned body.
+         */
+        public void end() {
+            this.inf.end();
+        }
+
+        /**
+         * @return the length of the gzip header (RFC 1952), or -1 if h does not hold all of it yet
+         */
+        private static int headerLength(final byte[] h) throws ZipException {
+            int n = h.length;
+            if (n < HEADER.length) {
+                return -1;
+            }
+            if (h[0] != HEADER[0] || h[1] != HEADER[1] || h[2] != Deflater.DEFLATED) {
+                throw new ZipException("Not in gzip format");
+            }
+            int flags = h[3] & 0xff;
+            int pos   = HEADER.length;
+            if ((flags & FEXTRA) != 0) {
+                if (pos + 2 > n) {
+                    return -1;
+                }
+                pos += 2 + ((h[pos] & 0xff) | (h[pos+1] & 0xff) << 8);
+            }
+            if ((flags & FNAME) != 0) {
+                pos = skipString(h, pos);
+            }
+            if ((flags & FCOMMENT) != 0 && pos >= 0) {
+                pos = skipString(h, pos);
+            }
+            if ((flags & FHCRC) != 0 && pos >= 0) {
+                pos += 2;
+            }
+            return pos <= n ? pos : -1;
+        }
+
+        private static int skipString(final byte[] h, final int pos) {
+            for (int i = pos; i < h.length; i++) {
+                if (h[i] == 0) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        private static int readInt(final byte[] b, final int off) {
+            return (b[off] & 0xff) | (b[off+1] & 0xff) << 8 | (b[off+2] & 0xff) << 16 | (b[off+3] & 0xff) << 24;
+        }
+
+        private static void copy(final ByteBuffer from, final ByteArrayOutputStream to) {
+            if (from.hasArray()) {
+                to.write(from.array(), from.arrayOffset() + from.position(), from.remaining());
+                from.position(from.limit());
+            } else {
+                while (from.hasRemaining()) {
+                    to.write(from.get());
+                }
+            }
+        }
+    }
+
+}
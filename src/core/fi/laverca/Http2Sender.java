@@ -0,0 +1,310 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.soap.MimeHeader;
+import javax.xml.soap.MimeHeaders;
+
+import org.apache.axis.AxisFault;
+import org.apache.axis.Constants;
+import org.apache.axis.Message;
+import org.apache.axis.MessageContext;
+import org.apache.axis.handlers.BasicHandler;
+import org.apache.axis.soap.SOAPConstants;
+import org.apache.axis.transport.http.HTTPConstants;
+import org.apache.axis.utils.Messages;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Axis transport handler sending the calls over an {@link Http2Transport}.
+ * <p>
+ * A drop-in for {@link CommonsHTTPSender}: the headers, credentials,
+ * timeouts, {@link Deadline}s and HTTP error handling are the same.
+ * The transport is taken from the {@link Http2Transport#PROPERTY}
+ * property, then from the constructor, and finally from
+ * {@link Http2Transport#getDefault()}, so it can also be deployed in a
+ * client-config.wsdd with
+ * <pre>
+ * &lt;transport name="http" pivot="java:fi.laverca.Http2Sender"/&gt;
+ * </pre>
+ * The request is serialized before it is sent, and the response read
+ * before it is parsed. Only Basic authentication is supported.
+ * <p>
+ * The request body is gzip compressed with
+ * {@link HTTPConstants#MC_GZIP_REQUEST} or the
+ * {@link Http2Transport#setCompression(GzipCompression) compression} of
+ * the transport, and sent again uncompressed if the MSSP answers 415.
+ */
+public class Http2Sender extends BasicHandler {
+
+    private static final Log log = LogFactory.getLog(Http2Sender.class);
+
+    private static final GzipCompression defaultCompression = new GzipCompression();
+
+    // Set by the JDK client itself, which refuses them as request headers
+    private static final Set<String> RESTRICTED = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+    static {
+        RESTRICTED.add("Connection");
+        RESTRICTED.add("Content-Length");
+        RESTRICTED.add("Expect");
+        RESTRICTED.add("Host");
+        RESTRICTED.add("Upgrade");
+        RESTRICTED.add(HTTPConstants.HEADER_TRANSFER_ENCODING);
+        RESTRICTED.add(HTTPConstants.HEADER_TRANSFER_ENCODING_CHUNKED);
+    }
+
+    private final Http2Transport transport;
+
+    /**
+     * Send with the transport of the call, or the default one.
+     */
+    public Http2Sender() {
+        this(null);
+    }
+
+    /**
+     * @param transport Transport of the calls that do not give one, or null for the default
+     */
+    public Http2Sender(final Http2Transport transport) {
+        this.transport = transport;
+    }
+
+    @Override
+    public void invoke(final MessageContext msgContext) throws AxisFault {
+        if (log.isDebugEnabled()) {
+            log.debug(Messages.getMessage("enter00", "Http2Sender::invoke"));
+        }
+        try {
+            Http2Transport t = this.getTransport(msgContext);
+            URI targetURI = new URI(msgContext.getStrProp(MessageContext.TRANS_URL));
+            Deadline deadline = getDeadline(msgContext);
+            if (deadline != null) {
+                deadline.check("POST " + targetURI);
+            }
+
+            Message reqMessage = msgContext.getRequestMessage();
+            ByteArrayOutputStream body = new ByteArrayOutputStream(2048);
+            reqMessage.writeTo(body);
+
+            long timeout = msgContext.getTimeout() != 0 ? msgContext.getTimeout() : t.getRequestTimeout();
+            HttpRequest.Builder b = HttpRequest.newBuilder(targetURI)
+                .timeout(Duration.ofMillis(Deadline.cap(deadline, timeout)));
+            addContextInfo(b, msgContext, targetURI, reqMessage);
+
+            // Compress if asked for this call, or if the transport finds the body large enough
+            byte[] plain = body.toByteArray();
+            GzipCompression compression = t.getCompression();
+            String host = GzipCompression.key(targetURI);
+            boolean gzip = msgContext.isPropertyTrue(HTTPConstants.MC_GZIP_REQUEST);
+            if (!gzip && compression != null) {
+                gzip = compression.shouldCompress(host, plain.length);
+            }
+            HttpResponse<byte[]> response = null;
+            if (gzip) {
+                byte[] compressed = (compression != null ? compression : defaultCompression).compress(plain);
+                response = t.send(b.copy()
+                                   .header(HTTPConstants.HEADER_CONTENT_ENCODING, HTTPConstants.COMPRESSION_GZIP)
+                                   .POST(HttpRequest.BodyPublishers.ofByteArray(compressed))
+                                   .build());
+                if (response.statusCode() == 415) {
+                    // The MSSP does not take compressed requests: send it as it is
+                    if (compression != null) {
+                        compression.onRejected(host);
+                    }
+                    response = null;
+                }
+            }
+            if (response == null) {
+                response = t.send(b.POST(HttpRequest.BodyPublishers.ofByteArray(plain)).build());
+            }
+            if (compression != null) {
+                compression.onResponse(host, response.headers().firstValue(HTTPConstants.HEADER_ACCEPT_ENCODING).orElse(null));
+            }
+            int returnCode = response.statusCode();
+            String contentType     = response.headers().firstValue(HTTPConstants.HEADER_CONTENT_TYPE).orElse(null);
+            String contentLocation = response.headers().firstValue(HTTPConstants.HEADER_CONTENT_LOCATION).orElse(null);
+
+            if ((returnCode > 199) && (returnCode < 300)) {
+                // SOAP return is OK - so fall through
+            } else if (msgContext.getSOAPConstants() == SOAPConstants.SOAP12_CONSTANTS) {
+                // For now, if we're SOAP 1.2, fall through, since the range of
+                // valid result codes is much greater
+            } else if ((contentType != null) && !contentType.equals("text/html")
+                       && ((returnCode > 499) && (returnCode < 600))) {
+                // SOAP Fault should be in here - so fall through
+            } else {
+                AxisFault fault = new AxisFault("HTTP", "(" + returnCode + ")", null, null);
+                fault.setFaultDetailString(Messages.getMessage("return01", "" + returnCode,
+                                                               new String(response.body(), StandardCharsets.UTF_8)));
+                fault.addFaultDetail(Constants.QNAME_FAULTDETAIL_HTTPERRORCODE, Integer.toString(returnCode));
+                throw fault;
+            }
+
+            InputStream in = new ByteArrayInputStream(response.body());
+            String contentEncoding = response.headers().firstValue(HTTPConstants.HEADER_CONTENT_ENCODING).orElse(null);
+            if (contentEncoding != null) {
+                if (contentEncoding.equalsIgnoreCase(HTTPConstants.COMPRESSION_GZIP)) {
+                    in = new GZIPInputStream(in);
+                } else {
+                    throw new AxisFault("HTTP", "unsupported content-encoding of '" + contentEncoding + "' found", null, null);
+                }
+            }
+            Message outMsg = new Message(in, false, contentType, contentLocation);
+            // Transfer HTTP headers of HTTP message to MIME headers of SOAP message
+            MimeHeaders responseMimeHeaders = outMsg.getMimeHeaders();
+            for (Map.Entry<String, List<String>> h : response.headers().map().entrySet()) {
+                if (h.getKey().startsWith(":")) {
+                    continue; // HTTP/2 pseudo header
+                }
+                for (String v : h.getValue()) {
+                    responseMimeHeaders.addHeader(h.getKey(), v);
+                }
+            }
+            outMsg.setMessageType(Message.RESPONSE);
+            msgContext.setResponseMessage(outMsg);
+            if (log.isDebugEnabled()) {
+                log.debug("\n" + Messages.getMessage("xmlRecd00"));
+                log.debug("-----------------------------------------------");
+                log.debug(outMsg.getSOAPPartAsString());
+            }
+        } catch (Exception e) {
+            log.debug(e);
+            throw AxisFault.makeFault(e);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(Messages.getMessage("exit00", "Http2Sender::invoke"));
+        }
+    }
+
+    /**
+     * @return the transport of the calls that do not give one
+     */
+    public Http2Transport getTransport() {
+        return this.transport != null ? this.transport : Http2Transport.getDefault();
+    }
+
+    private Http2Transport getTransport(final MessageContext msgContext) {
+        Object o = msgContext.getProperty(Http2Transport.PROPERTY);
+        if (o instanceof Http2Transport) {
+            return (Http2Transport)o;
+        }
+        return this.transport != null ? this.transport : Http2Transport.getDefault();
+    }
+
+    /**
+     * Copy the headers, credentials and compression settings of the call to the request.
+     */
+    private static void addContextInfo(final HttpRequest.Builder b,
+                                       final MessageContext msgContext,
+                                       final URI targetURI,
+                                       final Message msg)
+        throws AxisFault
+    {
+        b.header(HTTPConstants.HEADER_CONTENT_TYPE, msg.getContentType(msgContext.getSOAPConstants()));
+
+        if (msgContext.useSOAPAction()) {
+            String action = msgContext.getSOAPActionURI();
+            if (action != null && !"".equals(action)) {
+                b.header(HTTPConstants.HEADER_SOAP_ACTION, "\"" + action + "\"");
+            }
+        }
+
+        String userID = msgContext.getUsername();
+        String passwd = msgContext.getPassword();
+        // if UserID is not part of the context, but is in the URL, use
+        // the one in the URL.
+        if ((userID == null) && (targetURI.getUserInfo() != null)) {
+            String info = targetURI.getUserInfo();
+            int sep = info.indexOf(':');
+            if ((sep >= 0) && (sep + 1 < info.length())) {
+                userID = info.substring(0, sep);
+                passwd = info.substring(sep + 1);
+            } else {
+                userID = info;
+            }
+        }
+        if (userID != null) {
+            String cred = userID + ":" + (passwd != null ? passwd : "");
+            b.header(HTTPConstants.HEADER_AUTHORIZATION,
+                     "Basic " + Base64.getEncoder().encodeToString(cred.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        if (msgContext.isPropertyTrue(HTTPConstants.MC_ACCEPT_GZIP)) {
+            b.header(HTTPConstants.HEADER_ACCEPT_ENCODING, HTTPConstants.COMPRESSION_GZIP);
+        }
+
+        // Transfer MIME headers of SOAPMessage to HTTP headers.
+        MimeHeaders mimeHeaders = msg.getMimeHeaders();
+        if (mimeHeaders != null) {
+            for (Iterator<?> i = mimeHeaders.getAllHeaders(); i.hasNext(); ) {
+                MimeHeader mimeHeader = (MimeHeader)i.next();
+                String headerName = mimeHeader.getName();
+                if (headerName.equals(HTTPConstants.HEADER_CONTENT_TYPE)
+                    || headerName.equals(HTTPConstants.HEADER_SOAP_ACTION)
+                    || RESTRICTED.contains(headerName))
+                {
+                    continue;
+                }
+                b.header(headerName, mimeHeader.getValue());
+            }
+        }
+
+        // User defined headers; Expect and chunking are up to the transport
+        Hashtable<?, ?> userHeaderTable = (Hashtable<?, ?>)msgContext.getProperty(HTTPConstants.REQUEST_HEADERS);
+        if (userHeaderTable != null) {
+            for (Map.Entry<?, ?> me : userHeaderTable.entrySet()) {
+                if (me.getKey() == null || me.getValue() == null) {
+                    continue;
+                }
+                String key = me.getKey().toString().trim();
+                if (!RESTRICTED.contains(key)) {
+                    b.header(key, me.getValue().toString().trim());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the deadline given to the call with {@link Deadline#PROPERTY}, or null
+     */
+    private static Deadline getDeadline(final MessageContext msgContext) {
+        Object o = msgContext.getProperty(Deadline.PROPERTY);
+        return o instanceof Deadline ? (Deadline)o : null;
+    }
+
+}
@@ -0,0 +1,388 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.axis.EngineConfiguration;
+import org.apache.axis.SimpleTargetedChain;
+import org.apache.axis.configuration.EngineConfigurationFactoryFinder;
+import org.apache.axis.configuration.SimpleProvider;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * HTTP/2 transport of the Axis stubs.
+ * <p>
+ * The requests are multiplexed as streams over a few connections per
+ * MSSP endpoint instead of taking a pooled HTTP/1.1 connection each, so
+ * thousands of status polls in flight need a handful of TLS connections.
+ * HTTP/2 is negotiated with ALPN; an MSSP that only speaks HTTP/1.1 is
+ * talked to over pooled HTTP/1.1 connections instead. Plain http URLs
+ * ask for an h2c upgrade, which servers not knowing it ignore.
+ * <p>
+ * Each connection is kept by a JDK HTTP client of its own, and the
+ * requests take turns between them. The client opens a new connection
+ * for every request made before its first one to the endpoint is up, so
+ * the first request opens it and the others wait for it, up to
+ * {@link #OPEN_WAIT}. {@link #connect(URI)} opens the connections ahead
+ * of the first calls. Every request is sent by
+ * {@link Http2Sender}; the stubs get it with the engine configuration of
+ * {@link #createEngineConfiguration()}:
+ * <pre>
+ * Http2Transport h2 = new Http2Transport(2, clientSsl);
+ * EtsiClient client = new EtsiClient(apId, apPwd, sigUrl, statusUrl, receiptUrl,
+ *                                    null, null, null, h2.createEngineConfiguration());
+ * </pre>
+ */
+public class Http2Transport {
+
+    private static final Log log = LogFactory.getLog(Http2Transport.class);
+
+    /** Stub / MessageContext property carrying the Http2Transport */
+    public static final String PROPERTY = "fi.laverca.Http2Transport";
+
+    public static final int  DEFAULT_CONNECTIONS     = 2;
+    public static final int  DEFAULT_THREADS         = 2;
+    public static final long DEFAULT_CONNECT_TIMEOUT = 30 * 1000;      // Same as HttpTransport
+    public static final long DEFAULT_REQUEST_TIMEOUT = 10 * 60 * 1000; // Same as the Axis Call default
+
+    /** Longest wait for the first request to an endpoint to get its connection up */
+    public static final long OPEN_WAIT = 1000;
+
+    private static final AtomicInteger poolCount = new AtomicInteger();
+
+    private static Http2Transport defaultTransport;
+
+    private final HttpClient[]    clients;
+    private final ExecutorService executor;
+    private final AtomicInteger   next = new AtomicInteger();
+
+    // Completed when the connection of a client to an endpoint is up, by "client origin"
+    private final ConcurrentMap<String, CompletableFuture<Void>> opened = new ConcurrentHashMap<String, CompletableFuture<Void>>();
+
+    private volatile long requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+    private volatile GzipCompression compression;
+    private volatile boolean isShutdown;
+
+    private final LongAdder http2Responses = new LongAdder();
+    private final LongAdder http1Responses = new LongAdder();
+    private final LongAdder failures       = new LongAdder();
+
+    /**
+     * Create a transport with {@link #DEFAULT_CONNECTIONS} connections per
+     * endpoint using the JVM global SSL settings (see {@link JvmSsl}).
+     */
+    public Http2Transport() {
+        this(DEFAULT_CONNECTIONS, (SSLContext)null);
+    }
+
+    /**
+     * Create a transport with per-client SSL settings.
+     * @param connections Number of HTTP/2 connections per endpoint
+     * @param clientSsl   SSL settings for HTTPS
+     */
+    public Http2Transport(final int connections, final ClientSsl clientSsl) {
+        this(connections, clientSsl.getSSLContext());
+    }
+
+    /**
+     * Create a transport.
+     * @param connections Number of HTTP/2 connections per endpoint
+     * @param sslContext  SSL settings for HTTPS, or null for the JVM default
+     */
+    public Http2Transport(final int connections, final SSLContext sslContext) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("connections must be positive");
+        }
+        final int pool = poolCount.incrementAndGet();
+        this.executor = Executors.newFixedThreadPool(DEFAULT_THREADS, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "laverca-h2-" + pool + "-" + this.count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        SSLContext ssl = sslContext;
+        if (ssl == null) {
+            try {
+                ssl = SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("No default SSLContext", e);
+            }
+        }
+        this.clients = new HttpClient[connections];
+        for (int i = 0; i < connections; i++) {
+            this.clients[i] = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(DEFAULT_CONNECT_TIMEOUT))
+                .sslContext(ssl)
+                .executor(this.executor)
+                .build();
+        }
+    }
+
+    /**
+     * Get the transport used by {@link Http2Sender} when the call has no transport of its own.
+     * @return shared default transport
+     */
+    public static synchronized Http2Transport getDefault() {
+        if (defaultTransport == null || defaultTransport.isShutdown()) {
+            defaultTransport = new Http2Transport();
+        }
+        return defaultTransport;
+    }
+
+    /**
+     * Create an engine configuration for the Axis stubs that sends the
+     * requests over this transport. Everything else is as in the default
+     * client configuration.
+     * @return configuration to give to the EtsiClient constructor
+     *         or to {@code EtsiClient.setSSLEngine(EngineConfiguration)}
+     */
+    public EngineConfiguration createEngineConfiguration() {
+        // Falls back to the defaults for everything but the http transport
+        SimpleProvider config = new SimpleProvider(EngineConfigurationFactoryFinder.newFactory().getClientEngineConfig());
+        config.deployTransport("http", new SimpleTargetedChain(new Http2Sender(this)));
+        return config;
+    }
+
+    /**
+     * Send a request, blocking until the response has been read.
+     * @param request Request with its timeout set
+     * @return the response
+     * @throws InterruptedIOException if the thread was interrupted while waiting;
+     *                                the exchange is then aborted
+     */
+    public HttpResponse<byte[]> send(final HttpRequest request) throws IOException {
+        if (this.isShutdown) {
+            throw new IOException("Http2Transport has been shut down");
+        }
+        // Spread the requests evenly over the connections
+        int i = Math.floorMod(this.next.getAndIncrement(), this.clients.length);
+        HttpResponse<byte[]> resp = this.await(request, this.open(i, request));
+        if (resp.version() == HttpClient.Version.HTTP_2) {
+            this.http2Responses.increment();
+        } else {
+            this.http1Responses.increment();
+        }
+        return resp;
+    }
+
+    /**
+     * Open the connections to an endpoint, if not open yet, so that the
+     * first calls do not wait for the TLS handshakes. Each connection is
+     * opened with a HEAD request; its response status does not matter.
+     * @param uri URI of the endpoint
+     * @return the number of connections that speak HTTP/2
+     * @throws IOException if a connection could not be opened
+     */
+    public int connect(final URI uri) throws IOException {
+        int h2 = 0;
+        for (int i = 0; i < this.clients.length; i++) {
+            HttpRequest head = HttpRequest.newBuilder(uri)
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .timeout(Duration.ofMillis(DEFAULT_CONNECT_TIMEOUT))
+                .build();
+            if (this.await(head, this.open(i, head)).version() == HttpClient.Version.HTTP_2) {
+                h2++;
+            }
+        }
+        return h2;
+    }
+
+    /**
+     * Start an exchange with a client, letting the first one to an endpoint open the connection.
+     */
+    private CompletableFuture<HttpResponse<byte[]>> open(final int i, final HttpRequest request) throws IOException {
+        final String key = i + " " + GzipCompression.key(request.uri());
+        CompletableFuture<Void> up = this.opened.get(key);
+        if (up == null) {
+            final CompletableFuture<Void> mine = new CompletableFuture<Void>();
+            up = this.opened.putIfAbsent(key, mine);
+            if (up == null) {
+                CompletableFuture<HttpResponse<byte[]>> f = this.clients[i].sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+                f.whenComplete((resp, t) -> {
+                    if (t != null) {
+                        // Let the next request try
+                        this.opened.remove(key, mine);
+                    }
+                    mine.complete(null);
+                });
+                // A slow first response does not hold up the others for longer
+                mine.completeOnTimeout(null, OPEN_WAIT, TimeUnit.MILLISECONDS);
+                return f;
+            }
+        }
+        if (!up.isDone()) {
+            try {
+                up.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted: " + request.method() + " " + request.uri());
+            } catch (ExecutionException e) {
+                // not completed exceptionally
+            }
+        }
+        return this.clients[i].sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    /**
+     * Wait for the response of an exchange.
+     * @throws InterruptedIOException if interrupted; the exchange is aborted
+     */
+    private HttpResponse<byte[]> await(final HttpRequest request,
+                                       final CompletableFuture<HttpResponse<byte[]>> f)
+        throws IOException
+    {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            this.failures.increment();
+            f.cancel(true);
+            Thread.currentThread().interrupt();
+            InterruptedIOException ie = new InterruptedIOException("Interrupted: " + request.method() + " " + request.uri());
+            ie.initCause(e);
+            throw ie;
+        } catch (ExecutionException e) {
+            this.failures.increment();
+            if (log.isDebugEnabled()) {
+                log.debug(request.method() + " " + request.uri() + " failed", e.getCause());
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Set the response timeout used when a call does not give its own.
+     * @param millis Timeout in milliseconds
+     */
+    public void setRequestTimeout(final long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        this.requestTimeout = millis;
+    }
+
+    /**
+     * @return the response timeout of the calls that do not give their own, in milliseconds
+     */
+    public long getRequestTimeout() {
+        return this.requestTimeout;
+    }
+
+    /**
+     * Compress the request bodies of the {@link Http2Sender} over the threshold size of the compression.
+     * <p>Overridden for a single call by the Axis
+     * {@link org.apache.axis.transport.http.HTTPConstants#MC_GZIP_REQUEST} property.
+     * @param compression Compression, or null to send the bodies as they are
+     */
+    public void setCompression(final GzipCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @return the compression of the request bodies, or null for none
+     */
+    public GzipCompression getCompression() {
+        return this.compression;
+    }
+
+    /**
+     * @return the SSL context of the HTTPS connections
+     */
+    public SSLContext getSSLContext() {
+        return this.clients[0].sslContext();
+    }
+
+    /**
+     * @return the number of connections per endpoint
+     */
+    public int getConnections() {
+        return this.clients.length;
+    }
+
+    /**
+     * @return Number of responses received over HTTP/2
+     */
+    public long getHttp2Responses() {
+        return this.http2Responses.sum();
+    }
+
+    /**
+     * @return Number of responses received over HTTP/1.1 from servers not taking HTTP/2
+     */
+    public long getHttp1Responses() {
+        return this.http1Responses.sum();
+    }
+
+    /**
+     * @return Number of requests failed without a response
+     */
+    public long getFailures() {
+        return this.failures.sum();
+    }
+
+    public boolean isShutdown() {
+        return this.isShutdown;
+    }
+
+    /**
+     * Stop accepting requests and stop the transport threads.
+     * Requests still in flight may fail.
+     */
+    public void shutdown() {
+        this.isShutdown = true;
+        this.executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "Http2Transport [connections " + this.clients.length
+               + ", h2 " + this.getHttp2Responses() + ", http/1.1 " + this.getHttp1Responses()
+               + ", failures " + this.getFailures() + "]";
+    }
+
+}
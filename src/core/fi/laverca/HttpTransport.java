@@ -0,0 +1,373 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * HTTP transport configuration shared by the Axis stubs of an EtsiClient.
+ * <p>
+ * Holds one pooled connection manager, so connections (and TLS sessions)
+ * to the MSSP are reused regardless of which thread sends the request.
+ * Idle and expired connections are closed by a background evictor.
+ * <p>
+ * The transport is given to {@link CommonsHTTPSender} with the
+ * {@link #PROPERTY} stub property. Without it the sender falls back to
+ * {@link #getDefault()}.
+ */
+public class HttpTransport {
+
+    private static final Log log = LogFactory.getLog(HttpTransport.class);
+
+    /** Stub / MessageContext property carrying the HttpTransport */
+    public static final String PROPERTY = "fi.laverca.HttpTransport";
+
+    public static final int  DEFAULT_MAX_TOTAL       = 100;
+    public static final int  DEFAULT_MAX_PER_ROUTE   = 20;
+    public static final int  DEFAULT_CONNECT_TIMEOUT = 30 * 1000;      // At most 30 seconds to wait for a socket connection to form
+    public static final int  DEFAULT_LEASE_TIMEOUT   = 30 * 1000;      // At most 30 seconds to wait for a free pooled connection
+    public static final long DEFAULT_KEEP_ALIVE      = 30 * 1000;      // Used when the server does not tell its Keep-Alive timeout
+    public static final long DEFAULT_IDLE_TIMEOUT    = 60 * 1000;
+    public static final long DEFAULT_EVICT_INTERVAL  = 5  * 1000;
+
+    private static final AtomicInteger evictorCount = new AtomicInteger();
+
+    private static HttpTransport defaultTransport;
+
+    private final PoolingHttpClientConnectionManager cm;
+    private final CloseableHttpClient client;
+    private final SSLContext sslContext;
+    private volatile RequestConfig requestConfig;
+    private final Evictor evictor;
+
+    private volatile long keepAlive   = DEFAULT_KEEP_ALIVE;
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile GzipCompression compression;
+    private volatile boolean isShutdown;
+
+    /**
+     * Create a transport using the JVM global SSL settings
+     * (see {@link JvmSsl}) for HTTPS.
+     */
+    public HttpTransport() {
+        this(SSLConnectionSocketFactory.getSystemSocketFactory());
+    }
+
+    /**
+     * Create a transport with per-client SSL settings.
+     * TLS handshakes are counted in the given ClientSsl.
+     * @param clientSsl SSL settings for HTTPS connections
+     */
+    public HttpTransport(final ClientSsl clientSsl) {
+        this(clientSsl.getSocketFactory(), clientSsl.getSSLContext());
+    }
+
+    /**
+     * Create a transport with custom SSL settings.
+     * @param sslSocketFactory Socket factory for HTTPS connections
+     */
+    public HttpTransport(final SSLConnectionSocketFactory sslSocketFactory) {
+        this(sslSocketFactory, null);
+    }
+
+    private HttpTransport(final SSLConnectionSocketFactory sslSocketFactory, final SSLContext sslContext) {
+        if (sslSocketFactory == null) {
+            throw new IllegalArgumentException("null sslSocketFactory not allowed");
+        }
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http",  PlainConnectionSocketFactory.getSocketFactory())
+            .register("https", sslSocketFactory)
+            .build();
+
+        this.cm = new PoolingHttpClientConnectionManager(registry);
+        this.cm.setMaxTotal(DEFAULT_MAX_TOTAL);
+        this.cm.setDefaultMaxPerRoute(DEFAULT_MAX_PER_ROUTE);
+
+        this.requestConfig = RequestConfig.custom()
+            .setConnectTimeout(DEFAULT_CONNECT_TIMEOUT)
+            .setConnectionRequestTimeout(DEFAULT_LEASE_TIMEOUT)
+            .setExpectContinueEnabled(false)
+            .build();
+
+        this.client = HttpClients.custom()
+            .setConnectionManager(this.cm)
+            .setKeepAliveStrategy(new KeepAliveStrategy())
+            .setDefaultRequestConfig(this.requestConfig)
+            // Connections authenticated with a client certificate would otherwise
+            // be tagged with the principal and never leased again
+            .disableConnectionState()
+            .build();
+
+        this.sslContext = sslContext;
+
+        this.evictor = new Evictor();
+        this.evictor.start();
+    }
+
+    /**
+     * Get the transport used by requests that have no transport of their own.
+     * Created on first use with the JVM global SSL settings.
+     * @return shared default transport
+     */
+    public static synchronized HttpTransport getDefault() {
+        if (defaultTransport == null || defaultTransport.isShutdown()) {
+            defaultTransport = new HttpTransport();
+        }
+        return defaultTransport;
+    }
+
+    /**
+     * @return the HTTP client backed by the pooled connection manager
+     */
+    public CloseableHttpClient getHttpClient() {
+        return this.client;
+    }
+
+    /**
+     * @return the SSL context of the {@link ClientSsl} the transport was
+     *         created with, or null if it was given a socket factory
+     */
+    public SSLContext getSSLContext() {
+        return this.sslContext;
+    }
+
+    /**
+     * @return the default per-request configuration (timeouts etc.)
+     */
+    public RequestConfig getRequestConfig() {
+        return this.requestConfig;
+    }
+
+    /**
+     * Set the maximum number of pooled connections.
+     * @param max Maximum total connections
+     */
+    public void setMaxTotal(final int max) {
+        this.cm.setMaxTotal(max);
+    }
+
+    /**
+     * Set the maximum number of pooled connections per MSSP endpoint.
+     * @param max Maximum connections per route
+     */
+    public void setMaxPerRoute(final int max) {
+        this.cm.setDefaultMaxPerRoute(max);
+    }
+
+    /**
+     * Set how long to wait for a connection to the MSSP to form.
+     * <p>With several MSSP endpoints, a short timeout lets a request
+     * fail over quickly from a node that is down.
+     * @param millis Connect timeout in milliseconds
+     */
+    public void setConnectTimeout(final int millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        this.requestConfig = RequestConfig.copy(this.requestConfig).setConnectTimeout(millis).build();
+    }
+
+    /**
+     * Set how long a connection is kept alive when the server
+     * does not send a Keep-Alive timeout.
+     * @param millis Keep-alive time in milliseconds
+     */
+    public void setKeepAlive(final long millis) {
+        this.keepAlive = millis;
+    }
+
+    /**
+     * Set how long a pooled connection may stay idle before
+     * the evictor closes it.
+     * @param millis Idle time in milliseconds
+     */
+    public void setIdleTimeout(final long millis) {
+        this.idleTimeout = millis;
+    }
+
+    /**
+     * Compress the request bodies over the threshold size of the compression.
+     * <p>Overridden for a single call by the Axis
+     * {@link org.apache.axis.transport.http.HTTPConstants#MC_GZIP_REQUEST} property.
+     * @param compression Compression, or null to send the bodies as they are
+     */
+    public void setCompression(final GzipCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @return the compression of the request bodies, or null for none
+     */
+    public GzipCompression getCompression() {
+        return this.compression;
+    }
+
+    /**
+     * Open connections to an MSSP endpoint ahead of the first requests,
+     * TLS handshakes included, and leave them idle in the pool.
+     * <p>The connections are kept for the keep-alive time like any other,
+     * so open them shortly before the traffic starts.
+     * @param url         Endpoint URL
+     * @param connections Connections wanted, at most the per route maximum.
+     *                    Open connections already in the pool count in.
+     * @return the number of connections opened
+     * @throws IOException if a connection could not be leased or opened
+     */
+    public int connect(final URL url, final int connections) throws IOException {
+        String scheme = url.getProtocol().toLowerCase();
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        // The same route as the one planned for the requests to the URL
+        HttpRoute route = new HttpRoute(new HttpHost(url.getHost(), port, scheme), null, "https".equals(scheme));
+        RequestConfig config = this.requestConfig;
+        int n = Math.min(connections, this.cm.getMaxPerRoute(route));
+
+        // Lease them all before releasing any, so that none is leased twice
+        List<HttpClientConnection> leased = new ArrayList<HttpClientConnection>(n);
+        int opened = 0;
+        try {
+            for (int i = 0; i < n; i++) {
+                ConnectionRequest request = this.cm.requestConnection(route, null);
+                HttpClientConnection conn = request.get(config.getConnectionRequestTimeout(), TimeUnit.MILLISECONDS);
+                leased.add(conn);
+                if (!conn.isOpen()) {
+                    HttpContext context = new BasicHttpContext();
+                    this.cm.connect(conn, route, config.getConnectTimeout(), context);
+                    this.cm.routeComplete(conn, route, context);
+                    // Binds the streams, which the stale check of the next lease needs
+                    conn.flush();
+                    opened++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting to " + url);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to lease a connection to " + url, e.getCause());
+        } finally {
+            for (HttpClientConnection conn : leased) {
+                this.cm.releaseConnection(conn, null, this.keepAlive, TimeUnit.MILLISECONDS);
+            }
+        }
+        return opened;
+    }
+
+    /**
+     * @return pool statistics over all routes
+     */
+    public PoolStats getPoolStats() {
+        return this.cm.getTotalStats();
+    }
+
+    /**
+     * @return true if {@link #shutdown()} has been called
+     */
+    public boolean isShutdown() {
+        return this.isShutdown;
+    }
+
+    /**
+     * Close all pooled connections and stop the evictor.
+     */
+    public void shutdown() {
+        if (this.isShutdown) {
+            return;
+        }
+        this.isShutdown = true;
+        this.evictor.interrupt();
+        try {
+            this.client.close();
+        } catch (IOException e) {
+            log.debug("Failed to close HTTP client", e);
+        }
+        this.cm.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "HttpTransport " + this.cm.getTotalStats();
+    }
+
+    /**
+     * Uses the Keep-Alive header if present, otherwise the configured keep-alive.
+     */
+    private class KeepAliveStrategy extends DefaultConnectionKeepAliveStrategy {
+        @Override
+        public long getKeepAliveDuration(final HttpResponse response, final HttpContext context) {
+            long duration = super.getKeepAliveDuration(response, context);
+            return duration > 0 ? duration : HttpTransport.this.keepAlive;
+        }
+    }
+
+    /**
+     * Closes expired and idle connections so that the pool does not
+     * hand out connections the MSSP has already closed.
+     */
+    private class Evictor extends Thread {
+
+        Evictor() {
+            super("laverca-http-evictor-" + evictorCount.incrementAndGet());
+            this.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!HttpTransport.this.isShutdown) {
+                    Thread.sleep(DEFAULT_EVICT_INTERVAL);
+                    HttpTransport.this.cm.closeExpiredConnections();
+                    HttpTransport.this.cm.closeIdleConnections(HttpTransport.this.idleTimeout, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                // shutdown
+            }
+        }
+    }
+
+}
@@ -29,7 +29,8 @@ public class JvmSsl {
      *<p>
      * Note: This is STATIC, and uses global JVM settings.
      *       This can conflict with settings done by some other
-     *       code, or by runtime settings.
+     *       code, or by runtime settings. Use {@link ClientSsl}
+     *       for per-client settings.
      *
      * @param trustStore the keystore file containing trusted SSL server certificates.
      * @param trustStorePassword the password to the truststore.
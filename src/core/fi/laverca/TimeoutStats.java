@@ -0,0 +1,123 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca;
+
+import java.net.SocketTimeoutException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+
+/**
+ * Counts of the requests that failed on a timeout, by the wait that ran out.
+ *
+ * @see fi.laverca.etsi.EtsiClient#getTimeoutStats()
+ */
+public class TimeoutStats {
+
+    public enum Kind {
+        /** Waiting for a free connection in the pool */
+        LEASE,
+        /** Opening the connection */
+        CONNECT,
+        /** Waiting for the response */
+        READ,
+        /** Waiting in an admission queue */
+        ADMISSION,
+        /** Not sent or cut short as the deadline of the request passed */
+        DEADLINE
+    }
+
+    private final LongAdder[] counts = new LongAdder[Kind.values().length];
+
+    public TimeoutStats() {
+        for (int i = 0; i < this.counts.length; i++) {
+            this.counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Tell which wait ran out, looking through the wrapping exceptions
+     * of Axis and CompletableFuture.
+     * @param t Failure of a request
+     * @return the kind of the timeout, or null if the failure was not a timeout
+     */
+    public static Kind classify(final Throwable t) {
+        int depth = 0;
+        for (Throwable c = t; c != null && depth < 10; c = c.getCause(), depth++) {
+            if (c instanceof DeadlineExceededException) {
+                return Kind.DEADLINE;
+            }
+            if (c instanceof AdmissionException) {
+                return ((AdmissionException)c).getReason() == AdmissionException.Reason.TIMED_OUT ? Kind.ADMISSION : null;
+            }
+            // A ConnectTimeoutException too, so check this first
+            if (c instanceof ConnectionPoolTimeoutException) {
+                return Kind.LEASE;
+            }
+            if (c instanceof ConnectTimeoutException || c instanceof HttpConnectTimeoutException) {
+                return Kind.CONNECT;
+            }
+            if (c instanceof SocketTimeoutException) {
+                return "connect timed out".equals(c.getMessage()) ? Kind.CONNECT : Kind.READ;
+            }
+            if (c instanceof HttpTimeoutException) {
+                return Kind.READ;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Count a failure if it was a timeout.
+     * @param t Failure of a request
+     * @return the kind of the timeout, or null if it was not one
+     */
+    public Kind record(final Throwable t) {
+        Kind k = classify(t);
+        if (k != null) {
+            this.counts[k.ordinal()].increment();
+        }
+        return k;
+    }
+
+    /**
+     * @param kind Kind of timeout
+     * @return number of the timeouts counted
+     */
+    public long getCount(final Kind kind) {
+        return this.counts[kind.ordinal()].sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Timeouts [");
+        for (Kind k : Kind.values()) {
+            if (k.ordinal() > 0) {
+                sb.append(", ");
+            }
+            sb.append(k.name().toLowerCase()).append(' ').append(this.getCount(k));
+        }
+        return sb.append(']').toString();
+    }
+
+}
@@ -0,0 +1,271 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.soap.MimeHeader;
+import javax.xml.soap.MimeHeaders;
+
+import org.apache.axis.AxisFault;
+import org.apache.axis.Constants;
+import org.apache.axis.Message;
+import org.apache.axis.MessageContext;
+import org.apache.axis.handlers.BasicHandler;
+import org.apache.axis.soap.SOAPConstants;
+import org.apache.axis.transport.http.HTTPConstants;
+import org.apache.axis.utils.Messages;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Axis transport handler sending the calls over a {@link UnixSocketTransport}.
+ * <p>
+ * A drop-in for {@link CommonsHTTPSender}: the headers, credentials,
+ * timeouts, {@link Deadline}s and HTTP error handling are the same.
+ * The transport is taken from the {@link UnixSocketTransport#PROPERTY}
+ * property, then from the constructor. The request is serialized before
+ * it is sent, with a Content-Length, and the response read before it is
+ * parsed. Only Basic authentication is supported.
+ */
+public class UnixSocketSender extends BasicHandler {
+
+    private static final Log log = LogFactory.getLog(UnixSocketSender.class);
+
+    private final UnixSocketTransport transport;
+
+    /**
+     * Send with the transport given with the {@link UnixSocketTransport#PROPERTY} property.
+     */
+    public UnixSocketSender() {
+        this(null);
+    }
+
+    /**
+     * @param transport Transport of the calls that do not give one
+     */
+    public UnixSocketSender(final UnixSocketTransport transport) {
+        this.transport = transport;
+    }
+
+    @Override
+    public void invoke(final MessageContext msgContext) throws AxisFault {
+        if (log.isDebugEnabled()) {
+            log.debug(Messages.getMessage("enter00", "UnixSocketSender::invoke"));
+        }
+        try {
+            UnixSocketTransport t = this.getTransport(msgContext);
+            URL targetURL = URI.create(msgContext.getStrProp(MessageContext.TRANS_URL)).toURL();
+            Deadline deadline = getDeadline(msgContext);
+            if (deadline != null) {
+                deadline.check("POST " + targetURL);
+            }
+
+            Message reqMessage = msgContext.getRequestMessage();
+            ByteArrayOutputStream body = new ByteArrayOutputStream(2048);
+            reqMessage.writeTo(body);
+
+            String target = targetURL.getPath().isEmpty() ? "/" : targetURL.getPath();
+            if (targetURL.getQuery() != null) {
+                target += "?" + targetURL.getQuery();
+            }
+            byte[] head = UnixSocketTransport.formatHead(target, getHeaders(msgContext, targetURL, reqMessage), body.size());
+
+            int timeout = Deadline.cap(deadline, msgContext.getTimeout());
+            UnixSocketTransport.Response response = t.execute(head, body.toByteArray(), timeout, deadline);
+            int returnCode = response.getStatus();
+            String contentType     = response.getHeader(HTTPConstants.HEADER_CONTENT_TYPE);
+            String contentLocation = response.getHeader(HTTPConstants.HEADER_CONTENT_LOCATION);
+
+            if ((returnCode > 199) && (returnCode < 300)) {
+                // SOAP return is OK - so fall through
+            } else if (msgContext.getSOAPConstants() == SOAPConstants.SOAP12_CONSTANTS) {
+                // For now, if we're SOAP 1.2, fall through, since the range of
+                // valid result codes is much greater
+            } else if ((contentType != null) && !contentType.equals("text/html")
+                       && ((returnCode > 499) && (returnCode < 600))) {
+                // SOAP Fault should be in here - so fall through
+            } else {
+                AxisFault fault = new AxisFault("HTTP", "(" + returnCode + ")" + response.getReason(), null, null);
+                fault.setFaultDetailString(Messages.getMessage("return01", "" + returnCode,
+                                                               new String(response.getBody(), StandardCharsets.UTF_8)));
+                fault.addFaultDetail(Constants.QNAME_FAULTDETAIL_HTTPERRORCODE, Integer.toString(returnCode));
+                throw fault;
+            }
+
+            InputStream in = new ByteArrayInputStream(response.getBody());
+            String contentEncoding = response.getHeader(HTTPConstants.HEADER_CONTENT_ENCODING);
+            if (contentEncoding != null) {
+                if (contentEncoding.equalsIgnoreCase(HTTPConstants.COMPRESSION_GZIP)) {
+                    in = new GZIPInputStream(in);
+                } else {
+                    throw new AxisFault("HTTP", "unsupported content-encoding of '" + contentEncoding + "' found", null, null);
+                }
+            }
+            Message outMsg = new Message(in, false, contentType, contentLocation);
+            // Transfer HTTP headers of HTTP message to MIME headers of SOAP message
+            MimeHeaders responseMimeHeaders = outMsg.getMimeHeaders();
+            for (Map.Entry<String, List<String>> h : response.getHeaders().entrySet()) {
+                for (String v : h.getValue()) {
+                    responseMimeHeaders.addHeader(h.getKey(), v);
+                }
+            }
+            outMsg.setMessageType(Message.RESPONSE);
+            msgContext.setResponseMessage(outMsg);
+            if (log.isDebugEnabled()) {
+                log.debug("\n" + Messages.getMessage("xmlRecd00"));
+                log.debug("-----------------------------------------------");
+                log.debug(outMsg.getSOAPPartAsString());
+            }
+        } catch (Exception e) {
+            log.debug(e);
+            throw AxisFault.makeFault(e);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(Messages.getMessage("exit00", "UnixSocketSender::invoke"));
+        }
+    }
+
+    /**
+     * @return the transport of the calls that do not give one, or null
+     */
+    public UnixSocketTransport getTransport() {
+        return this.transport;
+    }
+
+    private UnixSocketTransport getTransport(final MessageContext msgContext) throws AxisFault {
+        Object o = msgContext.getProperty(UnixSocketTransport.PROPERTY);
+        if (o instanceof UnixSocketTransport) {
+            return (UnixSocketTransport)o;
+        }
+        if (this.transport == null) {
+            throw new AxisFault("No UnixSocketTransport given with " + UnixSocketTransport.PROPERTY);
+        }
+        return this.transport;
+    }
+
+    /**
+     * Collect the headers of the call, with the MSSP host for the sidecar to route by.
+     */
+    private static List<String[]> getHeaders(final MessageContext msgContext,
+                                             final URL targetURL,
+                                             final Message msg)
+        throws AxisFault
+    {
+        List<String[]> headers = new ArrayList<String[]>();
+        String host = targetURL.getPort() != -1 ? targetURL.getHost() + ":" + targetURL.getPort() : targetURL.getHost();
+        headers.add(new String[] { HTTPConstants.HEADER_HOST, host });
+        headers.add(new String[] { HTTPConstants.HEADER_CONTENT_TYPE, msg.getContentType(msgContext.getSOAPConstants()) });
+
+        if (msgContext.useSOAPAction()) {
+            String action = msgContext.getSOAPActionURI();
+            if (action != null && !"".equals(action)) {
+                headers.add(new String[] { HTTPConstants.HEADER_SOAP_ACTION, "\"" + action + "\"" });
+            }
+        }
+
+        String userID = msgContext.getUsername();
+        String passwd = msgContext.getPassword();
+        // if UserID is not part of the context, but is in the URL, use
+        // the one in the URL.
+        if ((userID == null) && (targetURL.getUserInfo() != null)) {
+            String info = targetURL.getUserInfo();
+            int sep = info.indexOf(':');
+            if ((sep >= 0) && (sep + 1 < info.length())) {
+                userID = info.substring(0, sep);
+                passwd = info.substring(sep + 1);
+            } else {
+                userID = info;
+            }
+        }
+        if (userID != null) {
+            String cred = userID + ":" + (passwd != null ? passwd : "");
+            headers.add(new String[] { HTTPConstants.HEADER_AUTHORIZATION,
+                                       "Basic " + Base64.getEncoder().encodeToString(cred.getBytes(StandardCharsets.UTF_8)) });
+        }
+
+        if (msgContext.isPropertyTrue(HTTPConstants.MC_ACCEPT_GZIP)) {
+            headers.add(new String[] { HTTPConstants.HEADER_ACCEPT_ENCODING, HTTPConstants.COMPRESSION_GZIP });
+        }
+
+        // Transfer MIME headers of SOAPMessage to HTTP headers.
+        MimeHeaders mimeHeaders = msg.getMimeHeaders();
+        if (mimeHeaders != null) {
+            for (Iterator<?> i = mimeHeaders.getAllHeaders(); i.hasNext(); ) {
+                MimeHeader mimeHeader = (MimeHeader)i.next();
+                String name = mimeHeader.getName();
+                if (!isSet(name)) {
+                    headers.add(new String[] { name, mimeHeader.getValue() });
+                }
+            }
+        }
+
+        // User defined headers; the body is always sent with a Content-Length
+        Hashtable<?, ?> userHeaderTable = (Hashtable<?, ?>)msgContext.getProperty(HTTPConstants.REQUEST_HEADERS);
+        if (userHeaderTable != null) {
+            for (Map.Entry<?, ?> me : userHeaderTable.entrySet()) {
+                if (me.getKey() == null || me.getValue() == null) {
+                    continue;
+                }
+                String key = me.getKey().toString().trim();
+                if (!isSet(key)
+                    && !key.equalsIgnoreCase(HTTPConstants.HEADER_EXPECT)
+                    && !key.equalsIgnoreCase(HTTPConstants.HEADER_TRANSFER_ENCODING_CHUNKED))
+                {
+                    headers.add(new String[] { key, me.getValue().toString().trim() });
+                }
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * @return true for the headers set by the sender itself
+     */
+    private static boolean isSet(final String name) {
+        return name.equalsIgnoreCase(HTTPConstants.HEADER_CONTENT_TYPE)
+            || name.equalsIgnoreCase(HTTPConstants.HEADER_SOAP_ACTION)
+            || name.equalsIgnoreCase(HTTPConstants.HEADER_HOST)
+            || name.equalsIgnoreCase(HTTPConstants.HEADER_CONTENT_LENGTH)
+            || name.equalsIgnoreCase(HTTPConstants.HEADER_TRANSFER_ENCODING)
+            || name.equalsIgnoreCase(HTTPConstants.HEADER_CONNECTION);
+    }
+
+    /**
+     * @return the deadline given to the call with {@link Deadline#PROPERTY}, or null
+     */
+    private static Deadline getDeadline(final MessageContext msgContext) {
+        Object o = msgContext.getProperty(Deadline.PROPERTY);
+        return o instanceof Deadline ? (Deadline)o : null;
+    }
+
+}
@@ -0,0 +1,607 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.axis.EngineConfiguration;
+import org.apache.axis.SimpleTargetedChain;
+import org.apache.axis.configuration.EngineConfigurationFactoryFinder;
+import org.apache.axis.configuration.SimpleProvider;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+
+/**
+ * HTTP transport over a Unix domain socket to a local sidecar that holds
+ * the client certificate and terminates TLS to the MSSP.
+ * <p>
+ * The SOAP requests are sent as plain HTTP/1.1 over pooled connections
+ * to the socket, with the host of the MSSP URL in the Host header for
+ * the sidecar to route by. This saves the loopback TCP stack and the TLS
+ * of a localhost hop. The timeouts mean the same as with
+ * {@link HttpTransport}: the lease timeout bounds the wait for a pooled
+ * connection, the connect timeout the forming of a new one, and the call
+ * timeout each wait for the response. They fail with the same exceptions,
+ * so {@link TimeoutStats} and the endpoint failover treat them alike.
+ * <p>
+ * The stubs send with {@link UnixSocketSender}, plugged in with the
+ * engine configuration of {@link #createEngineConfiguration()}:
+ * <pre>
+ * UnixSocketTransport uds = new UnixSocketTransport(Paths.get("/run/mssp-sidecar.sock"));
+ * EtsiClient client = new EtsiClient(apId, apPwd, sigUrl, statusUrl, receiptUrl,
+ *                                    null, null, null, uds.createEngineConfiguration());
+ * </pre>
+ * The EtsiClient codec and sendAsync paths keep using their own transports.
+ */
+public class UnixSocketTransport {
+
+    private static final Log log = LogFactory.getLog(UnixSocketTransport.class);
+
+    /** Stub / MessageContext property carrying the UnixSocketTransport */
+    public static final String PROPERTY = "fi.laverca.UnixSocketTransport";
+
+    public static final int  DEFAULT_MAX_TOTAL       = HttpTransport.DEFAULT_MAX_PER_ROUTE;
+    public static final int  DEFAULT_CONNECT_TIMEOUT = HttpTransport.DEFAULT_CONNECT_TIMEOUT;
+    public static final int  DEFAULT_LEASE_TIMEOUT   = HttpTransport.DEFAULT_LEASE_TIMEOUT;
+    public static final long DEFAULT_IDLE_TIMEOUT    = HttpTransport.DEFAULT_IDLE_TIMEOUT;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final UnixDomainSocketAddress address;
+    private final int maxTotal;
+    private final Semaphore leases;
+
+    // Most recently used first, so that the rest can idle out
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<Connection>();
+
+    private volatile int  connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile int  leaseTimeout   = DEFAULT_LEASE_TIMEOUT;
+    private volatile long idleTimeout    = DEFAULT_IDLE_TIMEOUT;
+    private volatile boolean isShutdown;
+
+    private final LongAdder opened   = new LongAdder();
+    private final LongAdder reused   = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+
+    /**
+     * Create a transport with at most {@link #DEFAULT_MAX_TOTAL} connections.
+     * @param socketPath Path of the socket of the sidecar
+     */
+    public UnixSocketTransport(final Path socketPath) {
+        this(socketPath, DEFAULT_MAX_TOTAL);
+    }
+
+    /**
+     * @param socketPath Path of the socket of the sidecar
+     * @param maxTotal   Maximum number of connections to the sidecar
+     */
+    public UnixSocketTransport(final Path socketPath, final int maxTotal) {
+        if (socketPath == null) {
+            throw new IllegalArgumentException("null socketPath not allowed");
+        }
+        if (maxTotal < 1) {
+            throw new IllegalArgumentException("maxTotal must be positive");
+        }
+        this.address  = UnixDomainSocketAddress.of(socketPath);
+        this.maxTotal = maxTotal;
+        this.leases   = new Semaphore(maxTotal, true);
+    }
+
+    /**
+     * Create an engine configuration for the Axis stubs that sends the
+     * requests over this transport. Everything else is as in the default
+     * client configuration.
+     * @return configuration to give to the EtsiClient constructor
+     *         or to {@code EtsiClient.setSSLEngine(EngineConfiguration)}
+     */
+    public EngineConfiguration createEngineConfiguration() {
+        // Falls back to the defaults for everything but the http transport
+        SimpleProvider config = new SimpleProvider(EngineConfigurationFactoryFinder.newFactory().getClientEngineConfig());
+        config.deployTransport("http", new SimpleTargetedChain(new UnixSocketSender(this)));
+        return config;
+    }
+
+    /**
+     * Set how long to wait for a connection to the sidecar to form.
+     * @param millis Connect timeout in milliseconds
+     */
+    public void setConnectTimeout(final int millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        this.connectTimeout = millis;
+    }
+
+    /**
+     * Set how long to wait for a free connection when all are in use.
+     * @param millis Lease timeout in milliseconds
+     */
+    public void setLeaseTimeout(final int millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        this.leaseTimeout = millis;
+    }
+
+    /**
+     * Set how long a pooled connection may stay idle before it is closed.
+     * @param millis Idle time in milliseconds
+     */
+    public void setIdleTimeout(final long millis) {
+        this.idleTimeout = millis;
+    }
+
+    /**
+     * POST a request and read the whole response.
+     * @param head     Request line and headers, ending with the empty line
+     * @param body     Request body
+     * @param timeout  Longest wait for each read of the response in milliseconds, 0 for none
+     * @param deadline Deadline of the call capping the waits, or null
+     * @return the response
+     */
+    public Response execute(final byte[] head, final byte[] body, final int timeout, final Deadline deadline)
+        throws IOException
+    {
+        Connection c = this.lease(deadline);
+        boolean reusable = false;
+        try {
+            c.write(head, body, timeout);
+            Response resp = c.readResponse(timeout);
+            reusable = resp.keepAlive;
+            this.requests.increment();
+            return resp;
+        } finally {
+            this.release(c, reusable);
+        }
+    }
+
+    private Connection lease(final Deadline deadline) throws IOException {
+        if (this.isShutdown) {
+            throw new IOException("UnixSocketTransport has been shut down");
+        }
+        try {
+            if (!this.leases.tryAcquire(Deadline.cap(deadline, this.leaseTimeout), TimeUnit.MILLISECONDS)) {
+                throw new ConnectionPoolTimeoutException("Timeout waiting for connection to " + this.address);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for connection to " + this.address);
+        }
+        try {
+            Connection c;
+            while ((c = this.idle.pollFirst()) != null) {
+                if (c.isReusable()) {
+                    this.reused.increment();
+                    return c;
+                }
+                c.close();
+            }
+            return this.open(Deadline.cap(deadline, this.connectTimeout));
+        } catch (IOException | RuntimeException e) {
+            this.leases.release();
+            throw e;
+        }
+    }
+
+    private void release(final Connection c, final boolean reusable) {
+        if (reusable && !this.isShutdown) {
+            c.idleSince = System.currentTimeMillis();
+            this.idle.offerFirst(c);
+        } else {
+            c.close();
+        }
+        this.leases.release();
+    }
+
+    private Connection open(final int timeout) throws IOException {
+        SocketChannel ch = SocketChannel.open(StandardProtocolFamily.UNIX);
+        Selector sel = null;
+        try {
+            ch.configureBlocking(false);
+            sel = Selector.open();
+            SelectionKey key = ch.register(sel, 0);
+            if (!ch.connect(this.address)) {
+                key.interestOps(SelectionKey.OP_CONNECT);
+                if (sel.select(timeout) == 0) {
+                    throw new ConnectTimeoutException("Connect to " + this.address + " timed out");
+                }
+                sel.selectedKeys().clear();
+                ch.finishConnect();
+            }
+            this.opened.increment();
+            return new Connection(ch, sel, key);
+        } catch (IOException e) {
+            closeQuietly(ch, sel);
+            if (e instanceof ConnectException || e instanceof ConnectTimeoutException) {
+                throw e;
+            }
+            // e.g. no socket file: the sidecar is down, fail over like a refused connection
+            ConnectException ce = new ConnectException("Connect to " + this.address + " failed: " + e.getMessage());
+            ce.initCause(e);
+            throw ce;
+        }
+    }
+
+    private static void closeQuietly(final SocketChannel ch, final Selector sel) {
+        try {
+            ch.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        if (sel != null) {
+            try {
+                sel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * @return the address of the sidecar socket
+     */
+    public UnixDomainSocketAddress getAddress() {
+        return this.address;
+    }
+
+    /**
+     * @return Number of connections in use
+     */
+    public int getLeased() {
+        return this.maxTotal - this.leases.availablePermits();
+    }
+
+    /**
+     * @return Number of idle pooled connections
+     */
+    public int getIdle() {
+        return this.idle.size();
+    }
+
+    /**
+     * @return Number of connections opened
+     */
+    public long getOpened() {
+        return this.opened.sum();
+    }
+
+    /**
+     * @return Number of requests sent over a pooled connection
+     */
+    public long getReused() {
+        return this.reused.sum();
+    }
+
+    /**
+     * @return Number of requests answered
+     */
+    public long getRequests() {
+        return this.requests.sum();
+    }
+
+    public boolean isShutdown() {
+        return this.isShutdown;
+    }
+
+    /**
+     * Close the idle connections. Connections in use are closed when released.
+     */
+    public void shutdown() {
+        this.isShutdown = true;
+        Connection c;
+        while ((c = this.idle.pollFirst()) != null) {
+            c.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "UnixSocketTransport [" + this.address + ", leased " + this.getLeased() + ", idle " + this.getIdle()
+               + ", opened " + this.getOpened() + ", reused " + this.getReused() + ", requests " + this.getRequests() + "]";
+    }
+
+    /**
+     * A response read in whole.
+     */
+    public static final class Response {
+
+        private final int    status;
+        private final String reason;
+        private final Map<String, List<String>> headers;
+        private final byte[] body;
+        final boolean keepAlive;
+
+        Response(final int status, final String reason, final Map<String, List<String>> headers,
+                 final byte[] body, final boolean keepAlive)
+        {
+            this.status    = status;
+            this.reason    = reason;
+            this.headers   = headers;
+            this.body      = body;
+            this.keepAlive = keepAlive;
+        }
+
+        public int getStatus() {
+            return this.status;
+        }
+
+        public String getReason() {
+            return this.reason;
+        }
+
+        /**
+         * @return the headers by name, case insensitively
+         */
+        public Map<String, List<String>> getHeaders() {
+            return this.headers;
+        }
+
+        /**
+         * @param name Header name, in any case
+         * @return the first value of the header, or null
+         */
+        public String getHeader(final String name) {
+            List<String> v = this.headers.get(name);
+            return v != null ? v.get(0) : null;
+        }
+
+        public byte[] getBody() {
+            return this.body;
+        }
+    }
+
+    /**
+     * A non-blocking connection to the sidecar, waited on with a selector
+     * of its own so that the reads can time out.
+     */
+    private final class Connection {
+
+        private final SocketChannel ch;
+        private final Selector      sel;
+        private final SelectionKey  key;
+        private final ByteBuffer    in = ByteBuffer.allocate(BUFFER_SIZE);
+        long idleSince;
+
+        Connection(final SocketChannel ch, final Selector sel, final SelectionKey key) {
+            this.ch  = ch;
+            this.sel = sel;
+            this.key = key;
+            this.in.flip();
+        }
+
+        /**
+         * @return true if the connection has not idled out or been closed by the sidecar
+         */
+        boolean isReusable() throws IOException {
+            if (System.currentTimeMillis() - this.idleSince > UnixSocketTransport.this.idleTimeout) {
+                return false;
+            }
+            try {
+                // Nothing may be waiting between responses; a closed connection reads -1
+                this.in.clear();
+                int n = this.ch.read(this.in);
+                this.in.flip();
+                return n == 0;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void write(final byte[] head, final byte[] body, final int timeout) throws IOException {
+            ByteBuffer[] bufs = { ByteBuffer.wrap(head), ByteBuffer.wrap(body) };
+            while (bufs[0].hasRemaining() || bufs[1].hasRemaining()) {
+                if (this.ch.write(bufs) == 0) {
+                    this.await(SelectionKey.OP_WRITE, timeout, "Write");
+                }
+            }
+        }
+
+        private void await(final int op, final int timeout, final String what) throws IOException {
+            this.key.interestOps(op);
+            int n = this.sel.select(timeout);
+            this.sel.selectedKeys().clear();
+            this.key.interestOps(0);
+            if (n == 0) {
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(what + " interrupted");
+                }
+                throw new SocketTimeoutException(what + " timed out");
+            }
+        }
+
+        /**
+         * @return false at the end of the stream
+         */
+        private boolean fill(final int timeout) throws IOException {
+            this.in.compact();
+            try {
+                int n;
+                while ((n = this.ch.read(this.in)) == 0) {
+                    this.await(SelectionKey.OP_READ, timeout, "Read");
+                }
+                return n > 0;
+            } finally {
+                this.in.flip();
+            }
+        }
+
+        private String readLine(final int timeout) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                while (this.in.hasRemaining()) {
+                    char c = (char)(this.in.get() & 0xff);
+                    if (c == '\n') {
+                        int len = sb.length();
+                        return len > 0 && sb.charAt(len - 1) == '\r' ? sb.substring(0, len - 1) : sb.toString();
+                    }
+                    sb.append(c);
+                }
+                if (!this.fill(timeout)) {
+                    return null;
+                }
+            }
+        }
+
+        /**
+         * Read a line that must be there, e.g. inside the headers or a chunked body.
+         */
+        private String requireLine(final int timeout) throws IOException {
+            String line = this.readLine(timeout);
+            if (line == null) {
+                throw new NoHttpResponseException("Connection closed by " + UnixSocketTransport.this.address);
+            }
+            return line;
+        }
+
+        private void readFully(final ByteArrayOutputStream out, final long len, final int timeout) throws IOException {
+            long left = len;
+            while (left > 0) {
+                if (!this.in.hasRemaining() && !this.fill(timeout)) {
+                    throw new NoHttpResponseException("Connection closed by " + UnixSocketTransport.this.address);
+                }
+                int n = (int)Math.min(left, this.in.remaining());
+                out.write(this.in.array(), this.in.arrayOffset() + this.in.position(), n);
+                this.in.position(this.in.position() + n);
+                left -= n;
+            }
+        }
+
+        Response readResponse(final int timeout) throws IOException {
+            String status;
+            do {
+                status = this.readLine(timeout);
+                if (status == null) {
+                    throw new NoHttpResponseException(UnixSocketTransport.this.address + " failed to respond");
+                }
+                if (status.startsWith("HTTP/1.1 1")) {
+                    // 100 Continue, skip its headers
+                    while (!this.requireLine(timeout).isEmpty()) {
+                        // ignore
+                    }
+                    status = "";
+                }
+            } while (status.isEmpty());
+
+            String[] parts = status.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Invalid status line: " + status);
+            }
+            int code = Integer.parseInt(parts[1]);
+            boolean keepAlive = parts[0].equals("HTTP/1.1");
+
+            Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+            String line;
+            while ((line = this.readLine(timeout)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    String name = line.substring(0, colon).trim();
+                    List<String> values = headers.get(name);
+                    if (values == null) {
+                        values = new ArrayList<String>(1);
+                        headers.put(name, values);
+                    }
+                    values.add(line.substring(colon + 1).trim());
+                }
+            }
+            if (line == null) {
+                throw new NoHttpResponseException("Connection closed by " + UnixSocketTransport.this.address);
+            }
+            List<String> conn = headers.get("Connection");
+            if (conn != null) {
+                keepAlive = conn.get(0).equalsIgnoreCase("keep-alive") || keepAlive && !conn.get(0).equalsIgnoreCase("close");
+            }
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream(BUFFER_SIZE);
+            List<String> te = headers.get("Transfer-Encoding");
+            List<String> cl = headers.get("Content-Length");
+            if (te != null && te.get(0).equalsIgnoreCase("chunked")) {
+                long n;
+                while ((n = Long.parseLong(this.requireLine(timeout).split(";")[0].trim(), 16)) > 0) {
+                    this.readFully(body, n, timeout);
+                    this.requireLine(timeout);
+                }
+                while ((line = this.readLine(timeout)) != null && !line.isEmpty()) {
+                    // trailers
+                }
+            } else if (cl != null) {
+                this.readFully(body, Long.parseLong(cl.get(0)), timeout);
+            } else if (code != 204 && code != 304) {
+                // Until the sidecar closes the connection
+                keepAlive = false;
+                do {
+                    body.write(this.in.array(), this.in.arrayOffset() + this.in.position(), this.in.remaining());
+                    this.in.position(this.in.limit());
+                } while (this.fill(timeout));
+            }
+            if (log.isDebugEnabled()) {
+                log.debug(status + ", " + body.size() + " bytes" + (keepAlive ? "" : ", closing"));
+            }
+            return new Response(code, parts.length > 2 ? parts[2] : "", Collections.unmodifiableMap(headers),
+                                body.toByteArray(), keepAlive);
+        }
+
+        void close() {
+            closeQuietly(this.ch, this.sel);
+        }
+    }
+
+    /**
+     * Format the request line and headers of a POST.
+     * @param target  Origin form target, e.g. /soap/services/MSS_SignaturePort
+     * @param headers Header names and values, not including Content-Length
+     * @param length  Length of the body
+     * @return the head of the request
+     */
+    static byte[] formatHead(final String target, final List<String[]> headers, final int length) {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("POST ").append(target).append(" HTTP/1.1\r\n");
+        for (String[] h : headers) {
+            sb.append(h[0]).append(": ").append(h[1]).append("\r\n");
+        }
+        sb.append("Content-Length: ").append(length).append("\r\n\r\n");
+        return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+}
@@ -0,0 +1,150 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Access to virtual threads on JDK versions that have them.
+ * <p>
+ * Laverca is built for older JDKs, so virtual threads are created by
+ * reflection. On a JDK without them, or with them disabled as a preview
+ * feature, the factories fall back to platform daemon threads.
+ * <p>
+ * Virtual threads are opt-in: either give <code>virtualThreads = true</code>
+ * to the classes that support it, or set the system property
+ * <code>fi.laverca.virtualThreads=true</code> to make them the default.
+ */
+public final class VirtualThreads {
+
+    private static final Log log = LogFactory.getLog(VirtualThreads.class);
+
+    /**
+     * System property enabling virtual threads by default
+     */
+    public static final String PROPERTY = "fi.laverca.virtualThreads";
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+    private static final Method THREAD_PER_TASK;
+
+    static {
+        Method ofVirtual     = null;
+        Method name          = null;
+        Method factory       = null;
+        Method threadPerTask = null;
+        try {
+            ofVirtual     = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name          = builder.getMethod("name", String.class, long.class);
+            factory       = builder.getMethod("factory");
+            threadPerTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+
+            // Throws if virtual threads are a preview feature that is not enabled
+            factory.invoke(ofVirtual.invoke(null));
+        } catch (Throwable t) {
+            log.debug("Virtual threads not available: " + t);
+            ofVirtual = null;
+        }
+        OF_VIRTUAL      = ofVirtual;
+        NAME            = name;
+        FACTORY         = factory;
+        THREAD_PER_TASK = threadPerTask;
+    }
+
+    private VirtualThreads() {
+        // static only
+    }
+
+    /**
+     * @return true if this JDK can create virtual threads
+     */
+    public static boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @return true if virtual threads are available and enabled with {@link #PROPERTY}
+     */
+    public static boolean isEnabledByDefault() {
+        return isAvailable() && Boolean.getBoolean(PROPERTY);
+    }
+
+    /**
+     * Create a factory of named threads.
+     * @param prefix  Thread name prefix. A running number is appended.
+     * @param virtual true for virtual threads if available, false for platform daemon threads
+     * @return thread factory
+     */
+    public static ThreadFactory newThreadFactory(final String prefix, final boolean virtual) {
+        if (virtual && isAvailable()) {
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix, Long.valueOf(1));
+                return (ThreadFactory)FACTORY.invoke(builder);
+            } catch (Exception e) {
+                log.warn("Could not create virtual thread factory, using platform threads", e);
+            }
+        }
+        return new PlatformThreadFactory(prefix);
+    }
+
+    /**
+     * Create an executor that starts a new virtual thread for each task.
+     * Without virtual threads this is a cached pool of platform daemon threads.
+     * @param prefix Thread name prefix
+     * @return executor
+     */
+    public static ExecutorService newThreadPerTaskExecutor(final String prefix) {
+        if (isAvailable()) {
+            try {
+                return (ExecutorService)THREAD_PER_TASK.invoke(null, newThreadFactory(prefix, true));
+            } catch (Exception e) {
+                log.warn("Could not create virtual thread executor, using platform threads", e);
+            }
+        }
+        return Executors.newCachedThreadPool(new PlatformThreadFactory(prefix));
+    }
+
+    private static final class PlatformThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+        private final String        prefix;
+
+        PlatformThreadFactory(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(r, this.prefix + this.count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Phases of a client warm-up and how long each took.
+ * <p>
+ * A phase that fails is recorded with its failure and the warm-up goes
+ * on with the next one, so that e.g. an MSSP that is down does not keep
+ * the class loading and the TLS initialization from being done. It is
+ * up to the caller whether to report ready with failed phases.
+ * <p>
+ * Filled by one thread.
+ *
+ * @see fi.laverca.etsi.EtsiClient#warmUp(int, boolean)
+ */
+public class WarmUp {
+
+    private static final Log log = LogFactory.getLog(WarmUp.class);
+
+    /**
+     * Work of one phase.
+     */
+    public interface Phase {
+        void run() throws Exception;
+    }
+
+    private final Map<String, Long>      millis   = new LinkedHashMap<String, Long>();
+    private final Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+
+    /**
+     * Run a phase and record its time.
+     * @param name  Name of the phase, e.g. "castor"
+     * @param phase Work of the phase
+     * @return true if the phase completed, false if it failed
+     */
+    public boolean run(final String name, final Phase phase) {
+        long start = System.nanoTime();
+        try {
+            phase.run();
+            return true;
+        } catch (Exception e) {
+            log.warn("Warm-up phase " + name + " failed: " + e.getMessage());
+            this.failures.put(name, e);
+            return false;
+        } finally {
+            this.millis.put(name, Long.valueOf((System.nanoTime() - start) / 1000000));
+        }
+    }
+
+    /**
+     * @return milliseconds taken by each phase, in the order they were run
+     */
+    public Map<String, Long> getMillis() {
+        return Collections.unmodifiableMap(this.millis);
+    }
+
+    /**
+     * @param name Name of the phase
+     * @return milliseconds taken by the phase, or -1 if it was not run
+     */
+    public long getMillis(final String name) {
+        Long ms = this.millis.get(name);
+        return ms != null ? ms.longValue() : -1;
+    }
+
+    /**
+     * @return milliseconds taken by all the phases
+     */
+    public long getTotalMillis() {
+        long total = 0;
+        for (Long ms : this.millis.values()) {
+            total += ms.longValue();
+        }
+        return total;
+    }
+
+    /**
+     * @return failures of the phases that did not complete, by phase
+     */
+    public Map<String, Exception> getFailures() {
+        return Collections.unmodifiableMap(this.failures);
+    }
+
+    /**
+     * @return true if every phase completed
+     */
+    public boolean isComplete() {
+        return this.failures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("WarmUp [");
+        for (Map.Entry<String, Long> e : this.millis.entrySet()) {
+            sb.append(e.getKey()).append(' ').append(e.getValue()).append(" ms");
+            if (this.failures.containsKey(e.getKey())) {
+                sb.append(" FAILED");
+            }
+            sb.append(", ");
+        }
+        return sb.append("total ").append(this.getTotalMillis()).append(" ms]").toString();
+    }
+
+}
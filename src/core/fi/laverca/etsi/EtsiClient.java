@@ -19,20 +19,52 @@
 
 package fi.laverca.etsi;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.http.HttpResponse;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.net.ssl.SSLContext;
 import javax.xml.rpc.ServiceException;
 
 import org.apache.axis.AxisFault;
+import org.apache.axis.Constants;
 import org.apache.axis.EngineConfiguration;
+import org.apache.axis.Handler;
+import org.apache.axis.MessageContext;
+import org.apache.axis.SimpleTargetedChain;
 import org.apache.axis.client.Stub;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.util.EntityUtils;
 import org.etsi.uri.TS102204.v1_1_2.AP_Info;
 import org.etsi.uri.TS102204.v1_1_2.AdditionalServices;
+import org.etsi.uri.TS102204.v1_1_2.Certificates;
 import org.etsi.uri.TS102204.v1_1_2.DataToBeDisplayed;
 import org.etsi.uri.TS102204.v1_1_2.DataToBeSigned;
 import org.etsi.uri.TS102204.v1_1_2.MSSP_ID;
@@ -53,10 +85,25 @@ import org.etsi.uri.TS102204.v1_1_2.MSS_StatusResp;
 import org.etsi.uri.TS102204.v1_1_2.Message;
 import org.etsi.uri.TS102204.v1_1_2.MessageAbstractType;
 import org.etsi.uri.TS102204.v1_1_2.MobileUser;
+import org.etsi.uri.TS102204.v1_1_2.RootCAs;
+import org.etsi.uri.TS102204.v1_1_2.SecureMethods;
+import org.etsi.uri.TS102204.v1_1_2.SignatureAlgList;
 import org.etsi.uri.TS102204.v1_1_2.SignatureProfile;
 import org.etsi.uri.TS102204.v1_1_2.types.MessagingModeType;
 
+import fi.laverca.AsyncHttpTransport;
+import fi.laverca.ClientSsl;
+import fi.laverca.CommonsHTTPSender;
 import fi.laverca.DTBS;
+import fi.laverca.Deadline;
+import fi.laverca.DeadlineExceededException;
+import fi.laverca.GzipCompression;
+import fi.laverca.Http2Sender;
+import fi.laverca.Http2Transport;
+import fi.laverca.HttpTransport;
+import fi.laverca.TimeoutStats;
+import fi.laverca.UnixSocketSender;
+import fi.laverca.WarmUp;
 import fi.laverca.ws.MSS_HandshakeBindingStub;
 import fi.laverca.ws.MSS_ProfileQueryBindingStub;
 import fi.laverca.ws.MSS_ReceiptBindingStub;
@@ -71,6 +118,14 @@ import fi.laverca.ws.MSS_StatusQueryBindingStub;
 public class EtsiClient {
     private static Log log = LogFactory.getLog(EtsiClient.class);
 
+    // Packages of the Castor generated types of the requests and responses
+    private static final String[] CASTOR_PACKAGES = {
+        "org.etsi.uri.TS102204.v1_1_2",
+        "org.etsi.uri.TS102204.v1_1_2.types",
+        "org.w3.www._2000._09.xmldsig",
+        "org.w3.www._2001._04.xmlenc"
+    };
+
     // AP settings
     String apId = null;
     String apPwd = null;
@@ -85,6 +140,36 @@ public class EtsiClient {
     URL MSSP_RG_URL = null;
     org.etsi.uri.TS102204.v1_1_2.MSSP_ID aeMsspId = null;
 
+    // HTTP connection pool used by the stubs; null means HttpTransport.getDefault()
+    private volatile HttpTransport transport = null;
+
+    // Transport of the sendAsync methods; null means AsyncHttpTransport.getDefault()
+    private volatile AsyncHttpTransport asyncTransport = null;
+
+    // Codec of the send methods bypassing Axis; null means the Axis stubs.
+    // sendAsync always needs a codec and uses the Castor one by default.
+    private volatile EtsiSoapCodec codec = null;
+    private final EtsiSoapCodec defaultCodec = new EtsiSoapCodec();
+
+    // Transports created by setClientSsl, shut down with the client
+    private HttpTransport      ownTransport;
+    private AsyncHttpTransport ownAsyncTransport;
+
+    // Idle binding stubs of send(); cleared when the endpoints or the engine change
+    private final StubPool stubPool;
+
+    // Adaptive limits of the requests in flight per endpoint; null for none
+    private volatile EtsiConcurrencyControl concurrency = null;
+
+    // Several endpoints per operation, replacing the MSSP_*_URLs; null for none
+    private volatile EtsiEndpoints endpoints = null;
+
+    // Copies of slow idempotent requests; null for none
+    private volatile EtsiHedging hedging = null;
+
+    // Requests failed on a timeout, by the wait that ran out
+    private final TimeoutStats timeouts = new TimeoutStats();
+
     /** 
      * NOTE that if any of the URLs require SSL, you must
      * call JvmSsl.setSSL() before sending any requests.
@@ -148,6 +233,7 @@ public class EtsiClient {
         else {
             mssService = new MSS_SignatureServiceLocator(engineConfiguration);
         }
+        this.stubPool = new StubPool(mssService);
     }
     
     /**
@@ -207,6 +293,37 @@ public class EtsiClient {
         } catch (MalformedURLException mue) {
             throw new IllegalArgumentException(mue.getMessage());
         }
+        if (this.stubPool != null) {
+            this.stubPool.clear();
+        }
+    }
+
+    /**
+     * @return AP_ID of the requests
+     */
+    public String getApId() {
+        return this.apId;
+    }
+
+    /**
+     * @return URL of the signature requests, or null if not set
+     */
+    public URL getSignatureUrl() {
+        return this.MSSP_SI_URL;
+    }
+
+    /**
+     * @return URL of the status requests, or null if not set
+     */
+    public URL getStatusUrl() {
+        return this.MSSP_ST_URL;
+    }
+
+    /**
+     * @return URL of the receipt requests, or null if not set
+     */
+    public URL getReceiptUrl() {
+        return this.MSSP_RC_URL;
     }
 
     /**
@@ -338,6 +455,48 @@ public class EtsiClient {
         
         return req;
     }
+
+    /**
+     * Create a MSS_ReceiptRequest based on a MSS_StatusResponse received
+     * as an MSS_Notification in ASYNCHSERVERSERVER mode.
+     *
+     * @param statusResp MSS_StatusResponse on which the receipt request is constructed
+     * @param apTransId AP transaction id of the receipt
+     * @param message
+     */
+    public MSS_ReceiptReq createReceiptRequest( MSS_StatusResp statusResp,
+                                                String apTransId,
+                                                String message
+                                                ) {
+        MSS_ReceiptReq req = new MSS_ReceiptReq();
+
+        this.initializeRequestMessage(req, apTransId);
+
+        if(statusResp == null) {
+            throw new IllegalArgumentException("null statusResp not allowed.");
+        }
+
+        if(statusResp.getMSSP_Info() == null) {
+            throw new IllegalArgumentException("null statusResp.MSSP_Info not allowed.");
+        }
+        MSSP_ID msspId = statusResp.getMSSP_Info().getMSSP_ID();
+        if(msspId == null) {
+            throw new IllegalArgumentException("null statusResp.MSSP_Info.MSSP_ID not allowed.");
+        }
+        req.getMSSP_Info().setMSSP_ID(msspId); // fillMatStuff creates an empty MSSP_Info
+
+        req.setMSSP_TransID(statusResp.getMSSP_TransID());
+        req.setMobileUser(statusResp.getMobileUser());
+
+        if(message != null) {
+            Message meObject = new Message();
+            meObject.setContent(message);
+            req.setMessage(meObject);
+        }
+
+        return req;
+    }
+
     /**
      * Create a status request for a signature response.
      * 
@@ -370,6 +529,32 @@ public class EtsiClient {
         return req;
     }
 
+    /**
+     * Create a handshake request asking for no secured methods,
+     * e.g. to probe that the MSSP answers.
+     * 
+     * @param apTransId new AP transaction id
+     */
+    public MSS_HandshakeReq createHandshakeRequest(String apTransId) throws IllegalArgumentException {
+        MSS_HandshakeReq req = new MSS_HandshakeReq();
+
+        this.initializeRequestMessage(req, apTransId);
+
+        SecureMethods sm = new SecureMethods();
+        sm.setMSS_Signature(false);
+        sm.setMSS_Registration(false);
+        sm.setMSS_Notification(false);
+        sm.setMSS_ProfileQuery(false);
+        sm.setMSS_Receipt(false);
+        sm.setMSS_Status(false);
+        req.setSecureMethods(sm);
+        req.setCertificates(new Certificates());
+        req.setRootCAs(new RootCAs());
+        req.setSignatureAlgList(new SignatureAlgList());
+
+        return req;
+    }
+
     /**
      * Send the MSS_SignatureRequest to MSS system receiving answer
      * @param req the MSS_SignatureReq
@@ -440,41 +625,217 @@ public class EtsiClient {
 
     /**
      * Sends a signature request.
+     * The waits of the request are capped at the {@link Deadline#current()} deadline, if any.
      *
      * @throws IOException if a HTTP communication error occurred i.e. a SOAP fault was generated by the <i>local</i> SOAP client stub.
+     * @throws DeadlineExceededException if the deadline passed before or during the request
      */
     private MessageAbstractType send(MessageAbstractType req)
     throws AxisFault, IOException
     {
-        Stub port = null;
-        try {
-            long timeout = 0;
+        final Deadline deadline = Deadline.current();
+        Class<? extends Stub> type = null;
+        Class<? extends MessageAbstractType> respType = null;
+        String operation = null;
+        URL  url     = null;
+        long timeout = 0;
+
+        if (req instanceof MSS_SignatureReq) {
+            timeout   = ((MSS_SignatureReq)req).getTimeOut();
+            type      = MSS_SignatureBindingStub.class;
+            respType  = MSS_SignatureResp.class;
+            operation = "MSS_Signature";
+            url       = MSSP_SI_URL;
+        } else if (req instanceof MSS_ReceiptReq) {
+            type      = MSS_ReceiptBindingStub.class;
+            respType  = MSS_ReceiptResp.class;
+            operation = "MSS_Receipt";
+            url       = MSSP_RC_URL;
+        } else if (req instanceof MSS_HandshakeReq) {
+            type      = MSS_HandshakeBindingStub.class;
+            respType  = MSS_HandshakeResp.class;
+            operation = "MSS_Handshake";
+            url       = MSSP_HS_URL;
+        } else if (req instanceof MSS_StatusReq) {
+            type      = MSS_StatusQueryBindingStub.class;
+            respType  = MSS_StatusResp.class;
+            operation = "MSS_StatusQuery";
+            url       = MSSP_ST_URL;
+        } else if (req instanceof MSS_ProfileReq) {
+            type      = MSS_ProfileQueryBindingStub.class;
+            respType  = MSS_ProfileResp.class;
+            operation = "MSS_ProfileQuery";
+            url       = MSSP_PR_URL;
+        } else if (req instanceof MSS_RegistrationReq) {
+            type      = MSS_RegistrationBindingStub.class;
+            respType  = MSS_RegistrationResp.class;
+            operation = "MSS_Registration";
+            url       = MSSP_RG_URL;
+        }
+        if (type == null) {
+            throw new IOException("Invalid request type");
+        }
+
+        EtsiHedging h = this.hedging;
+        if (h != null && h.isHedged(operation) && this.isHedgeable()) {
+            // Only an exchange of the async transport can be cancelled when the copy wins
+            return await(this.sendAsync(req, operation, url, 0, respType), operation);
+        }
 
-            if (req instanceof MSS_SignatureReq) {
-                timeout = ((MSS_SignatureReq)req).getTimeOut();
-                port = (MSS_SignatureBindingStub)mssService.getMSS_SignaturePort(MSSP_SI_URL);
-            } else if (req instanceof MSS_ReceiptReq) {
-                port = (MSS_ReceiptBindingStub)mssService.getMSS_ReceiptPort(MSSP_RC_URL);
-            } else if (req instanceof MSS_HandshakeReq) {
-                port = (MSS_HandshakeBindingStub)mssService.getMSS_HandshakePort(MSSP_HS_URL);
-            } else if (req instanceof MSS_StatusReq) {
-                port = (MSS_StatusQueryBindingStub)mssService.getMSS_StatusQueryPort(MSSP_ST_URL);
-            } else if (req instanceof MSS_ProfileReq) {
-                port = (MSS_ProfileQueryBindingStub)mssService.getMSS_ProfileQueryPort(MSSP_PR_URL);
-            } else if (req instanceof MSS_RegistrationReq) {
-                port = (MSS_RegistrationBindingStub)mssService.getMSS_RegistrationPort(MSSP_RG_URL);
+        EtsiEndpoints eps = this.endpoints;
+        if (eps == null) {
+            return this.sendTo(req, type, respType, operation, url, timeout, deadline);
+        }
+
+        // Try the endpoints in order until one answers or the failure is final
+        IOException last = null;
+        for (EtsiEndpoints.Endpoint ep : eps.select(operation, eps.getPreferredNode(req))) {
+            if (!ep.tryAcquire()) {
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                MessageAbstractType resp = this.sendTo(req, type, respType, operation, ep.getUrl(), timeout, deadline);
+                ep.onResult(null, rtt(req, start));
+                eps.onResponse(req, resp, ep);
+                return resp;
+            } catch (IOException e) {
+                ep.onResult(e, rtt(req, start));
+                if (!EtsiEndpoints.isFailover(operation, e)) {
+                    throw e;
+                }
+                log.warn(operation + " to " + ep.getUrl() + " failed, trying the next endpoint: " + e.getMessage());
+                last = e;
+            } catch (RuntimeException e) {
+                ep.onResult(e, rtt(req, start));
+                throw e;
+            }
+        }
+        throw last != null ? last : new IOException("No " + operation + " endpoint available");
+    }
+
+    /**
+     * Wait for the response of a request sent without blocking.
+     */
+    private static <T> T await(final CompletableFuture<T> f, final String operation) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            f.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(operation + " interrupted");
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof CompletionException && t.getCause() != null) {
+                t = t.getCause();
+            }
+            if (t instanceof IOException) {
+                throw (IOException)t;
+            }
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException)t;
             }
+            throw new IOException(t);
+        }
+    }
 
-            if (port == null) {
-                throw new IOException("Invalid request type");
+    /**
+     * Send to an endpoint, within its concurrency limit if any.
+     */
+    private MessageAbstractType sendTo(final MessageAbstractType req,
+                                       final Class<? extends Stub> type,
+                                       final Class<? extends MessageAbstractType> respType,
+                                       final String operation,
+                                       final URL url,
+                                       final long timeout,
+                                       final Deadline deadline)
+        throws IOException
+    {
+        EtsiConcurrencyControl cc = this.concurrency;
+        EtsiConcurrencyControl.Call call = null;
+        Throwable failure = null;
+        try {
+            if (deadline != null) {
+                deadline.check(operation);
             }
-            if (timeout > 0) {
-                port.setTimeout((int)(timeout*1000)); // TODO: Is the SignatureReq TimeOut really seconds instead of milliseconds?
+            if (cc != null && url != null) {
+                call = cc.acquire(url, deadline);
             }
+            return this.send(req, type, respType, operation, url, timeout, deadline);
+        } catch (IOException e) {
+            IOException x = (IOException)cutShort(e, deadline, operation);
+            failure = x;
+            this.timeouts.record(x);
+            throw x;
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            if (call != null) {
+                call.done(failure, isLoadSample(req));
+            }
+        }
+    }
+
+    /**
+     * A timeout of a wait that was capped at the deadline is the deadline
+     * running out rather than a slow MSSP, so report it as such.
+     * @return a DeadlineExceededException, or the failure itself
+     */
+    private static Throwable cutShort(final Throwable t, final Deadline deadline, final String operation) {
+        if (t instanceof DeadlineExceededException) {
+            return t;
+        }
+        TimeoutStats.Kind k = TimeoutStats.classify(t);
+        if (k == TimeoutStats.Kind.DEADLINE
+            || deadline != null && deadline.isExpired()
+               && (k == TimeoutStats.Kind.LEASE || k == TimeoutStats.Kind.CONNECT || k == TimeoutStats.Kind.READ))
+        {
+            return new DeadlineExceededException(operation + ": cut short at the deadline", t);
+        }
+        return t;
+    }
+
+    /**
+     * Send with the codec or with a pooled binding stub.
+     */
+    private MessageAbstractType send(final MessageAbstractType req,
+                                     final Class<? extends Stub> type,
+                                     final Class<? extends MessageAbstractType> respType,
+                                     final String operation,
+                                     final URL url,
+                                     final long timeout,
+                                     final Deadline deadline)
+        throws IOException
+    {
+        EtsiSoapCodec c = this.codec;
+        if (c != null) {
+            return this.sendDirect(c, req, operation, url, timeout, deadline, respType);
+        }
+
+        Stub port = null;
+        try {
+            port = this.stubPool.borrow(type, url);
         } catch (ServiceException se) {
             log.error("Failed to get port: " + se.getMessage());
             throw new IOException(se.getMessage());
         }
+        // A pooled stub keeps the settings of its previous call. Without a transport
+        // of this client the sender may use a client from CommonsHTTPSender.initThreadLocals
+        HttpTransport t = this.transport;
+        if (t != null) {
+            port._setProperty(HttpTransport.PROPERTY, t);
+        } else {
+            port.removeProperty(HttpTransport.PROPERTY);
+        }
+        port._setProperty(GzipCompression.SIZE_PROPERTY, Long.valueOf(estimateSize(req)));
+        if (deadline != null) {
+            port._setProperty(Deadline.PROPERTY, deadline);
+        } else {
+            port.removeProperty(Deadline.PROPERTY);
+        }
+        // The MSS_SignatureReq TimeOut is in seconds (TS 102 204)
+        port.setTimeout(Deadline.cap(deadline, timeout > 0 ? timeout*1000 : Constants.DEFAULT_MESSAGE_TIMEOUT));
         try {
             if (port._getCall() == null) {
                 port._createCall();
@@ -483,7 +844,31 @@ public class EtsiClient {
             log.fatal("Could not do port._createCall()", e);
         }
 
+        // Only stubs that completed their call are returned to the pool
+        MessageAbstractType resp = this.invoke(port, req);
+        this.stubPool.release(url, port);
+        return resp;
+    }
+
+    /**
+     * A synchronous signature request waits for the user,
+     * so its round trip time does not tell about the MSSP load.
+     */
+    private static boolean isLoadSample(final MessageAbstractType req) {
+        return !(req instanceof MSS_SignatureReq)
+            || ((MSS_SignatureReq)req).getMessagingMode() != MessagingModeType.SYNCH;
+    }
+
+    /**
+     * @return the round trip time since start, or -1 if it is not a load sample
+     */
+    private static long rtt(final MessageAbstractType req, final long start) {
+        return isLoadSample(req) ? System.nanoTime() - start : -1;
+    }
 
+    private MessageAbstractType invoke(Stub port, MessageAbstractType req)
+    throws IOException
+    {
         if (port instanceof MSS_SignatureBindingStub) {
             return ((MSS_SignatureBindingStub)port).MSS_Signature((MSS_SignatureReq)req);
         } else if (port instanceof MSS_StatusQueryBindingStub) {
@@ -501,6 +886,664 @@ public class EtsiClient {
         throw new IOException("Invalid call parameters");
     }
 
+    /**
+     * POST the request with the HTTP transport, encoding and decoding
+     * it with the given codec instead of the Axis stubs.
+     */
+    private <T> T sendDirect(final EtsiSoapCodec c,
+                             final MessageAbstractType req,
+                             final String operation,
+                             final URL url,
+                             final long timeout,
+                             final Deadline deadline,
+                             final Class<T> respType)
+        throws IOException
+    {
+        if (url == null) {
+            throw new IOException("No URL for " + operation);
+        }
+        HttpTransport t = this.getTransport();
+        HttpPost post = new HttpPost(url.toString());
+        RequestConfig config = t.getRequestConfig();
+        RequestConfig.Builder rc = RequestConfig.copy(config);
+        rc.setSocketTimeout(Deadline.cap(deadline, timeout > 0 ? timeout*1000 : Constants.DEFAULT_MESSAGE_TIMEOUT));
+        if (deadline != null) {
+            rc.setConnectTimeout(deadline.cap(config.getConnectTimeout()));
+            rc.setConnectionRequestTimeout(deadline.cap(config.getConnectionRequestTimeout()));
+        }
+        post.setConfig(rc.build());
+
+        // The body is streamed, so decide on compression by its estimated size
+        GzipCompression gz = t.getCompression();
+        String host = GzipCompression.key(url);
+        boolean compress = gz != null && gz.shouldCompress(host, estimateSize(req));
+        post.setEntity(new CodecEntity(c, operation, req, compress ? gz : null));
+        if (compress) {
+            post.setHeader("Content-Encoding", GzipCompression.GZIP);
+        }
+
+        CloseableHttpResponse resp = t.getHttpClient().execute(post);
+        if (compress && resp.getStatusLine().getStatusCode() == 415) {
+            // The MSSP does not take compressed requests: send it as it is
+            gz.onRejected(host);
+            EntityUtils.consumeQuietly(resp.getEntity());
+            resp.close();
+            post.removeHeaders("Content-Encoding");
+            post.setEntity(new CodecEntity(c, operation, req, null));
+            resp = t.getHttpClient().execute(post);
+        }
+        if (gz != null) {
+            Header acceptEncoding = resp.getFirstHeader("Accept-Encoding");
+            gz.onResponse(host, acceptEncoding != null ? acceptEncoding.getValue() : null);
+        }
+        try {
+            HttpEntity entity = resp.getEntity();
+            int returnCode = resp.getStatusLine().getStatusCode();
+            String contentType = entity == null || entity.getContentType() == null ? "" : entity.getContentType().getValue();
+            // SOAP 1.2 faults come with any of the error codes, so try to parse those too
+            if (entity != null && ((returnCode > 199 && returnCode < 300) || contentType.contains("xml"))) {
+                InputStream is = entity.getContent();
+                try {
+                    return c.readMessage(is, respType);
+                } finally {
+                    EntityUtils.consumeQuietly(entity);
+                }
+            }
+            EntityUtils.consumeQuietly(entity);
+            throw httpFault(returnCode);
+        } finally {
+            resp.close();
+        }
+    }
+
+    /**
+     * Size of a request without the data to be signed, displayed or
+     * given in a receipt, about the same for all the operations
+     */
+    private static final int ENVELOPE_SIZE = 800;
+
+    /**
+     * Estimate the size of an encoded request from its largest parts.
+     */
+    private static long estimateSize(final MessageAbstractType req) {
+        long size = ENVELOPE_SIZE;
+        if (req instanceof MSS_SignatureReq) {
+            MSS_SignatureReq sigReq = (MSS_SignatureReq)req;
+            if (sigReq.getDataToBeSigned() != null && sigReq.getDataToBeSigned().getContent() != null) {
+                size += sigReq.getDataToBeSigned().getContent().length();
+            }
+            if (sigReq.getDataToBeDisplayed() != null && sigReq.getDataToBeDisplayed().getContent() != null) {
+                size += sigReq.getDataToBeDisplayed().getContent().length();
+            }
+        } else if (req instanceof MSS_ReceiptReq) {
+            MSS_ReceiptReq receiptReq = (MSS_ReceiptReq)req;
+            if (receiptReq.getMessage() != null && receiptReq.getMessage().getContent() != null) {
+                size += receiptReq.getMessage().getContent().length();
+            }
+        }
+        return size;
+    }
+
+    private static AxisFault httpFault(final int returnCode) {
+        AxisFault fault = new AxisFault("HTTP", "(" + returnCode + ")", null, null);
+        fault.addFaultDetail(Constants.QNAME_FAULTDETAIL_HTTPERRORCODE, Integer.toString(returnCode));
+        return fault;
+    }
+
+    /**
+     * Request body written by the codec straight to the connection.
+     */
+    private static class CodecEntity extends AbstractHttpEntity {
+
+        private final EtsiSoapCodec codec;
+        private final String operation;
+        private final Object payload;
+        private final GzipCompression gzip;
+
+        CodecEntity(final EtsiSoapCodec codec, final String operation, final Object payload, final GzipCompression gzip) {
+            this.codec     = codec;
+            this.operation = operation;
+            this.payload   = payload;
+            this.gzip      = gzip;
+            this.setContentType(EtsiSoapCodec.CONTENT_TYPE);
+            this.setChunked(true);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        /**
+         * The transport calls {@link #writeTo(OutputStream)}. This is for
+         * anyone else who reads the entity, e.g. a retry handler or a
+         * logging interceptor, and encodes the message into memory.
+         */
+        @Override
+        public InputStream getContent() throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(2048);
+            this.writeTo(baos);
+            return new ByteArrayInputStream(baos.toByteArray());
+        }
+
+        @Override
+        public void writeTo(final OutputStream os) throws IOException {
+            if (this.gzip == null) {
+                this.codec.writeMessage(os, this.operation, this.payload);
+                return;
+            }
+            GzipCompression.GzipStream gz = this.gzip.open(os);
+            try {
+                this.codec.writeMessage(gz, this.operation, this.payload);
+                gz.finish();
+            } finally {
+                gz.release();
+            }
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
+
+    /**
+     * Send the MSS_SignatureRequest without blocking.
+     * @param req the MSS_SignatureReq
+     * @return future completed with the response, or with an AxisFault
+     *         (SOAP fault) or IOException (HTTP communication error).
+     *         Cancelling the future aborts the HTTP exchange.
+     */
+    public CompletableFuture<MSS_SignatureResp> sendAsync(MSS_SignatureReq req) {
+        if(req.getAdditionalServices() != null && req.getAdditionalServices().getServiceCount() == 0)
+            req.setAdditionalServices(null);
+        long timeout = req.getTimeOut() > 0 ? req.getTimeOut()*1000 : 0;
+        return sendAsync(req, "MSS_Signature", MSSP_SI_URL, timeout, MSS_SignatureResp.class);
+    }
+
+    /**
+     * Send the MSS_StatusRequest without blocking.
+     * @param req the MSS_StatusReq
+     * @return future completed with the response
+     * @see #sendAsync(MSS_SignatureReq)
+     */
+    public CompletableFuture<MSS_StatusResp> sendAsync(MSS_StatusReq req) {
+        return sendAsync(req, "MSS_StatusQuery", MSSP_ST_URL, 0, MSS_StatusResp.class);
+    }
+
+    /**
+     * Send the MSS_ReceiptRequest without blocking.
+     * @param req the MSS_ReceiptReq
+     * @return future completed with the response
+     * @see #sendAsync(MSS_SignatureReq)
+     */
+    public CompletableFuture<MSS_ReceiptResp> sendAsync(MSS_ReceiptReq req) {
+        return sendAsync(req, "MSS_Receipt", MSSP_RC_URL, 0, MSS_ReceiptResp.class);
+    }
+
+    /**
+     * Send the MSS_HandshakeRequest without blocking.
+     * @param req the MSS_HandshakeReq
+     * @return future completed with the response
+     * @see #sendAsync(MSS_SignatureReq)
+     */
+    public CompletableFuture<MSS_HandshakeResp> sendAsync(MSS_HandshakeReq req) {
+        return sendAsync(req, "MSS_Handshake", MSSP_HS_URL, 0, MSS_HandshakeResp.class);
+    }
+
+    /**
+     * Send the MSS_ProfileRequest without blocking.
+     * @param req the MSS_ProfileReq
+     * @return future completed with the response
+     * @see #sendAsync(MSS_SignatureReq)
+     */
+    public CompletableFuture<MSS_ProfileResp> sendAsync(MSS_ProfileReq req) {
+        return sendAsync(req, "MSS_ProfileQuery", MSSP_PR_URL, 0, MSS_ProfileResp.class);
+    }
+
+    /**
+     * Send the MSS_RegistrationRequest without blocking.
+     * @param req the MSS_RegistrationReq
+     * @return future completed with the response
+     * @see #sendAsync(MSS_SignatureReq)
+     */
+    public CompletableFuture<MSS_RegistrationResp> sendAsync(MSS_RegistrationReq req) {
+        return sendAsync(req, "MSS_Registration", MSSP_RG_URL, 0, MSS_RegistrationResp.class);
+    }
+
+    /**
+     * Send to the endpoints of the operation, if set, or to the URL,
+     * hedging the request if so set.
+     * The deadline of the calling thread, if any, applies to the request.
+     */
+    private <T> CompletableFuture<T> sendAsync(final MessageAbstractType req,
+                                               final String operation,
+                                               final URL url,
+                                               final long timeout,
+                                               final Class<T> respType)
+    {
+        final Deadline deadline = Deadline.current();
+        EtsiEndpoints eps = this.endpoints;
+        List<EtsiEndpoints.Endpoint> order = eps != null ? eps.select(operation, eps.getPreferredNode(req)) : null;
+        EtsiHedging h = this.hedging;
+        if (h != null && h.isHedged(operation)) {
+            return this.hedge(h, eps, order, req, operation, url, timeout, deadline, respType);
+        }
+        return this.attempt(eps, order, req, operation, url, timeout, deadline, respType);
+    }
+
+    /**
+     * Send to the endpoints in the given order, or to the URL if there are no endpoints.
+     */
+    private <T> CompletableFuture<T> attempt(final EtsiEndpoints eps,
+                                             final List<EtsiEndpoints.Endpoint> order,
+                                             final MessageAbstractType req,
+                                             final String operation,
+                                             final URL url,
+                                             final long timeout,
+                                             final Deadline deadline,
+                                             final Class<T> respType)
+    {
+        if (eps == null) {
+            return this.sendAsyncTo(req, operation, url, timeout, deadline, respType);
+        }
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        this.attemptAsync(eps, order.iterator(), req, operation, timeout, deadline, respType, result, null);
+        return result;
+    }
+
+    /**
+     * Send the request, and a copy of it if it has not been answered within
+     * the hedging delay. The copy goes to the next endpoint in the order, or
+     * to the same URL over another connection. The first response wins and
+     * cancels the other attempt; the result fails only when both attempts have failed.
+     */
+    private <T> CompletableFuture<T> hedge(final EtsiHedging h,
+                                           final EtsiEndpoints eps,
+                                           final List<EtsiEndpoints.Endpoint> order,
+                                           final MessageAbstractType req,
+                                           final String operation,
+                                           final URL url,
+                                           final long timeout,
+                                           final Deadline deadline,
+                                           final Class<T> respType)
+    {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        final AtomicInteger pending = new AtomicInteger(1);
+        final long delay = h.getDelay(operation);
+        h.onRequest();
+
+        final CompletableFuture<T> first = this.attempt(eps, order, req, operation, url, timeout, deadline, respType);
+        this.race(h, operation, first, false, pending, result);
+        result.whenComplete((resp, t) -> first.cancel(true));
+
+        if (delay < 0 || first.isDone()) {
+            return result;
+        }
+        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+            if (deadline != null && deadline.isExpired()) {
+                return;
+            }
+            // Count the copy in before looking at the result, so that a primary
+            // failing meanwhile leaves the result to the copy
+            int p;
+            do {
+                p = pending.get();
+                if (p == 0) {
+                    // The primary has failed
+                    return;
+                }
+            } while (!pending.compareAndSet(p, p + 1));
+            if (result.isDone() || !h.tryHedge()) {
+                if (pending.decrementAndGet() == 0) {
+                    // The primary failed after all
+                    first.whenComplete((resp, t) -> result.completeExceptionally(t));
+                }
+                return;
+            }
+            List<EtsiEndpoints.Endpoint> next = order;
+            if (order != null && order.size() > 1) {
+                // Start from the endpoint after the one most likely used by the first attempt
+                next = new ArrayList<EtsiEndpoints.Endpoint>(order.subList(1, order.size()));
+                next.add(order.get(0));
+            }
+            final CompletableFuture<T> second = this.attempt(eps, next, req, operation, url, timeout, deadline, respType);
+            this.race(h, operation, second, true, pending, result);
+            result.whenComplete((resp, t) -> second.cancel(true));
+        });
+        return result;
+    }
+
+    /**
+     * Complete the result with the first response of the attempts,
+     * or with the failure of the last attempt to fail. A cancelled
+     * primary attempt is recorded with its time so far, as a lower bound.
+     */
+    private <T> void race(final EtsiHedging h,
+                          final String operation,
+                          final CompletableFuture<T> attempt,
+                          final boolean copy,
+                          final AtomicInteger pending,
+                          final CompletableFuture<T> result)
+    {
+        final long start = System.nanoTime();
+        attempt.whenComplete((resp, t) -> {
+            if (t == null) {
+                h.onResponse(operation, System.nanoTime() - start);
+                if (result.complete(resp) && copy) {
+                    h.onWin();
+                }
+                return;
+            }
+            if (!copy && attempt.isCancelled()) {
+                // The primary lost to the copy and took at least this long;
+                // leaving it out would make the delay follow the fast responses only
+                h.onResponse(operation, System.nanoTime() - start);
+            }
+            if (pending.decrementAndGet() == 0) {
+                result.completeExceptionally(t);
+            }
+        });
+    }
+
+    /**
+     * Send to the next endpoint that may be tried, failing over
+     * to the following ones when the failure allows it.
+     */
+    private <T> void attemptAsync(final EtsiEndpoints eps,
+                                  final Iterator<EtsiEndpoints.Endpoint> endpoints,
+                                  final MessageAbstractType req,
+                                  final String operation,
+                                  final long timeout,
+                                  final Deadline deadline,
+                                  final Class<T> respType,
+                                  final CompletableFuture<T> result,
+                                  final Throwable last)
+    {
+        if (result.isDone()) {
+            // Cancelled
+            return;
+        }
+        EtsiEndpoints.Endpoint next = null;
+        while (next == null && endpoints.hasNext()) {
+            EtsiEndpoints.Endpoint ep = endpoints.next();
+            if (ep.tryAcquire()) {
+                next = ep;
+            }
+        }
+        if (next == null) {
+            result.completeExceptionally(last != null ? last : new IOException("No " + operation + " endpoint available"));
+            return;
+        }
+        final EtsiEndpoints.Endpoint ep = next;
+        final long start = System.nanoTime();
+        final CompletableFuture<T> f = this.sendAsyncTo(req, operation, ep.getUrl(), timeout, deadline, respType);
+        f.whenComplete((resp, t) -> {
+            ep.onResult(t, rtt(req, start));
+            if (t == null) {
+                eps.onResponse(req, resp, ep);
+                result.complete(resp);
+            } else if (f.isCancelled() || !EtsiEndpoints.isFailover(operation, t)) {
+                result.completeExceptionally(t);
+            } else {
+                log.warn(operation + " to " + ep.getUrl() + " failed, trying the next endpoint: " + t.getMessage());
+                this.attemptAsync(eps, endpoints, req, operation, timeout, deadline, respType, result, t);
+            }
+        });
+        // Cancelling the result aborts the attempt in progress
+        result.whenComplete((resp, t) -> {
+            if (result.isCancelled()) {
+                f.cancel(true);
+            }
+        });
+    }
+
+    /**
+     * Wait for the admission to the endpoint, if limited, and send the request.
+     */
+    private <T> CompletableFuture<T> sendAsyncTo(final MessageAbstractType req,
+                                                 final String operation,
+                                                 final URL url,
+                                                 final long timeout,
+                                                 final Deadline deadline,
+                                                 final Class<T> respType)
+    {
+        CompletableFuture<T> f;
+        if (deadline != null && deadline.isExpired()) {
+            f = new CompletableFuture<T>();
+            f.completeExceptionally(new DeadlineExceededException(operation + ": deadline passed " + -deadline.remaining() + " ms ago"));
+        } else if (this.concurrency == null || url == null) {
+            f = this.post(req, operation, url, timeout, deadline, respType);
+        } else {
+            f = this.admitAndPost(this.concurrency, req, operation, url, timeout, deadline, respType);
+        }
+        f.whenComplete((resp, t) -> {
+            if (t != null) {
+                this.timeouts.record(t);
+            }
+        });
+        return f;
+    }
+
+    private <T> CompletableFuture<T> admitAndPost(final EtsiConcurrencyControl cc,
+                                                  final MessageAbstractType req,
+                                                  final String operation,
+                                                  final URL url,
+                                                  final long timeout,
+                                                  final Deadline deadline,
+                                                  final Class<T> respType)
+    {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        final CompletableFuture<EtsiConcurrencyControl.Call> admission = cc.acquireAsync(url, deadline);
+        admission.whenComplete((call, t) -> {
+            if (t != null) {
+                result.completeExceptionally(t);
+                return;
+            }
+            final CompletableFuture<T> f = this.post(req, operation, url, timeout, deadline, respType);
+            f.whenComplete((resp, t2) -> {
+                call.done(t2, isLoadSample(req));
+                if (t2 != null) {
+                    result.completeExceptionally(t2);
+                } else {
+                    result.complete(resp);
+                }
+            });
+            result.whenComplete((resp, t3) -> {
+                if (result.isCancelled()) {
+                    f.cancel(true);
+                }
+            });
+        });
+        // Cancelling the result withdraws the request from the queue or aborts the exchange
+        result.whenComplete((resp, t) -> {
+            if (result.isCancelled()) {
+                admission.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Marshal the request and POST it with the async transport.
+     * The response is decoded on a transport thread.
+     * The response timeout is capped at the deadline.
+     */
+    private <T> CompletableFuture<T> post(final MessageAbstractType req,
+                                          final String operation,
+                                          final URL url,
+                                          final long timeout,
+                                          final Deadline deadline,
+                                          final Class<T> respType)
+    {
+        final byte[] body;
+        try {
+            if (url == null) {
+                throw new IOException("No URL for " + operation);
+            }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(2048);
+            this.getCodec().writeMessage(baos, operation, req);
+            body = baos.toByteArray();
+            AsyncHttpTransport transport = this.getAsyncTransport();
+            long millis = Deadline.cap(deadline, timeout > 0 ? timeout : transport.getRequestTimeout());
+            final CompletableFuture<HttpResponse<byte[]>> http =
+                transport.post(url.toURI(), EtsiSoapCodec.CONTENT_TYPE, body, millis);
+            final CompletableFuture<T> f = http.handle((resp, t) -> {
+                if (t != null) {
+                    throw new CompletionException(cutShort(t, deadline, operation));
+                }
+                return this.decode(resp, respType);
+            });
+            // Cancelling the result aborts the exchange and frees its connection
+            f.whenComplete((resp, t) -> {
+                if (f.isCancelled()) {
+                    http.cancel(true);
+                }
+            });
+            return f;
+        } catch (IOException | URISyntaxException e) {
+            CompletableFuture<T> f = new CompletableFuture<T>();
+            f.completeExceptionally(e);
+            return f;
+        }
+    }
+
+    private <T> T decode(final HttpResponse<byte[]> resp, final Class<T> respType) {
+        int returnCode = resp.statusCode();
+        String contentType = resp.headers().firstValue("Content-Type").orElse("");
+        try {
+            // SOAP 1.2 faults come with any of the error codes, so try to parse those too
+            if ((returnCode > 199 && returnCode < 300) || contentType.contains("xml")) {
+                return this.getCodec().readMessage(new ByteArrayInputStream(resp.body()), respType);
+            }
+            throw httpFault(returnCode);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * @return the hedging of the idempotent requests, or null if not hedged
+     */
+    public EtsiHedging getHedging() {
+        return this.hedging;
+    }
+
+    /**
+     * Send a copy of a slow status query, profile query or handshake, and use
+     * the response that comes first.
+     * <p>The blocking send methods of the hedged operations then wait for
+     * the {@link #getAsyncTransport() sendAsync transport}, whose exchanges
+     * can be cancelled, and the CommonsHTTPSender properties of the stubs do
+     * not apply to them. With an Http2Sender or UnixSocketSender in the
+     * EngineConfiguration the blocking sends are not hedged but go through
+     * that sender; only sendAsync is hedged then.
+     * @param hedging Hedging, possibly shared with other clients, or null for none
+     */
+    public void setHedging(final EtsiHedging hedging) {
+        this.hedging = hedging;
+        if (hedging != null && !this.isHedgeable()) {
+            log.info("Blocking requests are sent with " + this.getStubSender() + " and not hedged");
+        }
+    }
+
+    /**
+     * @return true if the blocking requests go over HTTP/1.1 connections like
+     *         those of the sendAsync transport, so they can be hedged with it
+     */
+    private boolean isHedgeable() {
+        return this.codec != null || this.getStubSender() instanceof CommonsHTTPSender;
+    }
+
+    /**
+     * @return counts of the requests failed on a timeout, including those
+     *         cut short by their {@link Deadline}
+     */
+    public TimeoutStats getTimeoutStats() {
+        return this.timeouts;
+    }
+
+    /**
+     * Get the codec encoding the requests and decoding the responses.
+     * @return the codec set with {@link #setCodec(EtsiSoapCodec)},
+     *         or the Castor based {@link EtsiSoapCodec}
+     */
+    public EtsiSoapCodec getCodec() {
+        EtsiSoapCodec c = this.codec;
+        return c != null ? c : this.defaultCodec;
+    }
+
+    /**
+     * Set the codec of the requests and responses.
+     * <p>With a codec set, the send methods write the request straight
+     * to the HTTP connection of the transport and read the response
+     * straight from it, bypassing the Axis stubs and handlers.
+     * E.g. {@link StaxEtsiCodec} avoids the DOM and Castor round trips.
+     * @param codec Codec, or null to send with the Axis stubs
+     */
+    public void setCodec(final EtsiSoapCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Get the transport used by the sendAsync methods.
+     * @return the transport set with {@link #setAsyncTransport(AsyncHttpTransport)},
+     *         or the shared {@link AsyncHttpTransport#getDefault()}
+     */
+    public AsyncHttpTransport getAsyncTransport() {
+        AsyncHttpTransport t = this.asyncTransport;
+        return t != null ? t : AsyncHttpTransport.getDefault();
+    }
+
+    /**
+     * Set the transport used by the sendAsync methods.
+     * @param asyncTransport Transport, or null to use the shared default transport
+     */
+    public void setAsyncTransport(final AsyncHttpTransport asyncTransport) {
+        this.asyncTransport = asyncTransport;
+    }
+
+    /**
+     * @return the limits of the requests in flight per endpoint, or null if not limited
+     */
+    public EtsiConcurrencyControl getConcurrencyControl() {
+        return this.concurrency;
+    }
+
+    /**
+     * Limit the requests in flight to each MSSP endpoint, adapting the limits
+     * to the latency and the failures of the MSSP.
+     * <p>Requests over the limit wait in a queue; the send methods throw, and
+     * the futures of the sendAsync methods complete with, an
+     * {@link fi.laverca.AdmissionException} if the wait fails.
+     * @param concurrency Limits, possibly shared with other clients, or null for no limits
+     */
+    public void setConcurrencyControl(final EtsiConcurrencyControl concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @return the MSSP endpoints of the operations, or null if the single URLs are used
+     */
+    public EtsiEndpoints getEndpoints() {
+        return this.endpoints;
+    }
+
+    /**
+     * Send the requests to several MSSP nodes, with load balancing, circuit
+     * breaking and failover, instead of the URLs given with {@link #setAeAddress}.
+     * <p>Operations with no endpoints fail with an IOException.
+     * @param endpoints Endpoints, possibly shared with other clients, or null to use the single URLs
+     */
+    public void setEndpoints(final EtsiEndpoints endpoints) {
+        this.endpoints = endpoints;
+    }
 
     /**
      * Return whether s is a valid xs:NCName String.
@@ -517,11 +1560,275 @@ public class EtsiClient {
         }
     }
 
+    /**
+     * Get the HTTP transport used for sending the requests.
+     * @return the transport set with {@link #setTransport(HttpTransport)},
+     *         or the shared {@link HttpTransport#getDefault()}
+     */
+    public HttpTransport getTransport() {
+        HttpTransport t = this.transport;
+        return t != null ? t : HttpTransport.getDefault();
+    }
+
+    /**
+     * Set the HTTP transport (connection pool) used for sending the requests.
+     * The transport may be shared by several EtsiClients.
+     * <p>It takes precedence over an HttpClient set for the thread with
+     * {@link fi.laverca.CommonsHTTPSender#initThreadLocals(org.apache.http.client.HttpClient)}.
+     * Without it the binding stubs use that client, if any, and otherwise
+     * the shared default transport.
+     * @param transport Transport, or null to use the shared default transport
+     */
+    public void setTransport(final HttpTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Use per-client SSL settings instead of the JVM global ones.
+     * <p>Creates transports of this client's own, replacing any transports
+     * set earlier. They are closed by {@link #shutdown()}.
+     * @param clientSsl SSL settings, e.g. from {@link ClientSsl#load(String, String, String, String, String)}
+     */
+    public synchronized void setClientSsl(final ClientSsl clientSsl) {
+        if (clientSsl == null) {
+            throw new IllegalArgumentException("null clientSsl not allowed.");
+        }
+        HttpTransport      t  = new HttpTransport(clientSsl);
+        AsyncHttpTransport at = new AsyncHttpTransport(AsyncHttpTransport.DEFAULT_THREADS, clientSsl);
+        this.shutdown();
+        this.ownTransport      = t;
+        this.ownAsyncTransport = at;
+        this.transport         = t;
+        this.asyncTransport    = at;
+    }
+
+    /**
+     * Close the transports created by {@link #setClientSsl(ClientSsl)}.
+     * Shared transports are left open.
+     */
+    public synchronized void shutdown() {
+        if (this.ownTransport != null) {
+            if (this.transport == this.ownTransport) {
+                this.transport = null;
+            }
+            this.ownTransport.shutdown();
+            this.ownTransport = null;
+        }
+        if (this.ownAsyncTransport != null) {
+            if (this.asyncTransport == this.ownAsyncTransport) {
+                this.asyncTransport = null;
+            }
+            this.ownAsyncTransport.shutdown();
+            this.ownAsyncTransport = null;
+        }
+    }
+
+    /**
+     * Warm up with one connection per MSSP host and no handshake probe.
+     * @return the phases run and their times
+     * @see #warmUp(int, boolean)
+     */
+    public WarmUp warmUp() {
+        return this.warmUp(1, false);
+    }
+
+    /**
+     * Do the work the first requests would otherwise pay for,
+     * e.g. after a deploy before reporting ready. The phases are
+     * <ul>
+     * <li>castor: the class descriptors of the ETSI types</li>
+     * <li>axis: the engine and the Axis message parsing</li>
+     * <li>stubs: a binding stub and its Call per operation and endpoint, unless a codec is set</li>
+     * <li>jce: the X.509 CertificateFactory</li>
+     * <li>tls: the SSLContext of the transport, if an endpoint uses HTTPS</li>
+     * <li>connections: pooled connections of {@link #getTransport()} to each MSSP host,
+     *     or the connections of the Http2Transport of an {@link Http2Sender}</li>
+     * <li>handshake: an MSS_Handshake round trip, if asked for</li>
+     * </ul>
+     * With a {@link UnixSocketSender}, TLS is up to the sidecar and the
+     * local connections are cheap, so the tls and connections phases are skipped.
+     * A failed phase is logged and recorded, and the rest are run anyway.
+     * @param connections Connections to open per MSSP host, 0 for none
+     * @param handshake   true to send an MSS_Handshake as a probe
+     * @return the phases run and their times
+     */
+    public WarmUp warmUp(final int connections, final boolean handshake) {
+        WarmUp w = new WarmUp();
+        this.warmUp(w, connections, handshake);
+        log.info("Warmed up: " + w);
+        return w;
+    }
+
+    /**
+     * Run the warm-up phases into the given record,
+     * e.g. after phases of the caller's own.
+     * @see #warmUp(int, boolean)
+     */
+    public void warmUp(final WarmUp w, final int connections, final boolean handshake) {
+        final Map<String, List<URL>> urls = this.getUrls();
+        final EtsiSoapCodec c = this.getCodec();
+        // The stubs send with the http transport of the engine; the codec with getTransport()
+        final Handler sender = this.codec == null ? this.getStubSender() : null;
+
+        w.run("castor", () -> c.preload(CASTOR_PACKAGES));
+        w.run("axis", () -> {
+            // The engine configuration is loaded with the service locator
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            c.writeMessage(os, "MSS_Handshake", this.createHandshakeRequest("WarmUp"));
+            org.apache.axis.Message m = new org.apache.axis.Message(os.toByteArray());
+            m.setMessageContext(new MessageContext(this.mssService.getEngine()));
+            m.getSOAPEnvelope();
+        });
+        if (this.codec == null) {
+            w.run("stubs", () -> {
+                for (Map.Entry<String, List<URL>> e : urls.entrySet()) {
+                    for (URL url : e.getValue()) {
+                        this.stubPool.prepare(stubType(e.getKey()), url);
+                    }
+                }
+            });
+        }
+        w.run("jce", () -> CertificateFactory.getInstance("X.509"));
+
+        // One URL per MSSP host
+        final Map<String, URL> hosts = new LinkedHashMap<String, URL>();
+        for (List<URL> l : urls.values()) {
+            for (URL url : l) {
+                int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+                hosts.put(url.getProtocol() + "://" + url.getHost() + ":" + port, url);
+            }
+        }
+        if (sender instanceof UnixSocketSender) {
+            log.debug("The stubs send over a Unix domain socket, no tls or connections to warm up");
+            hosts.clear();
+        }
+        for (URL url : hosts.values()) {
+            if ("https".equalsIgnoreCase(url.getProtocol())) {
+                w.run("tls", () -> this.getSSLContext(sender).createSSLEngine());
+                break;
+            }
+        }
+        if (connections > 0 && !hosts.isEmpty()) {
+            w.run("connections", () -> {
+                HttpTransport  t  = this.getTransport();
+                Http2Transport h2 = sender instanceof Http2Sender ? ((Http2Sender)sender).getTransport() : null;
+                Exception failure = null;
+                int opened = 0;
+                for (URL url : hosts.values()) {
+                    try {
+                        if (h2 != null) {
+                            // The Http2Transport has a fixed number of connections per endpoint
+                            h2.connect(url.toURI());
+                            opened += h2.getConnections();
+                        } else {
+                            opened += t.connect(url, connections);
+                        }
+                    } catch (IOException | URISyntaxException e) {
+                        log.warn("Could not connect to " + url + ": " + e.getMessage());
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                }
+                log.debug("Opened " + opened + " connections to " + hosts.keySet());
+                if (failure != null) {
+                    throw failure;
+                }
+            });
+        }
+        if (handshake) {
+            w.run("handshake", () -> this.send(this.createHandshakeRequest("WarmUp" + System.currentTimeMillis())));
+        }
+    }
+
+    /**
+     * @return the handler the stubs send the HTTP requests with, or null if not known
+     */
+    private Handler getStubSender() {
+        try {
+            Handler h = this.mssService.getEngine().getTransport("http");
+            return h instanceof SimpleTargetedChain ? ((SimpleTargetedChain)h).getPivotHandler() : h;
+        } catch (AxisFault e) {
+            log.debug("No http transport in the engine configuration", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the SSL context the HTTPS connections are made with
+     */
+    private SSLContext getSSLContext(final Handler sender) throws GeneralSecurityException {
+        SSLContext ctx = sender instanceof Http2Sender ? ((Http2Sender)sender).getTransport().getSSLContext()
+                                                       : this.getTransport().getSSLContext();
+        return ctx != null ? ctx : SSLContext.getDefault();
+    }
+
+    /**
+     * @return the URLs of the requests by operation, from the endpoints if set
+     */
+    private Map<String, List<URL>> getUrls() {
+        Map<String, List<URL>> urls = new LinkedHashMap<String, List<URL>>();
+        EtsiEndpoints eps = this.endpoints;
+        if (eps != null) {
+            for (EtsiEndpoints.Endpoint ep : eps.getEndpoints()) {
+                addUrl(urls, ep.getOperation(), ep.getUrl());
+            }
+        } else {
+            addUrl(urls, EtsiEndpoints.SIGNATURE,    this.MSSP_SI_URL);
+            addUrl(urls, EtsiEndpoints.STATUS,       this.MSSP_ST_URL);
+            addUrl(urls, EtsiEndpoints.RECEIPT,      this.MSSP_RC_URL);
+            addUrl(urls, EtsiEndpoints.HANDSHAKE,    this.MSSP_HS_URL);
+            addUrl(urls, EtsiEndpoints.PROFILE,      this.MSSP_PR_URL);
+            addUrl(urls, EtsiEndpoints.REGISTRATION, this.MSSP_RG_URL);
+        }
+        return urls;
+    }
+
+    private static void addUrl(final Map<String, List<URL>> urls, final String operation, final URL url) {
+        if (url == null) {
+            return;
+        }
+        List<URL> l = urls.get(operation);
+        if (l == null) {
+            l = new ArrayList<URL>();
+            urls.put(operation, l);
+        }
+        l.add(url);
+    }
+
+    private static Class<? extends Stub> stubType(final String operation) {
+        switch (operation) {
+            case EtsiEndpoints.SIGNATURE:    return MSS_SignatureBindingStub.class;
+            case EtsiEndpoints.STATUS:       return MSS_StatusQueryBindingStub.class;
+            case EtsiEndpoints.RECEIPT:      return MSS_ReceiptBindingStub.class;
+            case EtsiEndpoints.HANDSHAKE:    return MSS_HandshakeBindingStub.class;
+            case EtsiEndpoints.PROFILE:      return MSS_ProfileQueryBindingStub.class;
+            case EtsiEndpoints.REGISTRATION: return MSS_RegistrationBindingStub.class;
+            default: throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+
     /**
      * Sets custom SSL engine, e.g. by using SSL
      *
      */
     public void setSSLEngine(EngineConfiguration engineConfiguration) {
         mssService.setEngineConfiguration(engineConfiguration);
+        this.stubPool.clear();
+    }
+
+    /**
+     * Set how many idle binding stubs are kept per operation for reuse.
+     * @param size Maximum idle stubs per operation, 0 to create a new stub for every request
+     */
+    public void setStubPoolSize(final int size) {
+        this.stubPool.setMaxIdle(size);
+    }
+
+    /**
+     * @return the pool of binding stubs used by the send methods
+     */
+    public StubPool getStubPool() {
+        return this.stubPool;
     }
 }
@@ -0,0 +1,340 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.etsi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.axis.AxisFault;
+import org.apache.axis.Constants;
+import org.w3c.dom.Element;
+
+import fi.laverca.AdaptiveLimiter;
+import fi.laverca.AdmissionException;
+import fi.laverca.Deadline;
+import fi.laverca.DeadlineExceededException;
+
+/**
+ * Adaptive limits of the requests in flight to each MSSP endpoint.
+ * <p>
+ * Every endpoint URL gets an {@link AdaptiveLimiter} of its own. The limit
+ * is adjusted from the round trip times of the requests and from the
+ * failures that suggest an overloaded MSSP: HTTP 5xx and 429 responses,
+ * timeouts and connection errors. SOAP faults returned by the MSSP, such
+ * as an unknown user, are answers and are not counted as failures.
+ * Requests over the limit wait in a bounded queue like with
+ * {@link fi.laverca.AdmissionLimiter}.
+ * <p>
+ * The settings apply to the endpoints first used after they are set.
+ * One instance can be shared by several EtsiClients.
+ *
+ * @see EtsiClient#setConcurrencyControl(EtsiConcurrencyControl)
+ */
+public class EtsiConcurrencyControl {
+
+    public static final int  DEFAULT_MAX_QUEUE     = 1000;
+    public static final long DEFAULT_QUEUE_TIMEOUT = 5000;
+
+    private final ConcurrentMap<String, AdaptiveLimiter> limiters = new ConcurrentHashMap<String, AdaptiveLimiter>();
+
+    private final AdaptiveLimiter.Algorithm algorithm;
+    private volatile int    initialLimit = AdaptiveLimiter.DEFAULT_INITIAL_LIMIT;
+    private volatile int    minLimit     = AdaptiveLimiter.DEFAULT_MIN_LIMIT;
+    private volatile int    maxLimit     = AdaptiveLimiter.DEFAULT_MAX_LIMIT;
+    private volatile int    maxQueue     = DEFAULT_MAX_QUEUE;
+    private volatile long   queueTimeout = DEFAULT_QUEUE_TIMEOUT;
+    private volatile double backoff      = AdaptiveLimiter.DEFAULT_BACKOFF;
+    private volatile long   rttThreshold;
+
+    /**
+     * Gradient limits
+     */
+    public EtsiConcurrencyControl() {
+        this(AdaptiveLimiter.Algorithm.GRADIENT);
+    }
+
+    /**
+     * @param algorithm How the limits are adjusted
+     */
+    public EtsiConcurrencyControl(final AdaptiveLimiter.Algorithm algorithm) {
+        if (algorithm == null) {
+            throw new IllegalArgumentException("null algorithm not allowed.");
+        }
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * @param initial Limit to start with
+     * @param min     Smallest limit, at least 1
+     * @param max     Largest limit
+     */
+    public void setLimits(final int initial, final int min, final int max) {
+        if (min < 1 || max < min || initial < min || initial > max) {
+            throw new IllegalArgumentException("Invalid limits " + initial + " in " + min + ".." + max);
+        }
+        this.initialLimit = initial;
+        this.minLimit     = min;
+        this.maxLimit     = max;
+    }
+
+    /**
+     * @param maxQueue Maximum amount of requests waiting per endpoint
+     * @param timeout  Maximum time a request waits, in milliseconds
+     */
+    public void setQueue(final int maxQueue, final long timeout) {
+        if (maxQueue < 0) {
+            throw new IllegalArgumentException("maxQueue must not be negative");
+        }
+        this.maxQueue     = maxQueue;
+        this.queueTimeout = timeout;
+    }
+
+    /**
+     * @param ratio Factor the limit is multiplied with on a failure
+     * @see AdaptiveLimiter#setBackoff(double)
+     */
+    public void setBackoff(final double ratio) {
+        this.backoff = ratio;
+    }
+
+    /**
+     * @param millis Round trips longer than this count as failures with AIMD, 0 for none
+     * @see AdaptiveLimiter#setRttThreshold(long)
+     */
+    public void setRttThreshold(final long millis) {
+        this.rttThreshold = millis;
+    }
+
+    /**
+     * Get the limiter of an endpoint, creating it on first use.
+     * @param url Endpoint URL
+     * @return the limiter
+     */
+    public AdaptiveLimiter getLimiter(final URL url) {
+        String key = url.toString();
+        AdaptiveLimiter l = this.limiters.get(key);
+        if (l != null) {
+            return l;
+        }
+        l = new AdaptiveLimiter(key, this.algorithm, this.initialLimit, this.maxQueue);
+        l.setLimitRange(this.minLimit, this.maxLimit);
+        l.setBackoff(this.backoff);
+        l.setRttThreshold(this.rttThreshold);
+        AdaptiveLimiter old = this.limiters.putIfAbsent(key, l);
+        return old != null ? old : l;
+    }
+
+    /**
+     * @return the limiters of the endpoints used so far, for metrics
+     */
+    public List<AdaptiveLimiter> getLimiters() {
+        return new ArrayList<AdaptiveLimiter>(this.limiters.values());
+    }
+
+    /**
+     * Admit a request to an endpoint, waiting in its queue if needed.
+     * @param url Endpoint URL
+     * @return the admitted call, to be finished with {@link Call#done(Throwable, boolean)}
+     * @throws AdmissionException if the request was not admitted
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public Call acquire(final URL url) throws IOException {
+        return this.acquire(url, null);
+    }
+
+    /**
+     * Admit a request to an endpoint, waiting in its queue for at most
+     * the queue timeout or until the deadline, whichever comes first.
+     * @param url      Endpoint URL
+     * @param deadline Deadline of the request, or null for none
+     * @return the admitted call, to be finished with {@link Call#done(Throwable, boolean)}
+     * @throws AdmissionException if the request was not admitted
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public Call acquire(final URL url, final Deadline deadline) throws IOException {
+        CompletableFuture<Call> f = this.acquireAsync(url, deadline);
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            if (!f.cancel(false)) {
+                // Admitted while being interrupted
+                f.thenAccept(c -> c.done(null, false));
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for admission to " + url);
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof IOException) {
+                throw (IOException)t;
+            }
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Admit a request to an endpoint without blocking.
+     * Cancelling the returned future withdraws the request from the queue.
+     * @param url Endpoint URL
+     * @return future of the admitted call, completed exceptionally
+     *         with an {@link AdmissionException} if not admitted
+     */
+    public CompletableFuture<Call> acquireAsync(final URL url) {
+        return this.acquireAsync(url, null);
+    }
+
+    /**
+     * Admit a request to an endpoint without blocking, waiting for at most
+     * the queue timeout or until the deadline, whichever comes first.
+     * @param url      Endpoint URL
+     * @param deadline Deadline of the request, or null for none
+     * @return future of the admitted call
+     * @see #acquireAsync(URL)
+     */
+    public CompletableFuture<Call> acquireAsync(final URL url, final Deadline deadline) {
+        final AdaptiveLimiter l = this.getLimiter(url);
+        final CompletableFuture<Void> w = l.acquireAsync(deadline != null ? deadline.cap(this.queueTimeout) : this.queueTimeout);
+        final CallFuture f = new CallFuture(w);
+        w.whenComplete((v, t) -> {
+            if (t != null) {
+                f.completeExceptionally(t);
+            } else if (!f.complete(new Call(l))) {
+                // Cancelled
+                l.release();
+            }
+        });
+        return f;
+    }
+
+    /**
+     * Tell whether a failed request suggests that the MSSP is overloaded.
+     * @param t Failure of a send, possibly wrapped by a CompletableFuture
+     * @return true for HTTP 5xx and 429 responses, timeouts and other I/O errors,
+     *         but not for timeouts cut short by the deadline of the request
+     */
+    public static boolean isOverload(final Throwable t) {
+        Throwable cause = unwrap(t);
+        if (cause instanceof AdmissionException || cause instanceof DeadlineExceededException) {
+            // Ours, not the MSSP's
+            return false;
+        }
+        if (cause instanceof AxisFault) {
+            AxisFault af = (AxisFault)cause;
+            Element code = af.lookupFaultDetail(Constants.QNAME_FAULTDETAIL_HTTPERRORCODE);
+            if (code != null) {
+                try {
+                    int returnCode = Integer.parseInt(code.getTextContent().trim());
+                    return returnCode >= 500 || returnCode == 429;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+            // Axis wraps the socket errors of the transport into faults
+            return af.getCause() instanceof IOException;
+        }
+        return cause instanceof IOException;
+    }
+
+    private static Throwable unwrap(final Throwable t) {
+        Throwable cause = t;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+               && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("EtsiConcurrencyControl");
+        for (AdaptiveLimiter l : this.limiters.values()) {
+            sb.append("\n  ").append(l);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Future of an admitted call. Cancelling it cancels the wait in the queue.
+     */
+    private static final class CallFuture extends CompletableFuture<Call> {
+
+        private final CompletableFuture<Void> waiting;
+
+        CallFuture(final CompletableFuture<Void> waiting) {
+            this.waiting = waiting;
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                this.waiting.cancel(false);
+            }
+            return cancelled;
+        }
+    }
+
+    /**
+     * A request admitted to an endpoint. The round trip time is
+     * measured from the admission, so the queueing is not included.
+     */
+    public static final class Call {
+
+        private final AdaptiveLimiter limiter;
+        private final long            start = System.nanoTime();
+        private final AtomicBoolean   done  = new AtomicBoolean();
+
+        Call(final AdaptiveLimiter limiter) {
+            this.limiter = limiter;
+        }
+
+        /**
+         * Report the outcome and give back the admission. Later calls are ignored.
+         * @param t      Failure, or null if a response was received
+         * @param sample true if the round trip time tells about the load of
+         *               the MSSP; false e.g. for synchronous signature requests
+         *               that wait for the user
+         */
+        public void done(final Throwable t, final boolean sample) {
+            if (!this.done.compareAndSet(false, true)) {
+                return;
+            }
+            // Sampled while still in flight, so that the utilization includes this call.
+            // A call cut short by its deadline ran for less than its round trip time.
+            Throwable cause = unwrap(t);
+            if (!(cause instanceof CancellationException || cause instanceof DeadlineExceededException)) {
+                boolean overload = t != null && isOverload(t);
+                long rtt = sample && !overload ? System.nanoTime() - this.start : -1;
+                this.limiter.onSample(rtt, overload);
+            }
+            this.limiter.release();
+        }
+    }
+
+}
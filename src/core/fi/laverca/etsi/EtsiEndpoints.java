@@ -0,0 +1,710 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.etsi;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.axis.AxisFault;
+import org.apache.axis.Constants;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.etsi.uri.TS102204.v1_1_2.MSS_ReceiptReq;
+import org.etsi.uri.TS102204.v1_1_2.MSS_ReceiptResp;
+import org.etsi.uri.TS102204.v1_1_2.MSS_SignatureResp;
+import org.etsi.uri.TS102204.v1_1_2.MSS_StatusReq;
+import org.w3c.dom.Element;
+
+import fi.laverca.AdmissionException;
+import fi.laverca.DeadlineExceededException;
+import fi.laverca.VirtualThreads;
+
+/**
+ * Several MSSP front-end nodes for the operations of an EtsiClient.
+ * <p>
+ * Each operation has a list of endpoints with weights. Requests are spread
+ * over the endpoints by weight, scaled down by the observed error rate and
+ * latency of each endpoint; synchronous signature requests wait for the
+ * user, so they do not count for the latency. Every endpoint has a
+ * circuit breaker: after {@link #setFailureThreshold(int) a number} of
+ * consecutive failures it is
+ * skipped for the open time, then a single trial request decides whether
+ * it is back. The open time doubles on every failed trial, up to a minute.
+ * Only failures suggesting a broken or overloaded node count; SOAP faults
+ * are answers.
+ * <p>
+ * A request fails over to the next endpoint when it can not have been
+ * processed: the connection failed, the node answered 503 or the request
+ * was not admitted by the {@link EtsiConcurrencyControl}. Status and
+ * profile queries and handshakes also fail over on timeouts and other
+ * 5xx errors. Use a short {@link fi.laverca.HttpTransport#setConnectTimeout(int)
+ * connect timeout} so that a dead node is left quickly.
+ * <p>
+ * Status queries and receipts are sent to the node that accepted the
+ * signature request, if it is available.
+ * <p>
+ * {@link #startProbing(long)} checks the nodes in the background by opening
+ * a TCP connection, so that a node going down or coming back is noticed
+ * without real requests.
+ *
+ * @see EtsiClient#setEndpoints(EtsiEndpoints)
+ */
+public class EtsiEndpoints {
+
+    private static final Log log = LogFactory.getLog(EtsiEndpoints.class);
+
+    public static final String SIGNATURE    = "MSS_Signature";
+    public static final String STATUS       = "MSS_StatusQuery";
+    public static final String RECEIPT      = "MSS_Receipt";
+    public static final String HANDSHAKE    = "MSS_Handshake";
+    public static final String PROFILE      = "MSS_ProfileQuery";
+    public static final String REGISTRATION = "MSS_Registration";
+
+    public static final int  DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_TIME         = 5  * 1000;
+    public static final long MAX_OPEN_TIME             = 60 * 1000;
+    public static final int  DEFAULT_PROBE_TIMEOUT     = 2  * 1000;
+    public static final int  DEFAULT_MAX_AFFINITY      = 100000;
+
+    // Averaging factors of the passive health
+    private static final double ERROR_ALPHA   = 0.05;
+    private static final double LATENCY_ALPHA = 0.1;
+    // Share of its weight a degraded endpoint keeps, so it is still sampled
+    private static final double MIN_SHARE     = 0.01;
+    // Endpoints within this factor of the fastest one count as equally fast
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    private final Map<String, List<Endpoint>> endpoints = new HashMap<String, List<Endpoint>>();
+
+    private volatile int  failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long openTime         = DEFAULT_OPEN_TIME;
+    private volatile int  probeTimeout     = DEFAULT_PROBE_TIMEOUT;
+
+    // MSSP_TransID -> node that accepted the signature request, least recently used first
+    private final ReentrantLock affinityLock = new ReentrantLock();
+    private int maxAffinity = DEFAULT_MAX_AFFINITY;
+    private final LinkedHashMap<String, String> affinity = new LinkedHashMap<String, String>(1024, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+            return this.size() > EtsiEndpoints.this.maxAffinity;
+        }
+    };
+
+    private ScheduledExecutorService prober;
+
+    public EtsiEndpoints() {
+        for (String op : new String[] { SIGNATURE, STATUS, RECEIPT, HANDSHAKE, PROFILE, REGISTRATION }) {
+            this.endpoints.put(op, new CopyOnWriteArrayList<Endpoint>());
+        }
+    }
+
+    /**
+     * Add an MSSP node serving the signature, status query and receipt operations.
+     * @param node         Name of the node, e.g. its host name
+     * @param weight       Share of the requests relative to the other nodes
+     * @param signatureUrl URL of the MSS_Signature port
+     * @param statusUrl    URL of the MSS_StatusQuery port
+     * @param receiptUrl   URL of the MSS_Receipt port
+     * @throws MalformedURLException if a URL is not valid
+     */
+    public void addNode(final String node,
+                        final int    weight,
+                        final String signatureUrl,
+                        final String statusUrl,
+                        final String receiptUrl)
+        throws MalformedURLException
+    {
+        this.add(SIGNATURE, node, signatureUrl, weight);
+        this.add(STATUS,    node, statusUrl,    weight);
+        this.add(RECEIPT,   node, receiptUrl,   weight);
+    }
+
+    /**
+     * Add an endpoint of an operation.
+     * @param operation Operation, e.g. {@link #SIGNATURE}
+     * @param node      Name of the node the endpoint belongs to, or null for the host and port of the URL
+     * @param url       URL of the port
+     * @param weight    Share of the requests relative to the other endpoints of the operation
+     * @return the endpoint
+     * @throws MalformedURLException if the URL is not valid
+     */
+    public Endpoint add(final String operation, final String node, final String url, final int weight)
+        throws MalformedURLException
+    {
+        List<Endpoint> list = this.endpoints.get(operation);
+        if (list == null) {
+            throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be positive");
+        }
+        URL u;
+        try {
+            u = URI.create(url).toURL();
+        } catch (IllegalArgumentException e) {
+            MalformedURLException m = new MalformedURLException(e.getMessage());
+            m.initCause(e);
+            throw m;
+        }
+        Endpoint ep = new Endpoint(operation, node != null ? node : u.getAuthority(), u, weight);
+        list.add(ep);
+        return ep;
+    }
+
+    /**
+     * @param operation Operation, e.g. {@link #SIGNATURE}
+     * @return the endpoints of the operation
+     */
+    public List<Endpoint> getEndpoints(final String operation) {
+        List<Endpoint> list = this.endpoints.get(operation);
+        return list != null ? Collections.unmodifiableList(list) : Collections.<Endpoint>emptyList();
+    }
+
+    /**
+     * @return the endpoints of all operations, for metrics
+     */
+    public List<Endpoint> getEndpoints() {
+        List<Endpoint> all = new ArrayList<Endpoint>();
+        for (List<Endpoint> list : this.endpoints.values()) {
+            all.addAll(list);
+        }
+        return all;
+    }
+
+    /**
+     * @param failures Consecutive failures that open the circuit of an endpoint
+     */
+    public void setFailureThreshold(final int failures) {
+        if (failures < 1) {
+            throw new IllegalArgumentException("threshold must be positive");
+        }
+        this.failureThreshold = failures;
+    }
+
+    /**
+     * @param millis Time an endpoint is skipped after its circuit opens, before a trial request
+     */
+    public void setOpenTime(final long millis) {
+        this.openTime = millis;
+    }
+
+    /**
+     * @param millis Connect timeout of the active probes
+     */
+    public void setProbeTimeout(final int millis) {
+        this.probeTimeout = millis;
+    }
+
+    /**
+     * @param max Number of transactions whose node is remembered for the status queries
+     */
+    public void setMaxAffinity(final int max) {
+        this.affinityLock.lock();
+        try {
+            this.maxAffinity = max;
+        } finally {
+            this.affinityLock.unlock();
+        }
+    }
+
+    /**
+     * Order the endpoints of an operation for a request.
+     * <p>The preferred node comes first, then the other endpoints in a
+     * random order weighted by their weight and health. Endpoints whose
+     * circuit is open are left out.
+     * @param operation     Operation, e.g. {@link #SIGNATURE}
+     * @param preferredNode Node to try first, or null
+     * @return endpoints to try in order, possibly empty
+     */
+    public List<Endpoint> select(final String operation, final String preferredNode) {
+        List<Endpoint> list = this.endpoints.get(operation);
+        if (list == null || list.isEmpty()) {
+            return Collections.emptyList();
+        }
+        long now = System.currentTimeMillis();
+        double bestLatency = Double.MAX_VALUE;
+        for (Endpoint ep : list) {
+            if (ep.isAvailable(now) && ep.latency > 0) {
+                bestLatency = Math.min(bestLatency, ep.latency);
+            }
+        }
+        final Map<Endpoint, Double> keys = new HashMap<Endpoint, Double>();
+        List<Endpoint> order = new ArrayList<Endpoint>(list.size());
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (Endpoint ep : list) {
+            if (!ep.isAvailable(now)) {
+                continue;
+            }
+            // Weighted random order: ascending -ln(U)/w
+            double w = ep.getEffectiveWeight(bestLatency);
+            keys.put(ep, ep.node.equals(preferredNode) ? -1.0 : -Math.log(1.0 - random.nextDouble()) / w);
+            order.add(ep);
+        }
+        Collections.sort(order, new Comparator<Endpoint>() {
+            @Override
+            public int compare(final Endpoint a, final Endpoint b) {
+                return Double.compare(keys.get(a), keys.get(b));
+            }
+        });
+        return order;
+    }
+
+    /**
+     * @return the node to send the request to first, or null for any
+     */
+    String getPreferredNode(final Object req) {
+        String msspTransId = null;
+        if (req instanceof MSS_StatusReq) {
+            msspTransId = ((MSS_StatusReq)req).getMSSP_TransID();
+        } else if (req instanceof MSS_ReceiptReq) {
+            msspTransId = ((MSS_ReceiptReq)req).getMSSP_TransID();
+        }
+        if (msspTransId == null) {
+            return null;
+        }
+        this.affinityLock.lock();
+        try {
+            return this.affinity.get(msspTransId);
+        } finally {
+            this.affinityLock.unlock();
+        }
+    }
+
+    /**
+     * Remember the node of an accepted signature request,
+     * and forget it after the receipt.
+     */
+    void onResponse(final Object req, final Object resp, final Endpoint ep) {
+        if (resp instanceof MSS_SignatureResp) {
+            String msspTransId = ((MSS_SignatureResp)resp).getMSSP_TransID();
+            if (msspTransId != null) {
+                this.affinityLock.lock();
+                try {
+                    this.affinity.put(msspTransId, ep.node);
+                } finally {
+                    this.affinityLock.unlock();
+                }
+            }
+        } else if (resp instanceof MSS_ReceiptResp) {
+            this.affinityLock.lock();
+            try {
+                this.affinity.remove(((MSS_ReceiptReq)req).getMSSP_TransID());
+            } finally {
+                this.affinityLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Tell whether a failed request may be sent again to another endpoint.
+     * @param operation Operation of the request
+     * @param t         Failure, possibly wrapped by a CompletableFuture
+     * @return true if the request can not have been processed, or is a query
+     *         that is safe to repeat and failed for the node's sake
+     */
+    public static boolean isFailover(final String operation, final Throwable t) {
+        Throwable cause = unwrap(t);
+        if (cause instanceof AdmissionException || isConnectFailure(cause)) {
+            return true;
+        }
+        if (cause instanceof AxisFault) {
+            AxisFault af = (AxisFault)cause;
+            if (isConnectFailure(af.getCause())) {
+                return true;
+            }
+            Element code = af.lookupFaultDetail(Constants.QNAME_FAULTDETAIL_HTTPERRORCODE);
+            if (code != null && "503".equals(code.getTextContent().trim())) {
+                return true;
+            }
+        }
+        boolean query = STATUS.equals(operation) || PROFILE.equals(operation) || HANDSHAKE.equals(operation);
+        return query && EtsiConcurrencyControl.isOverload(cause);
+    }
+
+    private static boolean isConnectFailure(final Throwable t) {
+        return t instanceof ConnectException            // includes HttpHostConnectException
+            || t instanceof ConnectTimeoutException
+            || t instanceof HttpConnectTimeoutException
+            || t instanceof NoRouteToHostException
+            || t instanceof UnknownHostException;
+    }
+
+    private static Throwable unwrap(final Throwable t) {
+        Throwable cause = t;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+               && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    /**
+     * Start checking the nodes in the background.
+     * <p>Each host and port is connected to once per interval. A node
+     * that can not be connected to counts a failure; an open circuit
+     * whose node answers again gets its trial request right away.
+     * @param intervalMillis Time between the checks
+     */
+    public synchronized void startProbing(final long intervalMillis) {
+        this.stopProbing();
+        this.prober = Executors.newSingleThreadScheduledExecutor(VirtualThreads.newThreadFactory("EtsiEndpoints-probe-", false));
+        this.prober.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                EtsiEndpoints.this.probe();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the background checks.
+     */
+    public synchronized void stopProbing() {
+        if (this.prober != null) {
+            this.prober.shutdownNow();
+            this.prober = null;
+        }
+    }
+
+    /**
+     * Check every host and port once.
+     */
+    void probe() {
+        Map<String, List<Endpoint>> byAddress = new LinkedHashMap<String, List<Endpoint>>();
+        for (Endpoint ep : this.getEndpoints()) {
+            String address = ep.url.getHost() + ":" + getPort(ep.url);
+            List<Endpoint> eps = byAddress.get(address);
+            if (eps == null) {
+                eps = new ArrayList<Endpoint>();
+                byAddress.put(address, eps);
+            }
+            eps.add(ep);
+        }
+        for (List<Endpoint> eps : byAddress.values()) {
+            URL url = eps.get(0).url;
+            boolean up;
+            Socket s = new Socket();
+            try {
+                s.connect(new InetSocketAddress(url.getHost(), getPort(url)), this.probeTimeout);
+                up = true;
+            } catch (IOException e) {
+                log.debug("Probe of " + url.getHost() + ":" + getPort(url) + " failed: " + e.getMessage());
+                up = false;
+            } finally {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            for (Endpoint ep : eps) {
+                ep.onProbe(up);
+            }
+        }
+    }
+
+    private static int getPort(final URL url) {
+        return url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("EtsiEndpoints");
+        for (Endpoint ep : this.getEndpoints()) {
+            sb.append("\n  ").append(ep);
+        }
+        return sb.toString();
+    }
+
+    public enum State {
+        /** Requests are sent */
+        CLOSED,
+        /** Requests are not sent until the open time has passed */
+        OPEN,
+        /** A single trial request is in flight */
+        HALF_OPEN
+    }
+
+    /**
+     * An endpoint of an operation, with its health.
+     */
+    public final class Endpoint {
+
+        private final String operation;
+        private final String node;
+        private final URL    url;
+        private final int    weight;
+
+        // Guarded by lock
+        private final ReentrantLock lock = new ReentrantLock();
+        private State  state = State.CLOSED;
+        private int    consecutiveFailures;
+        private long   openUntil;
+        private long   currentOpenTime;
+        private double errorRate;
+        private long   requests;
+        private long   failures;
+        private long   opened;
+
+        // Latency average in nanoseconds, read without the lock for ordering
+        private volatile double latency;
+
+        Endpoint(final String operation, final String node, final URL url, final int weight) {
+            this.operation = operation;
+            this.node      = node;
+            this.url       = url;
+            this.weight    = weight;
+        }
+
+        public String getOperation() {
+            return this.operation;
+        }
+
+        public String getNode() {
+            return this.node;
+        }
+
+        public URL getUrl() {
+            return this.url;
+        }
+
+        public int getWeight() {
+            return this.weight;
+        }
+
+        public State getState() {
+            this.lock.lock();
+            try {
+                return this.state;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * @return whether a request may be tried, without taking a trial
+         */
+        boolean isAvailable(final long now) {
+            this.lock.lock();
+            try {
+                return this.state == State.CLOSED || this.state == State.OPEN && now >= this.openUntil;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Take the right to send a request. With an open circuit
+         * past its open time, the caller gets the single trial.
+         * @return true if the request may be sent
+         */
+        boolean tryAcquire() {
+            this.lock.lock();
+            try {
+                switch (this.state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (System.currentTimeMillis() >= this.openUntil) {
+                        this.state = State.HALF_OPEN;
+                        return true;
+                    }
+                    return false;
+                default:
+                    return false;
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Record the outcome of a request sent after {@link #tryAcquire()}.
+         * @param t        Failure, or null if a response was received
+         * @param rttNanos Round trip time, or a negative value if it does
+         *                 not tell about the latency of the node
+         */
+        void onResult(final Throwable t, final long rttNanos) {
+            Throwable cause = unwrap(t);
+            if (cause instanceof CancellationException || cause instanceof AdmissionException
+                || cause instanceof DeadlineExceededException) {
+                // No verdict; give the trial back
+                this.lock.lock();
+                try {
+                    if (this.state == State.HALF_OPEN) {
+                        this.state = State.OPEN;
+                    }
+                } finally {
+                    this.lock.unlock();
+                }
+                return;
+            }
+            if (cause != null && (isConnectFailure(cause) || EtsiConcurrencyControl.isOverload(cause))) {
+                this.onFailure();
+            } else {
+                this.onSuccess(rttNanos);
+            }
+        }
+
+        private void onSuccess(final long rttNanos) {
+            this.lock.lock();
+            try {
+                this.requests++;
+                this.errorRate *= 1 - ERROR_ALPHA;
+                this.consecutiveFailures = 0;
+                if (this.state != State.CLOSED) {
+                    log.info("Endpoint " + this.url + " is back");
+                    this.state = State.CLOSED;
+                    this.currentOpenTime = 0;
+                }
+            } finally {
+                this.lock.unlock();
+            }
+            if (rttNanos >= 0) {
+                double l = this.latency;
+                this.latency = l == 0 ? rttNanos : l + (rttNanos - l) * LATENCY_ALPHA;
+            }
+        }
+
+        private void onFailure() {
+            this.lock.lock();
+            try {
+                this.requests++;
+                this.failures++;
+                this.errorRate = this.errorRate * (1 - ERROR_ALPHA) + ERROR_ALPHA;
+                this.consecutiveFailures++;
+                if (this.state == State.HALF_OPEN
+                    || this.state == State.CLOSED && this.consecutiveFailures >= EtsiEndpoints.this.failureThreshold)
+                {
+                    this.open();
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Open the circuit, doubling the open time of the previous opening.
+         * Must be called with the lock held.
+         */
+        private void open() {
+            this.currentOpenTime = this.currentOpenTime == 0 ? EtsiEndpoints.this.openTime
+                                                             : Math.min(this.currentOpenTime * 2, MAX_OPEN_TIME);
+            this.openUntil = System.currentTimeMillis() + this.currentOpenTime;
+            this.state     = State.OPEN;
+            this.opened++;
+            log.warn("Endpoint " + this.url + " is down for " + this.currentOpenTime + " ms after "
+                     + this.consecutiveFailures + " failures");
+        }
+
+        void onProbe(final boolean up) {
+            this.lock.lock();
+            try {
+                if (up && this.state == State.OPEN) {
+                    // Let the next request try it
+                    this.openUntil = 0;
+                } else if (!up && this.state != State.HALF_OPEN) {
+                    this.consecutiveFailures++;
+                    if (this.state == State.CLOSED && this.consecutiveFailures >= EtsiEndpoints.this.failureThreshold) {
+                        this.open();
+                    }
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Weight scaled down by the error rate and by the latency
+         * compared to the fastest endpoint of the operation, when
+         * more than twice as slow.
+         */
+        double getEffectiveWeight(final double bestLatency) {
+            double errors;
+            this.lock.lock();
+            try {
+                errors = this.errorRate;
+            } finally {
+                this.lock.unlock();
+            }
+            double l = this.latency;
+            double speed = l > 0 && bestLatency < Double.MAX_VALUE ? Math.min(1.0, LATENCY_TOLERANCE * bestLatency / l) : 1.0;
+            return this.weight * Math.max(MIN_SHARE, (1 - errors) * speed);
+        }
+
+        /**
+         * @return average round trip time in milliseconds
+         */
+        public double getLatency() {
+            return this.latency / 1000000.0;
+        }
+
+        /**
+         * @return recent share of failed requests, 0..1
+         */
+        public double getErrorRate() {
+            this.lock.lock();
+            try {
+                return this.errorRate;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            this.lock.lock();
+            try {
+                return String.format("%s %s [node %s, weight %d, %s, rtt %.1f ms, errors %.0f%%, requests %d, failures %d, opened %d]",
+                                     this.operation, this.url, this.node, this.weight, this.state, this.getLatency(),
+                                     this.errorRate * 100, this.requests, this.failures, this.opened);
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+}
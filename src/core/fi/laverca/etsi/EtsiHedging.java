@@ -0,0 +1,323 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.etsi;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hedging of the idempotent requests: status and profile queries and handshakes.
+ * <p>
+ * When a hedged request has not been answered within a percentile of the
+ * recent latency of its operation, a copy of it is sent to the next MSSP
+ * endpoint, or over another connection to the same one. The first
+ * response wins and the other attempt is cancelled. A single slow node or
+ * connection then delays a status poll by about the hedging delay instead
+ * of its full response time.
+ * <p>
+ * The copies are limited by a budget: each hedged request earns a share of
+ * a copy, e.g. 0.05 for at most 5% extra requests, and a copy is only sent
+ * if a whole one has been earned. The budget is shared by the operations,
+ * so an MSSP that slows down as a whole is not sent twice the load.
+ * Copies go through the same {@link EtsiConcurrencyControl concurrency
+ * limits} as the other requests.
+ * <p>
+ * No copies are sent until enough responses have been seen to know the latency.
+ * One instance can be shared by several EtsiClients.
+ *
+ * @see EtsiClient#setHedging(EtsiHedging)
+ */
+public class EtsiHedging {
+
+    public static final double DEFAULT_PERCENTILE = 95;
+    public static final long   DEFAULT_MIN_DELAY  = 20;
+    public static final double DEFAULT_BUDGET     = 0.05;
+    public static final int    DEFAULT_BURST      = 10;
+
+    // Recent round trip times kept per operation, how many are needed
+    // before hedging and how often the percentile is recomputed
+    private static final int WINDOW       = 256;
+    private static final int MIN_SAMPLES  = 32;
+    private static final int RECOMPUTE    = 32;
+
+    // Budget in thousandths of a copy
+    private static final long UNIT = 1000;
+
+    private final Set<String> operations = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, Latency> latencies = new ConcurrentHashMap<String, Latency>();
+
+    private volatile double percentile = DEFAULT_PERCENTILE;
+    private volatile long   minDelay   = DEFAULT_MIN_DELAY;
+    private volatile long   earn       = Math.round(DEFAULT_BUDGET * UNIT);
+    private volatile long   maxTokens  = DEFAULT_BURST * UNIT;
+
+    private final AtomicLong tokens = new AtomicLong(DEFAULT_BURST * UNIT);
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder hedges   = new LongAdder();
+    private final LongAdder wins     = new LongAdder();
+    private final LongAdder denied   = new LongAdder();
+
+    /**
+     * Hedge status queries with the default settings
+     */
+    public EtsiHedging() {
+        this.operations.add(EtsiEndpoints.STATUS);
+    }
+
+    /**
+     * @param operation One of {@link EtsiEndpoints#STATUS}, {@link EtsiEndpoints#PROFILE} or {@link EtsiEndpoints#HANDSHAKE}
+     * @param hedged    Whether to hedge the requests of the operation
+     * @throws IllegalArgumentException if the operation is not idempotent
+     */
+    public void setHedged(final String operation, final boolean hedged) {
+        if (!EtsiEndpoints.STATUS.equals(operation)
+            && !EtsiEndpoints.PROFILE.equals(operation)
+            && !EtsiEndpoints.HANDSHAKE.equals(operation))
+        {
+            throw new IllegalArgumentException(operation + " is not idempotent");
+        }
+        if (hedged) {
+            this.operations.add(operation);
+        } else {
+            this.operations.remove(operation);
+        }
+    }
+
+    /**
+     * @param operation Operation of a request
+     * @return true if the requests of the operation are hedged
+     */
+    public boolean isHedged(final String operation) {
+        return this.operations.contains(operation);
+    }
+
+    /**
+     * @param percentile Percentile of the recent round trip times after which a copy is sent, e.g. 95
+     */
+    public void setPercentile(final double percentile) {
+        if (percentile <= 0 || percentile >= 100) {
+            throw new IllegalArgumentException("Invalid percentile " + percentile);
+        }
+        this.percentile = percentile;
+        for (Latency l : this.latencies.values()) {
+            l.recompute();
+        }
+    }
+
+    /**
+     * @param millis Shortest time to wait before sending a copy
+     */
+    public void setMinDelay(final long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("delay must not be negative");
+        }
+        this.minDelay = millis;
+    }
+
+    /**
+     * @param ratio Copies allowed per hedged request, e.g. 0.05 for 5%
+     * @param burst Copies that may be sent in a row after a quiet period
+     */
+    public void setBudget(final double ratio, final int burst) {
+        if (ratio <= 0 || ratio > 1 || burst < 1) {
+            throw new IllegalArgumentException("Invalid budget " + ratio + ", burst " + burst);
+        }
+        this.earn      = Math.max(1, Math.round(ratio * UNIT));
+        this.maxTokens = burst * UNIT;
+    }
+
+    /**
+     * @param operation Operation of a request
+     * @return milliseconds to wait for the response before sending a copy,
+     *         or -1 if the latency is not known yet
+     */
+    public long getDelay(final String operation) {
+        Latency l = this.latencies.get(operation);
+        long nanos = l != null ? l.delay : -1;
+        if (nanos < 0) {
+            return -1;
+        }
+        return Math.max(this.minDelay, (nanos + 999999) / 1000000);
+    }
+
+    /**
+     * Count a hedged request and earn its share of the budget.
+     */
+    void onRequest() {
+        this.requests.increment();
+        long max = this.maxTokens;
+        long t;
+        do {
+            t = this.tokens.get();
+            if (t >= max) {
+                return;
+            }
+        } while (!this.tokens.compareAndSet(t, Math.min(max, t + this.earn)));
+    }
+
+    /**
+     * Take a copy from the budget.
+     * @return true if a copy may be sent
+     */
+    boolean tryHedge() {
+        long t;
+        do {
+            t = this.tokens.get();
+            if (t < UNIT) {
+                this.denied.increment();
+                return false;
+            }
+        } while (!this.tokens.compareAndSet(t, t - UNIT));
+        this.hedges.increment();
+        return true;
+    }
+
+    /**
+     * Count a copy that answered first.
+     */
+    void onWin() {
+        this.wins.increment();
+    }
+
+    /**
+     * Record the round trip time of a response.
+     * @param operation Operation of the request
+     * @param rttNanos  Round trip time of the attempt that got the response,
+     *                  or the time a cancelled attempt had waited
+     */
+    void onResponse(final String operation, final long rttNanos) {
+        Latency l = this.latencies.get(operation);
+        if (l == null) {
+            l = new Latency();
+            Latency old = this.latencies.putIfAbsent(operation, l);
+            if (old != null) {
+                l = old;
+            }
+        }
+        l.add(rttNanos);
+    }
+
+    /**
+     * @return Number of hedged requests
+     */
+    public long getRequests() {
+        return this.requests.sum();
+    }
+
+    /**
+     * @return Number of copies sent
+     */
+    public long getHedges() {
+        return this.hedges.sum();
+    }
+
+    /**
+     * @return Number of copies that answered before the first attempt
+     */
+    public long getWins() {
+        return this.wins.sum();
+    }
+
+    /**
+     * @return Number of copies not sent for the budget running out
+     */
+    public long getDenied() {
+        return this.denied.sum();
+    }
+
+    /**
+     * @return copies sent per hedged request
+     */
+    public double getHedgeRate() {
+        long r = this.getRequests();
+        return r > 0 ? (double)this.getHedges() / r : 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("EtsiHedging [p").append(this.percentile);
+        for (String op : this.latencies.keySet()) {
+            sb.append(", ").append(op).append(' ').append(this.getDelay(op)).append(" ms");
+        }
+        long h = this.getHedges();
+        return sb.append(", requests ").append(this.getRequests())
+                 .append(", hedges ").append(h)
+                 .append(String.format(" (%.1f%%)", this.getHedgeRate() * 100))
+                 .append(", wins ").append(this.getWins())
+                 .append(", denied ").append(this.getDenied()).append(']').toString();
+    }
+
+    /**
+     * Recent round trip times of an operation and their percentile.
+     */
+    private final class Latency {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long[] samples = new long[WINDOW];
+        private int  count;
+        private int  next;
+        private int  sinceRecompute;
+
+        // Percentile in nanoseconds, -1 until enough samples
+        volatile long delay = -1;
+
+        void add(final long rttNanos) {
+            this.lock.lock();
+            try {
+                this.samples[this.next] = rttNanos;
+                this.next = (this.next + 1) % WINDOW;
+                if (this.count < WINDOW) {
+                    this.count++;
+                }
+                if (this.count >= MIN_SAMPLES && ++this.sinceRecompute >= RECOMPUTE) {
+                    this.recomputeLocked();
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        void recompute() {
+            this.lock.lock();
+            try {
+                if (this.count >= MIN_SAMPLES) {
+                    this.recomputeLocked();
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        private void recomputeLocked() {
+            long[] sorted = Arrays.copyOf(this.samples, this.count);
+            Arrays.sort(sorted);
+            int i = (int)Math.ceil(EtsiHedging.this.percentile / 100 * this.count) - 1;
+            this.delay = sorted[Math.max(0, Math.min(this.count - 1, i))];
+            this.sinceRecompute = 0;
+        }
+    }
+
+}
@@ -0,0 +1,329 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.etsi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.xml.namespace.QName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.etsi.uri.TS102204.v1_1_2.MSS_ReceiptReq;
+import org.etsi.uri.TS102204.v1_1_2.MSS_StatusResp;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * Embedded MSS_Notification endpoint for ASYNCHSERVERSERVER transactions.
+ * <p>
+ * Accepts MSS_Notification SOAP calls carrying an MSS_StatusResp and
+ * answers them with an MSS_ReceiptReq. Uses the JDK built-in HTTP
+ * server, so no servlet container is needed.
+ * <p>
+ * A notification completes its transaction with the status and the
+ * signature it carries, so the endpoint must only take notifications
+ * from the MSSP. {@link #EtsiNotificationServer(InetSocketAddress, SSLContext)}
+ * requires the MSSP to authenticate with a client certificate trusted by
+ * the given context. A plain HTTP server must not be reachable by anyone
+ * else; other HTTPS setups can be passed as a configured {@link HttpsServer}.
+ * <p>
+ * Received notifications are offered to the registered handlers in
+ * order until one of them recognizes the transaction.
+ */
+public class EtsiNotificationServer {
+
+    private static final Log log = LogFactory.getLog(EtsiNotificationServer.class);
+
+    public static final String DEFAULT_PATH    = "/soap/services/MSS_NotificationPort";
+    public static final int    DEFAULT_THREADS = 4;
+
+    private final HttpServer    server;
+    private final String        path;
+    private final EtsiSoapCodec codec = new EtsiSoapCodec();
+
+    private final List<EtsiNotificationHandler> handlers = new CopyOnWriteArrayList<EtsiNotificationHandler>();
+
+    private final AtomicLong received  = new AtomicLong();
+    private final AtomicLong unmatched = new AtomicLong();
+    private final AtomicLong failed    = new AtomicLong();
+
+    private ExecutorService ownExecutor;
+    private boolean         started;
+
+    /**
+     * Create a plain HTTP notification server listening on the given address
+     * and {@link #DEFAULT_PATH}.
+     *
+     * @param address Address to bind to. Use port 0 for any free port.
+     * @throws IOException if the address can not be bound
+     */
+    public EtsiNotificationServer(final InetSocketAddress address) throws IOException {
+        this(HttpServer.create(address, 0), DEFAULT_PATH);
+    }
+
+    /**
+     * Create an HTTPS notification server listening on the given address
+     * and {@link #DEFAULT_PATH}. The MSSP must authenticate with a client
+     * certificate trusted by the context.
+     *
+     * @param address    Address to bind to. Use port 0 for any free port.
+     * @param sslContext Server key and the trust of the MSSP's certificate
+     * @throws IOException if the address can not be bound
+     */
+    public EtsiNotificationServer(final InetSocketAddress address, final SSLContext sslContext) throws IOException {
+        this(createHttpsServer(address, sslContext), DEFAULT_PATH);
+    }
+
+    private static HttpsServer createHttpsServer(final InetSocketAddress address, final SSLContext sslContext)
+        throws IOException
+    {
+        if (sslContext == null) {
+            throw new IllegalArgumentException("null sslContext not allowed");
+        }
+        HttpsServer server = HttpsServer.create(address, 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(sslContext) {
+            @Override
+            public void configure(final HttpsParameters params) {
+                SSLParameters p = this.getSSLContext().getDefaultSSLParameters();
+                p.setNeedClientAuth(true);
+                params.setSSLParameters(p);
+            }
+        });
+        return server;
+    }
+
+    /**
+     * Create a notification server on top of an existing JDK HTTP(S) server.
+     *
+     * @param server Unstarted server. May also be an {@link HttpsServer}.
+     * @param path   Context path of the notification port
+     */
+    public EtsiNotificationServer(final HttpServer server, final String path) {
+        if (server == null) {
+            throw new IllegalArgumentException("null server not allowed");
+        }
+        if (path == null || !path.startsWith("/")) {
+            throw new IllegalArgumentException("path must start with '/'");
+        }
+        this.server = server;
+        this.path   = path;
+    }
+
+    public void addHandler(final EtsiNotificationHandler handler) {
+        if (handler == null) {
+            throw new IllegalArgumentException("null handler not allowed");
+        }
+        this.handlers.add(handler);
+    }
+
+    public void removeHandler(final EtsiNotificationHandler handler) {
+        this.handlers.remove(handler);
+    }
+
+    /**
+     * Set the executor that runs the notification handlers.
+     * Must be called before {@link #start()}.
+     * @param executor Executor
+     */
+    public synchronized void setExecutor(final Executor executor) {
+        if (this.started) {
+            throw new IllegalStateException("Server already started");
+        }
+        this.server.setExecutor(executor);
+    }
+
+    /**
+     * Start accepting notifications.
+     */
+    public synchronized void start() {
+        if (this.started) {
+            return;
+        }
+        if (this.server.getExecutor() == null) {
+            this.ownExecutor = Executors.newFixedThreadPool(DEFAULT_THREADS, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(r, "laverca-notification-" + this.count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            this.server.setExecutor(this.ownExecutor);
+        }
+        this.server.createContext(this.path, new NotificationHttpHandler());
+        this.server.start();
+        this.started = true;
+        log.info("MSS_Notification endpoint listening at " + this.getAddress() + this.path);
+        if (!(this.server instanceof HttpsServer)) {
+            log.warn("MSS_Notifications are taken over plain HTTP; anyone reaching "
+                     + this.getAddress() + " can complete the pending transactions");
+        }
+    }
+
+    /**
+     * Stop the server.
+     * @param delay Seconds to wait for ongoing exchanges to finish
+     */
+    public synchronized void stop(final int delay) {
+        if (!this.started) {
+            return;
+        }
+        this.server.stop(delay);
+        if (this.ownExecutor != null) {
+            this.ownExecutor.shutdown();
+            this.ownExecutor = null;
+        }
+        this.started = false;
+    }
+
+    /**
+     * @return the bound address of the server
+     */
+    public InetSocketAddress getAddress() {
+        return this.server.getAddress();
+    }
+
+    /**
+     * Get the URL the MSSP should send notifications to.
+     * @param host Host name the MSSP can reach this server with
+     * @return Notification URL, usable as AP_Info/AP_URL
+     */
+    public String getUrl(final String host) {
+        String scheme = this.server instanceof HttpsServer ? "https" : "http";
+        return scheme + "://" + host + ":" + this.getAddress().getPort() + this.path;
+    }
+
+    public long getReceivedCount()  { return this.received.get();  }
+    public long getUnmatchedCount() { return this.unmatched.get(); }
+    public long getFailedCount()    { return this.failed.get();    }
+
+    /**
+     * Build the receipt sent when no handler recognizes a notification.
+     */
+    protected MSS_ReceiptReq createDefaultReceipt(final MSS_StatusResp statusResp) {
+        MSS_ReceiptReq receipt = new MSS_ReceiptReq();
+        receipt.setMajorVersion(1);
+        receipt.setMinorVersion(1);
+        receipt.setAP_Info(statusResp.getAP_Info());
+        receipt.setMSSP_Info(statusResp.getMSSP_Info());
+        receipt.setMSSP_TransID(statusResp.getMSSP_TransID());
+        return receipt;
+    }
+
+    private MSS_ReceiptReq dispatch(final MSS_StatusResp statusResp) {
+        for (EtsiNotificationHandler h : this.handlers) {
+            MSS_ReceiptReq receipt = h.onNotification(statusResp);
+            if (receipt != null) {
+                return receipt;
+            }
+        }
+        this.unmatched.incrementAndGet();
+        log.warn("Notification for unknown transaction " + statusResp.getMSSP_TransID());
+        return this.createDefaultReceipt(statusResp);
+    }
+
+    private class NotificationHttpHandler implements HttpHandler {
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            try {
+                if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+
+                MSS_StatusResp statusResp;
+                InputStream is = exchange.getRequestBody();
+                try {
+                    statusResp = EtsiNotificationServer.this.codec.readMessage(is, MSS_StatusResp.class);
+                } catch (IOException ioe) {
+                    log.debug("Invalid notification", ioe);
+                    EtsiNotificationServer.this.failed.incrementAndGet();
+                    this.sendFault(exchange, EtsiSoapCodec.SENDER, ioe.getMessage());
+                    return;
+                } finally {
+                    is.close();
+                }
+                EtsiNotificationServer.this.received.incrementAndGet();
+
+                MSS_ReceiptReq receipt;
+                try {
+                    receipt = EtsiNotificationServer.this.dispatch(statusResp);
+                } catch (RuntimeException e) {
+                    log.error("Notification handler failed", e);
+                    EtsiNotificationServer.this.failed.incrementAndGet();
+                    this.sendFault(exchange, EtsiSoapCodec.RECEIVER, "Internal error");
+                    return;
+                }
+
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+                EtsiNotificationServer.this.codec.writeMessage(baos, "MSS_NotificationResponse", receipt);
+                this.send(exchange, 200, baos);
+            } catch (Throwable t) {
+                log.error("Failed to process notification", t);
+                EtsiNotificationServer.this.failed.incrementAndGet();
+                this.sendFault(exchange, EtsiSoapCodec.RECEIVER, "Internal error");
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void sendFault(final HttpExchange exchange, final QName code, final String reason) {
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(512);
+                EtsiNotificationServer.this.codec.writeFault(baos, code, null, reason);
+                this.send(exchange, 500, baos);
+            } catch (IOException e) {
+                log.debug("Could not send fault", e);
+            }
+        }
+
+        private void send(final HttpExchange exchange, final int status, final ByteArrayOutputStream body)
+            throws IOException
+        {
+            exchange.getResponseHeaders().set("Content-Type", EtsiSoapCodec.CONTENT_TYPE);
+            exchange.sendResponseHeaders(status, body.size());
+            OutputStream os = exchange.getResponseBody();
+            body.writeTo(os);
+            os.close();
+        }
+    }
+
+}
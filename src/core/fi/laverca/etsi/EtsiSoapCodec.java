@@ -0,0 +1,438 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.etsi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.axis.AxisFault;
+import org.exolab.castor.xml.Marshaller;
+import org.exolab.castor.xml.ResolverException;
+import org.exolab.castor.xml.Unmarshaller;
+import org.exolab.castor.xml.XMLContext;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * SOAP 1.2 envelope codec for ETSI TS 102 204 messages.
+ * <p>
+ * Message payloads are marshalled and unmarshalled with Castor, the
+ * same way the Axis Castor serializers do it. The envelopes use the
+ * RPC/literal layout of the MSS_*BindingStubs: the payload element
+ * is wrapped in an unqualified element named after the operation.
+ * <p>
+ * Instances are thread safe.
+ */
+public class EtsiSoapCodec {
+
+    public static final String SOAP12_NS    = "http://www.w3.org/2003/05/soap-envelope";
+    public static final String SOAP11_NS    = "http://schemas.xmlsoap.org/soap/envelope/";
+    public static final String ETSI_NS      = "http://uri.etsi.org/TS102204/v1.1.2#";
+    public static final String CONTENT_TYPE = "application/soap+xml; charset=utf-8";
+
+    public static final QName SENDER   = new QName(SOAP12_NS, "Sender");
+    public static final QName RECEIVER = new QName(SOAP12_NS, "Receiver");
+
+    protected static final String ENV = "soapenv";
+
+    private final XMLContext             castor = new XMLContext();
+    private final DocumentBuilderFactory dbf;
+    private final SAXTransformerFactory  stf;
+
+    public EtsiSoapCodec() {
+        this.dbf = DocumentBuilderFactory.newInstance();
+        this.dbf.setNamespaceAware(true);
+        try {
+            this.dbf.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        } catch (ParserConfigurationException e) {
+            // Parser does not know the feature; DTDs are then left as they are
+        }
+        this.stf = (SAXTransformerFactory)TransformerFactory.newInstance();
+    }
+
+    /**
+     * Write a SOAP envelope carrying the given payload.
+     *
+     * @param os        Stream to write to. Not closed.
+     * @param operation Name of the RPC wrapper element, e.g. "MSS_Signature".
+     *                  If null, the payload is written directly in the body.
+     * @param payload   Castor object to put in the body
+     * @throws IOException if marshalling fails
+     */
+    public void writeMessage(final OutputStream os,
+                             final String       operation,
+                             final Object       payload)
+        throws IOException
+    {
+        if (payload == null) {
+            throw new IllegalArgumentException("null payload not allowed");
+        }
+        try {
+            TransformerHandler th = this.createHandler(os);
+            this.startEnvelope(th);
+            if (operation != null) {
+                th.startElement("", operation, operation, new AttributesImpl());
+            }
+
+            Marshaller m = this.castor.createMarshaller();
+            m.setContentHandler(th);
+            m.setMarshalAsDocument(false);
+            m.marshal(payload);
+
+            if (operation != null) {
+                th.endElement("", operation, operation);
+            }
+            this.endEnvelope(th);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to marshal " + payload.getClass().getSimpleName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Write a SOAP 1.2 Fault envelope.
+     *
+     * @param os       Stream to write to. Not closed.
+     * @param code     Fault code, e.g. {@link #SENDER} or {@link #RECEIVER}
+     * @param subcodes Optional fault subcodes
+     * @param reason   Human readable reason
+     * @throws IOException if writing fails
+     */
+    public void writeFault(final OutputStream os,
+                           final QName        code,
+                           final QName[]      subcodes,
+                           final String       reason)
+        throws IOException
+    {
+        try {
+            TransformerHandler th = this.createHandler(os);
+            this.startEnvelope(th);
+            AttributesImpl none = new AttributesImpl();
+            this.start(th, "Fault", none);
+
+            this.start(th, "Code", none);
+            this.writeValue(th, code);
+            int opened = 0;
+            if (subcodes != null) {
+                for (QName sc : subcodes) {
+                    if (sc == null) {
+                        continue;
+                    }
+                    this.start(th, "Subcode", none);
+                    this.writeValue(th, sc);
+                    opened++;
+                }
+            }
+            for (int i = 0; i < opened; i++) {
+                this.end(th, "Subcode");
+            }
+            this.end(th, "Code");
+
+            this.start(th, "Reason", none);
+            AttributesImpl lang = new AttributesImpl();
+            lang.addAttribute(XMLConstants.XML_NS_URI, "lang", "xml:lang", "CDATA", "en");
+            this.start(th, "Text", lang);
+            String text = reason == null ? "" : reason;
+            th.characters(text.toCharArray(), 0, text.length());
+            this.end(th, "Text");
+            this.end(th, "Reason");
+
+            this.end(th, "Fault");
+            this.endEnvelope(th);
+        } catch (SAXException e) {
+            throw new IOException("Failed to write fault: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Read the payload of a SOAP envelope.
+     * <p>The payload is the first element in the body (or in the RPC
+     * wrapper element) whose local name is the simple name of the type.
+     *
+     * @param is   Stream to read the envelope from. Not closed.
+     * @param type Castor type of the payload, e.g. MSS_StatusResp.class
+     * @return the unmarshalled payload
+     * @throws AxisFault if the envelope carries a SOAP fault
+     * @throws IOException if the envelope can not be parsed
+     */
+    public <T> T readMessage(final InputStream is, final Class<T> type)
+        throws IOException
+    {
+        Element body = this.readBody(is);
+        Element payload = findPayload(body, type.getSimpleName());
+        if (payload == null) {
+            throw new IOException("No " + type.getSimpleName() + " in SOAP body");
+        }
+        return this.unmarshal(payload, type);
+    }
+
+    /**
+     * Unmarshal a payload element with Castor.
+     * <p>Schema validation is not done, so that e.g. the empty
+     * AdditionalServices element Laverca itself sends is accepted.
+     * @param node Element to unmarshal
+     * @param type Castor type of the element
+     * @return the unmarshalled object
+     * @throws IOException if unmarshalling fails
+     */
+    public <T> T unmarshal(final Node node, final Class<T> type)
+        throws IOException
+    {
+        try {
+            Unmarshaller u = this.castor.createUnmarshaller();
+            u.setClass(type);
+            u.setValidation(false);
+            return type.cast(u.unmarshal(node));
+        } catch (Exception e) {
+            throw new IOException("Failed to unmarshal " + type.getSimpleName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Load the Castor class descriptors of whole packages ahead of the
+     * first messages, instead of one class at a time as they are met.
+     * <p>Needs the .castor.cdr descriptor index of each package.
+     * @param packages Packages of Castor generated types, e.g. "org.etsi.uri.TS102204.v1_1_2"
+     * @throws IOException if the descriptors of a package can not be loaded
+     */
+    public void preload(final String... packages) throws IOException {
+        for (String p : packages) {
+            // Castor skips a package without an index silently
+            if (EtsiSoapCodec.class.getClassLoader().getResource(p.replace('.', '/') + "/.castor.cdr") == null) {
+                throw new IOException("No Castor descriptor index for " + p);
+            }
+        }
+        try {
+            this.castor.addPackages(packages);
+        } catch (ResolverException e) {
+            throw new IOException("Failed to load Castor descriptors: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the Castor context of this codec
+     */
+    protected XMLContext getXMLContext() {
+        return this.castor;
+    }
+
+    /**
+     * Parse an envelope and return its body.
+     * @throws AxisFault if the body contains a fault
+     */
+    protected Element readBody(final InputStream is) throws IOException {
+        Document doc;
+        try {
+            DocumentBuilder db = this.dbf.newDocumentBuilder();
+            doc = db.parse(is);
+        } catch (ParserConfigurationException e) {
+            throw new IOException(e.getMessage(), e);
+        } catch (SAXException e) {
+            throw new IOException("Invalid SOAP message: " + e.getMessage(), e);
+        }
+
+        Element env = doc.getDocumentElement();
+        if (env == null || !"Envelope".equals(env.getLocalName())) {
+            throw new IOException("Not a SOAP envelope");
+        }
+        String envNs = env.getNamespaceURI();
+        Element body = firstChild(env, envNs, "Body");
+        if (body == null) {
+            throw new IOException("No SOAP body");
+        }
+        Element fault = firstChild(body, envNs, "Fault");
+        if (fault != null) {
+            throw toAxisFault(fault);
+        }
+        return body;
+    }
+
+    /**
+     * Find the payload element either directly in the body or
+     * inside the RPC wrapper element.
+     */
+    private static Element findPayload(final Element body, final String localName) {
+        for (Node n = body.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            if (localName.equals(n.getLocalName())) {
+                return (Element)n;
+            }
+            for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+                if (c.getNodeType() == Node.ELEMENT_NODE && localName.equals(c.getLocalName())) {
+                    return (Element)c;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Element firstChild(final Element parent, final String ns, final String localName) {
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n.getNodeType() == Node.ELEMENT_NODE
+                && localName.equals(n.getLocalName())
+                && (ns == null || ns.equals(n.getNamespaceURI())))
+            {
+                return (Element)n;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Convert a SOAP 1.1 or 1.2 Fault element to an AxisFault with
+     * the same code, subcodes and reason.
+     */
+    private static AxisFault toAxisFault(final Element fault) {
+        String ns = fault.getNamespaceURI();
+        if (SOAP11_NS.equals(ns)) {
+            Element code   = firstChild(fault, null, "faultcode");
+            Element reason = firstChild(fault, null, "faultstring");
+            QName qcode = code == null ? RECEIVER : toQName(code, code.getTextContent());
+            return new AxisFault(qcode, reason == null ? null : reason.getTextContent(), null, null);
+        }
+
+        QName       code     = RECEIVER;
+        List<QName> subcodes = new ArrayList<QName>();
+        Element c = firstChild(fault, ns, "Code");
+        if (c != null) {
+            Element v = firstChild(c, ns, "Value");
+            if (v != null) {
+                code = toQName(v, v.getTextContent());
+            }
+            Element sc = firstChild(c, ns, "Subcode");
+            while (sc != null) {
+                Element sv = firstChild(sc, ns, "Value");
+                if (sv != null) {
+                    subcodes.add(toQName(sv, sv.getTextContent()));
+                }
+                sc = firstChild(sc, ns, "Subcode");
+            }
+        }
+        String text = null;
+        Element r = firstChild(fault, ns, "Reason");
+        if (r != null) {
+            Element t = firstChild(r, ns, "Text");
+            if (t != null) {
+                text = t.getTextContent();
+            }
+        }
+        return new AxisFault(code,
+                             subcodes.isEmpty() ? null : subcodes.toArray(new QName[subcodes.size()]),
+                             text, null, null, null);
+    }
+
+    private static QName toQName(final Element context, final String value) {
+        String v = value == null ? "" : value.trim();
+        int i = v.indexOf(':');
+        String prefix = i > 0 ? v.substring(0, i) : null;
+        String local  = i > 0 ? v.substring(i + 1) : v;
+        String ns     = context.lookupNamespaceURI(prefix);
+        if (ns == null) {
+            return prefix == null ? new QName(local) : new QName("", local, prefix);
+        }
+        return new QName(ns, local, prefix == null ? "" : prefix);
+    }
+
+    private TransformerHandler createHandler(final OutputStream os) throws IOException {
+        try {
+            TransformerHandler th = this.stf.newTransformerHandler();
+            th.getTransformer().setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+            th.setResult(new StreamResult(os));
+            return th;
+        } catch (TransformerConfigurationException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private void startEnvelope(final ContentHandler ch) throws SAXException {
+        ch.startDocument();
+        ch.startPrefixMapping(ENV, SOAP12_NS);
+        AttributesImpl none = new AttributesImpl();
+        this.start(ch, "Envelope", none);
+        this.start(ch, "Body", none);
+    }
+
+    private void endEnvelope(final ContentHandler ch) throws SAXException {
+        this.end(ch, "Body");
+        this.end(ch, "Envelope");
+        ch.endPrefixMapping(ENV);
+        ch.endDocument();
+    }
+
+    private void writeValue(final ContentHandler ch, final QName value) throws SAXException {
+        String prefix = value.getPrefix();
+        String ns     = value.getNamespaceURI();
+        String text;
+        boolean mapped = false;
+        if (SOAP12_NS.equals(ns)) {
+            text = ENV + ":" + value.getLocalPart();
+        } else if (ns != null && ns.length() > 0) {
+            if (prefix == null || prefix.length() == 0 || ENV.equals(prefix)) {
+                prefix = "ns";
+            }
+            ch.startPrefixMapping(prefix, ns);
+            mapped = true;
+            text = prefix + ":" + value.getLocalPart();
+        } else {
+            text = value.getLocalPart();
+        }
+        AttributesImpl attrs = new AttributesImpl();
+        if (mapped) {
+            attrs.addAttribute("", "", "xmlns:" + prefix, "CDATA", ns);
+        }
+        this.start(ch, "Value", attrs);
+        ch.characters(text.toCharArray(), 0, text.length());
+        this.end(ch, "Value");
+        if (mapped) {
+            ch.endPrefixMapping(prefix);
+        }
+    }
+
+    private void start(final ContentHandler ch, final String local, final AttributesImpl attrs) throws SAXException {
+        ch.startElement(SOAP12_NS, local, ENV + ":" + local, attrs);
+    }
+
+    private void end(final ContentHandler ch, final String local) throws SAXException {
+        ch.endElement(SOAP12_NS, local, ENV + ":" + local);
+    }
+
+}
@@ -0,0 +1,1312 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.etsi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.axis.AxisFault;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.etsi.uri.TS102204.v1_1_2.AP_Info;
+import org.etsi.uri.TS102204.v1_1_2.DataToBeDisplayed;
+import org.etsi.uri.TS102204.v1_1_2.DataToBeSigned;
+import org.etsi.uri.TS102204.v1_1_2.DataType;
+import org.etsi.uri.TS102204.v1_1_2.MSSP_ID;
+import org.etsi.uri.TS102204.v1_1_2.MSSP_Info;
+import org.etsi.uri.TS102204.v1_1_2.MSS_Format;
+import org.etsi.uri.TS102204.v1_1_2.MSS_ReceiptReq;
+import org.etsi.uri.TS102204.v1_1_2.MSS_ReceiptResp;
+import org.etsi.uri.TS102204.v1_1_2.MSS_Signature;
+import org.etsi.uri.TS102204.v1_1_2.MSS_SignatureReq;
+import org.etsi.uri.TS102204.v1_1_2.MSS_SignatureResp;
+import org.etsi.uri.TS102204.v1_1_2.MSS_StatusReq;
+import org.etsi.uri.TS102204.v1_1_2.MSS_StatusResp;
+import org.etsi.uri.TS102204.v1_1_2.MeshMemberType;
+import org.etsi.uri.TS102204.v1_1_2.Message;
+import org.etsi.uri.TS102204.v1_1_2.MessageAbstractType;
+import org.etsi.uri.TS102204.v1_1_2.MobileUser;
+import org.etsi.uri.TS102204.v1_1_2.MssURIType;
+import org.etsi.uri.TS102204.v1_1_2.SignatureProfile;
+import org.etsi.uri.TS102204.v1_1_2.Status;
+import org.etsi.uri.TS102204.v1_1_2.StatusCode;
+import org.etsi.uri.TS102204.v1_1_2.StatusCodeType;
+import org.etsi.uri.TS102204.v1_1_2.types.MessagingModeType;
+import org.etsi.uri.TS102204.v1_1_2.types.SignatureProfileComparisonType;
+import org.exolab.castor.xml.Marshaller;
+import org.exolab.castor.xml.NodeType;
+import org.exolab.castor.xml.SAX2EventProducer;
+import org.exolab.castor.xml.Unmarshaller;
+import org.exolab.castor.xml.XMLClassDescriptor;
+import org.exolab.castor.xml.XMLFieldDescriptor;
+import org.exolab.castor.xml.util.SAX2ANY;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Streaming SOAP 1.2 codec for ETSI TS 102 204 messages.
+ * <p>
+ * The signature, status query and receipt messages are written to and
+ * read from the stream directly with StAX, without building a DOM tree
+ * or going through Castor's introspection. Content this codec does not
+ * know, e.g. AdditionalServices, KeyReference, StatusDetail or a
+ * non-Base64 MSS_Signature, is handed to Castor as before. Handshake,
+ * profile query and registration messages are always done by Castor.
+ * <p>
+ * The output is the same XML infoset the {@link EtsiSoapCodec} writes.
+ * <p>
+ * Instances are thread safe.
+ */
+public class StaxEtsiCodec extends EtsiSoapCodec {
+
+    private static final Log log = LogFactory.getLog(StaxEtsiCodec.class);
+
+    // Same form as Castor writes xsd:dateTime, in the default time zone
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+
+    private final XMLInputFactory  xif;
+    private final XMLOutputFactory xof;
+
+    private final ConcurrentMap<Class<?>, XMLClassDescriptor> descriptors = new ConcurrentHashMap<Class<?>, XMLClassDescriptor>();
+
+    public StaxEtsiCodec() {
+        super();
+        this.xif = XMLInputFactory.newInstance();
+        this.xif.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        this.xif.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        this.xif.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        this.xof = XMLOutputFactory.newInstance();
+    }
+
+    @Override
+    public void writeMessage(final OutputStream os,
+                             final String       operation,
+                             final Object       payload)
+        throws IOException
+    {
+        if (payload == null) {
+            throw new IllegalArgumentException("null payload not allowed");
+        }
+        try {
+            XMLStreamWriter w = this.xof.createXMLStreamWriter(os, "UTF-8");
+            w.writeStartDocument("UTF-8", "1.0");
+            w.writeStartElement(ENV, "Envelope", SOAP12_NS);
+            declare(w, ENV, SOAP12_NS);
+            w.writeStartElement(ENV, "Body", SOAP12_NS);
+            if (operation != null) {
+                w.writeStartElement(operation);
+            }
+            this.writePayload(w, payload);
+            if (operation != null) {
+                w.writeEndElement();
+            }
+            w.writeEndElement();
+            w.writeEndElement();
+            w.writeEndDocument();
+            w.flush();
+            w.close(); // Does not close os
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to marshal " + payload.getClass().getSimpleName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public <T> T readMessage(final InputStream is, final Class<T> type)
+        throws IOException
+    {
+        XMLStreamReader r = null;
+        try {
+            r = this.xif.createXMLStreamReader(is);
+            this.findPayload(r, type.getSimpleName());
+            return type.cast(this.readPayload(r, type));
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid SOAP message: " + e.getMessage(), e);
+        } finally {
+            if (r != null) {
+                try {
+                    r.close(); // Does not close is
+                } catch (XMLStreamException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- writing
+
+    private void writePayload(final XMLStreamWriter w, final Object payload)
+        throws XMLStreamException, IOException
+    {
+        if (payload instanceof MSS_SignatureReq) {
+            this.writeSignatureReq(w, (MSS_SignatureReq)payload);
+        } else if (payload instanceof MSS_SignatureResp) {
+            this.writeSignatureResp(w, (MSS_SignatureResp)payload);
+        } else if (payload instanceof MSS_StatusReq) {
+            this.writeStatusReq(w, (MSS_StatusReq)payload);
+        } else if (payload instanceof MSS_StatusResp) {
+            this.writeStatusResp(w, (MSS_StatusResp)payload);
+        } else if (payload instanceof MSS_ReceiptReq) {
+            this.writeReceiptReq(w, (MSS_ReceiptReq)payload);
+        } else if (payload instanceof MSS_ReceiptResp) {
+            this.writeReceiptResp(w, (MSS_ReceiptResp)payload);
+        } else {
+            this.marshal(w, payload);
+        }
+    }
+
+    private void writeSignatureReq(final XMLStreamWriter w, final MSS_SignatureReq req)
+        throws XMLStreamException, IOException
+    {
+        this.startMessage(w, "MSS_SignatureReq", req);
+        if (req.getValidityDate() != null) {
+            w.writeAttribute("ValidityDate", formatDate(req.getValidityDate()));
+        }
+        if (req.hasTimeOut()) {
+            w.writeAttribute("TimeOut", Long.toString(req.getTimeOut()));
+        }
+        if (req.getMessagingMode() != null) {
+            w.writeAttribute("MessagingMode", req.getMessagingMode().toString());
+        }
+        this.writeInfos(w, req);
+        this.writeMobileUser(w, req.getMobileUser());
+        this.writeData(w, "DataToBeSigned", req.getDataToBeSigned());
+        this.writeData(w, "DataToBeDisplayed", req.getDataToBeDisplayed());
+        this.writeMssURI(w, "SignatureProfile", req.getSignatureProfile());
+        this.marshal(w, req.getAdditionalServices());
+        this.writeMssURI(w, "MSS_Format", req.getMSS_Format());
+        this.marshal(w, req.getKeyReference());
+        if (req.getSignatureProfileComparison() != null) {
+            writeText(w, "SignatureProfileComparison", req.getSignatureProfileComparison().toString());
+        }
+        w.writeEndElement();
+    }
+
+    private void writeSignatureResp(final XMLStreamWriter w, final MSS_SignatureResp resp)
+        throws XMLStreamException, IOException
+    {
+        this.startMessage(w, "MSS_SignatureResp", resp);
+        writeAttribute(w, "MSSP_TransID", resp.getMSSP_TransID());
+        this.writeInfos(w, resp);
+        this.writeMobileUser(w, resp.getMobileUser());
+        this.writeSignature(w, resp.getMSS_Signature());
+        this.writeMssURI(w, "SignatureProfile", resp.getSignatureProfile());
+        this.writeStatus(w, resp.getStatus());
+        w.writeEndElement();
+    }
+
+    private void writeStatusReq(final XMLStreamWriter w, final MSS_StatusReq req)
+        throws XMLStreamException, IOException
+    {
+        this.startMessage(w, "MSS_StatusReq", req);
+        writeAttribute(w, "MSSP_TransID", req.getMSSP_TransID());
+        this.writeInfos(w, req);
+        w.writeEndElement();
+    }
+
+    private void writeStatusResp(final XMLStreamWriter w, final MSS_StatusResp resp)
+        throws XMLStreamException, IOException
+    {
+        this.startMessage(w, "MSS_StatusResp", resp);
+        writeAttribute(w, "MSSP_TransID", resp.getMSSP_TransID());
+        this.writeInfos(w, resp);
+        this.writeMobileUser(w, resp.getMobileUser());
+        this.writeSignature(w, resp.getMSS_Signature());
+        this.writeStatus(w, resp.getStatus());
+        w.writeEndElement();
+    }
+
+    private void writeReceiptReq(final XMLStreamWriter w, final MSS_ReceiptReq req)
+        throws XMLStreamException, IOException
+    {
+        this.startMessage(w, "MSS_ReceiptReq", req);
+        writeAttribute(w, "MSSP_TransID", req.getMSSP_TransID());
+        this.writeInfos(w, req);
+        this.writeMobileUser(w, req.getMobileUser());
+        this.writeStatus(w, req.getStatus());
+        this.writeData(w, "Message", req.getMessage());
+        this.marshal(w, req.getSignedReceipt());
+        w.writeEndElement();
+    }
+
+    private void writeReceiptResp(final XMLStreamWriter w, final MSS_ReceiptResp resp)
+        throws XMLStreamException, IOException
+    {
+        this.startMessage(w, "MSS_ReceiptResp", resp);
+        this.writeInfos(w, resp);
+        this.writeStatus(w, resp.getStatus());
+        w.writeEndElement();
+    }
+
+    /**
+     * Start the payload element and write the MessageAbstractType attributes.
+     */
+    private void startMessage(final XMLStreamWriter w, final String name, final MessageAbstractType mat)
+        throws XMLStreamException
+    {
+        w.writeStartElement(name);
+        declare(w, "", ETSI_NS);
+        if (mat.hasMajorVersion()) {
+            w.writeAttribute("MajorVersion", Long.toString(mat.getMajorVersion()));
+        }
+        if (mat.hasMinorVersion()) {
+            w.writeAttribute("MinorVersion", Long.toString(mat.getMinorVersion()));
+        }
+    }
+
+    /**
+     * Write the AP_Info and MSSP_Info elements of the MessageAbstractType.
+     */
+    private void writeInfos(final XMLStreamWriter w, final MessageAbstractType mat)
+        throws XMLStreamException, IOException
+    {
+        AP_Info ai = mat.getAP_Info();
+        if (ai != null) {
+            w.writeEmptyElement("AP_Info");
+            writeAttribute(w, "AP_ID", ai.getAP_ID());
+            writeAttribute(w, "AP_TransID", ai.getAP_TransID());
+            writeAttribute(w, "AP_PWD", ai.getAP_PWD());
+            if (ai.getInstant() != null) {
+                w.writeAttribute("Instant", formatDate(ai.getInstant()));
+            }
+            writeAttribute(w, "AP_URL", ai.getAP_URL());
+        }
+        MSSP_Info mi = mat.getMSSP_Info();
+        if (mi != null) {
+            w.writeStartElement("MSSP_Info");
+            if (mi.getInstant() != null) {
+                w.writeAttribute("Instant", formatDate(mi.getInstant()));
+            }
+            this.writeMeshMember(w, "MSSP_ID", mi.getMSSP_ID());
+            w.writeEndElement();
+        }
+    }
+
+    private void writeMeshMember(final XMLStreamWriter w, final String name, final MeshMemberType mm)
+        throws XMLStreamException
+    {
+        if (mm == null) {
+            return;
+        }
+        w.writeStartElement(name);
+        writeText(w, "DNSName",          mm.getDNSName());
+        writeText(w, "IPAddress",        mm.getIPAddress());
+        writeText(w, "URI",              mm.getURI());
+        writeText(w, "IdentifierString", mm.getIdentifierString());
+        w.writeEndElement();
+    }
+
+    private void writeMobileUser(final XMLStreamWriter w, final MobileUser mu)
+        throws XMLStreamException, IOException
+    {
+        if (mu == null) {
+            return;
+        }
+        w.writeStartElement("MobileUser");
+        this.marshal(w, mu.getIdentityIssuer());
+        writeText(w, "UserIdentifier", mu.getUserIdentifier());
+        this.marshal(w, mu.getHomeMSSP());
+        writeText(w, "MSISDN", mu.getMSISDN());
+        w.writeEndElement();
+    }
+
+    private void writeData(final XMLStreamWriter w, final String name, final DataType data)
+        throws XMLStreamException
+    {
+        if (data == null) {
+            return;
+        }
+        w.writeStartElement(name);
+        writeAttribute(w, "MimeType", data.getMimeType());
+        writeAttribute(w, "Encoding", data.getEncoding());
+        if (data.getContent() != null) {
+            w.writeCharacters(data.getContent());
+        }
+        w.writeEndElement();
+    }
+
+    private void writeMssURI(final XMLStreamWriter w, final String name, final MssURIType uri)
+        throws XMLStreamException, IOException
+    {
+        if (uri == null) {
+            return;
+        }
+        w.writeStartElement(name);
+        writeText(w, "mssURI", uri.getMssURI());
+        this.marshal(w, uri.getDigestAlgAndValue());
+        for (Object o : uri.getAnyObject()) {
+            this.marshal(w, o);
+        }
+        w.writeEndElement();
+    }
+
+    private void writeSignature(final XMLStreamWriter w, final MSS_Signature sig)
+        throws XMLStreamException, IOException
+    {
+        if (sig == null) {
+            return;
+        }
+        if (sig.getBase64Signature() == null) {
+            this.marshal(w, sig);
+            return;
+        }
+        w.writeStartElement("MSS_Signature");
+        writeText(w, "Base64Signature", Base64.getEncoder().encodeToString(sig.getBase64Signature()));
+        w.writeEndElement();
+    }
+
+    private void writeStatus(final XMLStreamWriter w, final Status status)
+        throws XMLStreamException, IOException
+    {
+        if (status == null) {
+            return;
+        }
+        w.writeStartElement("Status");
+        this.writeStatusCode(w, status.getStatusCode());
+        writeText(w, "StatusMessage", status.getStatusMessage());
+        this.marshal(w, status.getStatusDetail());
+        w.writeEndElement();
+    }
+
+    private void writeStatusCode(final XMLStreamWriter w, final StatusCodeType code)
+        throws XMLStreamException
+    {
+        if (code == null) {
+            return;
+        }
+        w.writeStartElement("StatusCode");
+        if (code.hasValue()) {
+            w.writeAttribute("Value", Long.toString(code.getValue()));
+        }
+        this.writeStatusCode(w, code.getStatusCode());
+        w.writeEndElement();
+    }
+
+    /**
+     * Marshal an object with Castor into the stream.
+     * Does nothing if the object is null.
+     */
+    private void marshal(final XMLStreamWriter w, final Object o)
+        throws IOException
+    {
+        if (o == null) {
+            return;
+        }
+        try {
+            Marshaller m = this.getXMLContext().createMarshaller();
+            m.setContentHandler(new StreamWriterHandler(w));
+            m.setMarshalAsDocument(false);
+            m.marshal(o);
+        } catch (Exception e) {
+            throw new IOException("Failed to marshal " + o.getClass().getSimpleName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void writeText(final XMLStreamWriter w, final String name, final String text)
+        throws XMLStreamException
+    {
+        if (text == null) {
+            return;
+        }
+        w.writeStartElement(name);
+        w.writeCharacters(text);
+        w.writeEndElement();
+    }
+
+    private static void writeAttribute(final XMLStreamWriter w, final String name, final String value)
+        throws XMLStreamException
+    {
+        if (value != null) {
+            w.writeAttribute(name, value);
+        }
+    }
+
+    private static void declare(final XMLStreamWriter w, final String prefix, final String ns)
+        throws XMLStreamException
+    {
+        if (prefix == null || prefix.length() == 0) {
+            w.writeDefaultNamespace(ns);
+            w.setDefaultNamespace(ns);
+        } else {
+            w.writeNamespace(prefix, ns);
+            w.setPrefix(prefix, ns);
+        }
+    }
+
+    private static String formatDate(final Date d) {
+        return DATE_FORMAT.format(d.toInstant().atZone(ZoneId.systemDefault()));
+    }
+
+    // ---------------------------------------------------------------- reading
+
+    /**
+     * Move the reader to the start of the payload element, either directly
+     * in the body or inside the RPC wrapper element.
+     * @throws AxisFault if the body contains a fault
+     */
+    private void findPayload(final XMLStreamReader r, final String localName)
+        throws XMLStreamException, IOException
+    {
+        if (r.nextTag() != XMLStreamConstants.START_ELEMENT || !"Envelope".equals(r.getLocalName())) {
+            throw new IOException("Not a SOAP envelope");
+        }
+        String envNs = r.getNamespaceURI();
+
+        boolean body = false;
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if ("Body".equals(r.getLocalName()) && equals(envNs, r.getNamespaceURI())) {
+                body = true;
+                break;
+            }
+            skip(r); // Header
+        }
+        if (!body) {
+            throw new IOException("No SOAP body");
+        }
+
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if ("Fault".equals(r.getLocalName()) && equals(envNs, r.getNamespaceURI())) {
+                throw readFault(r);
+            }
+            if (localName.equals(r.getLocalName())) {
+                return;
+            }
+            while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if (localName.equals(r.getLocalName())) {
+                    return;
+                }
+                skip(r);
+            }
+        }
+        throw new IOException("No " + localName + " in SOAP body");
+    }
+
+    private Object readPayload(final XMLStreamReader r, final Class<?> type)
+        throws XMLStreamException, IOException
+    {
+        if (type == MSS_SignatureReq.class) {
+            return this.readSignatureReq(r);
+        } else if (type == MSS_SignatureResp.class) {
+            return this.readSignatureResp(r);
+        } else if (type == MSS_StatusReq.class) {
+            return this.readStatusReq(r);
+        } else if (type == MSS_StatusResp.class) {
+            return this.readStatusResp(r);
+        } else if (type == MSS_ReceiptReq.class) {
+            return this.readReceiptReq(r);
+        } else if (type == MSS_ReceiptResp.class) {
+            return this.readReceiptResp(r);
+        }
+        return this.unmarshal(r, type);
+    }
+
+    private MSS_SignatureReq readSignatureReq(final XMLStreamReader r)
+        throws XMLStreamException, IOException
+    {
+        MSS_SignatureReq req = new MSS_SignatureReq();
+        for (int i = 0; i < r.getAttributeCount(); i++) {
+            String name  = r.getAttributeLocalName(i);
+            String value = r.getAttributeValue(i);
+            if (readVersion(req, name, value)) {
+                continue;
+            }
+            if ("ValidityDate".equals(name)) {
+                req.setValidityDate(parseDate(value));
+            } else if ("TimeOut".equals(name)) {
+                req.setTimeOut(parseLong(value));
+            } else if ("MessagingMode".equals(name)) {
+                req.setMessagingMode(MessagingModeType.fromValue(value.trim()));
+            }
+        }
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = etsiName(r);
+            if (this.readInfo(r, req, name)) {
+                continue;
+            }
+            if ("MobileUser".equals(name)) {
+                req.setMobileUser(this.readMobileUser(r));
+            } else if ("DataToBeSigned".equals(name)) {
+                req.setDataToBeSigned(this.readData(r, new DataToBeSigned()));
+            } else if ("DataToBeDisplayed".equals(name)) {
+                req.setDataToBeDisplayed(this.readData(r, new DataToBeDisplayed()));
+            } else if ("SignatureProfile".equals(name)) {
+                req.setSignatureProfile(this.readMssURI(r, new SignatureProfile()));
+            } else if ("MSS_Format".equals(name)) {
+                req.setMSS_Format(this.readMssURI(r, new MSS_Format()));
+            } else if ("SignatureProfileComparison".equals(name)) {
+                req.setSignatureProfileComparison(SignatureProfileComparisonType.fromValue(r.getElementText().trim()));
+            } else {
+                this.readOther(r, req);
+            }
+        }
+        return req;
+    }
+
+    private MSS_SignatureResp readSignatureResp(final XMLStreamReader r)
+        throws XMLStreamException, IOException
+    {
+        MSS_SignatureResp resp = new MSS_SignatureResp();
+        for (int i = 0; i < r.getAttributeCount(); i++) {
+            String name  = r.getAttributeLocalName(i);
+            String value = r.getAttributeValue(i);
+            if (!readVersion(resp, name, value) && "MSSP_TransID".equals(name)) {
+                resp.setMSSP_TransID(value);
+            }
+        }
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = etsiName(r);
+            if (this.readInfo(r, resp, name)) {
+                continue;
+            }
+            if ("MobileUser".equals(name)) {
+                resp.setMobileUser(this.readMobileUser(r));
+            } else if ("MSS_Signature".equals(name)) {
+                resp.setMSS_Signature(this.readSignature(r));
+            } else if ("SignatureProfile".equals(name)) {
+                resp.setSignatureProfile(this.readMssURI(r, new SignatureProfile()));
+            } else if ("Status".equals(name)) {
+                resp.setStatus(this.readStatus(r));
+            } else {
+                this.readOther(r, resp);
+            }
+        }
+        return resp;
+    }
+
+    private MSS_StatusReq readStatusReq(final XMLStreamReader r)
+        throws XMLStreamException, IOException
+    {
+        MSS_StatusReq req = new MSS_StatusReq();
+        for (int i = 0; i < r.getAttributeCount(); i++) {
+            String name  = r.getAttributeLocalName(i);
+            String value = r.getAttributeValue(i);
+            if (!readVersion(req, name, value) && "MSSP_TransID".equals(name)) {
+                req.setMSSP_TransID(value);
+            }
+        }
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (!this.readInfo(r, req, etsiName(r))) {
+                this.readOther(r, req);
+            }
+        }
+        return req;
+    }
+
+    private MSS_StatusResp readStatusResp(final XMLStreamReader r)
+        throws XMLStreamException, IOException
+    {
+        MSS_StatusResp resp = new MSS_StatusResp();
+        for (int i = 0; i < r.getAttributeCount(); i++) {
+            String name  = r.getAttributeLocalName(i);
+            String value = r.getAttributeValue(i);
+            if (!readVersion(resp, name, value) && "MSSP_TransID".equals(name)) {
+                resp.setMSSP_TransID(value);
+            }
+        }
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = etsiName(r);
+            if (this.readInfo(r, resp, name)) {
+                continue;
+            }
+            if ("MobileUser".equals(name)) {
+                resp.setMobileUser(this.readMobileUser(r));
+            } else if ("MSS_Signature".equals(name)) {
+                resp.setMSS_Signature(this.readSignature(r));
+            } else if ("Status".equals(name)) {
+                resp.setStatus(this.readStatus(r));
+            } else {
+                this.readOther(r, resp);
+            }
+        }
+        return resp;
+    }
+
+    private MSS_ReceiptReq readReceiptReq(final XMLStreamReader r)
+        throws XMLStreamException, IOException
+    {
+        MSS_ReceiptReq req = new MSS_ReceiptReq();
+        for (int i = 0; i < r.getAttributeCount(); i++) {
+            String name  = r.getAttributeLocalName(i);
+            String value = r.getAttributeValue(i);
+            if (!readVersion(req, name, value) && "MSSP_TransID".equals(name)) {
+                req.setMSSP_TransID(value);
+            }
+        }
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = etsiName(r);
+            if (this.readInfo(r, req, name)) {
+                continue;
+            }
+            if ("MobileUser".equals(name)) {
+                req.setMobileUser(this.readMobileUser(r));
+            } else if ("Status".equals(name)) {
+                req.setStatus(this.readStatus(r));
+            } else if ("Message".equals(name)) {
+                req.setMessage(this.readData(r, new Message()));
+            } else {
+                this.readOther(r, req);
+            }
+        }
+        return req;
+    }
+
+    private MSS_ReceiptResp readReceiptResp(final XMLStreamReader r)
+        throws XMLStreamException, IOException
+    {
+        MSS_ReceiptResp resp = new MSS_ReceiptResp();
+        for (int i = 0; i < r.getAttributeCount(); i++) {
+            readVersion(resp, r.getAttributeLocalName(i), r.getAttributeValue(i));
+        }
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = etsiName(r);
+            if (this.readInfo(r, resp, name)) {
+                continue;
+            }
+            if ("Status".equals(name)) {
+                resp.setStatus(this.readStatus(r));
+            } else {
+                this.readOther(r, resp);
+            }
+        }
+        return resp;
+    }
+
+    private static boolean readVersion(final MessageAbstractType mat, final String name, final String value)
+        throws IOException
+    {
+        if ("MajorVersion".equals(name)) {
+            mat.setMajorVersion(parseLong(value));
+            return true;
+        }
+        if ("MinorVersion".equals(name)) {
+            mat.setMinorVersion(parseLong(value));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Read AP_Info or MSSP_Info into the MessageAbstractType.
+     * @return false if the current element is neither
+     */
+    private boolean readInfo(final XMLStreamReader r, final MessageAbstractType mat, final String name)
+        throws XMLStreamException, IOException
+    {
+        if ("AP_Info".equals(name)) {
+            AP_Info ai = new AP_Info();
+            for (int i = 0; i < r.getAttributeCount(); i++) {
+                String a = r.getAttributeLocalName(i);
+                String v = r.getAttributeValue(i);
+                if ("AP_ID".equals(a)) {
+                    ai.setAP_ID(v);
+                } else if ("AP_TransID".equals(a)) {
+                    ai.setAP_TransID(v);
+                } else if ("AP_PWD".equals(a)) {
+                    ai.setAP_PWD(v);
+                } else if ("Instant".equals(a)) {
+                    ai.setInstant(parseDate(v));
+                } else if ("AP_URL".equals(a)) {
+                    ai.setAP_URL(v);
+                }
+            }
+            skip(r);
+            mat.setAP_Info(ai);
+            return true;
+        }
+        if ("MSSP_Info".equals(name)) {
+            MSSP_Info mi = new MSSP_Info();
+            for (int i = 0; i < r.getAttributeCount(); i++) {
+                if ("Instant".equals(r.getAttributeLocalName(i))) {
+                    mi.setInstant(parseDate(r.getAttributeValue(i)));
+                }
+            }
+            while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if ("MSSP_ID".equals(etsiName(r))) {
+                    mi.setMSSP_ID(this.readMeshMember(r, new MSSP_ID()));
+                } else {
+                    this.readOther(r, mi);
+                }
+            }
+            mat.setMSSP_Info(mi);
+            return true;
+        }
+        return false;
+    }
+
+    private <T extends MeshMemberType> T readMeshMember(final XMLStreamReader r, final T mm)
+        throws XMLStreamException, IOException
+    {
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = etsiName(r);
+            if ("DNSName".equals(name)) {
+                mm.setDNSName(r.getElementText());
+            } else if ("IPAddress".equals(name)) {
+                mm.setIPAddress(r.getElementText());
+            } else if ("URI".equals(name)) {
+                mm.setURI(r.getElementText());
+            } else if ("IdentifierString".equals(name)) {
+                mm.setIdentifierString(r.getElementText());
+            } else {
+                this.readOther(r, mm);
+            }
+        }
+        return mm;
+    }
+
+    private MobileUser readMobileUser(final XMLStreamReader r)
+        throws XMLStreamException, IOException
+    {
+        MobileUser mu = new MobileUser();
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = etsiName(r);
+            if ("MSISDN".equals(name)) {
+                mu.setMSISDN(r.getElementText());
+            } else if ("UserIdentifier".equals(name)) {
+                mu.setUserIdentifier(r.getElementText());
+            } else {
+                this.readOther(r, mu);
+            }
+        }
+        return mu;
+    }
+
+    private <T extends DataType> T readData(final XMLStreamReader r, final T data)
+        throws XMLStreamException
+    {
+        for (int i = 0; i < r.getAttributeCount(); i++) {
+            String a = r.getAttributeLocalName(i);
+            if ("MimeType".equals(a)) {
+                data.setMimeType(r.getAttributeValue(i));
+            } else if ("Encoding".equals(a)) {
+                data.setEncoding(r.getAttributeValue(i));
+            }
+        }
+        data.setContent(r.getElementText());
+        return data;
+    }
+
+    private <T extends MssURIType> T readMssURI(final XMLStreamReader r, final T uri)
+        throws XMLStreamException, IOException
+    {
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if ("mssURI".equals(etsiName(r))) {
+                uri.setMssURI(r.getElementText());
+            } else {
+                this.readOther(r, uri);
+            }
+        }
+        return uri;
+    }
+
+    private MSS_Signature readSignature(final XMLStreamReader r)
+        throws XMLStreamException, IOException
+    {
+        MSS_Signature sig = new MSS_Signature();
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if ("Base64Signature".equals(etsiName(r))) {
+                try {
+                    sig.setBase64Signature(Base64.getMimeDecoder().decode(r.getElementText().trim()));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid Base64Signature: " + e.getMessage(), e);
+                }
+            } else {
+                this.readOther(r, sig);
+            }
+        }
+        return sig;
+    }
+
+    private Status readStatus(final XMLStreamReader r)
+        throws XMLStreamException, IOException
+    {
+        Status status = new Status();
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = etsiName(r);
+            if ("StatusCode".equals(name)) {
+                status.setStatusCode(this.readStatusCode(r));
+            } else if ("StatusMessage".equals(name)) {
+                status.setStatusMessage(r.getElementText());
+            } else {
+                this.readOther(r, status);
+            }
+        }
+        return status;
+    }
+
+    private StatusCode readStatusCode(final XMLStreamReader r)
+        throws XMLStreamException, IOException
+    {
+        StatusCode code = new StatusCode();
+        for (int i = 0; i < r.getAttributeCount(); i++) {
+            if ("Value".equals(r.getAttributeLocalName(i))) {
+                code.setValue(parseLong(r.getAttributeValue(i)));
+            }
+        }
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if ("StatusCode".equals(etsiName(r))) {
+                code.setStatusCode(this.readStatusCode(r));
+            } else {
+                this.readOther(r, code);
+            }
+        }
+        return code;
+    }
+
+    /**
+     * Read an element this codec does not decode itself. The element is
+     * unmarshalled with Castor into the field of the parent it belongs to.
+     * Elements Castor does not know either are skipped.
+     */
+    private void readOther(final XMLStreamReader r, final Object parent)
+        throws XMLStreamException, IOException
+    {
+        XMLFieldDescriptor fd = this.getFieldDescriptor(parent.getClass(), r.getLocalName(), r.getNamespaceURI());
+        if (fd == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Skipping unknown element " + r.getName() + " in " + parent.getClass().getSimpleName());
+            }
+            skip(r);
+            return;
+        }
+        Object value;
+        if (fd.getXMLName() == null || fd.getFieldType() == Object.class) {
+            // Wildcard
+            SAX2ANY any = new SAX2ANY();
+            StreamEventProducer p = new StreamEventProducer(r);
+            p.setContentHandler(any);
+            try {
+                p.start();
+            } catch (SAXException e) {
+                throw new IOException("Failed to read " + r.getLocalName() + ": " + e.getMessage(), e);
+            }
+            value = any.getStartingNode();
+        } else {
+            value = this.unmarshal(r, fd.getFieldType());
+        }
+        try {
+            fd.getHandler().setValue(parent, value);
+        } catch (RuntimeException e) {
+            throw new IOException("Failed to set " + r.getLocalName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Unmarshal the current element with Castor. Castor reads the
+     * events of the element only and leaves the reader at its end.
+     */
+    private Object unmarshal(final XMLStreamReader r, final Class<?> type)
+        throws IOException
+    {
+        try {
+            Unmarshaller u = this.getXMLContext().createUnmarshaller();
+            u.setClass(type);
+            u.setValidation(false);
+            return u.unmarshal(new StreamEventProducer(r));
+        } catch (Exception e) {
+            throw new IOException("Failed to unmarshal " + type.getSimpleName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private XMLFieldDescriptor getFieldDescriptor(final Class<?> type, final String localName, final String ns) {
+        XMLClassDescriptor cd = this.descriptors.get(type);
+        if (cd == null) {
+            try {
+                cd = (XMLClassDescriptor)this.getXMLContext().createUnmarshaller().getInternalContext()
+                                             .getXMLClassDescriptorResolver().resolve(type);
+            } catch (Exception e) {
+                log.debug("No descriptor for " + type.getName(), e);
+            }
+            if (cd == null) {
+                return null;
+            }
+            this.descriptors.putIfAbsent(type, cd);
+        }
+        XMLFieldDescriptor fd = cd.getFieldDescriptor(localName, ns, NodeType.Element);
+        if (fd != null) {
+            return fd;
+        }
+        for (XMLFieldDescriptor d : cd.getElementDescriptors()) {
+            if (d.getXMLName() == null && d.getFieldType() == Object.class) {
+                return d;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Convert a SOAP 1.1 or 1.2 Fault element to an AxisFault the same
+     * way {@link EtsiSoapCodec} does.
+     */
+    private static AxisFault readFault(final XMLStreamReader r)
+        throws XMLStreamException
+    {
+        QName       code     = RECEIVER;
+        List<QName> subcodes = new ArrayList<QName>();
+        String      text     = null;
+
+        if (SOAP11_NS.equals(r.getNamespaceURI())) {
+            while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if ("faultcode".equals(r.getLocalName())) {
+                    code = toQName(r, r.getElementText());
+                } else if ("faultstring".equals(r.getLocalName())) {
+                    text = r.getElementText();
+                } else {
+                    skip(r);
+                }
+            }
+            return new AxisFault(code, text, null, null);
+        }
+
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if ("Code".equals(r.getLocalName())) {
+                boolean top = true;
+                int depth = 1;
+                while (depth > 0) {
+                    if (r.nextTag() == XMLStreamConstants.END_ELEMENT) {
+                        depth--;
+                    } else if ("Value".equals(r.getLocalName())) {
+                        QName q = toQName(r, r.getElementText());
+                        if (top) {
+                            code = q;
+                            top  = false;
+                        } else {
+                            subcodes.add(q);
+                        }
+                    } else if ("Subcode".equals(r.getLocalName())) {
+                        depth++;
+                    } else {
+                        skip(r);
+                    }
+                }
+            } else if ("Reason".equals(r.getLocalName())) {
+                while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    if (text == null && "Text".equals(r.getLocalName())) {
+                        text = r.getElementText();
+                    } else {
+                        skip(r);
+                    }
+                }
+            } else {
+                skip(r);
+            }
+        }
+        return new AxisFault(code,
+                             subcodes.isEmpty() ? null : subcodes.toArray(new QName[subcodes.size()]),
+                             text, null, null, null);
+    }
+
+    private static QName toQName(final XMLStreamReader r, final String value) {
+        String v = value == null ? "" : value.trim();
+        int i = v.indexOf(':');
+        String prefix = i > 0 ? v.substring(0, i) : null;
+        String local  = i > 0 ? v.substring(i + 1) : v;
+        String ns     = r.getNamespaceContext().getNamespaceURI(prefix == null ? XMLConstants.DEFAULT_NS_PREFIX : prefix);
+        if (ns == null || ns.length() == 0) {
+            return prefix == null ? new QName(local) : new QName("", local, prefix);
+        }
+        return new QName(ns, local, prefix == null ? "" : prefix);
+    }
+
+    /**
+     * @return local name of the current element if it is in the ETSI
+     *         namespace, otherwise null
+     */
+    private static String etsiName(final XMLStreamReader r) {
+        return ETSI_NS.equals(r.getNamespaceURI()) ? r.getLocalName() : null;
+    }
+
+    /**
+     * Skip the current element. Leaves the reader at its end.
+     */
+    private static void skip(final XMLStreamReader r) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int e = r.next();
+            if (e == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (e == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static Date parseDate(final String s) throws IOException {
+        String v = s.trim();
+        try {
+            return Date.from(OffsetDateTime.parse(v).toInstant());
+        } catch (DateTimeParseException e) {
+            try {
+                // No zone means local time
+                return Date.from(LocalDateTime.parse(v).atZone(ZoneId.systemDefault()).toInstant());
+            } catch (DateTimeParseException e2) {
+                throw new IOException("Invalid dateTime " + s, e);
+            }
+        }
+    }
+
+    private static long parseLong(final String s) throws IOException {
+        try {
+            return Long.parseLong(s.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid number " + s, e);
+        }
+    }
+
+    private static String nonNull(final String s) {
+        return s == null ? "" : s;
+    }
+
+    private static boolean equals(final String a, final String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Writes the SAX events of the Castor marshaller to a StAX stream.
+     * Only namespaces not yet in scope are declared.
+     */
+    private static class StreamWriterHandler implements ContentHandler {
+
+        private final XMLStreamWriter w;
+        private final List<String[]>  pending = new ArrayList<String[]>();
+
+        StreamWriterHandler(final XMLStreamWriter w) {
+            this.w = w;
+        }
+
+        @Override
+        public void startPrefixMapping(final String prefix, final String uri) {
+            this.pending.add(new String[] { prefix == null ? "" : prefix, uri });
+        }
+
+        @Override
+        public void startElement(final String uri, final String localName, final String qName, final Attributes atts)
+            throws SAXException
+        {
+            try {
+                int i = qName.indexOf(':');
+                String prefix = i > 0 ? qName.substring(0, i) : "";
+                String local  = localName == null || localName.length() == 0 ? qName.substring(i + 1) : localName;
+                String ns     = uri == null ? "" : uri;
+
+                // Castor gives the declarations both as events and as xmlns attributes
+                for (int a = 0; a < atts.getLength(); a++) {
+                    String aq = atts.getQName(a);
+                    if ("xmlns".equals(aq)) {
+                        this.pending.add(new String[] { "", atts.getValue(a) });
+                    } else if (aq.startsWith("xmlns:")) {
+                        this.pending.add(new String[] { aq.substring(6), atts.getValue(a) });
+                    }
+                }
+                this.pending.add(new String[] { prefix, ns });
+
+                // Resolved in the scope of the parent, before the writer binds the prefix of the element
+                Map<String, String> declare = new LinkedHashMap<String, String>();
+                for (String[] m : this.pending) {
+                    String bound = nonNull(this.w.getNamespaceContext().getNamespaceURI(m[0]));
+                    if (declare.containsKey(m[0]) || bound.equals(m[1])) {
+                        continue;
+                    }
+                    if (m[0].length() > 0 && m[1].length() == 0) {
+                        continue; // Prefixes can not be undeclared in XML 1.0
+                    }
+                    declare.put(m[0], m[1]);
+                }
+                this.pending.clear();
+
+                this.w.writeStartElement(prefix, local, ns);
+                for (Map.Entry<String, String> m : declare.entrySet()) {
+                    declare(this.w, m.getKey(), m.getValue());
+                }
+
+                for (int a = 0; a < atts.getLength(); a++) {
+                    String aq = atts.getQName(a);
+                    if ("xmlns".equals(aq) || aq.startsWith("xmlns:")) {
+                        continue;
+                    }
+                    String an = atts.getURI(a);
+                    int    j  = aq.indexOf(':');
+                    String al = j > 0 ? aq.substring(j + 1) : aq;
+                    if (an == null || an.length() == 0) {
+                        this.w.writeAttribute(al, atts.getValue(a));
+                    } else {
+                        this.w.writeAttribute(j > 0 ? aq.substring(0, j) : "", an, al, atts.getValue(a));
+                    }
+                }
+            } catch (XMLStreamException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        @Override
+        public void endElement(final String uri, final String localName, final String qName) throws SAXException {
+            try {
+                this.w.writeEndElement();
+            } catch (XMLStreamException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        @Override
+        public void characters(final char[] ch, final int start, final int length) throws SAXException {
+            try {
+                this.w.writeCharacters(ch, start, length);
+            } catch (XMLStreamException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        @Override
+        public void ignorableWhitespace(final char[] ch, final int start, final int length) throws SAXException {
+            this.characters(ch, start, length);
+        }
+
+        @Override public void setDocumentLocator(final Locator locator) { /* not used */ }
+        @Override public void startDocument() { /* inside the envelope */ }
+        @Override public void endDocument()   { /* inside the envelope */ }
+        @Override public void endPrefixMapping(final String prefix) { /* scoped by the writer */ }
+        @Override public void processingInstruction(final String target, final String data) { /* dropped */ }
+        @Override public void skippedEntity(final String name) { /* dropped */ }
+    }
+
+    /**
+     * Sends the current element to Castor as SAX 2 events. Leaves the
+     * reader at the end of the element.
+     * <p>
+     * Namespace declarations are passed as xmlns attributes, as a parser
+     * with the namespace-prefixes feature does, and not as prefix
+     * mappings. Castor 1.3 loses track of its namespace scopes when a
+     * prefix mapping is followed by an element without one.
+     */
+    private static class StreamEventProducer implements SAX2EventProducer {
+
+        private final XMLStreamReader r;
+        private ContentHandler handler;
+
+        StreamEventProducer(final XMLStreamReader r) {
+            this.r = r;
+        }
+
+        @Override
+        public void setContentHandler(final ContentHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void start() throws SAXException {
+            try {
+                int depth = 0;
+                int e = this.r.getEventType();
+                while (true) {
+                    if (e == XMLStreamConstants.START_ELEMENT) {
+                        depth++;
+                        this.handler.startElement(nonNull(this.r.getNamespaceURI()), this.r.getLocalName(), qName(this.r), this.attributes());
+                    } else if (e == XMLStreamConstants.END_ELEMENT) {
+                        this.handler.endElement(nonNull(this.r.getNamespaceURI()), this.r.getLocalName(), qName(this.r));
+                        if (--depth == 0) {
+                            return;
+                        }
+                    } else if (e == XMLStreamConstants.CHARACTERS
+                               || e == XMLStreamConstants.CDATA
+                               || e == XMLStreamConstants.SPACE)
+                    {
+                        this.handler.characters(this.r.getTextCharacters(), this.r.getTextStart(), this.r.getTextLength());
+                    }
+                    e = this.r.next();
+                }
+            } catch (XMLStreamException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        /**
+         * Attributes of the current element including its namespace
+         * declarations. Prefixes of the element, its attributes and
+         * xsi:type values may be declared on ancestors outside of the
+         * subtree, so those are declared again here.
+         */
+        private Attributes attributes() {
+            AttributesImpl atts = new AttributesImpl();
+            for (int i = 0; i < this.r.getNamespaceCount(); i++) {
+                declare(atts, nonNull(this.r.getNamespacePrefix(i)), nonNull(this.r.getNamespaceURI(i)));
+            }
+            this.declare(atts, nonNull(this.r.getPrefix()));
+            for (int i = 0; i < this.r.getAttributeCount(); i++) {
+                String ap = this.r.getAttributePrefix(i);
+                String al = this.r.getAttributeLocalName(i);
+                String av = this.r.getAttributeValue(i);
+                if (ap != null && ap.length() > 0) {
+                    this.declare(atts, ap);
+                    int colon = av.indexOf(':');
+                    if ("type".equals(al) && colon > 0 && XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI.equals(this.r.getAttributeNamespace(i))) {
+                        this.declare(atts, av.substring(0, colon));
+                    }
+                }
+                atts.addAttribute(nonNull(this.r.getAttributeNamespace(i)), al,
+                                  ap == null || ap.length() == 0 ? al : ap + ":" + al, "CDATA", av);
+            }
+            return atts;
+        }
+
+        private void declare(final AttributesImpl atts, final String prefix) {
+            String ns = this.r.getNamespaceURI(prefix);
+            if (ns != null && ns.length() > 0) {
+                declare(atts, prefix, ns);
+            }
+        }
+
+        private static void declare(final AttributesImpl atts, final String prefix, final String ns) {
+            String name = prefix.length() == 0 ? XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix;
+            if (atts.getIndex(name) < 0) {
+                atts.addAttribute(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, prefix, name, "CDATA", ns);
+            }
+        }
+
+        private static String qName(final XMLStreamReader r) {
+            String p = r.getPrefix();
+            return p == null || p.length() == 0 ? r.getLocalName() : p + ":" + r.getLocalName();
+        }
+    }
+
+}
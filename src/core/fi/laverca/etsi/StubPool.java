@@ -0,0 +1,244 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.etsi;
+
+import java.net.URL;
+import java.rmi.RemoteException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.rpc.ServiceException;
+
+import org.apache.axis.client.Stub;
+
+import fi.laverca.ws.MSS_HandshakeBindingStub;
+import fi.laverca.ws.MSS_ProfileQueryBindingStub;
+import fi.laverca.ws.MSS_ReceiptBindingStub;
+import fi.laverca.ws.MSS_RegistrationBindingStub;
+import fi.laverca.ws.MSS_SignatureBindingStub;
+import fi.laverca.ws.MSS_SignatureServiceLocator;
+import fi.laverca.ws.MSS_StatusQueryBindingStub;
+
+/**
+ * Pool of idle MSS binding stubs per operation and endpoint.
+ * <p>
+ * A stub and its Call are not thread safe, so a borrowed stub is used by
+ * one thread only and returned with {@link #release(URL, Stub)} after the
+ * call. A stub whose call failed should be dropped instead of released.
+ * <p>
+ * The most recently released stub is borrowed first, which keeps the
+ * number of stubs in use close to the number of concurrent calls.
+ */
+public class StubPool {
+
+    public static final int DEFAULT_MAX_IDLE = 32;
+
+    private final MSS_SignatureServiceLocator service;
+    private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused  = new AtomicLong();
+
+    private volatile int maxIdle = DEFAULT_MAX_IDLE;
+
+    /**
+     * @param service Service locator creating the stubs
+     */
+    public StubPool(final MSS_SignatureServiceLocator service) {
+        if (service == null) {
+            throw new IllegalArgumentException("null service not allowed");
+        }
+        this.service = service;
+    }
+
+    /**
+     * Borrow an idle stub, or create a new one if there is none.
+     *
+     * @param type Binding stub class of the operation
+     * @param url  Endpoint URL
+     * @return stub for the exclusive use of the caller
+     * @throws ServiceException if the stub can not be created
+     */
+    public <T extends Stub> T borrow(final Class<T> type, final URL url) throws ServiceException {
+        Slot slot = this.slots.get(key(type, url));
+        if (slot != null) {
+            Stub s = slot.poll();
+            if (s != null) {
+                this.reused.incrementAndGet();
+                return type.cast(s);
+            }
+        }
+        this.created.incrementAndGet();
+        return type.cast(this.create(type, url));
+    }
+
+    /**
+     * Return a stub borrowed for the given URL. If the pool of the operation
+     * and endpoint is full, the stub is dropped.
+     *
+     * @param url  Endpoint URL the stub was borrowed for
+     * @param stub Stub
+     */
+    public void release(final URL url, final Stub stub) {
+        int max = this.maxIdle;
+        if (stub == null || max <= 0) {
+            return;
+        }
+        String key = key(stub.getClass(), url);
+        Slot slot = this.slots.get(key);
+        if (slot == null) {
+            Slot s = new Slot();
+            slot = this.slots.putIfAbsent(key, s);
+            if (slot == null) {
+                slot = s;
+            }
+        }
+        slot.offer(stub, max);
+    }
+
+    /**
+     * Create an idle stub with its Call, registering the type mappings of
+     * the operation ahead of the first request.
+     *
+     * @param type Binding stub class of the operation
+     * @param url  Endpoint URL
+     * @throws ServiceException if the stub can not be created
+     * @throws RemoteException if the Call can not be created
+     */
+    public void prepare(final Class<? extends Stub> type, final URL url) throws ServiceException, RemoteException {
+        Stub s = this.borrow(type, url);
+        if (s instanceof MSS_SignatureBindingStub) {
+            ((MSS_SignatureBindingStub)s).createCall();
+        } else if (s instanceof MSS_StatusQueryBindingStub) {
+            ((MSS_StatusQueryBindingStub)s).createCall();
+        } else if (s instanceof MSS_ReceiptBindingStub) {
+            ((MSS_ReceiptBindingStub)s).createCall();
+        } else if (s instanceof MSS_HandshakeBindingStub) {
+            ((MSS_HandshakeBindingStub)s).createCall();
+        } else if (s instanceof MSS_ProfileQueryBindingStub) {
+            ((MSS_ProfileQueryBindingStub)s).createCall();
+        } else if (s instanceof MSS_RegistrationBindingStub) {
+            ((MSS_RegistrationBindingStub)s).createCall();
+        }
+        this.release(url, s);
+    }
+
+    /**
+     * Set the maximum number of idle stubs kept per operation and endpoint.
+     * @param max Maximum idle stubs, 0 to disable pooling
+     */
+    public void setMaxIdle(final int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("max must not be negative");
+        }
+        this.maxIdle = max;
+        if (max == 0) {
+            this.clear();
+        }
+    }
+
+    public int getMaxIdle() {
+        return this.maxIdle;
+    }
+
+    /**
+     * Drop all idle stubs, e.g. after the endpoints or the engine
+     * configuration have changed. Borrowed stubs may still be released.
+     */
+    public void clear() {
+        this.slots.clear();
+    }
+
+    /**
+     * @return the number of idle stubs over all operations
+     */
+    public int getIdleCount() {
+        int n = 0;
+        for (Slot s : this.slots.values()) {
+            n += s.size.get();
+        }
+        return n;
+    }
+
+    public long getCreatedCount() { return this.created.get(); }
+    public long getReusedCount()  { return this.reused.get();  }
+
+    @Override
+    public String toString() {
+        return "StubPool [idle=" + this.getIdleCount()
+            + ", created=" + this.getCreatedCount()
+            + ", reused=" + this.getReusedCount() + "]";
+    }
+
+    private Stub create(final Class<?> type, final URL url) throws ServiceException {
+        Object port = null;
+        if (type == MSS_SignatureBindingStub.class) {
+            port = this.service.getMSS_SignaturePort(url);
+        } else if (type == MSS_StatusQueryBindingStub.class) {
+            port = this.service.getMSS_StatusQueryPort(url);
+        } else if (type == MSS_ReceiptBindingStub.class) {
+            port = this.service.getMSS_ReceiptPort(url);
+        } else if (type == MSS_HandshakeBindingStub.class) {
+            port = this.service.getMSS_HandshakePort(url);
+        } else if (type == MSS_ProfileQueryBindingStub.class) {
+            port = this.service.getMSS_ProfileQueryPort(url);
+        } else if (type == MSS_RegistrationBindingStub.class) {
+            port = this.service.getMSS_RegistrationPort(url);
+        } else {
+            throw new ServiceException("Unsupported stub " + type.getName());
+        }
+        if (port == null) {
+            throw new ServiceException("Could not create " + type.getName());
+        }
+        return (Stub)port;
+    }
+
+    // URL.equals may resolve the host, so the key uses the string form
+    private static String key(final Class<?> type, final URL url) {
+        return type.getName() + " " + url;
+    }
+
+    private static class Slot {
+
+        final Deque<Stub>   idle = new ConcurrentLinkedDeque<Stub>();
+        final AtomicInteger size = new AtomicInteger();
+
+        Stub poll() {
+            Stub s = this.idle.pollFirst();
+            if (s != null) {
+                this.size.decrementAndGet();
+            }
+            return s;
+        }
+
+        void offer(final Stub s, final int max) {
+            if (this.size.incrementAndGet() > max) {
+                this.size.decrementAndGet();
+                return;
+            }
+            this.idle.offerFirst(s);
+        }
+    }
+
+}
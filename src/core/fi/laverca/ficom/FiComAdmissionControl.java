@@ -0,0 +1,337 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.ficom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import fi.laverca.AdmissionException;
+import fi.laverca.AdmissionLimiter;
+
+/**
+ * Concurrency limits of FiComClients, per AP_ID and per MSSP endpoint URL.
+ * <p>
+ * Two kinds of work are limited:
+ * <ul>
+ * <li>{@link Type#SIGNATURE}: transactions in flight, from sending the
+ *     MSS_SignatureReq until the transaction is finished. A request over
+ *     the limit waits in a bounded queue for at most the queue timeout, and
+ *     is rejected with an {@link AdmissionException} if the queue is full.
+ * <li>{@link Type#POLL}: MSS_StatusReqs being sent. A poll over the limit
+ *     is not queued but postponed, so the poll workers are never held up.
+ * </ul>
+ * A request must fit in both the limit of its AP_ID and the limit of the
+ * endpoint it is sent to. Limits set for a null AP_ID or URL apply to each
+ * AP_ID or URL that has no limit of its own. Work with no limit at all is
+ * always admitted.
+ * <p>
+ * One instance can be shared by the FiComClients of several APs.
+ *
+ * @see FiComClient#setAdmissionControl(FiComAdmissionControl)
+ */
+public class FiComAdmissionControl {
+
+    public static final long DEFAULT_QUEUE_TIMEOUT = 5000;
+
+    public enum Type {
+        /** Transactions in flight */
+        SIGNATURE,
+        /** Status requests being sent */
+        POLL
+    }
+
+    private static final String AP  = "AP ";
+    private static final String URL = "URL ";
+
+    private final ConcurrentMap<String, int[]>            limits   = new ConcurrentHashMap<String, int[]>();
+    private final ConcurrentMap<String, AdmissionLimiter> limiters = new ConcurrentHashMap<String, AdmissionLimiter>();
+    private volatile long queueTimeout = DEFAULT_QUEUE_TIMEOUT;
+
+    /**
+     * Limit the work of an AP.
+     * @param type     Kind of work
+     * @param apId     AP_ID, or null for the default of all APs
+     * @param limit    Maximum in flight
+     * @param maxQueue Maximum waiting. Ignored for polls.
+     */
+    public void setApLimit(final Type type, final String apId, final int limit, final int maxQueue) {
+        this.setLimit(key(type, AP, apId), limit, maxQueue);
+    }
+
+    /**
+     * Limit the work sent to an MSSP endpoint.
+     * @param type     Kind of work
+     * @param url      Signature URL for {@link Type#SIGNATURE}, status URL for {@link Type#POLL},
+     *                 or null for the default of all endpoints
+     * @param limit    Maximum in flight
+     * @param maxQueue Maximum waiting. Ignored for polls.
+     */
+    public void setEndpointLimit(final Type type, final String url, final int limit, final int maxQueue) {
+        this.setLimit(key(type, URL, url), limit, maxQueue);
+    }
+
+    /**
+     * @param millis Maximum time a signature request waits in the queue
+     */
+    public void setQueueTimeout(final long millis) {
+        this.queueTimeout = millis;
+    }
+
+    public long getQueueTimeout() {
+        return this.queueTimeout;
+    }
+
+    private void setLimit(final String key, final int limit, final int maxQueue) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        if (maxQueue < 0) {
+            throw new IllegalArgumentException("maxQueue must not be negative");
+        }
+        this.limits.put(key, new int[] { limit, maxQueue });
+
+        // Update the limiters created from this setting
+        boolean isDefault = key.endsWith(" ");
+        for (AdmissionLimiter l : this.limiters.values()) {
+            String name = l.getName();
+            if (name.equals(key) || isDefault && name.startsWith(key) && !this.limits.containsKey(name)) {
+                l.setLimit(limit);
+                l.setMaxQueue(maxQueue);
+            }
+        }
+    }
+
+    /**
+     * Get the limiter of an AP_ID.
+     * @return the limiter, or null if the AP is not limited
+     */
+    public AdmissionLimiter getApLimiter(final Type type, final String apId) {
+        return this.getLimiter(type, AP, apId);
+    }
+
+    /**
+     * Get the limiter of an endpoint.
+     * @return the limiter, or null if the endpoint is not limited
+     */
+    public AdmissionLimiter getEndpointLimiter(final Type type, final String url) {
+        return this.getLimiter(type, URL, url);
+    }
+
+    /**
+     * @return all limiters in use, for metrics
+     */
+    public List<AdmissionLimiter> getLimiters() {
+        return new ArrayList<AdmissionLimiter>(this.limiters.values());
+    }
+
+    private AdmissionLimiter getLimiter(final Type type, final String scope, final String id) {
+        String key = key(type, scope, id);
+        AdmissionLimiter l = this.limiters.get(key);
+        if (l != null) {
+            return l;
+        }
+        int[] limit = this.limits.get(key);
+        if (limit == null) {
+            limit = this.limits.get(key(type, scope, null));
+        }
+        if (limit == null) {
+            return null;
+        }
+        l = new AdmissionLimiter(key, limit[0], limit[1]);
+        AdmissionLimiter old = this.limiters.putIfAbsent(key, l);
+        return old != null ? old : l;
+    }
+
+    private static String key(final Type type, final String scope, final String id) {
+        return type + " " + scope + (id != null ? id : "");
+    }
+
+    /**
+     * Admit work if it fits in the limits right away.
+     * @param type Kind of work
+     * @param apId AP_ID
+     * @param url  Endpoint URL
+     * @return permit to release when done, or null if not admitted
+     */
+    public Permit tryAcquire(final Type type, final String apId, final String url) {
+        AdmissionLimiter ap = this.getApLimiter(type, apId);
+        AdmissionLimiter ep = this.getEndpointLimiter(type, url);
+        if (ap != null && !ap.tryAcquire()) {
+            return null;
+        }
+        if (ep != null && !ep.tryAcquire()) {
+            if (ap != null) {
+                ap.release();
+            }
+            return null;
+        }
+        return new Permit(ap, ep);
+    }
+
+    /**
+     * Admit work, waiting in the queues for at most the queue timeout.
+     * Never blocks. Cancelling the returned future withdraws the work from the queues.
+     * @param type Kind of work
+     * @param apId AP_ID
+     * @param url  Endpoint URL
+     * @return future of the permit to release when done, completed exceptionally
+     *         with an {@link AdmissionException} if the work was not admitted
+     */
+    public CompletableFuture<Permit> acquireAsync(final Type type, final String apId, final String url) {
+        final AdmissionLimiter ap = this.getApLimiter(type, apId);
+        final AdmissionLimiter ep = this.getEndpointLimiter(type, url);
+        final long timeout  = this.queueTimeout;
+        final long deadline = System.currentTimeMillis() + timeout;
+
+        final PermitFuture pf = new PermitFuture();
+        CompletableFuture<Void> first = ap != null ? ap.acquireAsync(timeout) : CompletableFuture.<Void>completedFuture(null);
+        pf.waiting = first;
+        first.whenComplete((v, t) -> {
+            if (t != null) {
+                pf.completeExceptionally(t);
+                return;
+            }
+            if (ep == null) {
+                pf.admit(new Permit(ap, null));
+                return;
+            }
+            // The wait for the AP limit counts against the endpoint queue timeout
+            CompletableFuture<Void> second = ep.acquireAsync(Math.max(0, deadline - System.currentTimeMillis()));
+            pf.waiting = second;
+            if (pf.isCancelled()) {
+                second.cancel(false);
+            }
+            second.whenComplete((v2, t2) -> {
+                if (t2 != null) {
+                    if (ap != null) {
+                        ap.release();
+                    }
+                    pf.completeExceptionally(t2);
+                    return;
+                }
+                pf.admit(new Permit(ap, ep));
+            });
+        });
+        return pf;
+    }
+
+    /**
+     * Admit work, waiting in the queues for at most the queue timeout.
+     * @param type Kind of work
+     * @param apId AP_ID
+     * @param url  Endpoint URL
+     * @return permit to release when done
+     * @throws AdmissionException if the work was not admitted
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Permit acquire(final Type type, final String apId, final String url)
+        throws AdmissionException, InterruptedException
+    {
+        AdmissionLimiter ap = this.getApLimiter(type, apId);
+        AdmissionLimiter ep = this.getEndpointLimiter(type, url);
+        if (ap == null && ep == null) {
+            return new Permit(null, null);
+        }
+        CompletableFuture<Permit> f = this.acquireAsync(type, apId, url);
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            if (!f.cancel(false)) {
+                // Granted while being interrupted
+                f.thenAccept(p -> p.release());
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof AdmissionException) {
+                throw (AdmissionException)t;
+            }
+            throw new IllegalStateException(t);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("FiComAdmissionControl");
+        for (AdmissionLimiter l : this.limiters.values()) {
+            sb.append("\n  ").append(l);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Future of a permit. Cancelling it cancels the wait in the queue.
+     */
+    private static final class PermitFuture extends CompletableFuture<Permit> {
+
+        volatile CompletableFuture<Void> waiting;
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            CompletableFuture<Void> w = this.waiting;
+            if (cancelled && w != null) {
+                w.cancel(false);
+            }
+            return cancelled;
+        }
+
+        void admit(final Permit p) {
+            if (!this.complete(p)) {
+                // Cancelled
+                p.release();
+            }
+        }
+    }
+
+    /**
+     * Admission of a single piece of work. Released exactly once;
+     * further releases are ignored.
+     */
+    public static final class Permit {
+
+        private final AdmissionLimiter ap;
+        private final AdmissionLimiter endpoint;
+        private final AtomicBoolean    released = new AtomicBoolean();
+
+        Permit(final AdmissionLimiter ap, final AdmissionLimiter endpoint) {
+            this.ap       = ap;
+            this.endpoint = endpoint;
+        }
+
+        public void release() {
+            if (!this.released.compareAndSet(false, true)) {
+                return;
+            }
+            if (this.ap != null) {
+                this.ap.release();
+            }
+            if (this.endpoint != null) {
+                this.endpoint.release();
+            }
+        }
+    }
+
+}
@@ -20,43 +20,96 @@
 package fi.laverca.ficom;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.axis.AxisFault;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.etsi.uri.TS102204.v1_1_2.AP_Info;
+import org.etsi.uri.TS102204.v1_1_2.MSSP_ID;
+import org.etsi.uri.TS102204.v1_1_2.MSSP_Info;
 import org.etsi.uri.TS102204.v1_1_2.MSS_ReceiptReq;
 import org.etsi.uri.TS102204.v1_1_2.MSS_Signature;
 import org.etsi.uri.TS102204.v1_1_2.MSS_SignatureReq;
 import org.etsi.uri.TS102204.v1_1_2.MSS_SignatureResp;
 import org.etsi.uri.TS102204.v1_1_2.MSS_StatusReq;
 import org.etsi.uri.TS102204.v1_1_2.MSS_StatusResp;
+import org.etsi.uri.TS102204.v1_1_2.MobileUser;
 import org.etsi.uri.TS102204.v1_1_2.Service;
 import org.etsi.uri.TS102204.v1_1_2.Status;
 import org.etsi.uri.TS102204.v1_1_2.StatusCode;
 import org.etsi.uri.TS102204.v1_1_2.types.MessagingModeType;
 
+import fi.laverca.AdmissionException;
 import fi.laverca.DTBS;
+import fi.laverca.Deadline;
+import fi.laverca.DeadlineExceededException;
 import fi.laverca.ProgressUpdate;
+import fi.laverca.WarmUp;
 import fi.laverca.etsi.EtsiClient;
+import fi.laverca.etsi.EtsiEndpoints;
+import fi.laverca.etsi.EtsiNotificationHandler;
+import fi.laverca.etsi.EtsiNotificationServer;
 
 /**  
  * An asynchronous client for FiCom -style signature requests.
+ * <p>Status polls of outstanding requests are run by a {@link FiComPollScheduler},
+ * which by default is shared by all FiComClient instances.
+ * <p>If notifications are enabled with {@link #enableNotifications(EtsiNotificationServer, String)},
+ * requests are sent in ASYNCHSERVERSERVER mode and completed by the MSS_Notification
+ * sent by the MSSP. Only a timeout is then kept on the poll scheduler.
+ * <p>The lifecycle events of all requests are also published as a stream
+ * of {@link FiComEvent}s by {@link #getEventPublisher()}.
+ * <p>The transactions in flight and the status polls can be limited per AP
+ * and per MSSP endpoint with {@link #setAdmissionControl(FiComAdmissionControl)}.
+ * <p>If the poll scheduler runs on virtual threads, the status polls and
+ * the response handlers run on virtual threads too, and so do the
+ * blocking SOAP sends of {@link #callAsync(String, DTBS, String, Service, Service, List, String, String)}.
  */
 public class FiComClient {
 	
 	private static final int INITIAL_WAIT    = 20 * 1000;      // Initial wait 20 s   as per MSS FiCom Implementation Guideline, section 5.1
 	private static final int SUBSEQUENT_WAIT = 5  * 1000;      // Subsequent wait 5 s as per MSS FiCom Implementation Guideline, section 5.1
 	private static final int TIMEOUT         = 5  * 1000 * 60; // Timeout 5 min       as per MSS FiCom Implementation Guideline, section 6.4
+	private static final int POLL_RETRY      = 1000;           // Wait before retrying a poll over the admission limit
 	
     private static final Log log = LogFactory.getLog(FiComClient.class);
 
+    // Packages of the Castor generated types of the FiCom additional services
+    private static final String[] CASTOR_PACKAGES = {
+        "fi.ficom.mss.TS102204.v1_0_0",
+        "oasis.names.tc.SAML.v2_0.assertion",
+        "oasis.names.tc.SAML.v2_0.assertion.types",
+        "oasis.names.tc.SAML.v2_0.protocol",
+        "oasis.names.tc.SAML.v2_0.protocol.types"
+    };
+
     private EtsiClient etsiClient;
-    private ExecutorService threadExecutor; 
+    private FiComPollScheduler scheduler;
+    private volatile boolean isShutdown;
+    private volatile FiComPollPolicy pollPolicy;
+    private volatile FiComEventPublisher events;
+    private volatile FiComAdmissionControl admission;
+    private volatile FiComRetryPolicy retryPolicy;
+
+    // Compact records of the outstanding requests
+    private final FiComTransactionTable transactions = new FiComTransactionTable();
+
+    // Requests waiting for an MSS_Notification, keyed by MSSP_TransID and AP_TransID
+    private final ConcurrentMap<String, Long> pending = new ConcurrentHashMap<String, Long>();
+    private final NotificationReceiver receiver = new NotificationReceiver();
+    private EtsiNotificationServer notificationServer;
+    private volatile String        notificationUrl;
 
     public FiComClient( String apId,             // AP settings
                         String apPwd, 
@@ -65,13 +118,35 @@ public class FiComClient {
                         String msspReceiptUrl)
     throws IllegalArgumentException
     {
-        this.etsiClient = new EtsiClient(apId, 
-                                         apPwd, 
-                                         msspSignatureUrl, 
-                                         msspStatusUrl, 
-                                         msspReceiptUrl);
+        this(new EtsiClient(apId, 
+                            apPwd, 
+                            msspSignatureUrl, 
+                            msspStatusUrl, 
+                            msspReceiptUrl));
+    }
+
+    /**
+     * Create a FiComClient that uses the shared poll scheduler.
+     * @param etsiClient Client used for sending the requests
+     */
+    public FiComClient(final EtsiClient etsiClient) {
+        this(etsiClient, FiComPollScheduler.getShared());
+    }
 
-        this.threadExecutor = Executors.newCachedThreadPool();
+    /**
+     * Create a FiComClient
+     * @param etsiClient Client used for sending the requests
+     * @param scheduler  Scheduler running the status polls
+     */
+    public FiComClient(final EtsiClient etsiClient, final FiComPollScheduler scheduler) {
+        if (etsiClient == null) {
+            throw new IllegalArgumentException("null etsiClient not allowed.");
+        }
+        if (scheduler == null) {
+            throw new IllegalArgumentException("null scheduler not allowed.");
+        }
+        this.etsiClient = etsiClient;
+        this.scheduler  = scheduler;
     }
 
     /**
@@ -271,6 +346,7 @@ public class FiComClient {
      * @param handler FiComResponseHandler for receiving asynch responses.
      * @return Sent request.
      * @throws IOException if handler is null or if an IOException was caught when sending the request.
+     * @throws AdmissionException if the request was over the admission limits. Nothing was sent.
      */
     public FiComRequest call(final String apTransId,
                              final DTBS dtbs,
@@ -289,10 +365,427 @@ public class FiComClient {
         }
 
         final FiComRequest fiReq = new FiComRequest();
+        final MSS_SignatureReq sigReq = this.prepare(fiReq,
+                                                     apTransId,
+                                                     dtbs,
+                                                     phoneNumber,
+                                                     noSpamService,
+                                                     eventIDService,
+                                                     additionalServices,
+                                                     signatureProfile,
+                                                     mssFormat,
+                                                     handler);
+        this.admit(fiReq);
+
+        MSS_SignatureResp sigResp = null;
+        try {
+            log.debug("Sending sigReq");
+            this.publish(this.createEvent(FiComEvent.Type.SENT, fiReq, null, null, null));
+            sigResp = this.sendSignature(fiReq, sigReq);
+            log.debug("Got resp");
+        } catch (AxisFault af) {
+            log.error("Got SOAP fault", af);
+            // Nothing to poll for
+            new StatusPoll(fiReq).fail(af);
+            return fiReq;
+        } catch (IOException ioe) {
+            log.error("Got IOException ", ioe);
+            this.failSend(fiReq, ioe);
+            throw ioe;
+        }
+        this.accepted(fiReq, sigResp);
+        return fiReq;
+    }
+
+    /**
+     * Sends a request without blocking the calling thread.
+     * <p>The signature request and the status polls are sent with the
+     * asynchronous transport of the EtsiClient, so no thread is held while
+     * the request is outstanding, or while waiting for the MSSP to answer.
+     * If the poll scheduler runs on virtual threads, they are sent with the
+     * blocking transport on a virtual thread instead.
+     * <p>Cancelling the returned future takes the request off the poll
+     * schedule and aborts the HTTP exchange in progress.
+     *
+     * @param apTransId AP Transaction ID
+     * @param dtbs Data to be signed
+     * @param phoneNumber MSISDN of the target user
+     * @param noSpamService Service for sending nospam code
+     * @param eventIDService Service containing the wanted EventId for the request
+     * @param additionalServices List of FiCom additionalservices to add to the request
+     * @param signatureProfile Signature profile to use
+     * @param mssFormat MSS Format to use.
+     * @return future completed with the response, or exceptionally with an AxisFault
+     *         (MSSP error), FiComException (abnormal status or timeout), AdmissionException
+     *         (over the admission limits; nothing was sent) or IOException
+     * @see FiComRequest#toCompletableFuture()
+     */
+    public CompletableFuture<FiComResponse> callAsync(final String apTransId,
+                                                      final DTBS dtbs,
+                                                      final String phoneNumber,
+                                                      final Service noSpamService,
+                                                      final Service eventIDService,
+                                                      final List<Service> additionalServices,
+                                                      final String signatureProfile,
+                                                      final String mssFormat)
+    {
+        final FiComRequest fiReq = new FiComRequest();
+        fiReq.async = true;
+        final MSS_SignatureReq sigReq;
+        try {
+            sigReq = this.prepare(fiReq,
+                                  apTransId,
+                                  dtbs,
+                                  phoneNumber,
+                                  noSpamService,
+                                  eventIDService,
+                                  additionalServices,
+                                  signatureProfile,
+                                  mssFormat,
+                                  NO_HANDLER);
+        } catch (IOException ioe) {
+            fiReq.ft.fail(ioe);
+            return fiReq.ft;
+        }
+
+        FiComAdmissionControl ac = this.admission;
+        if (ac == null) {
+            this.sendAsync(fiReq, sigReq);
+            return fiReq.ft;
+        }
+        // Cancelling the request withdraws it from the admission queue
+        CompletableFuture<FiComAdmissionControl.Permit> f = ac.acquireAsync(FiComAdmissionControl.Type.SIGNATURE,
+                                                                            this.etsiClient.getApId(),
+                                                                            String.valueOf(this.etsiClient.getSignatureUrl()));
+        fiReq.exchange = f;
+        f.whenComplete((permit, t) -> {
+            fiReq.exchange = null;
+            if (t != null) {
+                Throwable cause = unwrap(t);
+                this.failSend(fiReq, cause);
+                fiReq.ft.fail(cause);
+            } else if (this.admitted(fiReq, permit)) {
+                this.sendAsync(fiReq, sigReq);
+            }
+        });
+        return fiReq.ft;
+    }
+
+    /**
+     * Send the signature request of {@link #callAsync}.
+     */
+    private void sendAsync(final FiComRequest fiReq, final MSS_SignatureReq sigReq) {
+        log.debug("Sending sigReq");
+        if (fiReq.failures == 0) {
+            this.publish(this.createEvent(FiComEvent.Type.SENT, fiReq, null, null, null));
+        }
+        final Deadline deadline = this.getDeadline(fiReq);
+        if (this.scheduler.isVirtual()) {
+            try {
+                this.scheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        MSS_SignatureResp sigResp = null;
+                        Throwable t = null;
+                        try {
+                            sigResp = exchange(fiReq, new Callable<MSS_SignatureResp>() {
+                                @Override
+                                public MSS_SignatureResp call() throws IOException {
+                                    return sendSignature(fiReq, sigReq);
+                                }
+                            });
+                            if (sigResp == null) {
+                                // Cancelled
+                                finish(fiReq.handle);
+                                return;
+                            }
+                        } catch (Throwable e) {
+                            t = e;
+                        }
+                        sent(fiReq, sigResp, t);
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                IOException ioe = new IOException("Could not send: " + ree.getMessage());
+                this.failSend(fiReq, ioe);
+                fiReq.ft.fail(ioe);
+            }
+            return;
+        }
+        CompletableFuture<MSS_SignatureResp> f;
+        try (Deadline.Scope s = deadline.enter()) {
+            f = etsiClient.sendAsync(sigReq);
+        }
+        fiReq.exchange = f;
+        f.whenComplete((sigResp, t) -> {
+            fiReq.exchange = null;
+            if (t != null && this.retryAsync(fiReq, sigReq, t, deadline)) {
+                return;
+            }
+            this.sent(fiReq, sigResp, t);
+        });
+    }
+
+    /**
+     * Send a signature request, repeating it as the retry policy allows.
+     * Waits between the tries on the calling thread.
+     */
+    private MSS_SignatureResp sendSignature(final FiComRequest fiReq, final MSS_SignatureReq sigReq) throws IOException {
+        final Deadline deadline = this.getDeadline(fiReq);
+        while (true) {
+            try (Deadline.Scope s = deadline.enter()) {
+                MSS_SignatureResp sigResp = etsiClient.send(sigReq);
+                fiReq.failures = 0;
+                return sigResp;
+            } catch (IOException e) {
+                long delay = fiReq.isDone() ? -1 : this.getRetryDelay(EtsiEndpoints.SIGNATURE, e, ++fiReq.failures, deadline);
+                if (delay < 0) {
+                    throw e;
+                }
+                if (!pause(delay)) {
+                    throw new InterruptedIOException("Interrupted while waiting to retry");
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedule a failed signature request of {@link #callAsync} to be sent again.
+     * @return false if the retry policy does not allow it
+     */
+    private boolean retryAsync(final FiComRequest fiReq, final MSS_SignatureReq sigReq, final Throwable t, final Deadline deadline) {
+        if (fiReq.isDone()) {
+            return false;
+        }
+        long delay = this.getRetryDelay(EtsiEndpoints.SIGNATURE, t, ++fiReq.failures, deadline);
+        if (delay < 0) {
+            return false;
+        }
+        try {
+            fiReq.nextPoll = this.scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!fiReq.isDone()) {
+                        sendAsync(fiReq, sigReq);
+                    }
+                }
+            }, delay);
+        } catch (RejectedExecutionException ree) {
+            return false;
+        }
+        if (fiReq.isDone()) {
+            // Cancelled while scheduling
+            fiReq.nextPoll.cancel();
+        }
+        return true;
+    }
+
+    /**
+     * Consult the retry policy about a failed send. Logged without the
+     * stack trace, as the failures come in bulk when the MSSP has trouble.
+     * @param failures Times the request has failed in a row
+     * @return milliseconds to wait before repeating, or -1 not to repeat
+     */
+    private long getRetryDelay(final String operation, final Throwable t, final int failures, final Deadline deadline) {
+        FiComRetryPolicy rp = this.retryPolicy;
+        if (rp == null) {
+            return -1;
+        }
+        FiComFault fault = rp.classify(t);
+        long delay = rp.getDelay(operation, fault, failures, deadline);
+        if (delay >= 0 && log.isDebugEnabled()) {
+            log.debug(operation + " failed: " + fault + " " + fault.getCause().getMessage()
+                      + ", retry " + failures + " in " + delay + " ms");
+        }
+        return delay;
+    }
+
+    /**
+     * Sleep before a retry.
+     * @return false if interrupted
+     */
+    private static boolean pause(final long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Wait for the admission of a prepared request.
+     * @throws IOException if not admitted. The request is dropped.
+     */
+    private void admit(final FiComRequest fiReq) throws IOException {
+        FiComAdmissionControl ac = this.admission;
+        if (ac == null) {
+            return;
+        }
+        FiComAdmissionControl.Permit permit;
+        try {
+            permit = ac.acquire(FiComAdmissionControl.Type.SIGNATURE,
+                                this.etsiClient.getApId(),
+                                String.valueOf(this.etsiClient.getSignatureUrl()));
+        } catch (AdmissionException ae) {
+            log.debug("Not admitted: " + ae.getMessage());
+            this.failSend(fiReq, ae);
+            throw ae;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException iioe = new InterruptedIOException("Interrupted while waiting for admission");
+            this.failSend(fiReq, iioe);
+            throw iioe;
+        }
+        if (!this.admitted(fiReq, permit)) {
+            throw new InterruptedIOException("Request finished while waiting for admission");
+        }
+    }
+
+    /**
+     * Attach the admission to a request.
+     * @return false if the request was finished, e.g. cancelled, while waiting
+     */
+    private boolean admitted(final FiComRequest fiReq, final FiComAdmissionControl.Permit permit) {
+        fiReq.permit = permit;
+        if (!this.transactions.contains(fiReq.handle)) {
+            permit.release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Handle the outcome of sending the signature request of {@link #callAsync}.
+     */
+    private void sent(final FiComRequest fiReq, final MSS_SignatureResp sigResp, final Throwable t) {
+        if (t == null) {
+            log.debug("Got resp");
+            fiReq.failures = 0;
+            try {
+                this.accepted(fiReq, sigResp);
+            } catch (IOException ioe) {
+                fiReq.ft.fail(ioe);
+            }
+            return;
+        }
+        if (fiReq.isDone()) {
+            // Cancelled
+            this.finish(fiReq.handle);
+            return;
+        }
+        Throwable cause = unwrap(t);
+        if (cause instanceof AxisFault) {
+            log.error("Got SOAP fault: " + ((AxisFault)cause).getFaultString());
+            new StatusPoll(fiReq).fail(cause);
+        } else {
+            log.error("Got IOException: " + cause);
+            this.failSend(fiReq, cause);
+            fiReq.ft.fail(cause);
+        }
+    }
+
+    /**
+     * Deadline of the sends of a request: the end of its transaction,
+     * or the deadline of the calling thread if that is earlier.
+     */
+    private Deadline getDeadline(final FiComRequest fiReq) {
+        return Deadline.at(this.transactions.getDeadline(fiReq.handle)).min(Deadline.current());
+    }
+
+    /**
+     * Run a blocking exchange of an asynchronous request so that cancelling
+     * the request interrupts it. On a virtual thread the interrupt closes
+     * the socket, which aborts the HTTP exchange.
+     * @return the response, or null if the request was cancelled
+     */
+    private <T> T exchange(final FiComRequest fiReq, final Callable<T> call) throws IOException {
+        FutureTask<T> task = new FutureTask<T>(call);
+        fiReq.exchange = task;
+        if (fiReq.isDone()) {
+            return null;
+        }
+        task.run();
+        fiReq.exchange = null;
+        try {
+            return task.get();
+        } catch (CancellationException ce) {
+            // Clear the interrupt of the cancel before the thread is reused
+            Thread.interrupted();
+            return null;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Convenience method for sending an authentication request without blocking
+     *
+     * @param apTransId AP Transaction ID
+     * @param authnChallenge
+     * @param phoneNumber MSISDN of the target user
+     * @param noSpamService Service for sending nospam code
+     * @param eventIdService Service containing the wanted EventId for the request
+     * @param additionalServices List of FiCom additionalservices to add to the request
+     * @return future of the response
+     * @see #callAsync(String, DTBS, String, Service, Service, List, String, String)
+     */
+    public CompletableFuture<FiComResponse> authenticateAsync(final String apTransId,
+                                                              final byte[] authnChallenge,
+                                                              final String phoneNumber,
+                                                              final Service noSpamService,
+                                                              final Service eventIdService,
+                                                              final List<Service> additionalServices)
+    {
+        return callAsync(apTransId,
+                         new DTBS(authnChallenge, DTBS.ENCODING_BASE64, DTBS.MIME_STREAM),
+                         phoneNumber,
+                         noSpamService,
+                         eventIdService,
+                         additionalServices,
+                         FiComSignatureProfiles.AUTHENTICATION,
+                         FiComMSS_Formats.PKCS7);
+    }
+
+    /**
+     * Create the signature request and add the transaction to the table.
+     * @return the request to send
+     */
+    private MSS_SignatureReq prepare(final FiComRequest fiReq,
+                                     final String apTransId,
+                                     final DTBS dtbs,
+                                     final String phoneNumber,
+                                     final Service noSpamService,
+                                     final Service eventIDService,
+                                     final List<Service> additionalServices,
+                                     final String signatureProfile,
+                                     final String mssFormat,
+                                     final FiComResponseHandler handler)
+    throws IOException
+    {
+        if(this.isShutdown) {
+            throw new IOException("FiComClient has been shut down.");
+        }
 
         String msisdn = phoneNumber; //consider using some kind of normalizer
         String dataToBeDisplayed = null;
-        MessagingModeType messagingMode = MessagingModeType.ASYNCHCLIENTSERVER;
+        final String apUrl = this.notificationUrl;
+        MessagingModeType messagingMode = apUrl != null ? MessagingModeType.ASYNCHSERVERSERVER
+                                                        : MessagingModeType.ASYNCHCLIENTSERVER;
 
         final MSS_SignatureReq sigReq = etsiClient.createSignatureRequest(apTransId, 
                                                                           msisdn, 
@@ -301,7 +794,9 @@ public class FiComClient {
                                                                           signatureProfile, 
                                                                           mssFormat, 
                                                                           messagingMode);
-        fiReq.sigReq = sigReq;
+        if(apUrl != null) {
+            sigReq.getAP_Info().setAP_URL(apUrl);
+        }
 
         sigReq.getAdditionalServices().addService(noSpamService);
         sigReq.getAdditionalServices().addService(eventIDService);
@@ -312,122 +807,178 @@ public class FiComClient {
             }
         }
 
-        MSS_SignatureResp _sigResp = null;
+        // Only the compact record is kept while the request is outstanding.
+        // The request message itself is garbage once it has been sent.
+        final boolean notified = apUrl != null;
+        final long handle;
         try {
-            log.debug("Sending sigReq");
-            _sigResp = etsiClient.send(sigReq);
-            log.debug("Got resp");
-            fiReq.sigResp = _sigResp;
-        } catch (AxisFault af) {
-            log.error("Got SOAP fault", af);
-            handler.onError(fiReq, af);
-        } catch (IOException ioe) {
-            log.error("Got IOException ", ioe);
-            throw ioe;
+            // note that the transaction generally times out at the server at 180 s 
+            long now = System.currentTimeMillis();
+            handle = this.transactions.add(sigReq.getAP_Info().getAP_ID(),
+                                           signatureProfile,
+                                           apTransId,
+                                           msisdn,
+                                           now,
+                                           now + TIMEOUT,
+                                           notified ? FiComTransactionTable.FLAG_NOTIFIED : 0,
+                                           fiReq);
+        } catch (RejectedExecutionException ree) {
+            throw new IOException("Too many outstanding requests: " + ree.getMessage());
         }
-        
-        final MSS_SignatureResp fSigResp = _sigResp;
-        FutureTask<FiComResponse> ft = 
-            new FutureTask<FiComResponse>(new Callable<FiComResponse>() {
-                @SuppressWarnings("finally")
-                @Override
-				public FiComResponse call() throws Exception {
-                	
-                    long timeout = TIMEOUT;
-                    long currentTimeMillis = System.currentTimeMillis();
-                    // note that the transaction generally times out at the server at 180 s 
-                    long deadline = currentTimeMillis + timeout;
-                    
-                    FiComResponse fiResp = null;
-                    ProgressUpdate prgUpdate = new ProgressUpdate(timeout, currentTimeMillis);
-
-                    MSS_StatusResp statResp = null;
-                    int waitPeriod = INITIAL_WAIT;
-                    long now = System.currentTimeMillis();
-                    LOOP: while(true) {    	
-                    	Thread.sleep(waitPeriod - (System.currentTimeMillis()-now));
-                        now = System.currentTimeMillis();
-                        waitPeriod = SUBSEQUENT_WAIT; 
-                        
-                        if (now > deadline) {
-                        	log.trace("Timed out");
-                            try {
-                                handler.onError(fiReq, new FiComException("Timed out"));
-                            } finally {
-                                break LOOP;
-                            }
-                        }
-                        MSS_StatusReq  statReq = null;
-                        try {
-                            statReq = etsiClient.createStatusRequest(fSigResp, apTransId);
-                        } catch (Throwable t){
-                            log.trace("Failed creating status request", t);
-                            try {
-                                handler.onError(fiReq, t);
-                            } 
-                            finally {
-                                break LOOP;
-                            }
-                        }
-                        try {
-                            log.trace("Sending statReq");
-                            statResp = etsiClient.send(statReq);
-                            log.trace("Got statResp");
-
-                            boolean done = isDone(statResp);
-                            long statusCode = parseStatus(statResp.getStatus());
-
-                            if(FiComStatusCodes.OUTSTANDING_TRANSACTION.getValue() == statusCode) {
-                                log.trace("Got an outstanding Status Response. Continuing to wait for a final answer.");
-                                handler.onOutstandingProgress(fiReq, prgUpdate);
-                                continue LOOP;
-                            } else if (done) {
-                                log.info("Got a final Status Response. Ending the wait.");
-                                fiResp = new FiComResponse(sigReq,
-                                                           fSigResp,
-                                                           statResp);
-                                try {
-                                    handler.onResponse(fiReq, fiResp);
-                                } finally {
-                                    break LOOP;                              
-                                }
-                            } else {
-                                log.warn("Got an abnormal Status Response. (" + statusCode  + ") Ending the wait.");
-                                FiComException fe = new FiComException("abnormal status code " + statusCode);
-                                try {
-                                    handler.onError(fiReq, fe);
-                                } finally {
-                                    break LOOP;
-                                }
-                            }
+        fiReq.client  = this;
+        fiReq.handler = handler;
+        fiReq.handle  = handle;
+        if(notified) {
+            // The notification may arrive before the signature response
+            this.pending.put(AP_KEY + apTransId, Long.valueOf(handle));
+        }
+        return sigReq;
+    }
 
-                        } catch (AxisFault af) {
-                            log.trace("Got SOAP fault", af);
-                            try {
-                                handler.onError(fiReq, af);
-                            } finally {
-                                break LOOP;
-                            }
-                        } catch (IOException ioe) {
-                            log.trace("Got IOException", ioe);
-                            throw ioe;
-                            //try {
-                            //    handler.onError(fiReq, ioe);
-                            //} finally {
-                            //    break LOOP;
-                            //}
-                        }
-                    }
+    /**
+     * Record the MSSP's answer to the signature request and start
+     * waiting for the signature.
+     * @throws IOException if the status polls could not be scheduled
+     */
+    private void accepted(final FiComRequest fiReq, final MSS_SignatureResp sigResp) throws IOException {
+        final long handle = fiReq.handle;
+        MSSP_Info msspInfo = sigResp.getMSSP_Info();
+        this.transactions.setMssp(handle,
+                                  msspInfo != null ? msspInfo.getMSSP_ID() : null,
+                                  sigResp.getMSSP_TransID());
+        this.publish(this.createEvent(FiComEvent.Type.ACCEPTED, fiReq, null, null, null));
+        fiReq.accepted = true;
+
+        final StatusPoll poll = new StatusPoll(fiReq);
+        try {
+            if((this.transactions.getFlags(handle) & FiComTransactionTable.FLAG_NOTIFIED) != 0) {
+                log.debug("Waiting for notification");
+                this.register(handle, sigResp.getMSSP_TransID());
+                poll.schedule(TIMEOUT);
+                MSS_StatusResp early = fiReq.notification.getAndSet(null);
+                if (early != null) {
+                    log.debug("Notified before the signature response");
+                    this.notified(fiReq, early);
+                }
+            } else {
+                log.debug("Scheduling status polls");
+                poll.schedule(this.getNextWait(handle));
+            }
+        } catch (RejectedExecutionException ree) {
+            IOException ioe = new IOException("Could not schedule status polls: " + ree.getMessage());
+            this.failSend(fiReq, ioe);
+            throw ioe;
+        }
+    }
 
-                    return fiResp;
+    /**
+     * Handle an MSS_Notification of an accepted request. The response
+     * handler is run outside of the HTTP exchange.
+     */
+    private void notified(final FiComRequest fiReq, final MSS_StatusResp statusResp) {
+        // An early notification was only matched by its AP_TransID
+        if (!this.matches(fiReq.handle, statusResp)) {
+            log.warn("Notification " + statusResp.getMSSP_TransID() + " does not match the signature response, ignored");
+            return;
+        }
+        final StatusPoll p = new StatusPoll(fiReq);
+        try {
+            this.scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    p.onNotification(statusResp);
                 }
             });
-        fiReq.ft = ft;
+        } catch (RejectedExecutionException ree) {
+            p.onNotification(statusResp);
+        }
+    }
+
+    /**
+     * Check a notification against the record of its transaction. The
+     * AP_ID and AP_TransID must match, and so must the MSSP_TransID once
+     * the signature response has given it.
+     */
+    private boolean matches(final long handle, final MSS_StatusResp statusResp) {
+        AP_Info apInfo = statusResp.getAP_Info();
+        if (apInfo == null || apInfo.getAP_ID() == null
+            || !apInfo.getAP_ID().equals(this.transactions.getApId(handle)))
+        {
+            return false;
+        }
+        if (apInfo.getAP_TransID() != null && !apInfo.getAP_TransID().equals(this.transactions.getApTransId(handle))) {
+            return false;
+        }
+        String msspTransId = this.transactions.getMsspTransId(handle);
+        return msspTransId == null || msspTransId.equals(statusResp.getMSSP_TransID());
+    }
 
-        log.debug("Starting calling");
-        this.threadExecutor.execute(ft);
+    /**
+     * Drop a request that could not be sent.
+     */
+    private void failSend(final FiComRequest fiReq, final Throwable t) {
+        FiComEvent e = this.createEvent(FiComEvent.Type.FAILED, fiReq, null, null, t);
+        if (this.finish(fiReq.handle) != null) {
+            this.publish(e);
+        }
+    }
 
-        return fiReq;
+    private static Throwable unwrap(final Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+
+    /**
+     * Receive MSS_Notifications instead of polling with status requests.
+     * <p>Subsequent requests are sent in ASYNCHSERVERSERVER mode with
+     * the given AP_URL. Requests already being polled are not affected.
+     * <p>A notification completes the request with the status and signature
+     * it carries, so only the MSSP must be able to send them: use a server
+     * made with {@link EtsiNotificationServer#EtsiNotificationServer(java.net.InetSocketAddress, javax.net.ssl.SSLContext)},
+     * which requires a client certificate, or keep a plain HTTP server
+     * unreachable to anyone but the MSSP.
+     *
+     * @param server Notification server the MSSP sends the notifications to.
+     *               Started by the caller.
+     * @param apUrl  AP_URL of the notification server as seen by the MSSP,
+     *               e.g. {@link EtsiNotificationServer#getUrl(String)}
+     */
+    public synchronized void enableNotifications(final EtsiNotificationServer server, final String apUrl) {
+        if (server == null) {
+            throw new IllegalArgumentException("null server not allowed.");
+        }
+        if (apUrl == null) {
+            throw new IllegalArgumentException("null apUrl not allowed.");
+        }
+        if (this.notificationServer != null && this.notificationServer != server) {
+            this.notificationServer.removeHandler(this.receiver);
+        }
+        if (this.notificationServer != server) {
+            server.addHandler(this.receiver);
+        }
+        this.notificationServer = server;
+        this.notificationUrl    = apUrl;
+    }
+
+    /**
+     * Go back to status polling for subsequent requests.
+     * <p>Notifications of requests already sent are still accepted
+     * until the notification server is stopped.
+     */
+    public synchronized void disableNotifications() {
+        this.notificationUrl = null;
+    }
+
+    /**
+     * @return the number of requests waiting for an MSS_Notification
+     */
+    public int getPendingNotifications() {
+        int count = 0;
+        for (String key : this.pending.keySet()) {
+            if (key.startsWith(AP_KEY)) {
+                count++;
+            }
+        }
+        return count;
     }
     
     /**
@@ -446,13 +997,53 @@ public class FiComClient {
     	                                                            message);
         receiptReq.setMobileUser(fiResp.originalSigReq.getMobileUser());
 
-        try {
-			etsiClient.send(receiptReq);
-		} catch (IOException e) {
-			log.debug("Could not send receipt", e);
+		int failures = 0;
+		while (true) {
+			try {
+				etsiClient.send(receiptReq);
+				break;
+			} catch (IOException e) {
+				long delay = this.getRetryDelay(EtsiEndpoints.RECEIPT, e, ++failures, Deadline.current());
+				if (delay < 0 || !pause(delay)) {
+					log.debug("Could not send receipt", e);
+					return;
+				}
+			}
+		}
+
+		FiComEventPublisher p = this.events;
+		if (p != null && p.hasSubscribers()) {
+			MSS_SignatureReq sigReq = fiResp.originalSigReq;
+			p.publish(new FiComEvent(FiComEvent.Type.RECEIPT_SENT,
+									 null,
+									 sigReq.getAP_Info().getAP_TransID(),
+									 fiResp.originalSigResp != null ? fiResp.originalSigResp.getMSSP_TransID() : null,
+									 sigReq.getMobileUser() != null ? sigReq.getMobileUser().getMSISDN() : null,
+									 null,
+									 fiResp,
+									 null));
 		}
     }
 
+    // Handler of requests sent with callAsync, which only complete their future
+    private static final FiComResponseHandler NO_HANDLER = new FiComResponseHandler() {
+        @Override
+        public void onError(final FiComRequest req, final Throwable throwable) {
+            // Completes the future
+        }
+        @Override
+        public void onResponse(final FiComRequest req, final FiComResponse resp) {
+            // Completes the future
+        }
+        @Override
+        public void onOutstandingProgress(final FiComRequest req, final ProgressUpdate prgUpdate) {
+            // Nothing to do
+        }
+    };
+
+    private static final String AP_KEY   = "A:";
+    private static final String MSSP_KEY = "M:";
+
     private static final long NO_STATUS = -1; // -1 is not used by ETSI or by FiCom
     private long parseStatus(Status status) {
         if(status == null)
@@ -476,13 +1067,644 @@ public class FiComClient {
     }
 
     /**
-     * Shuts down all started threads.
+     * Stops accepting new requests. Requests that are already being
+     * polled run to completion.
+     * <p>The poll scheduler is left running since it may be shared
+     * with other clients. Call {@link FiComPollScheduler#shutdown()}
+     * to stop its threads.
      */
     public void shutdown() {
-        try {
-            this.threadExecutor.shutdown();
-        } catch (Throwable t) {
-            log.trace("FiComClient failed to shut down properly", t);
+        this.isShutdown = true;
+    }
+
+    /**
+     * Warm up with one connection per MSSP host and no handshake probe.
+     * @return the phases run and their times
+     * @see #warmUp(int, boolean)
+     */
+    public WarmUp warmUp() {
+        return this.warmUp(1, false);
+    }
+
+    /**
+     * Do the work the first requests would otherwise pay for, e.g. after
+     * a deploy before reporting ready: the phases of
+     * {@link EtsiClient#warmUp(int, boolean)}, and "ficom" loading
+     * the Castor descriptors of the FiCom additional services.
+     * @param connections Connections to open per MSSP host, 0 for none
+     * @param handshake   true to send an MSS_Handshake as a probe
+     * @return the phases run and their times
+     */
+    public WarmUp warmUp(final int connections, final boolean handshake) {
+        WarmUp w = new WarmUp();
+        this.etsiClient.warmUp(w, connections, handshake);
+        w.run("ficom", () -> this.etsiClient.getCodec().preload(CASTOR_PACKAGES));
+        log.info("Warmed up: " + w);
+        return w;
+    }
+
+    /**
+     * @return the EtsiClient used for sending the requests
+     */
+    public EtsiClient getEtsiClient() {
+        return this.etsiClient;
+    }
+
+    /**
+     * @return the scheduler running the status polls of this client
+     */
+    public FiComPollScheduler getScheduler() {
+        return this.scheduler;
+    }
+
+    /**
+     * Set the policy choosing the status poll times.
+     * <p>Applies to requests sent after this call.
+     * @param pollPolicy Adaptive poll policy, may be shared by several clients.
+     *                   null for the fixed FiCom schedule.
+     */
+    public void setPollPolicy(final FiComPollPolicy pollPolicy) {
+        this.pollPolicy = pollPolicy;
+    }
+
+    /**
+     * @return the adaptive poll policy, or null if the fixed FiCom schedule is used
+     */
+    public FiComPollPolicy getPollPolicy() {
+        return this.pollPolicy;
+    }
+
+    /**
+     * Limit the transactions in flight and the status polls.
+     * The limits are looked up with the AP_ID and the signature and
+     * status URLs of the EtsiClient of this client.
+     * @param admission Limits, possibly shared with other clients, or null for no limits
+     */
+    public void setAdmissionControl(final FiComAdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    public FiComAdmissionControl getAdmissionControl() {
+        return this.admission;
+    }
+
+    /**
+     * Repeat the signature, status and receipt requests that fail
+     * temporarily, with a backoff between the tries.
+     * @param retryPolicy Policy, possibly shared with other clients, or null not to repeat
+     */
+    public void setRetryPolicy(final FiComRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public FiComRetryPolicy getRetryPolicy() {
+        return this.retryPolicy;
+    }
+
+    /**
+     * Get the publisher of the lifecycle events of this client's requests.
+     * A publisher with the default settings is created on first use.
+     * @return the event publisher
+     */
+    public synchronized FiComEventPublisher getEventPublisher() {
+        if (this.events == null) {
+            this.events = new FiComEventPublisher();
+        }
+        return this.events;
+    }
+
+    /**
+     * Publish the events with a publisher of its own executor and buffering.
+     * @param publisher Event publisher, or null to stop publishing
+     */
+    public synchronized void setEventPublisher(final FiComEventPublisher publisher) {
+        this.events = publisher;
+    }
+
+    /**
+     * Create an event of a request still in the transaction table.
+     * @return the event, or null if nobody is listening
+     */
+    private FiComEvent createEvent(final FiComEvent.Type type,
+                                   final FiComRequest    fiReq,
+                                   final ProgressUpdate  progress,
+                                   final FiComResponse   fiResp,
+                                   final Throwable       error)
+    {
+        FiComEventPublisher p = this.events;
+        if (p == null || !p.hasSubscribers()) {
+            return null;
+        }
+        long handle = fiReq.handle;
+        return new FiComEvent(type,
+                              fiReq,
+                              this.transactions.getApTransId(handle),
+                              this.transactions.getMsspTransId(handle),
+                              this.transactions.getMsisdn(handle),
+                              progress,
+                              fiResp,
+                              error);
+    }
+
+    private void publish(final FiComEvent event) {
+        FiComEventPublisher p = this.events;
+        if (p != null) {
+            p.publish(event);
+        }
+    }
+
+    /**
+     * @return the wait before the next status poll of a request
+     */
+    private long getNextWait(final long handle) {
+        FiComPollPolicy p = this.pollPolicy;
+        int polls = this.transactions.getPolls(handle);
+        if (p == null) {
+            return polls == 0 ? INITIAL_WAIT : SUBSEQUENT_WAIT;
+        }
+        long elapsed = System.currentTimeMillis() - this.transactions.getStart(handle);
+        return p.getNextWait(this.getMsspUri(handle), this.transactions.getProfile(handle), elapsed, polls);
+    }
+
+    /**
+     * Let the poll policy learn from a final response.
+     * @param lower Time of the last outstanding poll
+     */
+    private void observe(final long handle, final long lower) {
+        FiComPollPolicy p = this.pollPolicy;
+        if (p == null) {
+            return;
+        }
+        long start = this.transactions.getStart(handle);
+        p.observe(this.getMsspUri(handle),
+                  this.transactions.getProfile(handle),
+                  lower - start,
+                  System.currentTimeMillis() - start,
+                  this.transactions.getPolls(handle));
+    }
+
+    private String getMsspUri(final long handle) {
+        MSSP_ID id = (MSSP_ID)this.transactions.getMsspId(handle);
+        return id != null ? id.getURI() : null;
+    }
+
+    /**
+     * @return the table of the requests still outstanding
+     */
+    public FiComTransactionTable getTransactions() {
+        return this.transactions;
+    }
+
+    /**
+     * Make a request waiting for a notification findable by its MSSP_TransID.
+     */
+    private void register(final long handle, final String msspTransId) {
+        if (msspTransId == null) {
+            return;
+        }
+        Long h = Long.valueOf(handle);
+        this.pending.put(MSSP_KEY + msspTransId, h);
+        if (!this.transactions.contains(handle)) {
+            // Notified before the signature response was handled
+            this.pending.remove(MSSP_KEY + msspTransId, h);
+        }
+    }
+
+    /**
+     * Remove a request from the transaction table and stop waiting for it.
+     * @return the request if this call finished it, null if it was already finished
+     */
+    FiComRequest finish(final long handle) {
+        boolean notified = (this.transactions.getFlags(handle) & FiComTransactionTable.FLAG_NOTIFIED) != 0;
+        String apTransId   = notified ? this.transactions.getApTransId(handle)   : null;
+        String msspTransId = notified ? this.transactions.getMsspTransId(handle) : null;
+
+        FiComRequest fiReq = (FiComRequest)this.transactions.remove(handle);
+        if (fiReq == null) {
+            return null;
+        }
+        if (notified) {
+            Long h = Long.valueOf(handle);
+            this.pending.remove(AP_KEY + apTransId, h);
+            if (msspTransId != null) {
+                this.pending.remove(MSSP_KEY + msspTransId, h);
+            }
+        }
+        FiComPollScheduler.Timeout t = fiReq.nextPoll;
+        if (t != null) {
+            t.cancel();
+        }
+        FiComAdmissionControl.Permit p = fiReq.permit;
+        if (p != null) {
+            p.release();
+        }
+        return fiReq;
+    }
+
+    /**
+     * Rebuild the parts of the MSS_SignatureResp needed for
+     * status and receipt requests from the transaction record.
+     */
+    private MSS_SignatureResp createSignatureResp(final long handle) {
+        MSSP_Info msspInfo = new MSSP_Info();
+        msspInfo.setMSSP_ID((MSSP_ID)this.transactions.getMsspId(handle));
+        MSS_SignatureResp sigResp = new MSS_SignatureResp();
+        sigResp.setMSSP_Info(msspInfo);
+        sigResp.setMSSP_TransID(this.transactions.getMsspTransId(handle));
+        return sigResp;
+    }
+
+    private MobileUser createMobileUser(final long handle) {
+        MobileUser mu = new MobileUser();
+        mu.setMSISDN(this.transactions.getMsisdn(handle));
+        return mu;
+    }
+
+    /**
+     * Materialize the response of a finished transaction.
+     * <p>The original request is represented by its AP_Info and MobileUser
+     * which are all that receipts need; the data to be signed is not kept.
+     */
+    private FiComResponse createResponse(final long handle, final MSS_StatusResp statResp) {
+        AP_Info apInfo = new AP_Info();
+        apInfo.setAP_ID(this.transactions.getApId(handle));
+        apInfo.setAP_TransID(this.transactions.getApTransId(handle));
+        MSS_SignatureReq sigReq = new MSS_SignatureReq();
+        sigReq.setAP_Info(apInfo);
+        sigReq.setMobileUser(this.createMobileUser(handle));
+
+        MSS_SignatureResp sigResp = this.createSignatureResp(handle);
+        sigResp.setAP_Info(apInfo);
+        sigResp.setMobileUser(sigReq.getMobileUser());
+        return new FiComResponse(sigReq, sigResp, statResp);
+    }
+
+    /**
+     * Matches MSS_Notifications to pending requests of this client.
+     */
+    private class NotificationReceiver implements EtsiNotificationHandler {
+
+        @Override
+        public MSS_ReceiptReq onNotification(final MSS_StatusResp statusResp) {
+            Long handle = null;
+            boolean byApTransId = false;
+            String msspTransId = statusResp.getMSSP_TransID();
+            if (msspTransId != null) {
+                handle = pending.get(MSSP_KEY + msspTransId);
+            }
+            AP_Info apInfo = statusResp.getAP_Info();
+            if (handle == null && apInfo != null && apInfo.getAP_TransID() != null) {
+                handle = pending.get(AP_KEY + apInfo.getAP_TransID());
+                byApTransId = true;
+            }
+            if (handle == null) {
+                return null;
+            }
+            final long h = handle.longValue();
+            final FiComRequest fiReq = (FiComRequest)transactions.getHandler(h);
+            if (fiReq == null) {
+                return null;
+            }
+            // Once accepted, the MSSP_TransID is known and must find the request
+            if (byApTransId && fiReq.accepted || !matches(h, statusResp)) {
+                log.warn("Notification " + msspTransId + " does not match its transaction, ignored");
+                return null;
+            }
+            String apTransId = transactions.getApTransId(h);
+
+            MSS_ReceiptReq receiptReq;
+            MSSP_Info msspInfo = statusResp.getMSSP_Info();
+            if (msspInfo != null && msspInfo.getMSSP_ID() != null) {
+                receiptReq = etsiClient.createReceiptRequest(statusResp, apTransId, null);
+            } else if (transactions.getMsspId(h) != null) {
+                receiptReq = etsiClient.createReceiptRequest(createSignatureResp(h), apTransId, null);
+            } else {
+                log.debug("Can not build receipt for " + msspTransId);
+                receiptReq = null;
+            }
+            if (receiptReq != null) {
+                receiptReq.setMobileUser(createMobileUser(h));
+            }
+
+            // A notification that beats the signature response is left
+            // for accepted(), so that COMPLETED never precedes ACCEPTED
+            fiReq.notification.set(statusResp);
+            if (fiReq.accepted) {
+                MSS_StatusResp n = fiReq.notification.getAndSet(null);
+                if (n != null) {
+                    notified(fiReq, n);
+                }
+            }
+            return receiptReq;
+        }
+    }
+
+    /**
+     * Status polls of a single outstanding request.
+     * <p>All state of the request is in its record in the transaction
+     * table; this only binds the record to the poll scheduler.
+     * <p>In polling mode each run sends one MSS_StatusReq and either
+     * finishes the request or schedules the next poll. The transaction
+     * only occupies a worker thread while a status request is being sent.
+     * <p>In notification mode the only scheduled run is the timeout;
+     * the request is finished by {@link #onNotification(MSS_StatusResp)}.
+     */
+    private class StatusPoll implements Runnable {
+
+        private final FiComRequest fiReq;
+
+        StatusPoll(final FiComRequest fiReq) {
+            this.fiReq = fiReq;
+        }
+
+        void schedule(long wait) {
+            long handle = this.fiReq.handle;
+            long now = System.currentTimeMillis();
+            // Time out at the deadline rather than at the first poll after it
+            wait = Math.max(0, Math.min(wait, transactions.getDeadline(handle) - now));
+            transactions.setNextPoll(handle, now + wait);
+            this.fiReq.nextPoll = scheduler.schedule(this, wait);
+            if (this.fiReq.isDone() || !transactions.contains(handle)) {
+                // Cancelled or notified while scheduling
+                this.fiReq.nextPoll.cancel();
+            }
+        }
+
+        void fail(final Throwable t) {
+            this.fail(FiComEvent.Type.FAILED, t);
+        }
+
+        void timeout() {
+            this.fail(FiComEvent.Type.TIMED_OUT, new FiComException("Timed out"));
+        }
+
+        private void fail(final FiComEvent.Type type, final Throwable t) {
+            FiComEvent e = createEvent(type, this.fiReq, null, null, t);
+            if (finish(this.fiReq.handle) == null) {
+                return;
+            }
+            publish(e);
+            try {
+                this.fiReq.handler.onError(this.fiReq, t);
+            } catch (Throwable t2) {
+                log.debug("Response handler failed", t2);
+            }
+            this.fiReq.handled = true;
+            this.fiReq.ft.fail(t);
+        }
+
+        void succeed(final FiComResponse fiResp) {
+            FiComEvent e = createEvent(FiComEvent.Type.COMPLETED, this.fiReq, null, fiResp, null);
+            if (finish(this.fiReq.handle) == null) {
+                return;
+            }
+            publish(e);
+            try {
+                this.fiReq.handler.onResponse(this.fiReq, fiResp);
+            } catch (Throwable t) {
+                log.debug("Response handler failed", t);
+            }
+            this.fiReq.ft.succeed(fiResp);
+        }
+
+        void abort(final Throwable t) {
+            FiComEvent e = createEvent(FiComEvent.Type.FAILED, this.fiReq, null, null, t);
+            if (finish(this.fiReq.handle) != null) {
+                publish(e);
+                this.fiReq.ft.fail(t);
+            }
+        }
+
+        void onNotification(final MSS_StatusResp statusResp) {
+            if (!transactions.contains(this.fiReq.handle)) {
+                return;
+            }
+            try {
+                if (this.handleStatus(statusResp, System.currentTimeMillis())) {
+                    log.debug("Got an outstanding notification. Continuing to wait.");
+                }
+            } catch (Throwable t) {
+                this.abort(t);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (this.fiReq.isDone()) {
+                finish(this.fiReq.handle);
+                return;
+            }
+            try {
+                int flags = transactions.getFlags(this.fiReq.handle);
+                if ((flags & FiComTransactionTable.FLAG_NOTIFIED) != 0) {
+                    log.trace("Timed out waiting for notification");
+                    this.timeout();
+                    return;
+                }
+                FiComAdmissionControl ac = admission;
+                FiComAdmissionControl.Permit permit = null;
+                if (ac != null) {
+                    permit = ac.tryAcquire(FiComAdmissionControl.Type.POLL,
+                                           etsiClient.getApId(),
+                                           String.valueOf(etsiClient.getStatusUrl()));
+                    if (permit == null) {
+                        if (System.currentTimeMillis() > transactions.getDeadline(this.fiReq.handle)) {
+                            this.timeout();
+                        } else {
+                            log.trace("Poll over the admission limit, postponing");
+                            this.schedule(POLL_RETRY);
+                        }
+                        return;
+                    }
+                }
+                if (this.poll(permit)) {
+                    this.schedule(getNextWait(this.fiReq.handle));
+                }
+            } catch (RejectedExecutionException ree) {
+                log.debug("Poll scheduler shut down", ree);
+                this.abort(ree);
+            } catch (Throwable t) {
+                this.abort(t);
+            }
+        }
+
+        /**
+         * Send a single status request and handle the response.
+         * @param permit Admission of the poll, released when the status request is done. May be null.
+         * @return true if the request is still outstanding
+         */
+        private boolean poll(final FiComAdmissionControl.Permit permit) throws IOException {
+            boolean handedOver = false;
+            try {
+                long handle = this.fiReq.handle;
+                long now = System.currentTimeMillis();
+                if (now >= transactions.getDeadline(handle)) {
+                    log.trace("Timed out");
+                    this.timeout();
+                    return false;
+                }
+
+                long lower = transactions.polled(handle, now);
+                MSS_StatusReq  statReq = null;
+                try {
+                    statReq = etsiClient.createStatusRequest(createSignatureResp(handle), 
+                                                             transactions.getApTransId(handle));
+                } catch (Throwable t){
+                    log.trace("Failed creating status request", t);
+                    this.fail(t);
+                    return false;
+                }
+
+                final Deadline deadline = getDeadline(this.fiReq);
+                if (this.fiReq.async && !scheduler.isVirtual()) {
+                    handedOver = true;
+                    this.pollAsync(statReq, lower, deadline, permit);
+                    return false;
+                }
+                try (Deadline.Scope s = deadline.enter()) {
+                    log.trace("Sending statReq");
+                    MSS_StatusResp statResp;
+                    if (this.fiReq.async) {
+                        final MSS_StatusReq req = statReq;
+                        statResp = exchange(this.fiReq, new Callable<MSS_StatusResp>() {
+                            @Override
+                            public MSS_StatusResp call() throws IOException {
+                                return etsiClient.send(req);
+                            }
+                        });
+                        if (statResp == null) {
+                            // Cancelled
+                            finish(this.fiReq.handle);
+                            return false;
+                        }
+                    } else {
+                        statResp = etsiClient.send(statReq);
+                    }
+                    log.trace("Got statResp");
+                    this.fiReq.failures = 0;
+                    return this.handleStatus(statResp, lower);
+                } catch (AxisFault af) {
+                    if (this.retry(af, deadline)) {
+                        return false;
+                    }
+                    log.trace("Got SOAP fault", af);
+                    this.fail(af);
+                    return false;
+                } catch (DeadlineExceededException dee) {
+                    log.trace("Timed out", dee);
+                    this.timeout();
+                    return false;
+                } catch (IOException ioe) {
+                    if (this.retry(ioe, deadline)) {
+                        return false;
+                    }
+                    log.trace("Got IOException", ioe);
+                    throw ioe;
+                }
+            } finally {
+                if (permit != null && !handedOver) {
+                    permit.release();
+                }
+            }
+        }
+
+        /**
+         * Send a status request without blocking. The response is
+         * handled and the next poll scheduled on a transport thread.
+         * @param deadline End of the transaction, capping the waits of the request
+         * @param permit Admission of the poll, released when the response arrives. May be null.
+         */
+        private void pollAsync(final MSS_StatusReq statReq,
+                               final long lower,
+                               final Deadline deadline,
+                               final FiComAdmissionControl.Permit permit)
+        {
+            log.trace("Sending statReq");
+            CompletableFuture<MSS_StatusResp> f;
+            try (Deadline.Scope s = deadline.enter()) {
+                f = etsiClient.sendAsync(statReq);
+            }
+            this.fiReq.exchange = f;
+            f.whenComplete((statResp, t) -> {
+                this.fiReq.exchange = null;
+                if (permit != null) {
+                    permit.release();
+                }
+                if (this.fiReq.isDone()) {
+                    // Cancelled
+                    finish(this.fiReq.handle);
+                    return;
+                }
+                try {
+                    if (t != null) {
+                        Throwable cause = unwrap(t);
+                        if (this.retry(cause, deadline)) {
+                            return;
+                        }
+                        if (cause instanceof AxisFault) {
+                            log.trace("Got SOAP fault", cause);
+                            this.fail(cause);
+                        } else if (cause instanceof DeadlineExceededException) {
+                            log.trace("Timed out", cause);
+                            this.timeout();
+                        } else {
+                            log.trace("Got IOException", cause);
+                            this.abort(cause);
+                        }
+                    } else {
+                        log.trace("Got statResp");
+                        this.fiReq.failures = 0;
+                        if (this.handleStatus(statResp, lower)) {
+                            this.schedule(getNextWait(this.fiReq.handle));
+                        }
+                    }
+                } catch (Throwable t2) {
+                    this.abort(t2);
+                }
+            });
+        }
+
+        /**
+         * Poll again after a pause if the retry policy allows it.
+         * @return true if the next poll was scheduled
+         */
+        private boolean retry(final Throwable t, final Deadline deadline) {
+            long delay = getRetryDelay(EtsiEndpoints.STATUS, t, ++this.fiReq.failures, deadline);
+            if (delay < 0) {
+                return false;
+            }
+            this.schedule(delay);
+            return true;
+        }
+
+        /**
+         * Handle a status response received either as a reply to
+         * a status request or as an MSS_Notification.
+         * @param lower Time of the last poll that found the request outstanding
+         * @return true if the request is still outstanding
+         */
+        private boolean handleStatus(final MSS_StatusResp statResp, final long lower) {
+            long handle = this.fiReq.handle;
+            boolean done = isDone(statResp);
+            long statusCode = parseStatus(statResp.getStatus());
+
+            if(FiComStatusCodes.OUTSTANDING_TRANSACTION.getValue() == statusCode) {
+                log.trace("Got an outstanding Status Response. Continuing to wait for a final answer.");
+                ProgressUpdate prgUpdate = new ProgressUpdate(TIMEOUT, transactions.getDeadline(handle) - TIMEOUT);
+                publish(createEvent(FiComEvent.Type.OUTSTANDING, this.fiReq, prgUpdate, null, null));
+                this.fiReq.handler.onOutstandingProgress(this.fiReq, prgUpdate);
+                return true;
+            } else if (done) {
+                log.info("Got a final Status Response. Ending the wait.");
+                observe(handle, lower);
+                this.succeed(createResponse(handle, statResp));
+                return false;
+            } else {
+                log.warn("Got an abnormal Status Response. (" + statusCode  + ") Ending the wait.");
+                observe(handle, lower);
+                this.fail(new FiComException("abnormal status code " + statusCode));
+                return false;
+            }
         }
     }
 
@@ -19,24 +19,29 @@
 
 package fi.laverca.ficom;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
 import javax.xml.namespace.QName;
 
 import org.apache.axis.AxisFault;
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
 
 /**
  * FiCom MSS Error Codes
  * <p>As per MSS FiCom Implementation Guideline v2.1
+ * <p>The codes can be looked up by their value with {@link #valueOf(int)}
+ * in constant time, e.g. after decoding a fault with {@link FiComFault}.
  */
 public class FiComErrorCodes {
-    private static final Log log = LogFactory.getLog(FiComErrorCodes.class);
 
     public static final String FICOM_NS_URI = "http://mss.ficom.fi/TS102204/v1.0.0#";
     public static final String FICOM_PREFIX = "fi";
 
     public final static int NO_SECONDARY_CODE = -1;
 
+    /** Largest code value; the secondary codes have four digits */
+    public final static int MAX_CODE = 9999;
+
     public final static StatusCode      WRONG_PARAM                      = new StatusCode(101);
     public final static StatusCode      INVALID_NOSPAMCODE               = new TwoLevelStatusCode(101, 1011);
     public final static StatusCode      MISSING_NOSPAMCODE               = new TwoLevelStatusCode(101, 1012);
@@ -129,6 +134,78 @@ public class FiComErrorCodes {
     public final static StatusCode      INVALID_KEY_ALGORITHM            = new TwoLevelStatusCode(900, 9008);
 
 
+    // The codes above by their value, primary codes by the primary value and
+    // two level codes by the secondary value. The two never overlap.
+    private static final StatusCode[] index = new StatusCode[MAX_CODE + 1];
+    static {
+        for (Field f : FiComErrorCodes.class.getFields()) {
+            if (Modifier.isStatic(f.getModifiers()) && StatusCode.class.isAssignableFrom(f.getType())) {
+                try {
+                    StatusCode sc = (StatusCode)f.get(null);
+                    index[sc.getCode()] = sc;
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Look up a code by its value.
+     * @param code Primary or secondary code
+     * @return the code, or null if not defined
+     */
+    public static StatusCode valueOf(final int code) {
+        if (code < 0 || code > MAX_CODE) {
+            return null;
+        }
+        return index[code];
+    }
+
+    /**
+     * Look up the most specific code of a fault.
+     * @param primary   Primary code
+     * @param secondary Secondary code, or {@link #NO_SECONDARY_CODE}
+     * @return the two level code if defined for the primary code,
+     *         else the primary code, or null if neither is defined
+     */
+    public static StatusCode valueOf(final int primary, final int secondary) {
+        StatusCode sc = valueOf(secondary);
+        if (sc != null && sc.primaryCode == primary) {
+            return sc;
+        }
+        return valueOf(primary);
+    }
+
+    /**
+     * Parse a FiCom fault subcode, e.g. fi:_101, without allocating.
+     * @param subcode Fault subcode
+     * @return the code, or -1 if the subcode is not a FiCom code
+     */
+    public static int parseSubcode(final QName subcode) {
+        if (subcode == null) {
+            return -1;
+        }
+        // An uncertain namespace with the FiCom prefix is accepted too
+        if (!FICOM_NS_URI.equals(subcode.getNamespaceURI()) && !FICOM_PREFIX.equals(subcode.getPrefix())) {
+            return -1;
+        }
+        String s = subcode.getLocalPart();
+        int len = s.length();
+        if (len < 2 || len > 5 || s.charAt(0) != '_') {
+            return -1;
+        }
+        int code = 0;
+        for (int i = 1; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            code = code * 10 + (c - '0');
+        }
+        return code;
+    }
+
     public static class StatusCode {
         public final int primaryCode;
 
@@ -136,6 +213,13 @@ public class FiComErrorCodes {
             this.primaryCode = primary;
         }
 
+        /**
+         * @return the code this is looked up with; the secondary code of two level codes
+         */
+        public int getCode() {
+            return this.primaryCode;
+        }
+
         public boolean is(AxisFault af) {
             if(af == null)
                 return false;
@@ -146,22 +230,12 @@ public class FiComErrorCodes {
         }
         
         static boolean subcodeMatch(int i, QName subcode) {
-            String underscored = "_"+i;
-            boolean itsaFiComCode = false;
-            if(FICOM_NS_URI.equals(subcode.getNamespaceURI()))
-                itsaFiComCode = true; // definite match
-            else if(FICOM_PREFIX.equals(subcode.getPrefix())) {
-                log.debug("got an uncertain ficom prefix. Using it.");
-                itsaFiComCode = true;
-            }
+            return parseSubcode(subcode) == i;
+        }
 
-            if(itsaFiComCode) {
-                String localPart = subcode.getLocalPart();
-                if(underscored.equals(localPart)) {
-                    return true;
-                }
-            }
-            return false;
+        @Override
+        public String toString() {
+            return Integer.toString(this.primaryCode);
         }
     }
 
@@ -172,9 +246,16 @@ public class FiComErrorCodes {
             super(primary);
             this.secondaryCode = secondary;
         }
+
+        @Override
+        public int getCode() {
+            return this.secondaryCode;
+        }
         
         @Override
         public boolean is(AxisFault af) {
+            if(af == null)
+                return false;
             QName[] subcodes = af.getFaultSubCodes();
             if(subcodes == null || subcodes.length < 2)
                 return false;
@@ -182,6 +263,11 @@ public class FiComErrorCodes {
             subcodeMatch(this.primaryCode,   subcodes[0]) &&
             subcodeMatch(this.secondaryCode, subcodes[1]);
         }
+
+        @Override
+        public String toString() {
+            return this.primaryCode + "/" + this.secondaryCode;
+        }
     }
 
 }
@@ -0,0 +1,147 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.ficom;
+
+import fi.laverca.ProgressUpdate;
+
+/**
+ * Lifecycle event of a FiCom transaction, published by
+ * {@link FiComEventPublisher}.
+ */
+public class FiComEvent {
+
+    public enum Type {
+        /** The signature request is about to be sent */
+        SENT,
+        /** The MSSP accepted the signature request */
+        ACCEPTED,
+        /** A status poll or notification found the transaction outstanding */
+        OUTSTANDING,
+        /** The signature was received */
+        COMPLETED,
+        /** The MSSP returned an error, or the request could not be sent or polled */
+        FAILED,
+        /** No final answer before the FiCom timeout */
+        TIMED_OUT,
+        /** A receipt was sent with {@link FiComClient#sendReceiptReq(FiComResponse, String)} */
+        RECEIPT_SENT
+    }
+
+    private final Type           type;
+    private final long           time;
+    private final FiComRequest   request;
+    private final String         apTransId;
+    private final String         msspTransId;
+    private final String         msisdn;
+    private final ProgressUpdate progress;
+    private final FiComResponse  response;
+    private final Throwable      error;
+
+    FiComEvent(final Type           type,
+               final FiComRequest   request,
+               final String         apTransId,
+               final String         msspTransId,
+               final String         msisdn,
+               final ProgressUpdate progress,
+               final FiComResponse  response,
+               final Throwable      error)
+    {
+        this.type        = type;
+        this.time        = System.currentTimeMillis();
+        this.request     = request;
+        this.apTransId   = apTransId;
+        this.msspTransId = msspTransId;
+        this.msisdn      = msisdn;
+        this.progress    = progress;
+        this.response    = response;
+        this.error       = error;
+    }
+
+    public Type getType() {
+        return this.type;
+    }
+
+    /**
+     * @return time of the event in System.currentTimeMillis() format
+     */
+    public long getTime() {
+        return this.time;
+    }
+
+    /**
+     * @return the request, or null for {@link Type#RECEIPT_SENT}
+     */
+    public FiComRequest getRequest() {
+        return this.request;
+    }
+
+    public String getApTransId() {
+        return this.apTransId;
+    }
+
+    /**
+     * @return the MSSP_TransID, or null if the MSSP has not answered yet
+     */
+    public String getMsspTransId() {
+        return this.msspTransId;
+    }
+
+    public String getMsisdn() {
+        return this.msisdn;
+    }
+
+    /**
+     * @return the progress of an {@link Type#OUTSTANDING} transaction
+     */
+    public ProgressUpdate getProgress() {
+        return this.progress;
+    }
+
+    /**
+     * @return the response of a {@link Type#COMPLETED} or {@link Type#RECEIPT_SENT} transaction
+     */
+    public FiComResponse getResponse() {
+        return this.response;
+    }
+
+    /**
+     * @return the cause of a {@link Type#FAILED} or {@link Type#TIMED_OUT} transaction
+     */
+    public Throwable getError() {
+        return this.error;
+    }
+
+    /**
+     * @return true if this is the last event of the transaction before a receipt
+     */
+    public boolean isFinal() {
+        return this.type == Type.COMPLETED || this.type == Type.FAILED || this.type == Type.TIMED_OUT;
+    }
+
+    @Override
+    public String toString() {
+        return "FiComEvent[" + this.type
+             + " AP_TransID=" + this.apTransId
+             + " MSSP_TransID=" + this.msspTransId
+             + (this.error != null ? " error=" + this.error : "")
+             + "]";
+    }
+
+}
@@ -0,0 +1,340 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.ficom;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Publishes the {@link FiComEvent}s of all transactions of a {@link FiComClient}.
+ * <p>
+ * Events are handed over without blocking: each subscriber has a bounded
+ * buffer and is served on the executor of the publisher, never on the
+ * poll threads, and only as fast as it requests events.
+ * <p>
+ * A subscriber that falls behind first loses {@link FiComEvent.Type#OUTSTANDING}
+ * events, as chosen by the {@link ProgressPolicy}. If its buffer is full of
+ * other events it is cancelled with an {@link FiComException} rather than
+ * silently missing the outcome of a transaction.
+ */
+public class FiComEventPublisher implements Flow.Publisher<FiComEvent> {
+
+    private static final Log log = LogFactory.getLog(FiComEventPublisher.class);
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    /**
+     * What to do with the progress events of a subscriber that is behind.
+     */
+    public enum ProgressPolicy {
+        /** Drop new progress events while the buffer is full */
+        DROP,
+        /** Keep only the latest unconsumed progress event of each transaction, and drop when full */
+        CONFLATE
+    }
+
+    private final Executor       executor;
+    private final int            bufferSize;
+    private final ProgressPolicy policy;
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * Create a publisher serving the subscribers on the common fork-join pool,
+     * with {@link #DEFAULT_BUFFER_SIZE} and conflated progress events.
+     */
+    public FiComEventPublisher() {
+        this(ForkJoinPool.commonPool(), DEFAULT_BUFFER_SIZE, ProgressPolicy.CONFLATE);
+    }
+
+    /**
+     * Create a publisher
+     * @param executor   Executor running the subscribers
+     * @param bufferSize Events buffered per subscriber
+     * @param policy     Handling of progress events of subscribers that are behind
+     */
+    public FiComEventPublisher(final Executor executor, final int bufferSize, final ProgressPolicy policy) {
+        if (executor == null) {
+            throw new IllegalArgumentException("null executor not allowed.");
+        }
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be positive");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("null policy not allowed.");
+        }
+        this.executor   = executor;
+        this.bufferSize = bufferSize;
+        this.policy     = policy;
+    }
+
+    @Override
+    public void subscribe(final Flow.Subscriber<? super FiComEvent> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("null subscriber");
+        }
+        Subscription s = new Subscription(subscriber);
+        this.subscriptions.add(s);
+        if (this.closed) {
+            s.complete();
+        }
+        s.signal();
+    }
+
+    /**
+     * @return true if somebody is listening. Events need not be created otherwise.
+     */
+    public boolean hasSubscribers() {
+        return !this.subscriptions.isEmpty();
+    }
+
+    public int getSubscriberCount() {
+        return this.subscriptions.size();
+    }
+
+    /**
+     * @return the number of progress events dropped over all subscribers
+     */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Complete all subscribers once they have received their buffered events.
+     * Later subscribers are completed right away.
+     */
+    public void close() {
+        this.closed = true;
+        for (Subscription s : this.subscriptions) {
+            s.complete();
+            s.signal();
+        }
+    }
+
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Hand an event to all subscribers. Never blocks.
+     * @param event Event, ignored if null
+     */
+    void publish(final FiComEvent event) {
+        if (event == null || this.closed) {
+            return;
+        }
+        for (Subscription s : this.subscriptions) {
+            if (s.offer(event)) {
+                s.signal();
+            }
+        }
+    }
+
+    /**
+     * A subscriber, its buffer and its demand.
+     * <p>Events are delivered by a drain task on the executor. At most
+     * one drain task runs at a time, so the subscriber is called serially.
+     */
+    private final class Subscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super FiComEvent> subscriber;
+        private final AtomicInteger wip = new AtomicInteger();
+
+        // Guarded by this
+        private final ArrayDeque<FiComEvent> buffer = new ArrayDeque<FiComEvent>();
+        private final Map<FiComRequest, FiComEvent> progress = new IdentityHashMap<FiComRequest, FiComEvent>();
+        private long      demand;
+        private boolean   completing;
+        private boolean   cancelled;
+        private Throwable error;
+
+        // Only touched by the drain task
+        private boolean subscribed;
+
+        Subscription(final Flow.Subscriber<? super FiComEvent> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * @return true if the event was buffered or the subscription failed
+         */
+        synchronized boolean offer(final FiComEvent event) {
+            if (this.cancelled || this.completing || this.error != null) {
+                return false;
+            }
+            if (event.getType() == FiComEvent.Type.OUTSTANDING) {
+                boolean conflate = policy == ProgressPolicy.CONFLATE;
+                if (conflate && this.progress.containsKey(event.getRequest())) {
+                    this.progress.put(event.getRequest(), event);
+                    return false;
+                }
+                if (this.buffer.size() >= bufferSize) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                if (conflate) {
+                    this.progress.put(event.getRequest(), event);
+                }
+                this.buffer.add(event);
+                return true;
+            }
+            if (this.buffer.size() >= bufferSize && !this.evictProgress()) {
+                log.warn("Event subscriber " + this.subscriber + " is too slow, cancelling");
+                this.buffer.clear();
+                this.progress.clear();
+                this.error = new FiComException("Event buffer of " + bufferSize + " overflowed");
+                return true;
+            }
+            this.buffer.add(event);
+            return true;
+        }
+
+        /**
+         * Make room by dropping the oldest progress event.
+         */
+        private boolean evictProgress() {
+            for (Iterator<FiComEvent> i = this.buffer.iterator(); i.hasNext(); ) {
+                FiComEvent e = i.next();
+                if (e.getType() == FiComEvent.Type.OUTSTANDING) {
+                    i.remove();
+                    this.progress.remove(e.getRequest());
+                    dropped.incrementAndGet();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized void complete() {
+            this.completing = true;
+        }
+
+        @Override
+        public void request(final long n) {
+            synchronized (this) {
+                if (n <= 0) {
+                    this.error = new IllegalArgumentException("non-positive request " + n);
+                    this.buffer.clear();
+                    this.progress.clear();
+                } else {
+                    this.demand = this.demand + n < 0 ? Long.MAX_VALUE : this.demand + n;
+                }
+            }
+            this.signal();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                this.cancelled = true;
+                this.buffer.clear();
+                this.progress.clear();
+            }
+            subscriptions.remove(this);
+        }
+
+        void signal() {
+            if (this.wip.getAndIncrement() != 0) {
+                return;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ree) {
+                log.warn("Event executor rejected the subscriber, cancelling", ree);
+                this.cancel();
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            while (true) {
+                this.drain();
+                missed = this.wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void drain() {
+            try {
+                if (!this.subscribed) {
+                    this.subscribed = true;
+                    this.subscriber.onSubscribe(this);
+                }
+                while (true) {
+                    FiComEvent e = null;
+                    Throwable  t = null;
+                    boolean done = false;
+                    synchronized (this) {
+                        if (this.cancelled) {
+                            return;
+                        }
+                        if (this.error != null) {
+                            t = this.error;
+                            this.cancelled = true;
+                        } else if (this.demand > 0 && !this.buffer.isEmpty()) {
+                            e = this.buffer.poll();
+                            if (e.getType() == FiComEvent.Type.OUTSTANDING && policy == ProgressPolicy.CONFLATE) {
+                                e = this.progress.remove(e.getRequest());
+                            }
+                            this.demand--;
+                        } else if (this.buffer.isEmpty() && this.completing) {
+                            done = true;
+                            this.cancelled = true;
+                        } else {
+                            return;
+                        }
+                    }
+                    if (t != null) {
+                        subscriptions.remove(this);
+                        this.subscriber.onError(t);
+                        return;
+                    }
+                    if (done) {
+                        subscriptions.remove(this);
+                        this.subscriber.onComplete();
+                        return;
+                    }
+                    this.subscriber.onNext(e);
+                }
+            } catch (Throwable t) {
+                log.warn("Event subscriber failed, cancelling", t);
+                this.cancel();
+            }
+        }
+    }
+
+}
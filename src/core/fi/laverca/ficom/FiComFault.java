@@ -0,0 +1,207 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.ficom;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+import javax.xml.namespace.QName;
+
+import org.apache.axis.AxisFault;
+import org.apache.axis.Constants;
+import org.w3c.dom.Element;
+
+import fi.laverca.etsi.EtsiEndpoints;
+
+/**
+ * A failed request, decoded once: the FiCom codes of a SOAP fault, or the
+ * HTTP status, and what to do about it.
+ *
+ * @see FiComFaultClassifier#classify(Throwable)
+ */
+public final class FiComFault {
+
+    public enum Policy {
+        /** A temporary failure; the request may succeed when repeated */
+        RETRYABLE,
+        /** The request is wrong or not allowed; repeating does not help */
+        TERMINAL,
+        /** The user or the user's device ended the request, e.g. a cancel or a blocked PIN */
+        USER,
+        /** The MSSP or the client is over its capacity; repeat after a longer pause */
+        THROTTLE
+    }
+
+    private final Throwable  cause;
+    private final int        primaryCode;
+    private final int        secondaryCode;
+    private final int        httpStatus;
+    private final boolean    receiver;
+    private final boolean    unprocessed;
+    private final Policy     policy;
+
+    private FiComFault(final Throwable cause,
+                       final int primaryCode,
+                       final int secondaryCode,
+                       final int httpStatus,
+                       final boolean receiver,
+                       final boolean unprocessed,
+                       final Policy policy)
+    {
+        this.cause         = cause;
+        this.primaryCode   = primaryCode;
+        this.secondaryCode = secondaryCode;
+        this.httpStatus    = httpStatus;
+        this.receiver      = receiver;
+        this.unprocessed   = unprocessed;
+        this.policy        = policy;
+    }
+
+    /**
+     * Decode a failure without a policy.
+     * @param t Failure of a send, possibly wrapped by a CompletableFuture
+     * @return the decoded failure
+     */
+    static FiComFault decode(final Throwable t) {
+        Throwable cause = t;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+               && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        int primary    = -1;
+        int secondary  = FiComErrorCodes.NO_SECONDARY_CODE;
+        int httpStatus = 0;
+        boolean receiver = false;
+        if (cause instanceof AxisFault) {
+            AxisFault af = (AxisFault)cause;
+            QName[] subcodes = af.getFaultSubCodes();
+            if (subcodes != null && subcodes.length > 0) {
+                primary = FiComErrorCodes.parseSubcode(subcodes[0]);
+                if (subcodes.length > 1) {
+                    secondary = FiComErrorCodes.parseSubcode(subcodes[1]);
+                }
+            }
+            if (primary < 0) {
+                // SOAP 1.1 faults carry the code in the fault code
+                primary = FiComErrorCodes.parseSubcode(af.getFaultCode());
+            }
+            Element code = af.lookupFaultDetail(Constants.QNAME_FAULTDETAIL_HTTPERRORCODE);
+            if (code != null) {
+                try {
+                    httpStatus = Integer.parseInt(code.getTextContent().trim());
+                } catch (NumberFormatException e) {
+                    httpStatus = 0;
+                }
+            }
+            QName faultCode = af.getFaultCode();
+            receiver = faultCode != null
+                && ("Receiver".equals(faultCode.getLocalPart()) || "Server".equals(faultCode.getLocalPart()));
+        }
+        // The MSSP answered with a fault, or the request did not reach it
+        boolean unprocessed = primary >= 0 || httpStatus == 429
+            || EtsiEndpoints.isFailover(EtsiEndpoints.SIGNATURE, cause);
+        return new FiComFault(cause, primary, secondary, httpStatus, receiver, unprocessed, null);
+    }
+
+    FiComFault withPolicy(final Policy p) {
+        return new FiComFault(this.cause, this.primaryCode, this.secondaryCode, this.httpStatus,
+                              this.receiver, this.unprocessed, p);
+    }
+
+    /**
+     * @return the failure, unwrapped from CompletionException and ExecutionException
+     */
+    public Throwable getCause() {
+        return this.cause;
+    }
+
+    /**
+     * @return true if the failure is a SOAP fault with a FiCom code
+     */
+    public boolean isFiComFault() {
+        return this.primaryCode >= 0;
+    }
+
+    /**
+     * @return the primary FiCom code, or -1 if none
+     */
+    public int getPrimaryCode() {
+        return this.primaryCode;
+    }
+
+    /**
+     * @return the secondary FiCom code, or {@link FiComErrorCodes#NO_SECONDARY_CODE}
+     */
+    public int getSecondaryCode() {
+        return this.secondaryCode;
+    }
+
+    /**
+     * @return the most specific known FiCom code of the fault, or null if none
+     */
+    public FiComErrorCodes.StatusCode getStatusCode() {
+        return this.primaryCode >= 0 ? FiComErrorCodes.valueOf(this.primaryCode, this.secondaryCode) : null;
+    }
+
+    /**
+     * @return the HTTP status of a failed exchange, or 0 if none was received
+     */
+    public int getHttpStatus() {
+        return this.httpStatus;
+    }
+
+    /**
+     * @return true if the fault code is env:Receiver (SOAP 1.2) or Server (SOAP 1.1)
+     */
+    public boolean isReceiverFault() {
+        return this.receiver;
+    }
+
+    /**
+     * Tell whether the MSSP can not have acted on the request: it answered
+     * with a fault, or the request was never delivered. Only then is it
+     * safe to repeat a request that is not idempotent, like a signature request.
+     */
+    public boolean isUnprocessed() {
+        return this.unprocessed;
+    }
+
+    public Policy getPolicy() {
+        return this.policy;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("FiComFault [");
+        if (this.primaryCode >= 0) {
+            sb.append("code ").append(this.primaryCode);
+            if (this.secondaryCode != FiComErrorCodes.NO_SECONDARY_CODE) {
+                sb.append('/').append(this.secondaryCode);
+            }
+            sb.append(", ");
+        }
+        if (this.httpStatus > 0) {
+            sb.append("http ").append(this.httpStatus).append(", ");
+        }
+        return sb.append(this.policy).append(this.unprocessed ? ", unprocessed" : "")
+                 .append(", ").append(this.cause != null ? this.cause.getClass().getSimpleName() : null).append(']').toString();
+    }
+
+}
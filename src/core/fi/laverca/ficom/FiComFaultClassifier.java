@@ -0,0 +1,193 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.ficom;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.axis.AxisFault;
+
+import fi.laverca.AdmissionException;
+import fi.laverca.DeadlineExceededException;
+import fi.laverca.ficom.FiComFault.Policy;
+
+/**
+ * Decides the {@link Policy} of failed requests.
+ * <p>
+ * Each FiCom code has a policy, looked up by the secondary code first
+ * and then by the primary code in constant time. The defaults follow the
+ * meaning of the codes in the MSS FiCom Implementation Guideline:
+ * <ul>
+ * <li>parameter, authorization and roaming errors are terminal,
+ * <li>user cancels, blocked PINs and cards, unknown users and missing keys
+ *     are caused by the user,
+ * <li>OTA errors, internal errors, CRL problems and unavailable roaming
+ *     services are retryable,
+ * <li>a suspended service and services the MSSP can not provide at all
+ *     throttle, as repeating them soon does not help.
+ * </ul>
+ * Failures without a FiCom code are classified by their kind: admission
+ * rejections and HTTP 429 and 503 responses throttle, other HTTP 5xx
+ * responses and I/O errors are retryable, and a passed deadline, HTTP
+ * 4xx responses and other faults sent by the client are terminal.
+ */
+public class FiComFaultClassifier {
+
+    private final AtomicReferenceArray<Policy> policies = new AtomicReferenceArray<Policy>(FiComErrorCodes.MAX_CODE + 1);
+
+    public FiComFaultClassifier() {
+        // Terminal: the request itself is wrong
+        this.setPolicy(FiComErrorCodes.WRONG_PARAM,                       Policy.TERMINAL);
+        this.setPolicy(FiComErrorCodes.MISSING_PARAM,                     Policy.TERMINAL);
+        this.setPolicy(FiComErrorCodes.WRONG_DATA_LENGTH,                 Policy.TERMINAL);
+        this.setPolicy(FiComErrorCodes.UNAUTHORIZED_ACCESS,               Policy.TERMINAL);
+        this.setPolicy(FiComErrorCodes.INAPPROPRIATE_DATA,                Policy.TERMINAL);
+        this.setPolicy(FiComErrorCodes.INCOMPATIBLE_INTERFACE,            Policy.TERMINAL);
+        this.setPolicy(FiComErrorCodes.UNSUPPORTED_PROFILE,               Policy.TERMINAL);
+        this.setPolicy(FiComErrorCodes.ROAMING_HEADER_BLOCK_IS_MISSING,   Policy.TERMINAL);
+        this.setPolicy(FiComErrorCodes.IDENTITY_ISSUER_HEADER_IS_MISSING, Policy.TERMINAL);
+        this.setPolicy(FiComErrorCodes.HOME_MSSP_HEADER_BLOCK_IS_MISSING, Policy.TERMINAL);
+        this.setPolicy(FiComErrorCodes.APPROPRIATE_INPUT_INFO_IS_MISSING, Policy.TERMINAL);
+        this.setPolicy(FiComErrorCodes.VALIDITY_DATE_OF_TXN_HAS_EXPIRED,  Policy.TERMINAL);
+        this.setPolicy(FiComErrorCodes.DTBD_MISSING,                      Policy.TERMINAL);
+        this.setPolicy(FiComErrorCodes.INVALID_KEY_LENGTH,                Policy.TERMINAL);
+        this.setPolicy(FiComErrorCodes.INVALID_HASH_TYPE,                 Policy.TERMINAL);
+        this.setPolicy(FiComErrorCodes.INVALID_KEY_ALGORITHM,             Policy.TERMINAL);
+
+        // Caused by the user or the user's SIM
+        this.setPolicy(FiComErrorCodes.USER_DISABLED_SIGNATUREPROFILE,    Policy.USER);
+        this.setPolicy(FiComErrorCodes.USER_DISABLED_ADDITIONALSERVICE,   Policy.USER);
+        this.setPolicy(FiComErrorCodes.UNKNOWN_CLIENT,                    Policy.USER);
+        this.setPolicy(FiComErrorCodes.MALFORMATTED_USER_IDENTIFIER,      Policy.TERMINAL);
+        this.setPolicy(FiComErrorCodes.EXPIRED_TRANSACTION,               Policy.USER);
+        this.setPolicy(FiComErrorCodes.SERVER_TIMEOUT,                    Policy.RETRYABLE);
+        this.setPolicy(FiComErrorCodes.CARD_NOT_FOUND,                    Policy.USER);
+        this.setPolicy(FiComErrorCodes.INVALID_CAPABILITIES,              Policy.USER);
+        this.setPolicy(FiComErrorCodes.USER_CANCEL,                       Policy.USER);
+        this.setPolicy(FiComErrorCodes.PIN_NR_BLOCKED,                    Policy.USER);
+        this.setPolicy(FiComErrorCodes.CARD_BLOCKED,                      Policy.USER);
+        this.setPolicy(FiComErrorCodes.NO_KEY_FOUND,                      Policy.USER);
+        this.setPolicy(FiComErrorCodes.REGISTRATION_ERROR,                Policy.USER);
+        this.setPolicy(FiComErrorCodes.REGISTRATION_FAILED_ON_SERVER,     Policy.RETRYABLE);
+        this.setPolicy(FiComErrorCodes.NO_CERT_FOUND,                     Policy.USER);
+        this.setPolicy(FiComErrorCodes.ERROR_CERTIFICATE,                 Policy.USER);
+        this.setPolicy(FiComErrorCodes.SIM_APPLICATION_ERROR,             Policy.USER);
+        this.setPolicy(FiComErrorCodes.SIM_CONFIGURATION_ERROR,           Policy.USER);
+
+        // Temporary problems of the MSSP or the network
+        this.setPolicy(FiComErrorCodes.OTA_ERROR,                         Policy.RETRYABLE);
+        this.setPolicy(FiComErrorCodes.NO_CRL_FOUND,                      Policy.RETRYABLE);
+        this.setPolicy(FiComErrorCodes.PB_SIGNATURE_PROCESS,              Policy.RETRYABLE);
+        this.setPolicy(FiComErrorCodes.CRL_PB,                            Policy.RETRYABLE);
+        this.setPolicy(FiComErrorCodes.CRL_EXPIRED,                       Policy.RETRYABLE);
+        this.setPolicy(FiComErrorCodes.UNABLE_TO_PROVIDE_RE_SERVICES,     Policy.RETRYABLE);
+        this.setPolicy(FiComErrorCodes.UNABLE_TO_PROVIDE_II_SERVICES,     Policy.RETRYABLE);
+        this.setPolicy(FiComErrorCodes.UNABLE_TO_PROVIDE_VE_SERVICES,     Policy.RETRYABLE);
+        this.setPolicy(FiComErrorCodes.INTERNAL_ERROR,                    Policy.RETRYABLE);
+
+        // The MSSP is not serving the client for now
+        this.setPolicy(FiComErrorCodes.SERVICE_SUSPENDED,                 Policy.THROTTLE);
+        this.setPolicy(FiComErrorCodes.UNABLE_TO_PROVIDE_SERVICES,        Policy.THROTTLE);
+    }
+
+    /**
+     * Set the policy of a code. The policy of a primary code also applies
+     * to its secondary codes that have no policy of their own.
+     * @param code   FiCom code
+     * @param policy Policy, or null to use the policy of the primary code
+     */
+    public void setPolicy(final FiComErrorCodes.StatusCode code, final Policy policy) {
+        this.setPolicy(code.getCode(), policy);
+    }
+
+    /**
+     * @param code   Primary or secondary FiCom code
+     * @param policy Policy, or null to use the policy of the primary code
+     */
+    public void setPolicy(final int code, final Policy policy) {
+        if (code < 0 || code > FiComErrorCodes.MAX_CODE) {
+            throw new IllegalArgumentException("Invalid code " + code);
+        }
+        this.policies.set(code, policy);
+    }
+
+    /**
+     * @param primary   Primary FiCom code
+     * @param secondary Secondary FiCom code, or {@link FiComErrorCodes#NO_SECONDARY_CODE}
+     * @return the policy of the code, or null if none is set
+     */
+    public Policy getPolicy(final int primary, final int secondary) {
+        Policy p = null;
+        if (secondary >= 0 && secondary <= FiComErrorCodes.MAX_CODE) {
+            p = this.policies.get(secondary);
+        }
+        if (p == null && primary >= 0 && primary <= FiComErrorCodes.MAX_CODE) {
+            p = this.policies.get(primary);
+        }
+        return p;
+    }
+
+    /**
+     * Decode and classify a failed request.
+     * @param t Failure of a send, possibly wrapped by a CompletableFuture
+     * @return the decoded failure with its policy
+     */
+    public FiComFault classify(final Throwable t) {
+        FiComFault f = FiComFault.decode(t);
+        return f.withPolicy(this.policyOf(f));
+    }
+
+    private Policy policyOf(final FiComFault f) {
+        Throwable cause = f.getCause();
+        if (f.isFiComFault()) {
+            Policy p = this.getPolicy(f.getPrimaryCode(), f.getSecondaryCode());
+            if (p != null) {
+                return p;
+            }
+            return f.isReceiverFault() ? Policy.RETRYABLE : Policy.TERMINAL;
+        }
+        if (cause instanceof AdmissionException) {
+            return Policy.THROTTLE;
+        }
+        if (cause instanceof DeadlineExceededException) {
+            // No time left to repeat
+            return Policy.TERMINAL;
+        }
+        int status = f.getHttpStatus();
+        if (status == 429 || status == 503) {
+            return Policy.THROTTLE;
+        }
+        if (status >= 500) {
+            return Policy.RETRYABLE;
+        }
+        if (status > 0) {
+            return Policy.TERMINAL;
+        }
+        if (cause instanceof AxisFault) {
+            // Axis wraps the socket errors of the transport into faults
+            if (cause.getCause() instanceof IOException || f.isReceiverFault()) {
+                return Policy.RETRYABLE;
+            }
+            return Policy.TERMINAL;
+        }
+        return cause instanceof IOException ? Policy.RETRYABLE : Policy.TERMINAL;
+    }
+
+}
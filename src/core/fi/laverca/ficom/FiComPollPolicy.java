@@ -0,0 +1,340 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.ficom;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Adaptive status poll schedule.
+ * <p>
+ * A histogram of the time from the signature request to the final
+ * status response is kept per MSSP and signature profile. From it the
+ * policy plans at most <code>budget</code> poll times that minimize the
+ * expected time between the user answering and the answer being polled,
+ * each expected poll counting as <code>pollCost</code> milliseconds.
+ * Polls are never closer to each other than the configured floor.
+ * Until {@link #DEFAULT_MIN_SAMPLES} responses have been seen the fixed
+ * FiCom schedule is used. After the planned polls the transaction is
+ * polled every <code>tailInterval</code>.
+ * <p>
+ * A response polled at time <i>t</i> after an outstanding poll at
+ * <i>s</i> happened somewhere in (<i>s</i>, <i>t</i>], so its weight is
+ * spread evenly over that interval. Notifications give exact times.
+ * <p>
+ * {@link #getReport()} compares the polls and the added latency with
+ * what the fixed schedule would have cost for the same responses.
+ */
+public class FiComPollPolicy {
+
+    private static final Log log = LogFactory.getLog(FiComPollPolicy.class);
+
+    // Fixed schedule as per MSS FiCom Implementation Guideline, section 5.1
+    public static final long FIXED_INITIAL_WAIT = 20 * 1000;
+    public static final long FIXED_INTERVAL     = 5  * 1000;
+
+    public static final int  DEFAULT_BUDGET           = 8;
+    public static final long DEFAULT_MIN_INITIAL_WAIT = 5  * 1000;
+    public static final long DEFAULT_MIN_INTERVAL     = FIXED_INTERVAL;
+    public static final long DEFAULT_TAIL_INTERVAL    = 10 * 1000;
+    public static final long DEFAULT_POLL_COST        = 1000;
+    public static final int  DEFAULT_MIN_SAMPLES      = 50;
+
+    private static final long   GRID       = 500;        // Histogram bucket width in milliseconds
+    private static final int    BUCKETS    = 600;        // 5 minutes
+    private static final double MAX_WEIGHT = 5000;       // Halve the histogram beyond this
+    private static final int    REPLAN     = 32;         // Observations between plans
+    private static final double COVERAGE   = 0.999;      // Plan up to this quantile
+
+    private final int  budget;
+    private final long minInitialWait;
+    private final long minInterval;
+    private final long tailInterval;
+    private final long pollCost;
+
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+    /**
+     * Create a policy with the default budget and floors.
+     */
+    public FiComPollPolicy() {
+        this(DEFAULT_BUDGET, DEFAULT_MIN_INITIAL_WAIT, DEFAULT_MIN_INTERVAL, DEFAULT_TAIL_INTERVAL, DEFAULT_POLL_COST);
+    }
+
+    /**
+     * Create a policy
+     * @param budget         Maximum number of planned polls per transaction
+     * @param minInitialWait Minimum wait before the first poll in milliseconds
+     * @param minInterval    Minimum wait between polls in milliseconds
+     * @param tailInterval   Wait between polls after the planned ones in milliseconds
+     * @param pollCost       Added latency in milliseconds worth saving one poll
+     */
+    public FiComPollPolicy(final int  budget,
+                           final long minInitialWait,
+                           final long minInterval,
+                           final long tailInterval,
+                           final long pollCost)
+    {
+        if (budget < 1) {
+            throw new IllegalArgumentException("budget must be positive");
+        }
+        if (minInitialWait < GRID || minInterval < GRID) {
+            throw new IllegalArgumentException("wait must be at least " + GRID + " ms");
+        }
+        if (tailInterval < minInterval) {
+            throw new IllegalArgumentException("tailInterval below minInterval");
+        }
+        if (pollCost < 0) {
+            throw new IllegalArgumentException("negative pollCost");
+        }
+        this.budget         = budget;
+        this.minInitialWait = minInitialWait;
+        this.minInterval    = minInterval;
+        this.tailInterval   = tailInterval;
+        this.pollCost       = pollCost;
+    }
+
+    /**
+     * Get the wait before the next poll.
+     * @param msspId  MSSP_ID URI of the transaction
+     * @param profile Signature profile of the transaction
+     * @param elapsed Milliseconds since the signature request
+     * @param polls   Polls already sent
+     * @return wait in milliseconds
+     */
+    public long getNextWait(final String msspId, final String profile, final long elapsed, final int polls) {
+        long[] plan = this.getStats(msspId, profile).plan;
+        if (plan == null) {
+            return polls == 0 ? FIXED_INITIAL_WAIT : FIXED_INTERVAL;
+        }
+        long floor = polls == 0 ? this.minInitialWait : this.minInterval;
+        if (polls >= plan.length) {
+            return this.tailInterval;
+        }
+        return Math.max(plan[polls] - elapsed, floor);
+    }
+
+    /**
+     * Record a final response.
+     * @param msspId  MSSP_ID URI of the transaction
+     * @param profile Signature profile of the transaction
+     * @param lower   Milliseconds from the signature request to the last outstanding poll
+     * @param upper   Milliseconds from the signature request to the final response
+     * @param polls   Polls sent, 0 for a notification
+     */
+    public void observe(final String msspId, final String profile, final long lower, final long upper, final int polls) {
+        this.getStats(msspId, profile).observe(Math.max(0, lower), Math.max(lower, upper), polls);
+    }
+
+    /**
+     * @return the planned poll times of an MSSP and signature profile,
+     *         in milliseconds from the signature request.
+     *         null while the fixed schedule is used.
+     */
+    public long[] getPlan(final String msspId, final String profile) {
+        long[] plan = this.getStats(msspId, profile).plan;
+        return plan != null ? plan.clone() : null;
+    }
+
+    /**
+     * @return one line per MSSP and signature profile with the polls and
+     *         added latency compared with the fixed schedule
+     */
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Stats> e : new TreeMap<String, Stats>(this.stats).entrySet()) {
+            sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private Stats getStats(final String msspId, final String profile) {
+        String key = msspId + " " + profile;
+        Stats s = this.stats.get(key);
+        if (s == null) {
+            Stats n = new Stats();
+            s = this.stats.putIfAbsent(key, n);
+            if (s == null) {
+                s = n;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Histogram and savings of one MSSP and signature profile.
+     */
+    private class Stats {
+
+        private final double[] weights = new double[BUCKETS];
+        private double         total;
+        private int            samples;
+        private int            sincePlan;
+        volatile long[]        plan;
+
+        // Report counters of polled transactions
+        private long transactions;
+        private long polls;
+        private long fixedPolls;
+        private long addedLatency;
+        private long fixedAddedLatency;
+
+        synchronized void observe(final long lower, final long upper, final int polled) {
+            int lo = (int)Math.min(lower / GRID, BUCKETS - 1);
+            int hi = (int)Math.min((upper + GRID - 1) / GRID, BUCKETS);
+            if (hi <= lo) {
+                this.weights[lo] += 1;
+            } else {
+                double w = 1.0 / (hi - lo);
+                for (int b = lo; b < hi; b++) {
+                    this.weights[b] += w;
+                }
+            }
+            this.total += 1;
+            this.samples++;
+            if (this.total > MAX_WEIGHT) {
+                // Let older responses fade out
+                for (int b = 0; b < BUCKETS; b++) {
+                    this.weights[b] /= 2;
+                }
+                this.total /= 2;
+            }
+
+            if (polled > 0) {
+                long answer = (lower + upper) / 2;
+                long fixed  = FIXED_INITIAL_WAIT;
+                int  n      = 1;
+                while (fixed < answer) {
+                    fixed += FIXED_INTERVAL;
+                    n++;
+                }
+                this.transactions++;
+                this.polls             += polled;
+                this.fixedPolls        += n;
+                this.addedLatency      += upper - answer;
+                this.fixedAddedLatency += fixed - answer;
+            }
+
+            if (this.samples >= DEFAULT_MIN_SAMPLES && (this.plan == null || ++this.sincePlan >= REPLAN)) {
+                this.sincePlan = 0;
+                this.plan = this.computePlan();
+                if (log.isDebugEnabled()) {
+                    log.debug("New poll plan " + Arrays.toString(this.plan));
+                }
+            }
+        }
+
+        /**
+         * Choose poll times on the histogram grid by dynamic programming.
+         * <p>A poll at grid point j catches all answers in buckets below j
+         * and is sent by all transactions not answered by the previous poll.
+         * The cost of a poll at j after one at i is the expected wait of the
+         * answers in buckets i..j-1 plus the poll cost times the share of
+         * transactions still outstanding at i. Answers after the last planned
+         * poll are polled every tail interval.
+         */
+        private long[] computePlan() {
+            // Prefix sums of the normalized weights and of weight * bucket
+            double[] w = new double[BUCKETS + 1];
+            double[] m = new double[BUCKETS + 1];
+            int n = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                double p = this.weights[b] / this.total;
+                w[b + 1] = w[b] + p;
+                m[b + 1] = m[b] + p * b;
+                if (w[b] < COVERAGE) {
+                    n = b + 1;
+                }
+            }
+            // All costs are in grid units
+            double tail     = (double)FiComPollPolicy.this.tailInterval / GRID;
+            double pollCost = (double)FiComPollPolicy.this.pollCost     / GRID;
+            int first = (int)((FiComPollPolicy.this.minInitialWait + GRID - 1) / GRID);
+            int step  = (int)((FiComPollPolicy.this.minInterval    + GRID - 1) / GRID);
+            int k     = FiComPollPolicy.this.budget;
+            if (first > n) {
+                return new long[] { first * GRID };
+            }
+
+            double[][] cost = new double[k + 1][n + 1];
+            int[][]    prev = new int[k + 1][n + 1];
+            for (double[] c : cost) {
+                Arrays.fill(c, Double.POSITIVE_INFINITY);
+            }
+            double best  = Double.POSITIVE_INFINITY;
+            int    bestK = 0;
+            int    bestJ = 0;
+            for (int p = 1; p <= k; p++) {
+                for (int j = first; j <= n; j++) {
+                    if (p == 1) {
+                        cost[p][j] = j * w[j] - m[j] - 0.5 * w[j] + pollCost;
+                        prev[p][j] = 0;
+                    } else {
+                        for (int i = first; i <= j - step; i++) {
+                            if (cost[p - 1][i] == Double.POSITIVE_INFINITY) {
+                                continue;
+                            }
+                            double dw = w[j] - w[i];
+                            double c  = cost[p - 1][i] + j * dw - (m[j] - m[i]) - 0.5 * dw
+                                      + pollCost * (1 - w[i]);
+                            if (c < cost[p][j]) {
+                                cost[p][j] = c;
+                                prev[p][j] = i;
+                            }
+                        }
+                    }
+                    double left   = 1 - w[j];
+                    double excess = m[BUCKETS] - m[j] + (0.5 - j) * left;
+                    double total  = cost[p][j] + left * tail / 2 + pollCost * (left + excess / tail);
+                    if (total < best) {
+                        best  = total;
+                        bestK = p;
+                        bestJ = j;
+                    }
+                }
+            }
+
+            long[] plan = new long[bestK];
+            for (int p = bestK, j = bestJ; p > 0; j = prev[p][j], p--) {
+                plan[p - 1] = j * GRID;
+            }
+            return plan;
+        }
+
+        @Override
+        public synchronized String toString() {
+            long t = Math.max(1, this.transactions);
+            return "[transactions: " + this.transactions
+                 + "; polls: " + this.polls
+                 + "; fixed polls: " + this.fixedPolls
+                 + "; added latency: " + this.addedLatency / t + " ms"
+                 + "; fixed added latency: " + this.fixedAddedLatency / t + " ms"
+                 + "; saved: " + (this.fixedAddedLatency - this.addedLatency) / t + " ms"
+                 + "; plan: " + Arrays.toString(this.plan) + "]";
+        }
+    }
+
+}
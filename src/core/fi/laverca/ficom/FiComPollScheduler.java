@@ -0,0 +1,519 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.ficom;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import fi.laverca.VirtualThreads;
+
+/**
+ * Status poll scheduler shared by FiComClient instances.
+ * <p>
+ * Outstanding transactions are kept as entries of a hashed timer wheel
+ * which is advanced by a single timer thread. When the wait of an entry
+ * is over, the poll is handed to a small bounded worker pool that sends
+ * the actual MSS_StatusReq. No thread is parked while a transaction
+ * waits for its next poll.
+ * <p>
+ * With virtual threads each poll is run on a virtual thread of its own
+ * instead, and the worker count only limits how many are sending at a
+ * time. A poll blocked on the network then holds no platform thread.
+ * Without virtual threads the scheduler falls back to the worker pool.
+ *
+ * @see VirtualThreads
+ */
+public class FiComPollScheduler {
+
+    private static final Log log = LogFactory.getLog(FiComPollScheduler.class);
+
+    public static final int  DEFAULT_WORKERS    = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    public static final int  DEFAULT_VIRTUAL_WORKERS = 10000; // Concurrent sends on virtual threads
+    public static final long DEFAULT_TICK       = 100; // Wheel tick in milliseconds
+    public static final int  DEFAULT_WHEEL_SIZE = 512; // Amount of buckets in the wheel
+
+    private static final int ST_INIT     = 0;
+    private static final int ST_STARTED  = 1;
+    private static final int ST_SHUTDOWN = 2;
+
+    private static FiComPollScheduler shared;
+
+    private final long     tickNanos;
+    private final Bucket[] wheel;
+    private final int      mask;
+    private final long     startTime = System.nanoTime();
+
+    private final Queue<Timeout> added       = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> cancelled   = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicInteger  outstanding = new AtomicInteger();
+
+    private final ExecutorService    workers;
+    private final Semaphore          permits; // Limits the virtual workers
+    private final int                maxWorkers;
+    private final Thread             timerThread;
+    private volatile int             state = ST_INIT;
+    private long                     tick;
+
+    /**
+     * Get the scheduler shared by all FiComClients that were not given
+     * a scheduler of their own. It uses virtual threads if
+     * {@link VirtualThreads#isEnabledByDefault()}.
+     * @return shared scheduler
+     */
+    public static synchronized FiComPollScheduler getShared() {
+        if (shared == null || shared.isShutdown()) {
+            if (VirtualThreads.isEnabledByDefault()) {
+                shared = new FiComPollScheduler(DEFAULT_VIRTUAL_WORKERS, DEFAULT_TICK, DEFAULT_WHEEL_SIZE, true);
+            } else {
+                shared = new FiComPollScheduler();
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Create a scheduler with default settings.
+     */
+    public FiComPollScheduler() {
+        this(DEFAULT_WORKERS);
+    }
+
+    /**
+     * Create a scheduler with the given amount of worker threads.
+     * @param workers Maximum amount of concurrent status sends
+     */
+    public FiComPollScheduler(final int workers) {
+        this(workers, DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Create a scheduler.
+     * @param workers    Maximum amount of concurrent status sends
+     * @param tickMillis Timer resolution in milliseconds
+     * @param wheelSize  Amount of wheel buckets. Rounded up to a power of two.
+     */
+    public FiComPollScheduler(final int workers, final long tickMillis, final int wheelSize) {
+        this(workers, tickMillis, wheelSize, false);
+    }
+
+    /**
+     * Create a scheduler.
+     * @param workers    Maximum amount of concurrent status sends
+     * @param tickMillis Timer resolution in milliseconds
+     * @param wheelSize  Amount of wheel buckets. Rounded up to a power of two.
+     * @param virtualThreads true to run the polls on virtual threads if the JDK has them.
+     *                   Otherwise a pool of <code>workers</code> platform threads is used.
+     */
+    public FiComPollScheduler(final int workers, final long tickMillis, final int wheelSize, final boolean virtualThreads) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be positive");
+        }
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("tickMillis must be positive");
+        }
+        if (wheelSize < 1 || wheelSize > (1 << 20)) {
+            throw new IllegalArgumentException("wheelSize must be between 1 and 2^20");
+        }
+
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            this.wheel[i] = new Bucket();
+        }
+        this.mask      = size - 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+
+        this.maxWorkers = workers;
+        if (virtualThreads && VirtualThreads.isAvailable()) {
+            this.workers = VirtualThreads.newThreadPerTaskExecutor("laverca-poll-worker-");
+            this.permits = new Semaphore(workers);
+        } else {
+            if (virtualThreads) {
+                log.info("Virtual threads not available, polling with " + workers + " platform threads");
+            }
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers,
+                                                             60, TimeUnit.SECONDS,
+                                                             new LinkedBlockingQueue<Runnable>(),
+                                                             VirtualThreads.newThreadFactory("laverca-poll-worker-", false));
+            pool.allowCoreThreadTimeOut(true);
+            this.workers = pool;
+            this.permits = null;
+        }
+
+        // The timer only sleeps between ticks, so a platform thread is fine
+        this.timerThread = VirtualThreads.newThreadFactory("laverca-poll-timer-", false).newThread(new Runnable() {
+            @Override
+            public void run() {
+                runTimer();
+            }
+        });
+    }
+
+    /**
+     * Schedule a task to be run on the worker pool after the given delay.
+     *
+     * @param task Task to run
+     * @param delayMillis Delay in milliseconds
+     * @return Handle that can be used to cancel the task
+     * @throws RejectedExecutionException if this scheduler has been shut down
+     */
+    public Timeout schedule(final Runnable task, final long delayMillis) {
+        if (task == null) {
+            throw new IllegalArgumentException("null task not allowed");
+        }
+        this.start();
+
+        long delay    = TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        long deadline = System.nanoTime() - this.startTime + delay;
+
+        Timeout t = new Timeout(this, task, deadline);
+        this.outstanding.incrementAndGet();
+        this.added.add(t);
+        return t;
+    }
+
+    /**
+     * Run a task on the worker pool right away.
+     * @param task Task to run
+     * @throws RejectedExecutionException if this scheduler has been shut down
+     */
+    public void execute(final Runnable task) {
+        if (this.isShutdown()) {
+            throw new RejectedExecutionException("FiComPollScheduler has been shut down");
+        }
+        this.dispatch(task);
+    }
+
+    /**
+     * @return Amount of tasks waiting for their timer to expire
+     */
+    public int getOutstanding() {
+        return this.outstanding.get();
+    }
+
+    /**
+     * @return Amount of expired tasks waiting for a free worker
+     */
+    public int getQueued() {
+        if (this.permits != null) {
+            return this.permits.getQueueLength();
+        }
+        return ((ThreadPoolExecutor)this.workers).getQueue().size();
+    }
+
+    /**
+     * @return Amount of workers currently running a task
+     */
+    public int getActiveWorkers() {
+        if (this.permits != null) {
+            return this.maxWorkers - this.permits.availablePermits();
+        }
+        return ((ThreadPoolExecutor)this.workers).getActiveCount();
+    }
+
+    /**
+     * @return true if the tasks are run on virtual threads
+     */
+    public boolean isVirtual() {
+        return this.permits != null;
+    }
+
+    public boolean isShutdown() {
+        return this.state == ST_SHUTDOWN;
+    }
+
+    /**
+     * Stops the timer and the worker threads. Tasks that are still
+     * waiting for their timer are dropped.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            int oldState = this.state;
+            this.state = ST_SHUTDOWN;
+            if (oldState == ST_STARTED) {
+                this.timerThread.interrupt();
+            }
+        }
+        this.workers.shutdown();
+    }
+
+    private synchronized void start() {
+        switch (this.state) {
+            case ST_INIT:
+                this.state = ST_STARTED;
+                this.timerThread.start();
+                break;
+            case ST_STARTED:
+                break;
+            default:
+                throw new RejectedExecutionException("FiComPollScheduler has been shut down");
+        }
+    }
+
+    private void runTimer() {
+        while (this.state == ST_STARTED) {
+            long deadline = this.waitForNextTick();
+            if (deadline < 0) {
+                continue;
+            }
+            try {
+                this.removeCancelled();
+                this.transferAdded();
+                this.wheel[(int)(this.tick & this.mask)].expire(deadline);
+            } catch (Throwable t) {
+                log.error("Poll timer failure", t);
+            }
+            this.tick++;
+        }
+        log.debug("Poll timer stopped");
+    }
+
+    /**
+     * Sleep until the start of the next tick.
+     * @return current time relative to start time, or -1 if interrupted
+     */
+    private long waitForNextTick() {
+        long deadline = this.tickNanos * (this.tick + 1);
+        while (true) {
+            long current = System.nanoTime() - this.startTime;
+            long sleep   = (deadline - current + 999999) / 1000000;
+            if (sleep <= 0) {
+                return current;
+            }
+            try {
+                Thread.sleep(sleep);
+            } catch (InterruptedException e) {
+                if (this.state != ST_STARTED) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    private void transferAdded() {
+        // Limit the transfer so that a flood of new entries can not stall the timer
+        for (int i = 0; i < 100000; i++) {
+            Timeout t = this.added.poll();
+            if (t == null) {
+                break;
+            }
+            if (t.state != Timeout.ST_INIT) {
+                continue;
+            }
+            long calculated = t.deadline / this.tickNanos;
+            t.remainingRounds = (calculated - this.tick) / this.wheel.length;
+
+            long ticks = Math.max(calculated, this.tick);
+            this.wheel[(int)(ticks & this.mask)].add(t);
+        }
+    }
+
+    private void removeCancelled() {
+        while (true) {
+            Timeout t = this.cancelled.poll();
+            if (t == null) {
+                break;
+            }
+            if (t.bucket != null) {
+                t.bucket.remove(t);
+            }
+        }
+    }
+
+    private void run(final Timeout t) {
+        try {
+            this.dispatch(t.task);
+        } catch (RejectedExecutionException e) {
+            log.debug("Poll rejected; scheduler shut down");
+        }
+    }
+
+    private void dispatch(final Runnable task) {
+        if (this.permits == null) {
+            this.workers.execute(task);
+        } else {
+            this.workers.execute(new Limited(task));
+        }
+    }
+
+    /**
+     * A task on a virtual thread that waits for a permit before running.
+     * A virtual thread waiting on the semaphore is unmounted, so a backlog
+     * of polls costs heap, not platform threads.
+     */
+    private final class Limited implements Runnable {
+
+        private final Runnable task;
+
+        Limited(final Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                log.debug("Poll interrupted; scheduler shut down");
+                return;
+            }
+            try {
+                this.task.run();
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Handle of a scheduled task.
+     */
+    public static final class Timeout {
+
+        private static final int ST_INIT      = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED   = 2;
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final FiComPollScheduler scheduler;
+        private final Runnable           task;
+        private final long               deadline;
+        private volatile int             state = ST_INIT;
+
+        // Only touched by the timer thread
+        long    remainingRounds;
+        Timeout next;
+        Timeout prev;
+        Bucket  bucket;
+
+        Timeout(final FiComPollScheduler scheduler, final Runnable task, final long deadline) {
+            this.scheduler = scheduler;
+            this.task      = task;
+            this.deadline  = deadline;
+        }
+
+        /**
+         * Cancel the task if it has not been run yet.
+         * @return true if the task was cancelled by this call
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+            this.scheduler.outstanding.decrementAndGet();
+            this.scheduler.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return this.state == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return this.state == ST_EXPIRED;
+        }
+
+        void expire() {
+            if (!STATE.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+            this.scheduler.outstanding.decrementAndGet();
+            this.scheduler.run(this);
+        }
+    }
+
+    /**
+     * Doubly linked list of timeouts. Only touched by the timer thread.
+     */
+    private static final class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        void add(final Timeout t) {
+            t.bucket = this;
+            if (this.head == null) {
+                this.head = this.tail = t;
+            } else {
+                this.tail.next = t;
+                t.prev = this.tail;
+                this.tail = t;
+            }
+        }
+
+        void expire(final long deadline) {
+            Timeout t = this.head;
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.remainingRounds <= 0) {
+                    this.remove(t);
+                    if (t.deadline > deadline && log.isDebugEnabled()) {
+                        log.debug("Poll timer entry expired " + (t.deadline - deadline) / 1000000 + " ms early");
+                    }
+                    t.expire();
+                } else if (t.isCancelled()) {
+                    this.remove(t);
+                } else {
+                    t.remainingRounds--;
+                }
+                t = next;
+            }
+        }
+
+        void remove(final Timeout t) {
+            if (t.bucket != this) {
+                return;
+            }
+            Timeout next = t.next;
+            if (t.prev != null) {
+                t.prev.next = next;
+            }
+            if (t.next != null) {
+                t.next.prev = t.prev;
+            }
+            if (t == this.head) {
+                this.head = next;
+            }
+            if (t == this.tail) {
+                this.tail = t.prev;
+            }
+            t.prev   = null;
+            t.next   = null;
+            t.bucket = null;
+        }
+    }
+
+}
@@ -19,21 +19,50 @@
 
 package fi.laverca.ficom;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
-import org.etsi.uri.TS102204.v1_1_2.MSS_SignatureReq;
-import org.etsi.uri.TS102204.v1_1_2.MSS_SignatureResp;
+import org.etsi.uri.TS102204.v1_1_2.MSS_StatusResp;
 
 /**
  * FiCom request handle
- *
+ * <p>The outcome of the request is also available as a
+ * {@link CompletableFuture} with {@link #toCompletableFuture()}.
+ * Cancelling that future is the same as calling {@link #cancel()}.
  */
 public class FiComRequest {
 
-    MSS_SignatureReq           sigReq;
-    MSS_SignatureResp          sigResp;
-    FutureTask<FiComResponse>  ft;
+    // The request state is kept in the transaction table of the client
+    FiComClient                client;
+    FiComResponseHandler       handler;
+    long                       handle;
+    final ResponseFuture       ft = new ResponseFuture();
+
+    // Polled with non-blocking requests
+    boolean                    async;
+
+    // Next scheduled status poll
+    volatile FiComPollScheduler.Timeout nextPoll;
+
+    // HTTP exchange in progress, if sent without blocking or on a virtual thread
+    volatile Future<?>         exchange;
+
+    // Set when the error was given to the response handler
+    volatile boolean           handled;
+
+    // Admission of the transaction, released when it is finished
+    volatile FiComAdmissionControl.Permit permit;
+
+    // Failed sends in a row of the signature request or of the status polls
+    volatile int               failures;
+
+    // Set once ACCEPTED has been published
+    volatile boolean           accepted;
+
+    // MSS_Notification that arrived before the request was accepted
+    final AtomicReference<MSS_StatusResp> notification = new AtomicReference<MSS_StatusResp>();
 
     FiComRequest() {
         // fields are written by FiComClient during execution
@@ -42,15 +71,119 @@ public class FiComRequest {
     /** 
      * Wait for a response. 
      * <p>Blocks current thread. 
+     * @return the response, or null if the request failed and the
+     *         error was given to the response handler
      */
     public FiComResponse waitForResponse() throws InterruptedException, ExecutionException {
-        return this.ft.get();
+        try {
+            return this.ft.get();
+        } catch (ExecutionException e) {
+            if (this.handled) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Get the outcome as a future that can be composed and given timeouts
+     * without blocking a thread.
+     * <p>The future completes exceptionally if the request fails, even if
+     * the error was also given to the response handler. Dependent stages
+     * run on the thread completing the request, a poll or transport thread,
+     * unless they are added with the *Async methods.
+     * @return the future of this request
+     */
+    public CompletableFuture<FiComResponse> toCompletableFuture() {
+        return this.ft;
     }
 
     /**
      * Cancel the sent request.
+     * <p>Removes the request from the poll schedule and aborts the
+     * HTTP exchange in progress if it was sent with
+     * {@link FiComClient#callAsync}. The MSSP is not told since
+     * TS 102 204 has no message for it; it times the transaction out by itself.
      */
     public void cancel() {
         this.ft.cancel(true);
     }
+
+    /**
+     * @return true if the request has completed or has been cancelled
+     */
+    public boolean isDone() {
+        return this.ft.isDone();
+    }
+
+    private void release() {
+        FiComClient c = this.client;
+        if (c != null) {
+            c.finish(this.handle);
+        }
+        FiComPollScheduler.Timeout t = this.nextPoll;
+        if (t != null) {
+            t.cancel();
+        }
+        Future<?> x = this.exchange;
+        if (x != null) {
+            x.cancel(true);
+        }
+    }
+
+    /**
+     * Future completed by the status poller. Cancelling or completing
+     * it from outside, e.g. with orTimeout, also cancels the request.
+     */
+    class ResponseFuture extends CompletableFuture<FiComResponse> {
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                FiComRequest.this.release();
+            }
+            return cancelled;
+        }
+
+        @Override
+        public boolean complete(final FiComResponse value) {
+            boolean completed = super.complete(value);
+            if (completed) {
+                FiComRequest.this.release();
+            }
+            return completed;
+        }
+
+        @Override
+        public boolean completeExceptionally(final Throwable t) {
+            boolean completed = super.completeExceptionally(t);
+            if (completed) {
+                FiComRequest.this.release();
+            }
+            return completed;
+        }
+
+        @Override
+        public void obtrudeValue(final FiComResponse value) {
+            super.obtrudeValue(value);
+            FiComRequest.this.release();
+        }
+
+        @Override
+        public void obtrudeException(final Throwable t) {
+            super.obtrudeException(t);
+            FiComRequest.this.release();
+        }
+
+        // Completions by the client, which has finished the request itself
+
+        void succeed(final FiComResponse value) {
+            super.complete(value);
+        }
+
+        void fail(final Throwable t) {
+            super.completeExceptionally(t);
+        }
+    }
 }
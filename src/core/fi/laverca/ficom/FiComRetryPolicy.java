@@ -0,0 +1,207 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.ficom;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import fi.laverca.Deadline;
+import fi.laverca.etsi.EtsiEndpoints;
+import fi.laverca.ficom.FiComFault.Policy;
+
+/**
+ * When and how soon FiComClient repeats a failed signature, status or
+ * receipt request.
+ * <p>
+ * The failure is classified by a {@link FiComFaultClassifier}. Only
+ * {@link Policy#RETRYABLE} and {@link Policy#THROTTLE} failures are
+ * repeated, at most until the request has failed the maximum number of
+ * times in a row. A signature request is repeated only if the MSSP can not
+ * have started a transaction for it, see {@link FiComFault#isUnprocessed()};
+ * status and receipt requests are idempotent and are repeated after any
+ * retryable failure.
+ * <p>
+ * The pause before the n:th repeat is drawn at random up to
+ * base delay * 2^(n-1), capped at the maximum delay ("full jitter"), so
+ * the clients failing together do not come back together. Throttled
+ * requests wait at least half of the same computed from the longer
+ * throttle delay. A repeat that would start after the deadline of the
+ * transaction is not made.
+ *
+ * @see FiComClient#setRetryPolicy(FiComRetryPolicy)
+ */
+public class FiComRetryPolicy {
+
+    public static final int  DEFAULT_MAX_ATTEMPTS   = 3;
+    public static final long DEFAULT_BASE_DELAY     = 100;
+    public static final long DEFAULT_MAX_DELAY      = 5000;
+    public static final long DEFAULT_THROTTLE_DELAY = 1000;
+
+    private final FiComFaultClassifier classifier;
+
+    private volatile int  maxAttempts   = DEFAULT_MAX_ATTEMPTS;
+    private volatile long baseDelay     = DEFAULT_BASE_DELAY;
+    private volatile long maxDelay      = DEFAULT_MAX_DELAY;
+    private volatile long throttleDelay = DEFAULT_THROTTLE_DELAY;
+
+    private final LongAdder retries   = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+
+    /**
+     * Retries with the default classification
+     */
+    public FiComRetryPolicy() {
+        this(new FiComFaultClassifier());
+    }
+
+    /**
+     * @param classifier Classification of the failures
+     */
+    public FiComRetryPolicy(final FiComFaultClassifier classifier) {
+        if (classifier == null) {
+            throw new IllegalArgumentException("null classifier not allowed.");
+        }
+        this.classifier = classifier;
+    }
+
+    public FiComFaultClassifier getClassifier() {
+        return this.classifier;
+    }
+
+    /**
+     * @param attempts Maximum number of tries of a request, including the first; 1 for no retries
+     */
+    public void setMaxAttempts(final int attempts) {
+        if (attempts < 1) {
+            throw new IllegalArgumentException("attempts must be positive");
+        }
+        this.maxAttempts = attempts;
+    }
+
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+
+    /**
+     * @param base Upper bound of the first pause in milliseconds, doubled for each further retry
+     * @param max  Largest upper bound of a pause in milliseconds
+     */
+    public void setBackoff(final long base, final long max) {
+        if (base < 1 || max < base) {
+            throw new IllegalArgumentException("Invalid backoff " + base + ".." + max);
+        }
+        this.baseDelay = base;
+        this.maxDelay  = max;
+    }
+
+    /**
+     * @param millis Upper bound of the first pause after a throttling failure
+     */
+    public void setThrottleDelay(final long millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("delay must be positive");
+        }
+        this.throttleDelay = millis;
+    }
+
+    /**
+     * Classify a failure.
+     * @param t Failure of a send
+     * @return the decoded failure with its policy
+     */
+    public FiComFault classify(final Throwable t) {
+        return this.classifier.classify(t);
+    }
+
+    /**
+     * Decide whether to repeat a failed request, and when.
+     * @param operation Operation of the request, one of the {@link EtsiEndpoints} operations
+     * @param fault     The classified failure
+     * @param failures  Number of times the request has failed in a row, including this one
+     * @param deadline  Deadline of the request, or null for none
+     * @return milliseconds to wait before repeating, or -1 not to repeat
+     */
+    public long getDelay(final String operation, final FiComFault fault, final int failures, final Deadline deadline) {
+        Policy p = fault.getPolicy();
+        if (p != Policy.RETRYABLE && p != Policy.THROTTLE) {
+            return -1;
+        }
+        if (EtsiEndpoints.SIGNATURE.equals(operation) && !fault.isUnprocessed()) {
+            // The MSSP may already have sent the request to the user
+            return -1;
+        }
+        if (failures >= this.maxAttempts) {
+            this.exhausted.increment();
+            return -1;
+        }
+        long delay;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (p == Policy.THROTTLE) {
+            long cap = this.cap(this.throttleDelay, failures);
+            delay = cap / 2 + random.nextLong(cap / 2 + 1);
+        } else {
+            delay = random.nextLong(this.cap(this.baseDelay, failures) + 1);
+        }
+        if (deadline != null && delay >= deadline.remaining()) {
+            this.exhausted.increment();
+            return -1;
+        }
+        this.retries.increment();
+        if (p == Policy.THROTTLE) {
+            this.throttled.increment();
+        }
+        return delay;
+    }
+
+    private long cap(final long base, final int failures) {
+        int shift = Math.min(failures - 1, 30);
+        return Math.min(this.maxDelay, base << shift);
+    }
+
+    /**
+     * @return Number of retries made
+     */
+    public long getRetries() {
+        return this.retries.sum();
+    }
+
+    /**
+     * @return Number of retries made after a throttling failure
+     */
+    public long getThrottled() {
+        return this.throttled.sum();
+    }
+
+    /**
+     * @return Number of retryable failures given up on for the attempts or the time running out
+     */
+    public long getExhausted() {
+        return this.exhausted.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "FiComRetryPolicy [attempts " + this.maxAttempts + ", backoff " + this.baseDelay + ".." + this.maxDelay
+               + " ms, retries " + this.getRetries() + ", throttled " + this.getThrottled()
+               + ", exhausted " + this.getExhausted() + "]";
+    }
+
+}
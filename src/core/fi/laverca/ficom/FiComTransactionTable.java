@@ -0,0 +1,438 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.ficom;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Compact table of outstanding FiCom transactions.
+ * <p>
+ * Each transaction is a fixed size record in direct memory holding
+ * the identifiers needed for status polls and receipts, the start time,
+ * deadline, poll times and count, and a handler slot. Records are addressed by a
+ * long handle made of the slot index and a generation counter, so a
+ * handle of a removed transaction never matches a reused slot.
+ * <p>
+ * AP_IDs, MSSP_IDs and signature profiles repeat for all transactions and are stored once
+ * as indexes to a small dictionary. Transaction IDs and MSISDNs are
+ * stored inline as ASCII; values that do not fit are kept on the heap.
+ * <p>
+ * Memory is reserved in segments of {@link #SEGMENT_SIZE} records as the
+ * table grows and is reused after transactions are removed.
+ */
+public class FiComTransactionTable {
+
+    public static final int DEFAULT_CAPACITY = 1 << 22;
+    public static final int SEGMENT_SIZE     = 1 << 12; // Records per segment
+
+    public static final int FLAG_NOTIFIED = 1;
+
+    private static final int SEGMENT_SHIFT = 12;
+    private static final int SEGMENT_MASK  = SEGMENT_SIZE - 1;
+
+    // Field lengths of the inline strings, including the length byte
+    private static final int TRANSID_LEN = 48;
+    private static final int MSISDN_LEN  = 24;
+    private static final int OVERFLOW    = 0xFF;
+
+    // Record layout
+    private static final int GENERATION   = 0;   // int, odd when in use
+    private static final int FLAGS        = 4;   // int
+    private static final int START        = 8;   // long
+    private static final int DEADLINE     = 16;  // long
+    private static final int NEXT_POLL    = 24;  // long
+    private static final int LAST_POLL    = 32;  // long
+    private static final int AP_ID        = 40;  // int dictionary index
+    private static final int MSSP_ID      = 44;  // int dictionary index
+    private static final int PROFILE      = 48;  // int dictionary index
+    private static final int POLLS        = 52;  // int
+    private static final int MSSP_TRANSID = 56;
+    private static final int AP_TRANSID   = MSSP_TRANSID + TRANSID_LEN;
+    private static final int MSISDN       = AP_TRANSID   + TRANSID_LEN;
+
+    public static final int RECORD_SIZE = MSISDN + MSISDN_LEN;
+
+    private final int capacity;
+
+    private ByteBuffer[] segments = new ByteBuffer[0];
+    private Object[][]   handlers = new Object[0][];
+    private int[]        free     = new int[SEGMENT_SIZE];
+    private int          freeCount;
+    private int          size;
+
+    private final List<Object>         dictionary = new ArrayList<Object>();
+    private final Map<Object, Integer> dictIndex  = new HashMap<Object, Integer>();
+    private final Map<Long, String>    overflow   = new HashMap<Long, String>();
+
+    /**
+     * Create a table for at most {@link #DEFAULT_CAPACITY} transactions.
+     */
+    public FiComTransactionTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a table
+     * @param capacity Maximum number of outstanding transactions
+     */
+    public FiComTransactionTable(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Add a transaction.
+     * @param apId        AP_ID of the request
+     * @param profile     Signature profile of the request
+     * @param apTransId   AP_TransID of the request
+     * @param msisdn      MSISDN of the target user, may be null
+     * @param start       Time in System.currentTimeMillis() format when the request was sent
+     * @param deadline    Time in System.currentTimeMillis() format after which the transaction times out
+     * @param flags       Flags of the transaction, e.g. {@link #FLAG_NOTIFIED}
+     * @param handler     Object completed when the transaction ends
+     * @return handle of the transaction
+     * @throws RejectedExecutionException if the table is full
+     */
+    public synchronized long add(final String apId,
+                                 final String profile,
+                                 final String apTransId,
+                                 final String msisdn,
+                                 final long start,
+                                 final long deadline,
+                                 final int flags,
+                                 final Object handler)
+    {
+        if (this.size >= this.capacity) {
+            throw new RejectedExecutionException("Transaction table full (" + this.size + ")");
+        }
+        if (this.freeCount == 0) {
+            this.grow();
+        }
+        int slot = this.free[--this.freeCount];
+        ByteBuffer b = this.segments[slot >>> SEGMENT_SHIFT];
+        int off = (slot & SEGMENT_MASK) * RECORD_SIZE;
+
+        int gen = b.getInt(off + GENERATION) + 1;
+        b.putInt (off + GENERATION, gen);
+        b.putInt (off + FLAGS,      flags);
+        b.putLong(off + START,      start);
+        b.putLong(off + DEADLINE,   deadline);
+        b.putLong(off + NEXT_POLL,  0);
+        b.putLong(off + LAST_POLL,  start);
+        b.putInt (off + AP_ID,      this.intern(apId));
+        b.putInt (off + MSSP_ID,    -1);
+        b.putInt (off + PROFILE,    this.intern(profile));
+        b.putInt (off + POLLS,      0);
+        this.putString(b, off, slot, MSSP_TRANSID, TRANSID_LEN, null);
+        this.putString(b, off, slot, AP_TRANSID,   TRANSID_LEN, apTransId);
+        this.putString(b, off, slot, MSISDN,       MSISDN_LEN,  msisdn);
+        this.handlers[slot >>> SEGMENT_SHIFT][slot & SEGMENT_MASK] = handler;
+        this.size++;
+
+        return ((long)gen << 32) | slot;
+    }
+
+    /**
+     * Remove a transaction.
+     * @param handle Handle of the transaction
+     * @return the handler of the transaction,
+     *         or null if the transaction was already removed
+     */
+    public synchronized Object remove(final long handle) {
+        int off = this.offset(handle);
+        if (off < 0) {
+            return null;
+        }
+        int slot = (int)handle;
+        ByteBuffer b = this.segments[slot >>> SEGMENT_SHIFT];
+        b.putInt(off + GENERATION, b.getInt(off + GENERATION) + 1);
+        if (b.get(off + MSSP_TRANSID) == (byte)OVERFLOW) this.overflow.remove(key(slot, MSSP_TRANSID));
+        if (b.get(off + AP_TRANSID)   == (byte)OVERFLOW) this.overflow.remove(key(slot, AP_TRANSID));
+        if (b.get(off + MSISDN)       == (byte)OVERFLOW) this.overflow.remove(key(slot, MSISDN));
+
+        Object[] h = this.handlers[slot >>> SEGMENT_SHIFT];
+        Object handler = h[slot & SEGMENT_MASK];
+        h[slot & SEGMENT_MASK] = null;
+        this.free[this.freeCount++] = slot;
+        this.size--;
+        return handler;
+    }
+
+    /**
+     * Set the MSSP side identifiers received in the MSS_SignatureResp.
+     * @param handle      Handle of the transaction
+     * @param msspId      MSSP_ID of the response
+     * @param msspTransId MSSP_TransID of the response
+     * @return false if the transaction has been removed
+     */
+    public synchronized boolean setMssp(final long handle, final Object msspId, final String msspTransId) {
+        int off = this.offset(handle);
+        if (off < 0) {
+            return false;
+        }
+        ByteBuffer b = this.segments[(int)handle >>> SEGMENT_SHIFT];
+        b.putInt(off + MSSP_ID, this.intern(msspId));
+        this.putString(b, off, (int)handle, MSSP_TRANSID, TRANSID_LEN, msspTransId);
+        return true;
+    }
+
+    /**
+     * @param handle Handle of the transaction
+     * @param time   Time of the next status poll
+     * @return false if the transaction has been removed
+     */
+    public synchronized boolean setNextPoll(final long handle, final long time) {
+        int off = this.offset(handle);
+        if (off < 0) {
+            return false;
+        }
+        this.segments[(int)handle >>> SEGMENT_SHIFT].putLong(off + NEXT_POLL, time);
+        return true;
+    }
+
+    /**
+     * Record a status poll being sent.
+     * @param handle Handle of the transaction
+     * @param time   Time of the poll
+     * @return time of the previous poll, or the start time if this is the first poll.
+     *         0 if the transaction has been removed.
+     */
+    public synchronized long polled(final long handle, final long time) {
+        int off = this.offset(handle);
+        if (off < 0) {
+            return 0;
+        }
+        ByteBuffer b = this.segments[(int)handle >>> SEGMENT_SHIFT];
+        long last = b.getLong(off + LAST_POLL);
+        b.putLong(off + LAST_POLL, time);
+        b.putInt (off + POLLS, b.getInt(off + POLLS) + 1);
+        return last;
+    }
+
+    /**
+     * @return true if the handle refers to a transaction in the table
+     */
+    public synchronized boolean contains(final long handle) {
+        return this.offset(handle) >= 0;
+    }
+
+    public synchronized Object getHandler(final long handle) {
+        int slot = (int)handle;
+        return this.offset(handle) < 0 ? null : this.handlers[slot >>> SEGMENT_SHIFT][slot & SEGMENT_MASK];
+    }
+
+    public synchronized int getFlags(final long handle) {
+        return this.getInt(handle, FLAGS, 0);
+    }
+
+    public synchronized long getStart(final long handle) {
+        return this.getLong(handle, START);
+    }
+
+    public synchronized long getDeadline(final long handle) {
+        return this.getLong(handle, DEADLINE);
+    }
+
+    public synchronized long getNextPoll(final long handle) {
+        return this.getLong(handle, NEXT_POLL);
+    }
+
+    public synchronized long getLastPoll(final long handle) {
+        return this.getLong(handle, LAST_POLL);
+    }
+
+    /**
+     * @return the number of status polls sent
+     */
+    public synchronized int getPolls(final long handle) {
+        return this.getInt(handle, POLLS, 0);
+    }
+
+    public synchronized String getProfile(final long handle) {
+        return (String)this.lookup(this.getInt(handle, PROFILE, -1));
+    }
+
+    public synchronized String getApId(final long handle) {
+        return (String)this.lookup(this.getInt(handle, AP_ID, -1));
+    }
+
+    public synchronized Object getMsspId(final long handle) {
+        return this.lookup(this.getInt(handle, MSSP_ID, -1));
+    }
+
+    public synchronized String getMsspTransId(final long handle) {
+        return this.getString(handle, MSSP_TRANSID);
+    }
+
+    public synchronized String getApTransId(final long handle) {
+        return this.getString(handle, AP_TRANSID);
+    }
+
+    public synchronized String getMsisdn(final long handle) {
+        return this.getString(handle, MSISDN);
+    }
+
+    /**
+     * @return the number of transactions in the table
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * @return bytes of direct memory reserved for the records
+     */
+    public synchronized long getReservedBytes() {
+        return (long)this.segments.length * SEGMENT_SIZE * RECORD_SIZE;
+    }
+
+    /**
+     * @return the byte offset of the record within its segment,
+     *         or -1 if the handle is stale
+     */
+    private int offset(final long handle) {
+        int slot = (int)handle;
+        int seg  = slot >>> SEGMENT_SHIFT;
+        if (slot < 0 || seg >= this.segments.length) {
+            return -1;
+        }
+        int off = (slot & SEGMENT_MASK) * RECORD_SIZE;
+        int gen = (int)(handle >>> 32);
+        if ((gen & 1) == 0 || this.segments[seg].getInt(off + GENERATION) != gen) {
+            return -1;
+        }
+        return off;
+    }
+
+    private int getInt(final long handle, final int field, final int dflt) {
+        int off = this.offset(handle);
+        return off < 0 ? dflt : this.segments[(int)handle >>> SEGMENT_SHIFT].getInt(off + field);
+    }
+
+    private long getLong(final long handle, final int field) {
+        int off = this.offset(handle);
+        return off < 0 ? 0 : this.segments[(int)handle >>> SEGMENT_SHIFT].getLong(off + field);
+    }
+
+    private String getString(final long handle, final int field) {
+        int off = this.offset(handle);
+        if (off < 0) {
+            return null;
+        }
+        ByteBuffer b = this.segments[(int)handle >>> SEGMENT_SHIFT];
+        int len = b.get(off + field) & 0xFF;
+        if (len == OVERFLOW) {
+            return this.overflow.get(key((int)handle, field));
+        }
+        if (len == 0) {
+            return null;
+        }
+        // Length is stored off by one so that the empty string differs from null
+        byte[] ascii = new byte[len - 1];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = b.get(off + field + 1 + i);
+        }
+        return new String(ascii, StandardCharsets.US_ASCII);
+    }
+
+    private void putString(final ByteBuffer b,
+                           final int off,
+                           final int slot,
+                           final int field,
+                           final int fieldLen,
+                           final String s)
+    {
+        if (b.get(off + field) == (byte)OVERFLOW) {
+            this.overflow.remove(key(slot, field));
+        }
+        if (s == null) {
+            b.put(off + field, (byte)0);
+            return;
+        }
+        int len = s.length();
+        boolean fits = len < fieldLen;
+        for (int i = 0; fits && i < len; i++) {
+            fits = s.charAt(i) < 0x80;
+        }
+        if (!fits) {
+            b.put(off + field, (byte)OVERFLOW);
+            this.overflow.put(key(slot, field), s);
+            return;
+        }
+        b.put(off + field, (byte)(len + 1));
+        for (int i = 0; i < len; i++) {
+            b.put(off + field + 1 + i, (byte)s.charAt(i));
+        }
+    }
+
+    private static Long key(final int slot, final int field) {
+        return Long.valueOf(((long)slot << 8) | field);
+    }
+
+    private int intern(final Object value) {
+        if (value == null) {
+            return -1;
+        }
+        Integer i = this.dictIndex.get(value);
+        if (i == null) {
+            i = Integer.valueOf(this.dictionary.size());
+            this.dictionary.add(value);
+            this.dictIndex.put(value, i);
+        }
+        return i.intValue();
+    }
+
+    private Object lookup(final int index) {
+        return index < 0 ? null : this.dictionary.get(index);
+    }
+
+    /**
+     * Reserve a new segment and put its slots on the free list.
+     */
+    private void grow() {
+        int seg = this.segments.length;
+        ByteBuffer[] s = new ByteBuffer[seg + 1];
+        System.arraycopy(this.segments, 0, s, 0, seg);
+        s[seg] = ByteBuffer.allocateDirect(SEGMENT_SIZE * RECORD_SIZE);
+        Object[][] h = new Object[seg + 1][];
+        System.arraycopy(this.handlers, 0, h, 0, seg);
+        h[seg] = new Object[SEGMENT_SIZE];
+        if (this.free.length < s.length * SEGMENT_SIZE) {
+            int[] f = new int[s.length * SEGMENT_SIZE];
+            System.arraycopy(this.free, 0, f, 0, this.freeCount);
+            this.free = f;
+        }
+        // Hand out the lowest slots first
+        for (int i = SEGMENT_SIZE - 1; i >= 0; i--) {
+            this.free[this.freeCount++] = (seg << SEGMENT_SHIFT) | i;
+        }
+        this.segments = s;
+        this.handlers = h;
+    }
+
+}
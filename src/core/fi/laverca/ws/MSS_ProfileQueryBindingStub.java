@@ -19,23 +19,33 @@
 
 package fi.laverca.ws;
 
+import java.util.concurrent.locks.ReentrantLock;
+
 import javax.xml.namespace.QName;
 
 import org.apache.axis.description.OperationDesc;
 import org.apache.axis.description.ParameterDesc;
-import org.apache.axis.encoding.ser.castor.CastorDeserializerFactory;
-import org.apache.axis.encoding.ser.castor.CastorSerializerFactory;
 
 public class MSS_ProfileQueryBindingStub extends org.apache.axis.client.Stub
 implements MSS_ProfileQueryType
 {
-    private java.util.Vector<Class> cachedSerClasses = new java.util.Vector<Class>();
-    private java.util.Vector<QName> cachedSerQNames = new java.util.Vector<QName>();
-    private java.util.Vector<Object> cachedSerFactories = new java.util.Vector<Object>();
-    private java.util.Vector<Object> cachedDeserFactories = new java.util.Vector<Object>();
+    // Because of Castor serialization and deserialization only top level types need to be mapped.
+    // The castor marshalling takes care of the rest.
+    private static final QName[] typeQNames = {
+        new QName("http://uri.etsi.org/TS102204/v1.1.2#", "MSS_MessageSignature"),
+        new QName("http://uri.etsi.org/TS102204/v1.1.2#", "MSS_ProfileReqType"),
+        new QName("http://uri.etsi.org/TS102204/v1.1.2#", "MSS_ProfileRespType")
+    };
+    private static final Class<?>[] typeClasses = {
+        org.etsi.uri.TS102204.v1_1_2.MSS_MessageSignature.class,
+        org.etsi.uri.TS102204.v1_1_2.MSS_ProfileReq.class,
+        org.etsi.uri.TS102204.v1_1_2.MSS_ProfileResp.class
+    };
 
     static OperationDesc [] _operations;
 
+    private final ReentrantLock callLock = new ReentrantLock();
+
     static {
         _operations = new OperationDesc[1];
         _initOperationDesc1();
@@ -72,39 +82,9 @@ implements MSS_ProfileQueryType
         } else {
             super.service = service;
         }
-        Class cls;
-        QName qName;
-
-        Class beansf = CastorSerializerFactory.class;
-        Class beandf = CastorDeserializerFactory.class;
-
-        //
-        // NOTE: Because of Castor serialization and deserialization only top level types needs to be mapped.
-        //       The castor marshalling takes care of the rest.
-        //
-        qName = new QName("http://uri.etsi.org/TS102204/v1.1.2#", "MSS_MessageSignature");
-        cachedSerQNames.add(qName);
-        cls = org.etsi.uri.TS102204.v1_1_2.MSS_MessageSignature.class;
-        cachedSerClasses.add(cls);
-        cachedSerFactories.add(beansf);
-        cachedDeserFactories.add(beandf);
-
-        qName = new QName("http://uri.etsi.org/TS102204/v1.1.2#", "MSS_ProfileReqType");
-        cachedSerQNames.add(qName);
-        cls = org.etsi.uri.TS102204.v1_1_2.MSS_ProfileReq.class;
-        cachedSerClasses.add(cls);
-        cachedSerFactories.add(beansf);
-        cachedDeserFactories.add(beandf);
-
-        qName = new QName("http://uri.etsi.org/TS102204/v1.1.2#", "MSS_ProfileRespType");
-        cachedSerQNames.add(qName);
-        cls = org.etsi.uri.TS102204.v1_1_2.MSS_ProfileResp.class;
-        cachedSerClasses.add(cls);
-        cachedSerFactories.add(beansf);
-        cachedDeserFactories.add(beandf);	   
     }
 
-    protected org.apache.axis.client.Call createCall() throws java.rmi.RemoteException {
+    public org.apache.axis.client.Call createCall() throws java.rmi.RemoteException {
         try {
             /* Hand modification calling createCall from Stub(super) instead 
 	       of the original super.service.createCall */
@@ -134,26 +114,18 @@ implements MSS_ProfileQueryType
                 String key = (String) keys.nextElement();
                 _call.setProperty(key, super.cachedProperties.get(key));
             }
-            // All the type mapping information is registered
-            // when the first call is made.
-            // The type mapping information is actually registered in
-            // the TypeMappingRegistry of the service, which
-            // is the reason why registration is only needed for the first call.
-            synchronized (this) {
+            // The type mapping information is registered in the
+            // TypeMappingRegistry of the service, so the Castor factories
+            // are only created once per service, not once per stub.
+            this.callLock.lock();
+            try {
                 if (firstCall()) {
                     // must set encoding style before registering serializers
                     _call.setEncodingStyle(null);
-                    for (int i = 0; i < cachedSerFactories.size(); ++i) {
-                        Class cls = (Class) cachedSerClasses.get(i);
-                        QName qName =
-                            (QName) cachedSerQNames.get(i);
-                        Class sf = (Class)
-                        cachedSerFactories.get(i);
-                        Class df = (Class)
-                        cachedDeserFactories.get(i);
-                        _call.registerTypeMapping(cls, qName, sf, df, false);
-                    }
+                    TypeMappings.register(_call, typeQNames, typeClasses);
                 }
+            } finally {
+                this.callLock.unlock();
             }
             return _call;
         }
@@ -0,0 +1,86 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.ws;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.xml.namespace.QName;
+
+import org.apache.axis.client.Call;
+import org.apache.axis.encoding.TypeMapping;
+import org.apache.axis.encoding.ser.castor.CastorDeserializerFactory;
+import org.apache.axis.encoding.ser.castor.CastorSerializerFactory;
+
+/**
+ * Registers the Castor serializers of the binding stubs.
+ * <p>
+ * The mappings live in the TypeMapping of the service's engine, which
+ * all stubs of the service share. Each type is registered only once per
+ * TypeMapping, so a new stub does not create the factories again.
+ * A new engine configuration gets a new TypeMapping and is registered anew.
+ * <p>
+ * This class and the binding stubs lock with {@link ReentrantLock} instead
+ * of monitors, so that a virtual thread waiting for a lock does not pin
+ * its carrier thread.
+ */
+final class TypeMappings {
+
+    private static final Map<TypeMapping, Set<QName>> registered = new WeakHashMap<TypeMapping, Set<QName>>();
+    private static final ReentrantLock lock = new ReentrantLock();
+
+    private TypeMappings() {
+        // static only
+    }
+
+    /**
+     * Register the given types with Castor serializer factories.
+     * The encoding style of the call must be set before calling this.
+     *
+     * @param call    Call whose TypeMapping is used
+     * @param qnames  XML types
+     * @param classes Java classes of the XML types
+     */
+    static void register(final Call call, final QName[] qnames, final Class<?>[] classes) {
+        TypeMapping tm = call.getTypeMapping();
+        lock.lock();
+        try {
+            Set<QName> done = registered.get(tm);
+            if (done == null) {
+                done = new HashSet<QName>();
+                registered.put(tm, done);
+            }
+            for (int i = 0; i < qnames.length; i++) {
+                if (done.add(qnames[i])) {
+                    call.registerTypeMapping(classes[i], qnames[i],
+                                             CastorSerializerFactory.class,
+                                             CastorDeserializerFactory.class,
+                                             false);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,698 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.examples;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.namespace.QName;
+
+import org.apache.axis.AxisFault;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.pool.PoolStats;
+
+import fi.laverca.AdaptiveLimiter;
+import fi.laverca.DTBS;
+import fi.laverca.GzipCompression;
+import fi.laverca.JvmSsl;
+import fi.laverca.ProgressUpdate;
+import fi.laverca.VirtualThreads;
+import fi.laverca.etsi.EtsiClient;
+import fi.laverca.etsi.EtsiConcurrencyControl;
+import fi.laverca.etsi.EtsiHedging;
+import fi.laverca.examples.mssp.MsspSimulator;
+import fi.laverca.examples.util.ExampleConf;
+import fi.laverca.examples.util.LatencyHistogram;
+import fi.laverca.ficom.FiComAdditionalServices;
+import fi.laverca.ficom.FiComClient;
+import fi.laverca.ficom.FiComPollPolicy;
+import fi.laverca.ficom.FiComPollScheduler;
+import fi.laverca.ficom.FiComRequest;
+import fi.laverca.ficom.FiComResponse;
+import fi.laverca.ficom.FiComResponseHandler;
+import fi.laverca.ficom.FiComRetryPolicy;
+
+/**
+ * Load generator running FiCom authentications end to end.
+ *
+ * <p>Like {@link Authentication}, but without the UI and with many
+ * transactions at a time. Either
+ * <ul>
+ * <li>a closed loop of <code>load.users</code> virtual users, each starting
+ *     a new authentication every <code>load.interval</code> ms, or as soon as
+ *     the previous one is done if the interval is 0, or
+ * <li>an open loop of <code>load.rate</code> authentications per second.
+ * </ul>
+ *
+ * <p>The MSSP is given with the usual mssp.*.url settings, or
+ * <code>load.simulator = true</code> starts an in-process {@link MsspSimulator}.
+ *
+ * <p>Latencies are recorded per phase: sending the signature request, the
+ * first status poll (or notification), the final response and the receipt.
+ * The final response is recorded twice. "response" is measured from the
+ * time the transaction was scheduled to start, so a client that falls behind
+ * can not hide its queueing delay (coordinated omission). "service" is
+ * measured from when it actually started. The two only differ when the
+ * client can not keep up.
+ *
+ * <p>Threads, heap, connection pool and poll scheduler usage are printed
+ * every <code>load.report.interval</code> seconds.
+ *
+ * <p>With <code>load.virtual = true</code> the users, the workers and the
+ * status polls run on virtual threads, if the JDK has them. The thread
+ * count then only shows the platform threads; a virtual thread blocked
+ * on a request shows up in the heap instead. See
+ * <code>conf/load-test-50k.conf</code> for 50000 concurrent transactions.
+ */
+public class LoadTest {
+
+    private static final Log log = LogFactory.getLog(LoadTest.class);
+
+    public static final String CONF_LOCATION   = "conf/load-test.conf";
+
+    public static final String MODE            = "load.mode";
+    public static final String USERS           = "load.users";
+    public static final String INTERVAL        = "load.interval";
+    public static final String RATE            = "load.rate";
+    public static final String THREADS         = "load.threads";
+    public static final String WARMUP          = "load.warmup";
+    public static final String DURATION        = "load.duration";
+    public static final String DRAIN           = "load.drain";
+    public static final String MSISDN_PREFIX   = "load.msisdn.prefix";
+    public static final String MSISDN_COUNT    = "load.msisdn.count";
+    public static final String RECEIPTS        = "load.receipts";
+    public static final String ADAPTIVE_POLL   = "load.poll.adaptive";
+    public static final String REPORT_INTERVAL = "load.report.interval";
+    public static final String HGRM_FILE       = "load.hgrm";
+    public static final String SIMULATOR       = "load.simulator";
+    public static final String VIRTUAL         = "load.virtual";
+    public static final String POLL_WORKERS    = "load.poll.workers";
+    public static final String CONNECTIONS     = "load.connections";
+    public static final String CONCURRENCY     = "load.concurrency";
+    public static final String RETRY_ATTEMPTS  = "load.retry.attempts";
+    public static final String HEDGE           = "load.hedge";
+    public static final String GZIP            = "load.gzip";
+
+    private static final long MILLIS = 1000 * 1000;
+
+    private final Properties conf;
+
+    private FiComClient   client;
+    private MsspSimulator simulator;
+    private ExecutorService workers;
+    private ThreadFactory   userThreads;
+
+    private long    startTime;
+    private long    measureTime;
+    private long    endTime;
+    private boolean receipts;
+    private String  msisdnPrefix;
+    private int     msisdnCount;
+
+    private final LatencyHistogram signature = new LatencyHistogram("signature");
+    private final LatencyHistogram firstPoll = new LatencyHistogram("first poll");
+    private final LatencyHistogram response  = new LatencyHistogram("response");
+    private final LatencyHistogram service   = new LatencyHistogram("service");
+    private final LatencyHistogram receipt   = new LatencyHistogram("receipt");
+
+    private final AtomicLong started   = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed    = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<Transaction, Boolean> inFlight = new ConcurrentHashMap<Transaction, Boolean>();
+
+    private int  peakThreads;
+    private long peakHeap;
+    private long peakRss;
+    private int  peakLeased;
+    private int  peakPending;
+
+    public LoadTest(final Properties conf) {
+        this.conf = conf;
+    }
+
+    /**
+     * Creates the client, and the simulator if one is wanted
+     */
+    private void init() throws Exception {
+
+        final String apId  = this.conf.getProperty(ExampleConf.AP_ID, "http://load_test_ap");
+        final String apPwd = this.conf.getProperty(ExampleConf.AP_PASSWORD, "load");
+
+        EtsiClient etsiClient;
+        if (Boolean.parseBoolean(this.conf.getProperty(SIMULATOR))) {
+            log.info("Starting MSSP simulator");
+            this.simulator = new MsspSimulator(new InetSocketAddress("localhost", 0));
+            this.simulator.configure(this.conf);
+            this.simulator.start();
+            etsiClient = this.simulator.createEtsiClient(apId, apPwd);
+        } else {
+            if (this.conf.getProperty(ExampleConf.TRUSTSTORE_FILE) != null) {
+                log.info("Setting up ssl");
+                JvmSsl.setSSL(this.conf.getProperty(ExampleConf.TRUSTSTORE_FILE),
+                              this.conf.getProperty(ExampleConf.TRUSTSTORE_PASSWORD),
+                              this.conf.getProperty(ExampleConf.KEYSTORE_FILE),
+                              this.conf.getProperty(ExampleConf.KEYSTORE_PASSWORD),
+                              this.conf.getProperty(ExampleConf.KEYSTORE_TYPE));
+            }
+            etsiClient = new EtsiClient(apId,
+                                        apPwd,
+                                        this.conf.getProperty(ExampleConf.SIGNATURE_URL),
+                                        this.conf.getProperty(ExampleConf.STATUS_URL),
+                                        this.conf.getProperty(ExampleConf.RECEIPT_URL));
+        }
+
+        if (this.conf.getProperty(CONNECTIONS) != null) {
+            etsiClient.getTransport().setMaxTotal(this.getInt(CONNECTIONS, 0));
+            etsiClient.getTransport().setMaxPerRoute(this.getInt(CONNECTIONS, 0));
+        }
+
+        String concurrency = this.conf.getProperty(CONCURRENCY, "none").trim();
+        if (!"none".equalsIgnoreCase(concurrency)) {
+            AdaptiveLimiter.Algorithm algorithm = AdaptiveLimiter.Algorithm.valueOf(concurrency.toUpperCase());
+            etsiClient.setConcurrencyControl(new EtsiConcurrencyControl(algorithm));
+        }
+
+        String gzip = this.conf.getProperty(GZIP, "none").trim();
+        if (!"none".equalsIgnoreCase(gzip)) {
+            GzipCompression compression = new GzipCompression();
+            compression.setThreshold(Integer.parseInt(gzip));
+            etsiClient.getTransport().setCompression(compression);
+            etsiClient.getAsyncTransport().setCompression(compression);
+        }
+
+        String hedge = this.conf.getProperty(HEDGE, "none").trim();
+        if (!"none".equalsIgnoreCase(hedge)) {
+            EtsiHedging hedging = new EtsiHedging();
+            hedging.setPercentile(Double.parseDouble(hedge));
+            etsiClient.setHedging(hedging);
+        }
+
+        boolean virtual = Boolean.parseBoolean(this.conf.getProperty(VIRTUAL));
+        if (virtual) {
+            System.out.println(VirtualThreads.isAvailable() ? "Using virtual threads"
+                                                            : "Virtual threads not available, using platform threads");
+        }
+        int pollWorkers = this.getInt(POLL_WORKERS, virtual ? FiComPollScheduler.DEFAULT_VIRTUAL_WORKERS
+                                                            : FiComPollScheduler.DEFAULT_WORKERS);
+
+        log.info("Creating FiComClient");
+        this.client = new FiComClient(etsiClient, new FiComPollScheduler(pollWorkers,
+                                                                         FiComPollScheduler.DEFAULT_TICK,
+                                                                         FiComPollScheduler.DEFAULT_WHEEL_SIZE,
+                                                                         virtual));
+        if (Boolean.parseBoolean(this.conf.getProperty(ADAPTIVE_POLL))) {
+            this.client.setPollPolicy(new FiComPollPolicy());
+        }
+        int attempts = this.getInt(RETRY_ATTEMPTS, 1);
+        if (attempts > 1) {
+            FiComRetryPolicy retry = new FiComRetryPolicy();
+            retry.setMaxAttempts(attempts);
+            this.client.setRetryPolicy(retry);
+        }
+
+        this.receipts     = Boolean.parseBoolean(this.conf.getProperty(RECEIPTS, "true"));
+        this.msisdnPrefix = this.conf.getProperty(MSISDN_PREFIX, "+358400");
+        this.msisdnCount  = this.getInt(MSISDN_COUNT, 1000);
+        this.userThreads  = VirtualThreads.newThreadFactory("LoadTest-user-", virtual);
+        if (virtual && VirtualThreads.isAvailable()) {
+            this.workers  = VirtualThreads.newThreadPerTaskExecutor("LoadTest-worker-");
+        } else {
+            this.workers  = Executors.newFixedThreadPool(this.getInt(THREADS, 200));
+        }
+    }
+
+    /**
+     * Runs the load and prints the reports
+     */
+    public void run() throws Exception {
+        this.init();
+
+        String mode   = this.conf.getProperty(MODE, "closed");
+        long warmup   = this.getInt(WARMUP, 10)   * 1000L * MILLIS;
+        long duration = this.getInt(DURATION, 60) * 1000L * MILLIS;
+        this.startTime   = System.nanoTime();
+        this.measureTime = this.startTime + warmup;
+        this.endTime     = this.measureTime + duration;
+
+        List<Thread> generators = new ArrayList<Thread>();
+        if ("open".equals(mode)) {
+            System.out.println("Open loop at " + this.conf.getProperty(RATE, "10") + " authentications/s");
+            generators.add(this.startOpenLoop(Double.parseDouble(this.conf.getProperty(RATE, "10"))));
+        } else if ("closed".equals(mode)) {
+            int users     = this.getInt(USERS, 10);
+            long interval = this.getInt(INTERVAL, 0) * MILLIS;
+            System.out.println("Closed loop of " + users + " users" + (interval > 0 ? ", interval " + interval / MILLIS + " ms" : ""));
+            if (interval == 0) {
+                System.out.println("No load.interval: the users start back to back, so \"response\" equals \"service\"");
+            }
+            for (int i = 0; i < users; i++) {
+                generators.add(this.startUser(i, users, interval));
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown " + MODE + " " + mode);
+        }
+
+        long reportInterval = this.getInt(REPORT_INTERVAL, 5) * 1000L;
+        System.out.println(String.format("%6s %8s %8s %8s %8s %8s %8s %8s %8s %16s %20s",
+                                         "time", "started", "ok", "failed", "inflight", "tps",
+                                         "threads", "heap MB", "rss MB", "pool lsd/av/pnd", "polls out/q/act"));
+        long drainEnd = this.endTime + this.getInt(DRAIN, 120) * 1000L * MILLIS;
+        long lastDone = 0;
+        while (true) {
+            Thread.sleep(reportInterval);
+            this.sweep();
+            lastDone = this.report(lastDone, reportInterval);
+            long now = System.nanoTime();
+            if (now > this.endTime && (this.inFlight.isEmpty() || now > drainEnd) && !isAlive(generators)) {
+                break;
+            }
+        }
+
+        this.printSummary();
+        this.shutdown();
+    }
+
+    /**
+     * Start a virtual user of the closed loop.
+     * The users are spread evenly over the first interval.
+     */
+    private Thread startUser(final int index, final int users, final long interval) {
+        Thread t = this.userThreads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                long next = startTime + (interval > 0 ? interval * index / users : 0);
+                while (next < endTime && System.nanoTime() < endTime) {
+                    sleepUntil(next);
+                    Transaction tx = new Transaction(next);
+                    tx.start();
+                    tx.await();
+                    next = interval > 0 ? next + interval : System.nanoTime();
+                }
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    /**
+     * Start the open loop dispatcher. Transactions are started on the
+     * worker threads, so a slow signature request does not delay the next
+     * start; if the workers are all busy the wait shows up in "response".
+     */
+    private Thread startOpenLoop(final double rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException(RATE + " must be positive");
+        }
+        final long period = (long)(1000 * MILLIS / rate);
+        Thread t = new Thread("LoadTest-dispatcher") {
+            @Override
+            public void run() {
+                for (long i = 0; ; i++) {
+                    final long intended = startTime + i * period;
+                    if (intended >= endTime) {
+                        break;
+                    }
+                    sleepUntil(intended);
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            new Transaction(intended).start();
+                        }
+                    });
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    /**
+     * Fail the requests FiComClient gave up on without calling their handler,
+     * e.g. when a status poll could not be sent.
+     */
+    private void sweep() {
+        for (Transaction tx : this.inFlight.keySet()) {
+            FiComRequest req = tx.req;
+            if (req != null && req.isDone()) {
+                try {
+                    req.waitForResponse();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    tx.fail(e.getCause(), false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Print a line of the progress report
+     * @return the count of finished transactions
+     */
+    private long report(final long lastDone, final long interval) {
+        long done  = this.succeeded.get() + this.failed.get();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        long heap   = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        long rss    = getRss();
+        PoolStats pool = this.client.getEtsiClient().getTransport().getPoolStats();
+        FiComPollScheduler scheduler = this.client.getScheduler();
+
+        this.peakThreads = Math.max(this.peakThreads, threads);
+        this.peakHeap    = Math.max(this.peakHeap, heap);
+        this.peakRss     = Math.max(this.peakRss, rss);
+        this.peakLeased  = Math.max(this.peakLeased, pool.getLeased());
+        this.peakPending = Math.max(this.peakPending, pool.getPending());
+
+        System.out.println(String.format("%6d %8d %8d %8d %8d %8.1f %8d %8d %8s %16s %20s",
+                                         (System.nanoTime() - this.startTime) / (1000 * MILLIS),
+                                         this.started.get(),
+                                         this.succeeded.get(),
+                                         this.failed.get(),
+                                         this.inFlight.size(),
+                                         (done - lastDone) * 1000.0 / interval,
+                                         threads,
+                                         heap >> 20,
+                                         rss < 0 ? "-" : String.valueOf(rss >> 20),
+                                         pool.getLeased() + "/" + pool.getAvailable() + "/" + pool.getPending(),
+                                         scheduler.getOutstanding() + "/" + scheduler.getQueued() + "/" + scheduler.getActiveWorkers()));
+        return done;
+    }
+
+    private void printSummary() throws IOException {
+        System.out.println();
+        System.out.println("Transactions started after the warm-up:");
+        System.out.println(LatencyHistogram.getSummaryHeader());
+        LatencyHistogram[] all = { this.signature, this.firstPoll, this.response, this.service, this.receipt };
+        for (LatencyHistogram h : all) {
+            System.out.println(h);
+        }
+
+        System.out.println();
+        System.out.println("Succeeded " + this.succeeded.get() + ", failed " + this.failed.get()
+                           + ", unfinished " + this.inFlight.size());
+        for (Map.Entry<String, AtomicLong> e : new TreeMap<String, AtomicLong>(this.errors).entrySet()) {
+            System.out.println(String.format("  %-40s %8d", e.getKey(), e.getValue().get()));
+        }
+        System.out.println("Peak threads " + this.peakThreads + ", heap " + (this.peakHeap >> 20) + " MB"
+                           + (this.peakRss > 0 ? ", rss " + (this.peakRss >> 20) + " MB" : "")
+                           + ", leased connections " + this.peakLeased + ", waiting for a connection " + this.peakPending);
+        System.out.println(this.client.getEtsiClient().getTimeoutStats());
+        if (this.client.getEtsiClient().getTransport().getCompression() != null) {
+            System.out.println(this.client.getEtsiClient().getTransport().getCompression());
+        }
+        if (this.client.getEtsiClient().getHedging() != null) {
+            System.out.println(this.client.getEtsiClient().getHedging());
+        }
+        if (this.client.getRetryPolicy() != null) {
+            System.out.println(this.client.getRetryPolicy());
+        }
+        if (this.client.getPollPolicy() != null) {
+            System.out.println(this.client.getPollPolicy().getReport());
+        }
+        if (this.client.getEtsiClient().getConcurrencyControl() != null) {
+            System.out.println(this.client.getEtsiClient().getConcurrencyControl());
+        }
+        if (this.simulator != null) {
+            System.out.println(this.simulator);
+        }
+
+        String hgrm = this.conf.getProperty(HGRM_FILE);
+        if (hgrm != null && hgrm.length() > 0) {
+            PrintStream out = new PrintStream(new FileOutputStream(hgrm), false, "UTF-8");
+            try {
+                for (LatencyHistogram h : all) {
+                    out.println("# " + h.getName() + " (ms)");
+                    h.outputPercentileDistribution(out, 1000.0);
+                    out.println();
+                }
+            } finally {
+                out.close();
+            }
+            System.out.println("Percentile distributions written to " + hgrm);
+        }
+    }
+
+    private void shutdown() {
+        this.client.shutdown();
+        this.client.getScheduler().shutdown();
+        this.workers.shutdownNow();
+        if (this.simulator != null) {
+            this.simulator.stop(0);
+        }
+    }
+
+    private int getInt(final String key, final int def) {
+        String s = this.conf.getProperty(key);
+        return s != null ? Integer.parseInt(s.trim()) : def;
+    }
+
+    /**
+     * @return resident set size of the process in bytes, or -1 if not on Linux.
+     *         Unlike the heap, this includes the stacks of the platform threads.
+     */
+    private static long getRss() {
+        try {
+            BufferedReader in = new BufferedReader(new FileReader("/proc/self/status"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.substring(6).replace("kB", "").trim()) * 1024;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Not available
+        } catch (NumberFormatException e) {
+            // Not available
+        }
+        return -1;
+    }
+
+    private static boolean isAlive(final List<Thread> threads) {
+        for (Thread t : threads) {
+            if (t.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void sleepUntil(final long nanoTime) {
+        long wait;
+        while ((wait = nanoTime - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return a short name of an error for the report
+     */
+    private static String describe(final Throwable t) {
+        if (t instanceof AxisFault) {
+            QName[] subcodes = ((AxisFault)t).getFaultSubCodes();
+            if (subcodes != null && subcodes.length > 0) {
+                return "fault " + subcodes[0].getLocalPart();
+            }
+            return "fault " + ((AxisFault)t).getFaultString();
+        }
+        return t.getMessage() != null ? t.getMessage() : t.getClass().getSimpleName();
+    }
+
+    /**
+     * A single authentication and its timestamps
+     */
+    private class Transaction implements FiComResponseHandler {
+
+        private final long intended;
+        private final boolean measured;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private final AtomicBoolean polled = new AtomicBoolean();
+
+        private long actual;
+        private volatile long sent;
+        private volatile FiComRequest req;
+
+        Transaction(final long intended) {
+            this.intended = intended;
+            this.measured = intended >= measureTime;
+        }
+
+        void start() {
+            long n = started.incrementAndGet();
+            final String apTransId = "A" + n;
+            final String eventId   = String.format("A%04d", n % 10000);
+            final String msisdn    = msisdnPrefix + String.format("%06d", n % msisdnCount);
+            byte[] authnChallenge  = new DTBS(apTransId, DTBS.ENCODING_UTF8).toBytes();
+
+            inFlight.put(this, Boolean.TRUE);
+            this.actual = System.nanoTime();
+            try {
+                this.req = client.authenticate(apTransId,
+                                               authnChallenge,
+                                               msisdn,
+                                               FiComAdditionalServices.createNoSpamService("A12", false),
+                                               FiComAdditionalServices.createEventIdService(eventId),
+                                               null,
+                                               this);
+                this.sent = System.nanoTime();
+                if (this.measured) {
+                    signature.record((this.sent - this.actual) / 1000);
+                }
+            } catch (IOException ioe) {
+                this.fail(ioe, false);
+            }
+        }
+
+        void await() {
+            try {
+                this.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void onOutstandingProgress(final FiComRequest r, final ProgressUpdate prgUpdate) {
+            this.onPoll();
+        }
+
+        @Override
+        public void onResponse(final FiComRequest r, final FiComResponse resp) {
+            if (!this.onFinal()) {
+                return;
+            }
+            succeeded.incrementAndGet();
+            if (!receipts) {
+                this.complete();
+                return;
+            }
+            // Not on the poll thread, to keep the polls of other transactions on time
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long t0 = System.nanoTime();
+                    try {
+                        client.sendReceiptReq(resp, "Authenticated");
+                        if (measured) {
+                            receipt.record((System.nanoTime() - t0) / 1000);
+                        }
+                    } finally {
+                        complete();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onError(final FiComRequest r, final Throwable throwable) {
+            this.fail(throwable, true);
+        }
+
+        void fail(final Throwable t, final boolean answered) {
+            if (answered ? !this.onFinal() : !this.finished.compareAndSet(false, true)) {
+                return;
+            }
+            failed.incrementAndGet();
+            String key = describe(t);
+            AtomicLong count = errors.get(key);
+            if (count == null) {
+                errors.putIfAbsent(key, new AtomicLong());
+                count = errors.get(key);
+            }
+            count.incrementAndGet();
+            this.complete();
+        }
+
+        private void onPoll() {
+            if (this.polled.compareAndSet(false, true) && this.measured && this.sent != 0) {
+                firstPoll.record((System.nanoTime() - this.sent) / 1000);
+            }
+        }
+
+        /**
+         * Record the final answer of the MSSP
+         * @return false if the transaction was already finished
+         */
+        private boolean onFinal() {
+            if (!this.finished.compareAndSet(false, true)) {
+                return false;
+            }
+            long now = System.nanoTime();
+            this.onPoll();
+            if (this.measured) {
+                response.record((now - this.intended) / 1000);
+                service.record((now - this.actual) / 1000);
+            }
+            return true;
+        }
+
+        private void complete() {
+            inFlight.remove(this);
+            this.done.countDown();
+        }
+    }
+
+    /**
+     * Main method
+     * @param args Optional configuration file, by default {@value #CONF_LOCATION}
+     */
+    public static void main(String[] args) {
+        Properties conf = ExampleConf.getProperties(args.length > 0 ? args[0] : CONF_LOCATION);
+        try {
+            new LoadTest(conf).run();
+        } catch (Exception e) {
+            log.error("Load test failed", e);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,154 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.examples.mssp;
+
+import java.util.Random;
+
+/**
+ * Distribution of simulated durations in milliseconds.
+ * <p>
+ * Used by {@link MsspSimulator} for network and processing latency
+ * and for the time users take to answer. A distribution can also be
+ * parsed from a string, e.g. "constant:20", "uniform:5000:15000",
+ * "exponential:8000" or "lognormal:8000:0.5".
+ */
+public abstract class Distribution {
+
+    /**
+     * Draw a duration.
+     * @param random Source of randomness
+     * @return duration in milliseconds, never negative
+     */
+    public abstract long sample(Random random);
+
+    /**
+     * @param millis Fixed duration
+     */
+    public static Distribution constant(final long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("negative duration");
+        }
+        return new Distribution() {
+            @Override
+            public long sample(final Random random) {
+                return millis;
+            }
+            @Override
+            public String toString() {
+                return "constant:" + millis;
+            }
+        };
+    }
+
+    /**
+     * @param min Shortest duration
+     * @param max Longest duration
+     */
+    public static Distribution uniform(final long min, final long max) {
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException("invalid range " + min + ".." + max);
+        }
+        return new Distribution() {
+            @Override
+            public long sample(final Random random) {
+                return min + (long)(random.nextDouble() * (max - min));
+            }
+            @Override
+            public String toString() {
+                return "uniform:" + min + ":" + max;
+            }
+        };
+    }
+
+    /**
+     * @param mean Mean duration
+     */
+    public static Distribution exponential(final long mean) {
+        if (mean < 0) {
+            throw new IllegalArgumentException("negative mean");
+        }
+        return new Distribution() {
+            @Override
+            public long sample(final Random random) {
+                return (long)(-mean * Math.log(1 - random.nextDouble()));
+            }
+            @Override
+            public String toString() {
+                return "exponential:" + mean;
+            }
+        };
+    }
+
+    /**
+     * Log-normal distribution, a good fit for human response times.
+     * @param median Median duration
+     * @param sigma  Standard deviation of the logarithm, e.g. 0.5
+     */
+    public static Distribution lognormal(final long median, final double sigma) {
+        if (median <= 0 || sigma < 0) {
+            throw new IllegalArgumentException("invalid lognormal " + median + ":" + sigma);
+        }
+        final double mu = Math.log(median);
+        return new Distribution() {
+            @Override
+            public long sample(final Random random) {
+                return (long)Math.exp(mu + sigma * random.nextGaussian());
+            }
+            @Override
+            public String toString() {
+                return "lognormal:" + median + ":" + sigma;
+            }
+        };
+    }
+
+    /**
+     * Parse a distribution.
+     * @param s e.g. "lognormal:8000:0.5". A plain number is a constant.
+     * @return the distribution
+     * @throws IllegalArgumentException if the string is not understood
+     */
+    public static Distribution parse(final String s) {
+        if (s == null) {
+            throw new IllegalArgumentException("null distribution");
+        }
+        String[] p = s.trim().split(":");
+        try {
+            if (p.length == 1) {
+                return constant(Long.parseLong(p[0]));
+            }
+            if ("constant".equals(p[0]) && p.length == 2) {
+                return constant(Long.parseLong(p[1]));
+            }
+            if ("uniform".equals(p[0]) && p.length == 3) {
+                return uniform(Long.parseLong(p[1]), Long.parseLong(p[2]));
+            }
+            if ("exponential".equals(p[0]) && p.length == 2) {
+                return exponential(Long.parseLong(p[1]));
+            }
+            if ("lognormal".equals(p[0]) && p.length == 3) {
+                return lognormal(Long.parseLong(p[1]), Double.parseDouble(p[2]));
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid distribution " + s);
+        }
+        throw new IllegalArgumentException("Unknown distribution " + s);
+    }
+
+}
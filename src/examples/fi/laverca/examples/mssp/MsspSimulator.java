@@ -0,0 +1,1020 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.examples.mssp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.xml.namespace.QName;
+
+import org.apache.axis.encoding.Base64;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+import org.etsi.uri.TS102204.v1_1_2.AP_Info;
+import org.etsi.uri.TS102204.v1_1_2.Algorithm;
+import org.etsi.uri.TS102204.v1_1_2.DataToBeSigned;
+import org.etsi.uri.TS102204.v1_1_2.MSSP_ID;
+import org.etsi.uri.TS102204.v1_1_2.MSSP_Info;
+import org.etsi.uri.TS102204.v1_1_2.MSS_HandshakeReq;
+import org.etsi.uri.TS102204.v1_1_2.MSS_HandshakeResp;
+import org.etsi.uri.TS102204.v1_1_2.MSS_ProfileReq;
+import org.etsi.uri.TS102204.v1_1_2.MSS_ProfileResp;
+import org.etsi.uri.TS102204.v1_1_2.MSS_ReceiptReq;
+import org.etsi.uri.TS102204.v1_1_2.MSS_ReceiptResp;
+import org.etsi.uri.TS102204.v1_1_2.MSS_RegistrationReq;
+import org.etsi.uri.TS102204.v1_1_2.MSS_RegistrationResp;
+import org.etsi.uri.TS102204.v1_1_2.MSS_Signature;
+import org.etsi.uri.TS102204.v1_1_2.MSS_SignatureReq;
+import org.etsi.uri.TS102204.v1_1_2.MSS_SignatureResp;
+import org.etsi.uri.TS102204.v1_1_2.MSS_StatusReq;
+import org.etsi.uri.TS102204.v1_1_2.MSS_StatusResp;
+import org.etsi.uri.TS102204.v1_1_2.MatchingAPCertificates;
+import org.etsi.uri.TS102204.v1_1_2.MatchingMSSPCertificates;
+import org.etsi.uri.TS102204.v1_1_2.MatchingSigAlgList;
+import org.etsi.uri.TS102204.v1_1_2.MessageAbstractType;
+import org.etsi.uri.TS102204.v1_1_2.MobileUser;
+import org.etsi.uri.TS102204.v1_1_2.SecureMethods;
+import org.etsi.uri.TS102204.v1_1_2.SignatureProfile;
+import org.etsi.uri.TS102204.v1_1_2.Status;
+import org.etsi.uri.TS102204.v1_1_2.StatusCode;
+import org.etsi.uri.TS102204.v1_1_2.types.MessagingModeType;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import fi.laverca.DTBS;
+import fi.laverca.HttpTransport;
+import fi.laverca.etsi.EtsiClient;
+import fi.laverca.etsi.EtsiSoapCodec;
+import fi.laverca.ficom.FiComErrorCodes;
+import fi.laverca.ficom.FiComSignatureProfiles;
+import fi.laverca.ficom.FiComStatusCodes;
+
+/**
+ * Embeddable MSSP simulator for local load and latency testing.
+ * <p>
+ * Serves all six ETSI TS 102 204 ports (MSS_Signature, MSS_StatusQuery,
+ * MSS_Receipt, MSS_Handshake, MSS_ProfileQuery and MSS_Registration)
+ * with the JDK built-in HTTP server, and sends MSS_Notifications to the
+ * AP_URL of ASYNCHSERVERSERVER requests. For HTTPS, pass a configured
+ * {@link HttpsServer} to the constructor.
+ * <p>
+ * Each signature request draws a user response time and an outcome.
+ * Signature outcomes (500-503) are answered with a PKCS7 signature made
+ * by a {@link SimulatorSigner}; FiCom error codes are answered with
+ * SOAP faults carrying the code as a fi:_NNN subcode, or in the status
+ * of the notification. Every response is further delayed by a network
+ * and processing latency.
+ * <p>
+ * The simulator can be run standalone with {@link #main(String[])}.
+ */
+public class MsspSimulator {
+
+    private static final Log log = LogFactory.getLog(MsspSimulator.class);
+
+    public static final String SIGNATURE_PATH    = "/soap/services/MSS_SignaturePort";
+    public static final String STATUS_PATH       = "/soap/services/MSS_StatusQueryPort";
+    public static final String RECEIPT_PATH      = "/soap/services/MSS_ReceiptPort";
+    public static final String HANDSHAKE_PATH    = "/soap/services/MSS_HandshakePort";
+    public static final String PROFILE_PATH      = "/soap/services/MSS_ProfileQueryPort";
+    public static final String REGISTRATION_PATH = "/soap/services/MSS_RegistrationPort";
+
+    public static final String DEFAULT_MSSP_ID = "http://localhost/mssp-simulator";
+    public static final int    DEFAULT_THREADS = 16;
+    public static final long   DEFAULT_TIMEOUT = 180 * 1000;
+
+    private static final String SIG_ALG = "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256";
+    private static final long   PURGE_INTERVAL = 30 * 1000;
+
+    private final HttpServer    server;
+    private final SimulatorSigner signer;
+
+    private final Map<String, Transaction> transactions = new ConcurrentHashMap<String, Transaction>();
+    private final Map<String, Integer>     userOutcomes = new ConcurrentHashMap<String, Integer>();
+
+    private final AtomicLong transIds      = new AtomicLong();
+    private final AtomicLong signatureReqs = new AtomicLong();
+    private final AtomicLong statusReqs    = new AtomicLong();
+    private final AtomicLong receiptReqs   = new AtomicLong();
+    private final AtomicLong otherReqs     = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong faults        = new AtomicLong();
+    private final AtomicLong errors        = new AtomicLong();
+    private final AtomicLong requestBytes  = new AtomicLong();
+
+    private volatile EtsiSoapCodec codec       = new EtsiSoapCodec();
+    private volatile Distribution  latency     = Distribution.constant(0);
+    private volatile Distribution  userTime    = Distribution.lognormal(10000, 0.5);
+    private volatile String        msspId      = DEFAULT_MSSP_ID;
+    private volatile HttpTransport transport;
+    private volatile boolean       gzip        = true;
+
+    private volatile Outcomes outcomes = Outcomes.DEFAULT;
+
+    private ExecutorService          ownExecutor;
+    private ScheduledExecutorService scheduler;
+    private boolean                  started;
+
+    /**
+     * Create a plain HTTP simulator listening on the given address.
+     *
+     * @param address Address to bind to. Use port 0 for any free port.
+     * @throws IOException if the address can not be bound
+     * @throws GeneralSecurityException if the signing keys can not be created
+     */
+    public MsspSimulator(final InetSocketAddress address) throws IOException, GeneralSecurityException {
+        this(HttpServer.create(address, 0), new SimulatorSigner());
+    }
+
+    /**
+     * Create a simulator on top of an existing JDK HTTP(S) server.
+     *
+     * @param server Unstarted server. May also be an {@link HttpsServer}.
+     * @param signer Signer of the simulated signatures
+     */
+    public MsspSimulator(final HttpServer server, final SimulatorSigner signer) {
+        if (server == null) {
+            throw new IllegalArgumentException("null server not allowed");
+        }
+        if (signer == null) {
+            throw new IllegalArgumentException("null signer not allowed");
+        }
+        this.server = server;
+        this.signer = signer;
+    }
+
+    /**
+     * Start serving requests.
+     */
+    public synchronized void start() {
+        if (this.started) {
+            return;
+        }
+        if (this.server.getExecutor() == null) {
+            this.ownExecutor = Executors.newFixedThreadPool(DEFAULT_THREADS, new NamedThreadFactory("laverca-mssp-"));
+            this.server.setExecutor(this.ownExecutor);
+        }
+        this.scheduler = Executors.newScheduledThreadPool(DEFAULT_THREADS, new NamedThreadFactory("laverca-mssp-timer-"));
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                MsspSimulator.this.purge();
+            }
+        }, PURGE_INTERVAL, PURGE_INTERVAL, TimeUnit.MILLISECONDS);
+
+        this.server.createContext(SIGNATURE_PATH,    new PortHandler(SIGNATURE_PATH));
+        this.server.createContext(STATUS_PATH,       new PortHandler(STATUS_PATH));
+        this.server.createContext(RECEIPT_PATH,      new PortHandler(RECEIPT_PATH));
+        this.server.createContext(HANDSHAKE_PATH,    new PortHandler(HANDSHAKE_PATH));
+        this.server.createContext(PROFILE_PATH,      new PortHandler(PROFILE_PATH));
+        this.server.createContext(REGISTRATION_PATH, new PortHandler(REGISTRATION_PATH));
+        this.server.start();
+        this.started = true;
+        log.info("MSSP simulator listening at " + this.getAddress());
+    }
+
+    /**
+     * Stop the simulator. Outstanding transactions are dropped.
+     * @param delay Seconds to wait for ongoing exchanges to finish
+     */
+    public synchronized void stop(final int delay) {
+        if (!this.started) {
+            return;
+        }
+        this.server.stop(delay);
+        this.scheduler.shutdownNow();
+        this.scheduler = null;
+        if (this.ownExecutor != null) {
+            this.ownExecutor.shutdown();
+            this.ownExecutor = null;
+        }
+        this.transactions.clear();
+        this.started = false;
+    }
+
+    /**
+     * @return the bound address of the server
+     */
+    public InetSocketAddress getAddress() {
+        return this.server.getAddress();
+    }
+
+    /**
+     * @param path One of the port paths, e.g. {@link #SIGNATURE_PATH}
+     * @return URL of the port on localhost
+     */
+    public String getUrl(final String path) {
+        String scheme = this.server instanceof HttpsServer ? "https" : "http";
+        return scheme + "://localhost:" + this.getAddress().getPort() + path;
+    }
+
+    /**
+     * Create a client pointed at all ports of this simulator.
+     * @param apId  AP_ID
+     * @param apPwd AP_PWD
+     * @return a new client
+     */
+    public EtsiClient createEtsiClient(final String apId, final String apPwd) {
+        return new EtsiClient(apId, apPwd,
+                              this.getUrl(SIGNATURE_PATH),
+                              this.getUrl(STATUS_PATH),
+                              this.getUrl(RECEIPT_PATH),
+                              this.getUrl(REGISTRATION_PATH),
+                              this.getUrl(PROFILE_PATH),
+                              this.getUrl(HANDSHAKE_PATH));
+    }
+
+    /**
+     * @param latency Delay added to every response
+     */
+    public void setLatency(final Distribution latency) {
+        if (latency == null) {
+            throw new IllegalArgumentException("null latency not allowed");
+        }
+        this.latency = latency;
+    }
+
+    /**
+     * @param accept Whether gzip compressed requests are taken. If not, they are answered
+     *               with 415 Unsupported Media Type, as an MSSP without compression would.
+     *               Taken by default; the responses are compressed too when asked for.
+     */
+    public void setGzip(final boolean accept) {
+        this.gzip = accept;
+    }
+
+    /**
+     * @param userTime Time the simulated users take to answer
+     */
+    public void setUserResponseTime(final Distribution userTime) {
+        if (userTime == null) {
+            throw new IllegalArgumentException("null user response time not allowed");
+        }
+        this.userTime = userTime;
+    }
+
+    /**
+     * Add a possible outcome of signature requests. The first call
+     * replaces the default of always answering VALID_SIGNATURE.
+     *
+     * @param code   FiCom status code (500-503) or error code, e.g. 401 or 208
+     * @param weight Relative probability of the outcome
+     */
+    public synchronized void addOutcome(final int code, final double weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight must be positive");
+        }
+        Outcomes o = this.outcomes;
+        int n = o == Outcomes.DEFAULT ? 0 : o.codes.length;
+        int[]    codes   = new int[n + 1];
+        double[] weights = new double[n + 1];
+        System.arraycopy(o.codes, 0, codes, 0, n);
+        System.arraycopy(o.weights, 0, weights, 0, n);
+        codes[n]   = code;
+        weights[n] = (n > 0 ? weights[n-1] : 0) + weight;
+        this.outcomes = new Outcomes(codes, weights);
+    }
+
+    /**
+     * Go back to always answering VALID_SIGNATURE.
+     */
+    public synchronized void clearOutcomes() {
+        this.outcomes = Outcomes.DEFAULT;
+    }
+
+    /**
+     * Force the outcome of all requests to one user.
+     * @param msisdn MSISDN of the user
+     * @param code   Outcome code, or null to use the random outcomes
+     */
+    public void setUserOutcome(final String msisdn, final Integer code) {
+        if (code == null) {
+            this.userOutcomes.remove(msisdn);
+        } else {
+            this.userOutcomes.put(msisdn, code);
+        }
+    }
+
+    public void setMsspId(final String msspId) {
+        this.msspId = msspId;
+    }
+
+    public String getMsspId() {
+        return this.msspId;
+    }
+
+    /**
+     * @param codec Codec used to read requests and write responses
+     */
+    public void setCodec(final EtsiSoapCodec codec) {
+        if (codec == null) {
+            throw new IllegalArgumentException("null codec not allowed");
+        }
+        this.codec = codec;
+    }
+
+    /**
+     * Set the transport used to send notifications.
+     * Defaults to {@link HttpTransport#getDefault()}.
+     * @param transport HTTP transport
+     */
+    public void setTransport(final HttpTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Apply the behaviour settings of a configuration file.
+     * <p>
+     * Keys: mssp.id, mssp.latency, mssp.user.response and mssp.outcomes
+     * (e.g. "502:0.9,401:0.05,208:0.05"). Missing keys are left as they are.
+     * @param p Configuration
+     * @throws IllegalArgumentException if a value can not be parsed
+     */
+    public void configure(final Properties p) {
+        if (p.getProperty("mssp.id") != null) {
+            this.setMsspId(p.getProperty("mssp.id"));
+        }
+        if (p.getProperty("mssp.latency") != null) {
+            this.setLatency(Distribution.parse(p.getProperty("mssp.latency")));
+        }
+        if (p.getProperty("mssp.user.response") != null) {
+            this.setUserResponseTime(Distribution.parse(p.getProperty("mssp.user.response")));
+        }
+        String outcomes = p.getProperty("mssp.outcomes");
+        if (outcomes != null) {
+            this.clearOutcomes();
+            for (String s : outcomes.split(",")) {
+                if (s.trim().length() == 0) {
+                    continue;
+                }
+                String[] cw = s.split(":");
+                try {
+                    this.addOutcome(Integer.parseInt(cw[0].trim()), cw.length > 1 ? Double.parseDouble(cw[1].trim()) : 1);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid outcome " + s);
+                }
+            }
+        }
+    }
+
+    public SimulatorSigner getSigner() {
+        return this.signer;
+    }
+
+    public int  getOutstandingCount()  { return this.transactions.size(); }
+    public long getSignatureCount()    { return this.signatureReqs.get(); }
+    public long getStatusCount()       { return this.statusReqs.get();    }
+    public long getReceiptCount()      { return this.receiptReqs.get();   }
+    public long getNotificationCount() { return this.notifications.get(); }
+    public long getFaultCount()        { return this.faults.get();        }
+    public long getErrorCount()        { return this.errors.get();        }
+    public long getRequestBytes()      { return this.requestBytes.get();  }
+
+    @Override
+    public String toString() {
+        return "MsspSimulator[" + this.getAddress()
+             + " signature=" + this.signatureReqs
+             + " status=" + this.statusReqs
+             + " receipt=" + this.receiptReqs
+             + " other=" + this.otherReqs
+             + " notifications=" + this.notifications
+             + " faults=" + this.faults
+             + " errors=" + this.errors
+             + " requestBytes=" + this.requestBytes
+             + " outstanding=" + this.transactions.size() + "]";
+    }
+
+    /**
+     * A signature transaction waiting for its user.
+     */
+    private static class Transaction {
+        final String     msspTransId;
+        final AP_Info    apInfo;
+        final MobileUser mobileUser;
+        final byte[]     dtbs;
+        final String     apUrl;
+        final long       answerAt;
+        final int        outcome;
+        byte[]           pkcs7;
+
+        Transaction(final String msspTransId, final AP_Info apInfo, final MobileUser mobileUser,
+                    final byte[] dtbs, final String apUrl, final long answerAt, final int outcome) {
+            this.msspTransId = msspTransId;
+            this.apInfo      = apInfo;
+            this.mobileUser  = mobileUser;
+            this.dtbs        = dtbs;
+            this.apUrl       = apUrl;
+            this.answerAt    = answerAt;
+            this.outcome     = outcome;
+        }
+    }
+
+    /**
+     * Outcome codes with cumulative weights. Replaced as a whole.
+     */
+    private static class Outcomes {
+        static final Outcomes DEFAULT = new Outcomes(new int[] { (int)FiComStatusCodes.VALID_SIGNATURE.getValue() },
+                                                     new double[] { 1 });
+        final int[]    codes;
+        final double[] weights;
+
+        Outcomes(final int[] codes, final double[] weights) {
+            this.codes   = codes;
+            this.weights = weights;
+        }
+    }
+
+    /**
+     * A reply to send, either a message or a fault.
+     */
+    private static class Reply {
+        final String operation;
+        final Object payload;
+        final QName  code;
+        final int    subcode;
+        final String reason;
+
+        Reply(final String operation, final Object payload) {
+            this.operation = operation;
+            this.payload   = payload;
+            this.code      = null;
+            this.subcode   = 0;
+            this.reason    = null;
+        }
+
+        Reply(final QName code, final int subcode, final String reason) {
+            this.operation = null;
+            this.payload   = null;
+            this.code      = code;
+            this.subcode   = subcode;
+            this.reason    = reason;
+        }
+    }
+
+    private static Reply fault(final QName code, final int subcode) {
+        return new Reply(code, subcode, describe(subcode));
+    }
+
+    private Reply handleSignature(final MSS_SignatureReq req, final long now, final long[] delay) throws IOException {
+        this.signatureReqs.incrementAndGet();
+        String msisdn = req.getMobileUser() != null ? req.getMobileUser().getMSISDN() : null;
+        if (msisdn == null || req.getAP_Info() == null || req.getDataToBeSigned() == null) {
+            return fault(EtsiSoapCodec.SENDER, FiComErrorCodes.MISSING_PARAM.primaryCode);
+        }
+        Random random = ThreadLocalRandom.current();
+        int outcome = this.drawOutcome(msisdn, random);
+        if (outcome < 200) {
+            return fault(EtsiSoapCodec.SENDER, outcome);
+        }
+
+        long timeout = req.getTimeOut() > 0 ? req.getTimeOut() * 1000 : DEFAULT_TIMEOUT;
+        long answer  = this.userTime.sample(random);
+        if (answer >= timeout) {
+            answer  = timeout;
+            outcome = FiComErrorCodes.EXPIRED_TRANSACTION.primaryCode;
+        }
+
+        MessagingModeType mode = req.getMessagingMode();
+        String apUrl = req.getAP_Info().getAP_URL();
+        if (MessagingModeType.ASYNCHSERVERSERVER.equals(mode) && apUrl == null) {
+            return fault(EtsiSoapCodec.SENDER, FiComErrorCodes.MISSING_PARAM.primaryCode);
+        }
+
+        String transId = "sim" + this.transIds.incrementAndGet();
+        final Transaction t = new Transaction(transId, req.getAP_Info(), req.getMobileUser(),
+                                              decode(req.getDataToBeSigned()),
+                                              MessagingModeType.ASYNCHSERVERSERVER.equals(mode) ? apUrl : null,
+                                              now + answer, outcome);
+
+        if (MessagingModeType.SYNCH.equals(mode)) {
+            delay[0] += answer;
+            if (!isSignature(outcome)) {
+                return fault(EtsiSoapCodec.RECEIVER, outcome);
+            }
+            MSS_SignatureResp resp = this.createSignatureResp(t, req.getSignatureProfile());
+            resp.setMSS_Signature(this.createSignature(t));
+            resp.setStatus(status(outcome));
+            return new Reply("MSS_SignatureResponse", resp);
+        }
+
+        this.transactions.put(transId, t);
+        if (t.apUrl != null) {
+            this.scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    MsspSimulator.this.notify(t);
+                }
+            }, answer, TimeUnit.MILLISECONDS);
+        }
+
+        MSS_SignatureResp resp = this.createSignatureResp(t, req.getSignatureProfile());
+        resp.setStatus(status((int)FiComStatusCodes.REQUEST_OK.getValue()));
+        return new Reply("MSS_SignatureResponse", resp);
+    }
+
+    private Reply handleStatus(final MSS_StatusReq req, final long now) throws IOException {
+        this.statusReqs.incrementAndGet();
+        Transaction t = req.getMSSP_TransID() != null ? this.transactions.get(req.getMSSP_TransID()) : null;
+        if (t == null) {
+            return fault(EtsiSoapCodec.SENDER, FiComErrorCodes.WRONG_PARAM.primaryCode);
+        }
+        MSS_StatusResp resp = this.createStatusResp(t);
+        if (now < t.answerAt) {
+            resp.setStatus(status((int)FiComStatusCodes.OUTSTANDING_TRANSACTION.getValue()));
+            return new Reply("MSS_StatusQueryResponse", resp);
+        }
+        if (!isSignature(t.outcome)) {
+            this.transactions.remove(t.msspTransId);
+            return fault(EtsiSoapCodec.RECEIVER, t.outcome);
+        }
+        resp.setMSS_Signature(this.createSignature(t));
+        resp.setStatus(status(t.outcome));
+        return new Reply("MSS_StatusQueryResponse", resp);
+    }
+
+    private Reply handleReceipt(final MSS_ReceiptReq req) {
+        this.receiptReqs.incrementAndGet();
+        if (req.getMSSP_TransID() == null || this.transactions.remove(req.getMSSP_TransID()) == null) {
+            return fault(EtsiSoapCodec.SENDER, FiComErrorCodes.WRONG_PARAM.primaryCode);
+        }
+        MSS_ReceiptResp resp = new MSS_ReceiptResp();
+        this.fill(resp, req.getAP_Info());
+        resp.setStatus(status((int)FiComStatusCodes.REQUEST_OK.getValue()));
+        return new Reply("MSS_ReceiptResponse", resp);
+    }
+
+    private Reply handleHandshake(final MSS_HandshakeReq req) throws IOException {
+        this.otherReqs.incrementAndGet();
+        MSS_HandshakeResp resp = new MSS_HandshakeResp();
+        this.fill(resp, req.getAP_Info());
+        resp.setMSSP_TransID("sim" + this.transIds.incrementAndGet());
+
+        SecureMethods sm = new SecureMethods();
+        sm.setMSS_Signature(true);
+        sm.setMSS_Status(true);
+        sm.setMSS_Receipt(true);
+        sm.setMSS_Registration(true);
+        sm.setMSS_ProfileQuery(true);
+        sm.setMSS_Notification(true);
+        resp.setSecureMethods(sm);
+
+        MatchingMSSPCertificates msspCerts = new MatchingMSSPCertificates();
+        msspCerts.addCertificate(this.signer.getCaCertificate());
+        resp.setMatchingMSSPCertificates(msspCerts);
+        resp.setMatchingAPCertificates(new MatchingAPCertificates());
+
+        MatchingSigAlgList algs = new MatchingSigAlgList();
+        Algorithm alg = new Algorithm();
+        alg.setMssURI(SIG_ALG);
+        algs.addAlgorithm(alg);
+        resp.setMatchingSigAlgList(algs);
+        return new Reply("MSS_HandshakeResponse", resp);
+    }
+
+    private Reply handleProfile(final MSS_ProfileReq req) {
+        this.otherReqs.incrementAndGet();
+        MSS_ProfileResp resp = new MSS_ProfileResp();
+        this.fill(resp, req.getAP_Info());
+        for (String uri : new String[] { FiComSignatureProfiles.AUTHENTICATION,
+                                         FiComSignatureProfiles.ANONYMOUS,
+                                         FiComSignatureProfiles.SIGNATURE,
+                                         FiComSignatureProfiles.DIGESTIVE,
+                                         FiComSignatureProfiles.CONSENT }) {
+            SignatureProfile sp = new SignatureProfile();
+            sp.setMssURI(uri);
+            resp.addSignatureProfile(sp);
+        }
+        resp.setStatus(status((int)FiComStatusCodes.REQUEST_OK.getValue()));
+        return new Reply("MSS_ProfileQueryResponse", resp);
+    }
+
+    private Reply handleRegistration(final MSS_RegistrationReq req) {
+        this.otherReqs.incrementAndGet();
+        MSS_RegistrationResp resp = new MSS_RegistrationResp();
+        this.fill(resp, req.getAP_Info());
+        resp.setStatus(status((int)FiComStatusCodes.REQUEST_OK.getValue()));
+        return new Reply("MSS_RegistrationResponse", resp);
+    }
+
+    /**
+     * Send the final status of an ASYNCHSERVERSERVER transaction to its AP.
+     */
+    private void notify(final Transaction t) {
+        if (this.transactions.get(t.msspTransId) != t) {
+            return;
+        }
+        try {
+            MSS_StatusResp statusResp = this.createStatusResp(t);
+            if (isSignature(t.outcome)) {
+                statusResp.setMSS_Signature(this.createSignature(t));
+            }
+            statusResp.setStatus(status(t.outcome));
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+            this.codec.writeMessage(baos, "MSS_Notification", statusResp);
+
+            HttpTransport ht = this.transport != null ? this.transport : HttpTransport.getDefault();
+            HttpPost post = new HttpPost(t.apUrl);
+            post.setConfig(RequestConfig.copy(ht.getRequestConfig()).setSocketTimeout(30 * 1000).build());
+            post.setEntity(new ByteArrayEntity(baos.toByteArray(), ContentType.parse(EtsiSoapCodec.CONTENT_TYPE)));
+            CloseableHttpResponse resp = ht.getHttpClient().execute(post);
+            try {
+                int code = resp.getStatusLine().getStatusCode();
+                if (code != 200 || resp.getEntity() == null) {
+                    throw new IOException("HTTP " + code + " from " + t.apUrl);
+                }
+                InputStream is = resp.getEntity().getContent();
+                try {
+                    this.codec.readMessage(is, MSS_ReceiptReq.class);
+                } finally {
+                    EntityUtils.consumeQuietly(resp.getEntity());
+                }
+            } finally {
+                resp.close();
+            }
+            this.notifications.incrementAndGet();
+        } catch (Exception e) {
+            this.errors.incrementAndGet();
+            log.warn("Notification of " + t.msspTransId + " to " + t.apUrl + " failed: " + e.getMessage());
+        } finally {
+            this.transactions.remove(t.msspTransId);
+        }
+    }
+
+    /**
+     * Drop transactions that the AP never finished.
+     */
+    private void purge() {
+        long limit = System.currentTimeMillis() - DEFAULT_TIMEOUT;
+        for (Iterator<Transaction> i = this.transactions.values().iterator(); i.hasNext(); ) {
+            if (i.next().answerAt < limit) {
+                i.remove();
+            }
+        }
+    }
+
+    private int drawOutcome(final String msisdn, final Random random) {
+        Integer forced = this.userOutcomes.get(msisdn);
+        if (forced != null) {
+            return forced.intValue();
+        }
+        Outcomes o = this.outcomes;
+        int[]    codes   = o.codes;
+        double[] weights = o.weights;
+        double r = random.nextDouble() * weights[weights.length - 1];
+        for (int i = 0; i < codes.length; i++) {
+            if (r < weights[i]) {
+                return codes[i];
+            }
+        }
+        return codes[codes.length - 1];
+    }
+
+    private MSS_Signature createSignature(final Transaction t) throws IOException {
+        byte[] pkcs7;
+        synchronized (t) {
+            if (t.pkcs7 == null) {
+                try {
+                    t.pkcs7 = this.signer.sign(t.mobileUser.getMSISDN(), t.dtbs);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Signing failed: " + e.getMessage(), e);
+                }
+            }
+            pkcs7 = t.pkcs7;
+        }
+        MSS_Signature sig = new MSS_Signature();
+        sig.setBase64Signature(pkcs7);
+        return sig;
+    }
+
+    private MSS_SignatureResp createSignatureResp(final Transaction t, final SignatureProfile profile) {
+        MSS_SignatureResp resp = new MSS_SignatureResp();
+        this.fill(resp, t.apInfo);
+        resp.setMSSP_TransID(t.msspTransId);
+        resp.setMobileUser(t.mobileUser);
+        resp.setSignatureProfile(profile);
+        return resp;
+    }
+
+    private MSS_StatusResp createStatusResp(final Transaction t) {
+        MSS_StatusResp resp = new MSS_StatusResp();
+        this.fill(resp, t.apInfo);
+        resp.setMSSP_TransID(t.msspTransId);
+        resp.setMobileUser(t.mobileUser);
+        return resp;
+    }
+
+    private void fill(final MessageAbstractType resp, final AP_Info apInfo) {
+        resp.setMajorVersion(1);
+        resp.setMinorVersion(1);
+        resp.setAP_Info(apInfo);
+        MSSP_ID id = new MSSP_ID();
+        id.setURI(this.msspId);
+        MSSP_Info mi = new MSSP_Info();
+        mi.setMSSP_ID(id);
+        mi.setInstant(new Date());
+        resp.setMSSP_Info(mi);
+    }
+
+    private static byte[] decode(final DataToBeSigned dtbs) {
+        String content = dtbs.getContent() != null ? dtbs.getContent() : "";
+        if (DTBS.ENCODING_BASE64.equalsIgnoreCase(dtbs.getEncoding())) {
+            return Base64.decode(content);
+        }
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Status status(final int code) {
+        StatusCode sc = new StatusCode();
+        sc.setValue(code);
+        Status s = new Status();
+        s.setStatusCode(sc);
+        return s;
+    }
+
+    private static boolean isSignature(final int code) {
+        return code >= FiComStatusCodes.SIGNATURE.getValue() && code <= FiComStatusCodes.INVALID_SIGNATURE.getValue();
+    }
+
+    /**
+     * @return the name of a FiCom code as the fault reason
+     */
+    private static String describe(final int code) {
+        for (Field f : FiComErrorCodes.class.getFields()) {
+            if (Modifier.isStatic(f.getModifiers()) && f.getType() == FiComErrorCodes.StatusCode.class) {
+                try {
+                    FiComErrorCodes.StatusCode sc = (FiComErrorCodes.StatusCode)f.get(null);
+                    if (sc.primaryCode == code && sc.getClass() == FiComErrorCodes.StatusCode.class) {
+                        return f.getName();
+                    }
+                } catch (IllegalAccessException e) {
+                    break;
+                }
+            }
+        }
+        return "Error " + code;
+    }
+
+    private class PortHandler implements HttpHandler {
+
+        private final String path;
+
+        PortHandler(final String path) {
+            this.path = path;
+        }
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            boolean async = false;
+            try {
+                if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                boolean gzipped = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+                exchange.getResponseHeaders().set("Accept-Encoding", MsspSimulator.this.gzip ? "gzip" : "identity");
+                if (gzipped && !MsspSimulator.this.gzip) {
+                    exchange.sendResponseHeaders(415, -1);
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                long[] delay = { MsspSimulator.this.latency.sample(ThreadLocalRandom.current()) };
+
+                Reply reply;
+                InputStream is = new FilterInputStream(exchange.getRequestBody()) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b >= 0) {
+                            MsspSimulator.this.requestBytes.incrementAndGet();
+                        }
+                        return b;
+                    }
+                    @Override
+                    public int read(final byte[] b, final int off, final int len) throws IOException {
+                        int n = super.read(b, off, len);
+                        if (n > 0) {
+                            MsspSimulator.this.requestBytes.addAndGet(n);
+                        }
+                        return n;
+                    }
+                };
+                if (gzipped) {
+                    is = new GZIPInputStream(is);
+                }
+                try {
+                    reply = this.dispatch(is, now, delay);
+                } catch (IOException ioe) {
+                    log.debug("Invalid request to " + this.path, ioe);
+                    reply = new Reply(EtsiSoapCodec.SENDER, FiComErrorCodes.WRONG_PARAM.primaryCode, ioe.getMessage());
+                } finally {
+                    is.close();
+                }
+
+                final Reply r = reply;
+                if (delay[0] > 0) {
+                    MsspSimulator.this.scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            PortHandler.this.send(exchange, r);
+                        }
+                    }, delay[0], TimeUnit.MILLISECONDS);
+                    async = true;
+                } else {
+                    this.send(exchange, r);
+                }
+            } catch (Throwable t) {
+                log.error("Failed to process request to " + this.path, t);
+                MsspSimulator.this.errors.incrementAndGet();
+                this.send(exchange, new Reply(EtsiSoapCodec.RECEIVER, FiComErrorCodes.INTERNAL_ERROR.primaryCode, "Internal error"));
+            } finally {
+                if (!async) {
+                    exchange.close();
+                }
+            }
+        }
+
+        private Reply dispatch(final InputStream is, final long now, final long[] delay) throws IOException {
+            EtsiSoapCodec c = MsspSimulator.this.codec;
+            if (SIGNATURE_PATH.equals(this.path)) {
+                return MsspSimulator.this.handleSignature(c.readMessage(is, MSS_SignatureReq.class), now, delay);
+            } else if (STATUS_PATH.equals(this.path)) {
+                return MsspSimulator.this.handleStatus(c.readMessage(is, MSS_StatusReq.class), now);
+            } else if (RECEIPT_PATH.equals(this.path)) {
+                return MsspSimulator.this.handleReceipt(c.readMessage(is, MSS_ReceiptReq.class));
+            } else if (HANDSHAKE_PATH.equals(this.path)) {
+                return MsspSimulator.this.handleHandshake(c.readMessage(is, MSS_HandshakeReq.class));
+            } else if (PROFILE_PATH.equals(this.path)) {
+                return MsspSimulator.this.handleProfile(c.readMessage(is, MSS_ProfileReq.class));
+            } else {
+                return MsspSimulator.this.handleRegistration(c.readMessage(is, MSS_RegistrationReq.class));
+            }
+        }
+
+        private void send(final HttpExchange exchange, final Reply reply) {
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+                int status;
+                if (reply.code != null) {
+                    MsspSimulator.this.faults.incrementAndGet();
+                    QName subcode = new QName(FiComErrorCodes.FICOM_NS_URI, "_" + reply.subcode, FiComErrorCodes.FICOM_PREFIX);
+                    MsspSimulator.this.codec.writeFault(baos, reply.code, new QName[] { subcode }, reply.reason);
+                    status = 500;
+                } else {
+                    MsspSimulator.this.codec.writeMessage(baos, reply.operation, reply.payload);
+                    status = 200;
+                }
+                exchange.getResponseHeaders().set("Content-Type", EtsiSoapCodec.CONTENT_TYPE);
+                String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                if (MsspSimulator.this.gzip && baos.size() >= 1024
+                    && acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip"))
+                {
+                    ByteArrayOutputStream gz = new ByteArrayOutputStream(baos.size() / 4);
+                    GZIPOutputStream gzos = new GZIPOutputStream(gz);
+                    baos.writeTo(gzos);
+                    gzos.close();
+                    baos = gz;
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.sendResponseHeaders(status, baos.size());
+                OutputStream os = exchange.getResponseBody();
+                baos.writeTo(os);
+                os.close();
+            } catch (IOException e) {
+                log.debug("Could not send response", e);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String        prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(r, this.prefix + this.count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * Run the simulator standalone.
+     * <p>
+     * Usage: MsspSimulator [config.properties]
+     * <p>
+     * Keys: mssp.host, mssp.port, mssp.id, mssp.latency, mssp.user.response,
+     * mssp.outcomes (e.g. "502:0.9,401:0.05,208:0.05"), mssp.keysize and for
+     * HTTPS ssl.keystore, ssl.keystore.type and ssl.keystore.password.
+     */
+    public static void main(final String[] args) throws Exception {
+        Properties p = new Properties();
+        if (args.length > 0) {
+            InputStream is = new FileInputStream(args[0]);
+            try {
+                p.load(is);
+            } finally {
+                is.close();
+            }
+        }
+        InetSocketAddress address = new InetSocketAddress(p.getProperty("mssp.host", "localhost"),
+                                                          Integer.parseInt(p.getProperty("mssp.port", "9090")));
+        HttpServer server;
+        String keystore = p.getProperty("ssl.keystore");
+        if (keystore != null) {
+            char[] pwd = p.getProperty("ssl.keystore.password", "").toCharArray();
+            KeyStore ks = KeyStore.getInstance(p.getProperty("ssl.keystore.type", "PKCS12"));
+            InputStream is = new FileInputStream(keystore);
+            try {
+                ks.load(is, pwd);
+            } finally {
+                is.close();
+            }
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(ks, pwd);
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(kmf.getKeyManagers(), null, null);
+            HttpsServer https = HttpsServer.create(address, 0);
+            https.setHttpsConfigurator(new HttpsConfigurator(ctx));
+            server = https;
+        } else {
+            server = HttpServer.create(address, 0);
+        }
+
+        int keySize = Integer.parseInt(p.getProperty("mssp.keysize", String.valueOf(SimulatorSigner.DEFAULT_KEY_SIZE)));
+        final MsspSimulator sim = new MsspSimulator(server, new SimulatorSigner(keySize));
+        sim.configure(p);
+        sim.start();
+        System.out.println("MSSP simulator running. Signature port at " + sim.getUrl(SIGNATURE_PATH));
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                System.out.println(sim);
+                sim.stop(0);
+            }
+        });
+        Thread.currentThread().join();
+    }
+
+}
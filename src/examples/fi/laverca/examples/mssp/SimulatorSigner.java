@@ -0,0 +1,185 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.examples.mssp;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.DERUTF8String;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.cms.SignedData;
+import org.bouncycastle.asn1.cms.SignerIdentifier;
+import org.bouncycastle.asn1.cms.SignerInfo;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.RDN;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.Certificate;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x509.TBSCertificate;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.asn1.x509.V3TBSCertificateGenerator;
+
+/**
+ * Creates the PKCS7 signatures of the {@link MsspSimulator}.
+ * <p>
+ * A throwaway CA issues a certificate per simulated user with the
+ * MSISDN as its CN. All users share one RSA key so that a new user
+ * only costs one certificate signature. The signatures are PKCS7
+ * SignedData structures with the signed data encapsulated and both
+ * the user and the CA certificate included, as MSSPs send them.
+ */
+public class SimulatorSigner {
+
+    public static final int DEFAULT_KEY_SIZE = 2048;
+
+    private static final int  MAX_CACHED_CERTS = 10000;
+    private static final long VALIDITY         = 365L * 24 * 3600 * 1000;
+
+    private static final AlgorithmIdentifier SHA256_RSA = new AlgorithmIdentifier(PKCSObjectIdentifiers.sha256WithRSAEncryption, DERNull.INSTANCE);
+    private static final AlgorithmIdentifier SHA256     = new AlgorithmIdentifier(NISTObjectIdentifiers.id_sha256, DERNull.INSTANCE);
+    private static final AlgorithmIdentifier RSA        = new AlgorithmIdentifier(PKCSObjectIdentifiers.rsaEncryption, DERNull.INSTANCE);
+
+    private final KeyPair     caKey;
+    private final KeyPair     userKey;
+    private final X500Name    caName = new X500Name("CN=Laverca MSSP Simulator CA");
+    private final AtomicLong  serial = new AtomicLong(System.currentTimeMillis());
+    private final Certificate caCert;
+
+    private final Map<String, Certificate> certs = new LinkedHashMap<String, Certificate>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Certificate> eldest) {
+            return this.size() > MAX_CACHED_CERTS;
+        }
+    };
+
+    /**
+     * Create a signer with {@link #DEFAULT_KEY_SIZE} bit RSA keys.
+     */
+    public SimulatorSigner() throws GeneralSecurityException {
+        this(DEFAULT_KEY_SIZE);
+    }
+
+    /**
+     * @param keySize RSA key size in bits
+     */
+    public SimulatorSigner(final int keySize) throws GeneralSecurityException {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(keySize);
+        this.caKey   = kpg.generateKeyPair();
+        this.userKey = kpg.generateKeyPair();
+        try {
+            this.caCert = this.issue(this.caName, this.caKey);
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Could not create CA certificate", e);
+        }
+    }
+
+    /**
+     * Sign data on behalf of a user.
+     * @param msisdn  MSISDN of the user, used as the certificate CN
+     * @param content Signed data
+     * @return DER encoded PKCS7 ContentInfo
+     */
+    public byte[] sign(final String msisdn, final byte[] content) throws GeneralSecurityException, IOException {
+        Certificate cert = this.getCertificate(msisdn);
+        byte[] sig = sign(this.userKey.getPrivate(), content);
+
+        SignerIdentifier sid = new SignerIdentifier(new IssuerAndSerialNumber(cert.getIssuer(), cert.getSerialNumber().getValue()));
+        SignerInfo si = new SignerInfo(sid, SHA256, (ASN1Set)null, RSA, new DEROctetString(sig), (ASN1Set)null);
+        SignedData sd = new SignedData(new DERSet(SHA256),
+                                       new ContentInfo(CMSObjectIdentifiers.data, new DEROctetString(content)),
+                                       new DERSet(new ASN1Encodable[] { cert, this.caCert }),
+                                       null,
+                                       new DERSet(si));
+        return new ContentInfo(CMSObjectIdentifiers.signedData, sd).getEncoded(ASN1Encoding.DER);
+    }
+
+    /**
+     * @return the DER encoded CA certificate
+     */
+    public byte[] getCaCertificate() throws IOException {
+        return this.caCert.getEncoded(ASN1Encoding.DER);
+    }
+
+    private Certificate getCertificate(final String msisdn) throws GeneralSecurityException, IOException {
+        String cn = msisdn != null ? msisdn : "unknown";
+        synchronized (this.certs) {
+            Certificate c = this.certs.get(cn);
+            if (c != null) {
+                return c;
+            }
+        }
+        // Built by hand: the '+' of an MSISDN would split a parsed RDN
+        X500Name subject = new X500Name(new RDN[] { new RDN(BCStyle.CN, new DERUTF8String(cn)) });
+        Certificate c = this.issue(subject, this.userKey);
+        synchronized (this.certs) {
+            this.certs.put(cn, c);
+        }
+        return c;
+    }
+
+    private Certificate issue(final X500Name subject, final KeyPair subjectKey) throws GeneralSecurityException, IOException {
+        long now = System.currentTimeMillis();
+        V3TBSCertificateGenerator g = new V3TBSCertificateGenerator();
+        g.setSerialNumber(new ASN1Integer(BigInteger.valueOf(this.serial.incrementAndGet())));
+        g.setSignature(SHA256_RSA);
+        g.setIssuer(this.caName);
+        g.setSubject(subject);
+        g.setStartDate(new Time(new Date(now - 3600 * 1000)));
+        g.setEndDate(new Time(new Date(now + VALIDITY)));
+        g.setSubjectPublicKeyInfo(SubjectPublicKeyInfo.getInstance(subjectKey.getPublic().getEncoded()));
+        TBSCertificate tbs = g.generateTBSCertificate();
+
+        byte[] sig = sign(this.caKey.getPrivate(), tbs.getEncoded(ASN1Encoding.DER));
+        return Certificate.getInstance(new DERSequence(new ASN1Encodable[] { tbs, SHA256_RSA, new DERBitString(sig) }));
+    }
+
+    private static byte[] sign(final PrivateKey key, final byte[] data) throws GeneralSecurityException {
+        Signature s = Signature.getInstance("SHA256withRSA");
+        s.initSign(key);
+        s.update(data);
+        return s.sign();
+    }
+
+}
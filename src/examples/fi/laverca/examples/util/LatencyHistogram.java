@@ -0,0 +1,230 @@
+/* ==========================================
+ * Laverca Project
+ * https://sourceforge.net/projects/laverca/
+ * ==========================================
+ * Copyright 2015 Laverca Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package fi.laverca.examples.util;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent latency histogram in the style of HdrHistogram.
+ * <p>
+ * Values are microseconds. Buckets are log-linear with 256 sub-buckets
+ * per power of two, so every recorded value is kept with two significant
+ * digits from 1 &micro;s up to about 19 hours. Recording is lock-free.
+ * <p>
+ * The histogram itself does not correct for coordinated omission; the
+ * caller does that by measuring from the time a request was supposed to
+ * be sent instead of when it actually was.
+ */
+public class LatencyHistogram {
+
+    private static final int  SUB_BITS  = 8;
+    private static final int  HALF      = 1 << (SUB_BITS - 1);
+    private static final int  MAX_SHIFT = 36 - SUB_BITS;
+    private static final long MAX_VALUE = (1L << 36) - 1;
+
+    private final String          name;
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_SHIFT + 2) * HALF);
+    private final AtomicLong      count  = new AtomicLong();
+    private final AtomicLong      sum    = new AtomicLong();
+    private final AtomicLong      max    = new AtomicLong();
+
+    /**
+     * @param name Name used in the reports
+     */
+    public LatencyHistogram(final String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Record a latency.
+     * @param micros Latency in microseconds. Negative values count as 0.
+     */
+    public void record(final long micros) {
+        long v = Math.min(Math.max(micros, 0), MAX_VALUE);
+        this.counts.incrementAndGet(index(v));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(v);
+        long m = this.max.get();
+        while (v > m && !this.max.compareAndSet(m, v)) {
+            m = this.max.get();
+        }
+    }
+
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * @return the largest recorded value in microseconds
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * @return the mean in microseconds
+     */
+    public double getMean() {
+        long n = this.count.get();
+        return n == 0 ? 0 : (double)this.sum.get() / n;
+    }
+
+    /**
+     * Get the value at a percentile.
+     * @param percentile e.g. 99.9
+     * @return the highest value equivalent to the value at the percentile, in microseconds
+     */
+    public long getValueAtPercentile(final double percentile) {
+        long n = 0;
+        long[] c = this.snapshot();
+        for (long x : c) {
+            n += x;
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long)Math.ceil(Math.min(percentile, 100) / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < c.length; i++) {
+            seen += c[i];
+            if (seen >= target) {
+                return Math.min(highestEquivalent(i), this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+
+    /**
+     * Print a one line summary in milliseconds.
+     */
+    @Override
+    public String toString() {
+        return String.format("%-22s %8d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f",
+                             this.name,
+                             this.getCount(),
+                             this.getMean() / 1000,
+                             this.getValueAtPercentile(50)   / 1000.0,
+                             this.getValueAtPercentile(90)   / 1000.0,
+                             this.getValueAtPercentile(99)   / 1000.0,
+                             this.getValueAtPercentile(99.9) / 1000.0,
+                             this.getMax() / 1000.0);
+    }
+
+    /**
+     * @return the header of the {@link #toString()} lines
+     */
+    public static String getSummaryHeader() {
+        return String.format("%-22s %8s %9s %9s %9s %9s %9s %9s",
+                             "(ms)", "count", "mean", "p50", "p90", "p99", "p99.9", "max");
+    }
+
+    /**
+     * Print the percentile distribution in the HdrHistogram text format,
+     * which can be plotted with the HdrHistogram plotter.
+     * @param out   Stream to print to
+     * @param scale Divisor of the values, e.g. 1000.0 for milliseconds
+     */
+    public void outputPercentileDistribution(final PrintStream out, final double scale) {
+        long[] c = this.snapshot();
+        long n = 0;
+        for (long x : c) {
+            n += x;
+        }
+        out.format("%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+        if (n == 0) {
+            return;
+        }
+        // Five steps per halving of the remaining tail, as HdrHistogram does
+        double next = 0;
+        double step = 20;
+        long seen = 0;
+        for (int i = 0; i < c.length; i++) {
+            if (c[i] == 0) {
+                continue;
+            }
+            seen += c[i];
+            double p = 100.0 * seen / n;
+            if (p < next && seen < n) {
+                continue;
+            }
+            long v = Math.min(highestEquivalent(i), this.max.get());
+            if (seen == n) {
+                out.format("%12.3f %2.12f %10d%n", v / scale, 1.0, seen);
+                break;
+            }
+            out.format("%12.3f %2.12f %10d %14.2f%n", v / scale, p / 100, seen, 1 / (1 - p / 100));
+            while (next <= p) {
+                next += step;
+                if (100 - next < 2 * step) {
+                    step /= 2;
+                }
+            }
+        }
+        out.format("#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", this.getMean() / scale, this.getStdDeviation(c) / scale);
+        out.format("#[Max     = %12.3f, Total count    = %12d]%n", this.getMax() / scale, n);
+    }
+
+    private double getStdDeviation(final long[] c) {
+        double mean = this.getMean();
+        double sq = 0;
+        long n = 0;
+        for (int i = 0; i < c.length; i++) {
+            if (c[i] != 0) {
+                double d = (lowestEquivalent(i) + highestEquivalent(i)) / 2.0 - mean;
+                sq += d * d * c[i];
+                n  += c[i];
+            }
+        }
+        return n == 0 ? 0 : Math.sqrt(sq / n);
+    }
+
+    private long[] snapshot() {
+        long[] c = new long[this.counts.length()];
+        for (int i = 0; i < c.length; i++) {
+            c[i] = this.counts.get(i);
+        }
+        return c;
+    }
+
+    private static int index(final long v) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(v) - (SUB_BITS - 1));
+        return shift * HALF + (int)(v >>> shift);
+    }
+
+    private static long lowestEquivalent(final int index) {
+        if (index < 2 * HALF) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        return (long)(index - shift * HALF) << shift;
+    }
+
+    private static long highestEquivalent(final int index) {
+        int shift = index < 2 * HALF ? 0 : index / HALF - 1;
+        return lowestEquivalent(index) + (1L << shift) - 1;
+    }
+
+}